@@ -0,0 +1,546 @@
+package com.pastdev.jsch;
+
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+import com.jcraft.jsch.Proxy;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SocketFactory;
+
+
+/**
+ * Chooses, for each target, whether the sessions created by a
+ * {@link DefaultSessionFactory} are compressed. Compression pays on slow links
+ * but costs throughput on fast ones, where the link outruns the compressor, so
+ * rather than one setting for every target, the choice is made from what is
+ * measured:
+ * <ul>
+ * <li>The round trip time, timed by the TCP connect of each session.</li>
+ * <li>The bandwidth, from the rate of bursts of traffic on the sockets of the
+ * sessions to the target. A handshake is too small to time the bandwidth by,
+ * so until a burst of <code>minSampleBytes</code> has been seen, a round trip
+ * of at least <code>roundTripThreshold</code> is taken to mean a slow
+ * link.</li>
+ * <li>The compressibility of the recent traffic of the compressed sessions of
+ * this process, as seen by {@link JdkCompression}.</li>
+ * </ul>
+ * A target is compressed while its bandwidth is below what compression would
+ * save at the speed of the compressor,
+ * <code>compressorBytesPerSecond * (1 - ratio)</code>. As a compressed session
+ * cannot show that a link is faster than its compressor, every
+ * <code>probeInterval</code>th session to a compressed target is created
+ * uncompressed to measure it again.
+ * <p>
+ * Factories whose configuration sets <code>compression.c2s</code> or
+ * <code>compression.s2c</code> keep that setting, but their sessions are still
+ * measured. Sessions connected through a {@link Proxy} are not measured. Files
+ * that are already compressed, as told by {@link #isCompressed(String)}, gain
+ * nothing from compression, so a {@link TrafficClassRouter} sends their
+ * transfers to sessions from {@link #uncompressed(SessionFactory)}.
+ * </p>
+ * 
+ * <pre>
+ * sessionFactory.setAdaptiveCompression( new AdaptiveCompression() );
+ * SshClient client = new SshClient( new TrafficClassRouter( sessionFactory ) );
+ * client.newScpFile( &quot;logs&quot;, &quot;app.log&quot; ).copyTo( dir ); // compressed if it pays
+ * client.newScpFile( &quot;logs&quot;, &quot;app.log.gz&quot; ).copyTo( dir ); // never compressed
+ * </pre>
+ */
+public class AdaptiveCompression {
+    private static Logger logger = LoggerFactory.getLogger( AdaptiveCompression.class );
+    public static final String COMPRESSED = "zlib@openssh.com,zlib,none";
+    public static final double DEFAULT_COMPRESSION_RATIO = 0.5;
+    public static final double DEFAULT_COMPRESSOR_BYTES_PER_SECOND = 30e6;
+    public static final int DEFAULT_MIN_SAMPLE_BYTES = 512 * 1024;
+    public static final int DEFAULT_PROBE_INTERVAL = 8;
+    public static final long DEFAULT_ROUND_TRIP_THRESHOLD_MILLIS = 10L;
+    public static final String UNCOMPRESSED = "none";
+    private static final Set<String> COMPRESSED_EXTENSIONS = Collections.unmodifiableSet( new HashSet<String>( Arrays.asList(
+            "7z", "apk", "avi", "bz2", "deb", "docx", "ear", "flac", "gif", "gz", "jar", "jpeg", "jpg",
+            "lz4", "lzma", "m4a", "mkv", "mov", "mp3", "mp4", "ogg", "png", "pptx", "rar", "rpm",
+            "tbz2", "tgz", "txz", "war", "webm", "webp", "xlsx", "xz", "z", "zip", "zst" ) ) );
+    // gaps in traffic shorter than this are not idle, however short the round trip
+    private static final long MIN_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos( 20 );
+
+    private static final Compressibility compressibility = new Compressibility();
+
+    private volatile double compressorBytesPerSecond = DEFAULT_COMPRESSOR_BYTES_PER_SECOND;
+    private final ConcurrentMap<String, Link> links = new ConcurrentHashMap<String, Link>();
+    private volatile int minSampleBytes = DEFAULT_MIN_SAMPLE_BYTES;
+    private volatile int probeInterval = DEFAULT_PROBE_INTERVAL;
+    private volatile long roundTripThresholdNanos = TimeUnit.MILLISECONDS.toNanos( DEFAULT_ROUND_TRIP_THRESHOLD_MILLIS );
+
+    /**
+     * Records a packet passed through a compressor, or a decompressor, for the
+     * compression ratio of recent traffic.
+     * 
+     * @param uncompressed
+     *            The uncompressed size of the packet
+     * @param compressed
+     *            The compressed size of the packet
+     */
+    static void sample( int uncompressed, int compressed ) {
+        compressibility.add( uncompressed, compressed );
+    }
+
+    /**
+     * Returns true if <code>name</code>, a file name or path, has the
+     * extension of an archive or media format that is already compressed.
+     * 
+     * @param name
+     *            The file name
+     * @return True if the file is already compressed
+     */
+    public static boolean isCompressed( String name ) {
+        int dot = name.lastIndexOf( '.' );
+        if ( dot < 0 || dot < name.lastIndexOf( '/' ) || dot < name.lastIndexOf( '\\' ) ) {
+            return false;
+        }
+        return COMPRESSED_EXTENSIONS.contains( name.substring( dot + 1 ).toLowerCase( Locale.ENGLISH ) );
+    }
+
+    /**
+     * Returns a factory for sessions to the same target as
+     * <code>sessionFactory</code> that are never compressed.
+     * 
+     * @param sessionFactory
+     *            The session factory
+     * @return The uncompressed session factory
+     */
+    public static SessionFactory uncompressed( SessionFactory sessionFactory ) {
+        return sessionFactory.newSessionFactoryBuilder()
+                .setConfig( "compression.c2s", UNCOMPRESSED )
+                .setConfig( "compression.s2c", UNCOMPRESSED )
+                .build();
+    }
+
+    /**
+     * Sets the compression of <code>session</code>, unless <code>config</code>
+     * sets it, and measures the link of the session unless it is connected
+     * through <code>proxy</code>.
+     * 
+     * @param session
+     *            The new session
+     * @param config
+     *            The configuration of the factory, or null
+     * @param proxy
+     *            The proxy of the factory, or null
+     */
+    public void apply( Session session, Map<String, String> config, Proxy proxy ) {
+        Link link = link( session.getHost() + ":" + session.getPort() );
+        if ( config == null || !(config.containsKey( "compression.c2s" ) || config.containsKey( "compression.s2c" )) ) {
+            String methods = link.choose( shouldCompress( link, getCompressionRatio() ), probeInterval )
+                    ? COMPRESSED
+                    : UNCOMPRESSED;
+            session.setConfig( "compression.c2s", methods );
+            session.setConfig( "compression.s2c", methods );
+        }
+        if ( proxy == null ) {
+            session.setSocketFactory( new MeasuringSocketFactory( session, link, minSampleBytes ) );
+        }
+    }
+
+    /**
+     * Returns the compression ratio, compressed over uncompressed bytes, of
+     * the recent traffic of compressed sessions, or
+     * {@link #DEFAULT_COMPRESSION_RATIO} if there has been none.
+     * 
+     * @return The compression ratio
+     */
+    public double getCompressionRatio() {
+        double ratio = compressibility.getRatio();
+        return ratio < 0 ? DEFAULT_COMPRESSION_RATIO : ratio;
+    }
+
+    /**
+     * Returns what has been measured of the link to <code>hostname</code>, or
+     * null if no session to it has been created yet.
+     * 
+     * @param hostname
+     *            The hostname
+     * @param port
+     *            The port
+     * @return The link
+     */
+    public Link getLink( String hostname, int port ) {
+        return links.get( hostname + ":" + port );
+    }
+
+    private Link link( String key ) {
+        Link link = links.get( key );
+        if ( link == null ) {
+            Link created = new Link( key );
+            link = links.putIfAbsent( key, created );
+            if ( link == null ) {
+                link = created;
+            }
+        }
+        return link;
+    }
+
+    /**
+     * Sets the rate at which the compressor is assumed to take data. Links
+     * that are faster are not compressed.
+     * 
+     * @param compressorBytesPerSecond
+     *            The throughput of the compressor
+     */
+    public void setCompressorBytesPerSecond( double compressorBytesPerSecond ) {
+        this.compressorBytesPerSecond = compressorBytesPerSecond;
+    }
+
+    /**
+     * Sets the size of the bursts of traffic that the bandwidth is measured
+     * from. Smaller bursts are measured sooner, but less accurately.
+     * 
+     * @param minSampleBytes
+     *            The minimum burst size
+     */
+    public void setMinSampleBytes( int minSampleBytes ) {
+        this.minSampleBytes = minSampleBytes;
+    }
+
+    /**
+     * Sets how often a session to a compressed target is created uncompressed
+     * to measure the link, 0 for never.
+     * 
+     * @param probeInterval
+     *            The number of compressed sessions per uncompressed one
+     */
+    public void setProbeInterval( int probeInterval ) {
+        this.probeInterval = probeInterval;
+    }
+
+    /**
+     * Sets the round trip time at, or above, which a link whose bandwidth has
+     * not been measured yet is compressed.
+     * 
+     * @param roundTripThreshold
+     *            The round trip time
+     * @param unit
+     *            The unit of <code>roundTripThreshold</code>
+     */
+    public void setRoundTripThreshold( long roundTripThreshold, TimeUnit unit ) {
+        this.roundTripThresholdNanos = unit.toNanos( roundTripThreshold );
+    }
+
+    boolean shouldCompress( Link link, double ratio ) {
+        if ( ratio >= 1 ) {
+            return false;
+        }
+        double bytesPerSecond = link.getBytesPerSecond();
+        if ( bytesPerSecond > 0 ) {
+            return bytesPerSecond < compressorBytesPerSecond * (1 - ratio);
+        }
+        long roundTripNanos = link.roundTripNanos();
+        return roundTripNanos >= 0 && roundTripNanos >= roundTripThresholdNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "AdaptiveCompression(ratio=" + getCompressionRatio() + ", links=" + links.values() + ")";
+    }
+
+    /**
+     * The compression ratio of recent traffic. Totals are halved as they grow,
+     * so older traffic counts for less, and forgotten once they are
+     * <code>MAX_AGE_NANOS</code> old, so that a ratio that stopped
+     * compression is measured again.
+     */
+    private static class Compressibility {
+        private static final long MAX_AGE_NANOS = TimeUnit.MINUTES.toNanos( 10 );
+        private static final long MIN_BYTES = 64 * 1024;
+        private static final long WINDOW_BYTES = 16 * 1024 * 1024;
+
+        private long compressed;
+        private long last;
+        private long uncompressed;
+
+        private synchronized void add( int uncompressed, int compressed ) {
+            last = System.nanoTime();
+            this.uncompressed += uncompressed;
+            this.compressed += compressed;
+            if ( this.uncompressed > WINDOW_BYTES ) {
+                this.uncompressed /= 2;
+                this.compressed /= 2;
+            }
+        }
+
+        private synchronized double getRatio() {
+            if ( uncompressed > 0 && System.nanoTime() - last > MAX_AGE_NANOS ) {
+                uncompressed = 0;
+                compressed = 0;
+            }
+            return uncompressed < MIN_BYTES ? -1 : (double) compressed / uncompressed;
+        }
+    }
+
+    /**
+     * What has been measured of the link to one target.
+     */
+    public static class Link {
+        private double bytesPerSecond;
+        private long compressedCount;
+        private int compressedSinceProbe;
+        private boolean compressing;
+        private final String key;
+        private long roundTripNanos = -1;
+        private long uncompressedCount;
+
+        private Link( String key ) {
+            this.key = key;
+        }
+
+        synchronized void bandwidth( double sample ) {
+            // a burst only shows the link is at least that fast, so new highs
+            // are taken at once while lower rates are averaged in
+            bytesPerSecond = sample > bytesPerSecond
+                    ? sample
+                    : bytesPerSecond * 0.8 + sample * 0.2;
+        }
+
+        private synchronized boolean choose( boolean compress, int probeInterval ) {
+            if ( compress != compressing ) {
+                logger.info( "{} sessions to {}", compress ? "compressing" : "not compressing", this );
+                compressing = compress;
+            }
+            if ( compress && probeInterval > 0 && ++compressedSinceProbe >= probeInterval ) {
+                compressedSinceProbe = 0;
+                compress = false;
+            }
+            if ( compress ) {
+                compressedCount++;
+            }
+            else {
+                uncompressedCount++;
+            }
+            return compress;
+        }
+
+        /**
+         * Returns the estimated bandwidth of the link in bytes per second, 0
+         * if it has not been measured.
+         * 
+         * @return The bandwidth
+         */
+        public synchronized double getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+
+        /**
+         * Returns the number of compressed sessions created to the target.
+         * 
+         * @return The compressed session count
+         */
+        public synchronized long getCompressedCount() {
+            return compressedCount;
+        }
+
+        /**
+         * Returns the estimated round trip time of the link, -1 if it has not
+         * been measured.
+         * 
+         * @return The round trip time in milliseconds
+         */
+        public synchronized long getRoundTripMillis() {
+            return roundTripNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis( roundTripNanos );
+        }
+
+        /**
+         * Returns the number of sessions created to the target without
+         * compression.
+         * 
+         * @return The uncompressed session count
+         */
+        public synchronized long getUncompressedCount() {
+            return uncompressedCount;
+        }
+
+        /**
+         * Returns true if sessions to the target are currently compressed.
+         * 
+         * @return True if compressing
+         */
+        public synchronized boolean isCompressing() {
+            return compressing;
+        }
+
+        synchronized void roundTrip( long nanos ) {
+            // a connect is only slower than the round trip when the server, or
+            // this JVM, is busy, so new lows are taken at once
+            roundTripNanos = roundTripNanos < 0 || nanos < roundTripNanos
+                    ? nanos
+                    : (roundTripNanos * 7 + nanos) / 8;
+        }
+
+        synchronized long roundTripNanos() {
+            return roundTripNanos;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format( "%s(rtt=%dms, bandwidth=%.1fMB/s)",
+                    key, getRoundTripMillis(), bytesPerSecond / 1e6 );
+        }
+    }
+
+    /**
+     * Times bursts of traffic in one direction of a session. A burst ends,
+     * without being measured, when a read or write waits, or the stream goes
+     * unused, for longer than twice the round trip time, as the link was
+     * then idle rather than full.
+     */
+    private static class Meter {
+        private long bytes;
+        private long last;
+        private final Link link;
+        private final int minSampleBytes;
+        private boolean started;
+        private long start;
+
+        private Meter( Link link, int minSampleBytes ) {
+            this.link = link;
+            this.minSampleBytes = minSampleBytes;
+        }
+
+        private synchronized void record( long before, long after, int count ) {
+            long idleNanos = Math.max( MIN_IDLE_NANOS, 2 * link.roundTripNanos() );
+            if ( !started || before - last > idleNanos || after - before > idleNanos ) {
+                // the first bytes after a pause started arriving at an unknown time
+                started = true;
+                start = after;
+                bytes = 0;
+            }
+            else {
+                bytes += count;
+                if ( bytes >= minSampleBytes && after > start ) {
+                    link.bandwidth( bytes * 1e9 / (after - start) );
+                    start = after;
+                    bytes = 0;
+                }
+            }
+            last = after;
+        }
+    }
+
+    private static class MeteredInputStream extends FilterInputStream {
+        private final Meter meter;
+
+        private MeteredInputStream( InputStream in, Meter meter ) {
+            super( in );
+            this.meter = meter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            long before = System.nanoTime();
+            int read = in.read();
+            if ( read >= 0 ) {
+                meter.record( before, System.nanoTime(), 1 );
+            }
+            return read;
+        }
+
+        @Override
+        public int read( byte[] buffer, int offset, int length ) throws IOException {
+            long before = System.nanoTime();
+            int read = in.read( buffer, offset, length );
+            if ( read > 0 ) {
+                meter.record( before, System.nanoTime(), read );
+            }
+            return read;
+        }
+    }
+
+    private static class MeteredOutputStream extends FilterOutputStream {
+        private final Meter meter;
+
+        private MeteredOutputStream( OutputStream out, Meter meter ) {
+            super( out );
+            this.meter = meter;
+        }
+
+        @Override
+        public void write( int b ) throws IOException {
+            long before = System.nanoTime();
+            out.write( b );
+            meter.record( before, System.nanoTime(), 1 );
+        }
+
+        @Override
+        public void write( byte[] buffer, int offset, int length ) throws IOException {
+            long before = System.nanoTime();
+            out.write( buffer, offset, length );
+            meter.record( before, System.nanoTime(), length );
+        }
+    }
+
+    /**
+     * Connects the session directly, as JSch would, timing the connect as the
+     * round trip time. JSch does not pass its connect timeout to a socket
+     * factory, so the timeout given to the {@link ConnectionGovernor} making
+     * the connect is used. A session connected other than through a governor
+     * falls back to its {@link Session#getTimeout() timeout}.
+     */
+    private static class MeasuringSocketFactory implements SocketFactory {
+        private final Link link;
+        private final int minSampleBytes;
+        private final Session session;
+
+        private MeasuringSocketFactory( Session session, Link link, int minSampleBytes ) {
+            this.session = session;
+            this.link = link;
+            this.minSampleBytes = minSampleBytes;
+        }
+
+        @Override
+        public Socket createSocket( String host, int port ) throws IOException {
+            int timeout = ConnectionGovernor.getConnectTimeout();
+            if ( timeout < 0 ) {
+                timeout = session.getTimeout();
+            }
+            InetSocketAddress address = new InetSocketAddress( host, port );
+            Socket socket = new Socket();
+            long start = System.nanoTime();
+            try {
+                socket.connect( address, timeout );
+            }
+            catch ( IOException e ) {
+                IOUtils.closeAndIgnoreException( socket );
+                throw e;
+            }
+            link.roundTrip( System.nanoTime() - start );
+            return socket;
+        }
+
+        @Override
+        public InputStream getInputStream( Socket socket ) throws IOException {
+            return new MeteredInputStream( socket.getInputStream(), new Meter( link, minSampleBytes ) );
+        }
+
+        @Override
+        public OutputStream getOutputStream( Socket socket ) throws IOException {
+            return new MeteredOutputStream( socket.getOutputStream(), new Meter( link, minSampleBytes ) );
+        }
+    }
+}
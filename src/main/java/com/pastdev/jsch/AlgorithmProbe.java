@@ -0,0 +1,303 @@
+package com.pastdev.jsch;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+import com.jcraft.jsch.Cipher;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.KeyExchange;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.Signature;
+
+
+/**
+ * A one time probe of which of the algorithms JSch checks are usable with the
+ * JCE providers of this JVM. On every connect, and every rekey, JSch
+ * instantiates and initializes each cipher in <code>CheckCiphers</code>, each
+ * key exchange in <code>CheckKexes</code> (generating a 2048 bit Diffie-Hellman
+ * key pair and three elliptic curve key pairs) and each signature in
+ * <code>CheckSignatures</code>, and removes those that fail from its proposal.
+ * The probe does the same once per process, and
+ * {@link #apply(Session, Map) applies} the result to each new session by
+ * removing unavailable algorithms from its proposal and clearing the check
+ * lists, so that JSch skips the checks.
+ * <p>
+ * {@link DefaultSessionFactory} applies the {@link #getDefault() default}
+ * probe, which runs the first time it is needed, to every session it creates.
+ * </p>
+ * 
+ * <pre>
+ * logger.info( AlgorithmProbe.getDefault().getReport() );
+ * </pre>
+ */
+public class AlgorithmProbe {
+    private static Logger logger = LoggerFactory.getLogger( AlgorithmProbe.class );
+    public static final String CHECK_CIPHERS = "CheckCiphers";
+    public static final String CHECK_KEXES = "CheckKexes";
+    public static final String CHECK_SIGNATURES = "CheckSignatures";
+
+    private static volatile AlgorithmProbe defaultProbe;
+
+    private final Group ciphers;
+    private final Group kexes;
+    private final long probeNanos;
+    private final Group signatures;
+
+    /**
+     * Probes the algorithms named by the JSch <code>CheckCiphers</code>,
+     * <code>CheckKexes</code> and <code>CheckSignatures</code> configuration.
+     * 
+     * @throws JSchException
+     *             If unable to create the session used to probe key exchanges
+     */
+    public AlgorithmProbe() throws JSchException {
+        long start = System.nanoTime();
+        Session session = new JSch().getSession( "probe", "localhost" );
+
+        List<String> unavailable = new ArrayList<String>();
+        for ( String cipher : split( JSch.getConfig( CHECK_CIPHERS ) ) ) {
+            if ( !checkCipher( JSch.getConfig( cipher ) ) ) {
+                unavailable.add( cipher );
+            }
+        }
+        ciphers = new Group( CHECK_CIPHERS, JSch.getConfig( CHECK_CIPHERS ), unavailable,
+                "cipher.c2s", "cipher.s2c" );
+
+        unavailable = new ArrayList<String>();
+        for ( String kex : split( JSch.getConfig( CHECK_KEXES ) ) ) {
+            if ( !checkKex( session, JSch.getConfig( kex ) ) ) {
+                unavailable.add( kex );
+            }
+        }
+        kexes = new Group( CHECK_KEXES, JSch.getConfig( CHECK_KEXES ), unavailable,
+                "kex" );
+
+        unavailable = new ArrayList<String>();
+        for ( String signature : split( JSch.getConfig( CHECK_SIGNATURES ) ) ) {
+            if ( !checkSignature( JSch.getConfig( signature ) ) ) {
+                unavailable.add( signature );
+            }
+        }
+        signatures = new Group( CHECK_SIGNATURES, JSch.getConfig( CHECK_SIGNATURES ), unavailable,
+                "server_host_key" );
+
+        probeNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Returns the probe applied by every {@link DefaultSessionFactory}, probing
+     * the first time it is called.
+     * 
+     * @return The default probe
+     * @throws JSchException
+     *             If the probe fails
+     */
+    public static AlgorithmProbe getDefault() throws JSchException {
+        AlgorithmProbe probe = defaultProbe;
+        if ( probe == null ) {
+            synchronized ( AlgorithmProbe.class ) {
+                probe = defaultProbe;
+                if ( probe == null ) {
+                    probe = new AlgorithmProbe();
+                    logger.info( "{}", probe.getReport() );
+                    defaultProbe = probe;
+                }
+            }
+        }
+        return probe;
+    }
+
+    /**
+     * Removes the unavailable algorithms from the proposal of
+     * <code>session</code> and clears its check lists, so that JSch does not
+     * check them again. A check list that <code>config</code>, the
+     * configuration the session was created with, sets explicitly, or whose
+     * algorithms it maps to other classes, is left for JSch to check, as is one
+     * whose algorithms would all be removed, so that JSch fails the same way it
+     * would have.
+     * 
+     * @param session
+     *            The session, not yet connected
+     * @param config
+     *            The explicit configuration of the session, may be null
+     */
+    public void apply( Session session, Map<String, String> config ) {
+        ciphers.apply( session, config );
+        kexes.apply( session, config );
+        signatures.apply( session, config );
+    }
+
+    private static boolean checkCipher( String className ) {
+        try {
+            Cipher cipher = (Cipher) Class.forName( className ).getDeclaredConstructor().newInstance();
+            cipher.init( Cipher.ENCRYPT_MODE,
+                    new byte[cipher.getBlockSize()],
+                    new byte[cipher.getIVSize()] );
+            return true;
+        }
+        catch ( Exception e ) {
+            logger.debug( "cipher {} unavailable: {}", className, e.toString() );
+            return false;
+        }
+    }
+
+    private static boolean checkKex( Session session, String className ) {
+        try {
+            KeyExchange kex = (KeyExchange) Class.forName( className ).getDeclaredConstructor().newInstance();
+            kex.init( session, null, null, null, null );
+            return true;
+        }
+        catch ( Exception e ) {
+            logger.debug( "kex {} unavailable: {}", className, e.toString() );
+            return false;
+        }
+    }
+
+    private static boolean checkSignature( String className ) {
+        try {
+            Signature signature = (Signature) Class.forName( className ).getDeclaredConstructor().newInstance();
+            signature.init();
+            return true;
+        }
+        catch ( Exception e ) {
+            logger.debug( "signature {} unavailable: {}", className, e.toString() );
+            return false;
+        }
+    }
+
+    /**
+     * Returns <code>list</code>, a comma separated list of algorithms, without
+     * those in <code>unavailable</code>, or null if none remain.
+     */
+    static String filter( String list, List<String> unavailable ) {
+        StringBuilder filtered = new StringBuilder();
+        for ( String algorithm : split( list ) ) {
+            if ( !unavailable.contains( algorithm ) ) {
+                if ( filtered.length() > 0 ) {
+                    filtered.append( "," );
+                }
+                filtered.append( algorithm );
+            }
+        }
+        return filtered.length() == 0 ? null : filtered.toString();
+    }
+
+    /**
+     * Returns the time the probe took, in milliseconds.
+     * 
+     * @return The probe time
+     */
+    public double getProbeMillis() {
+        return probeNanos / 1000000.0;
+    }
+
+    /**
+     * Returns a description of the algorithms found usable and unusable.
+     * 
+     * @return The report
+     */
+    public String getReport() {
+        return String.format( "probed algorithms in %.1fms%n%s%n%s%n%s",
+                getProbeMillis(), ciphers, kexes, signatures );
+    }
+
+    /**
+     * Returns the checked ciphers that are not usable.
+     * 
+     * @return The unavailable ciphers
+     */
+    public List<String> getUnavailableCiphers() {
+        return ciphers.unavailable;
+    }
+
+    /**
+     * Returns the checked key exchanges that are not usable.
+     * 
+     * @return The unavailable key exchanges
+     */
+    public List<String> getUnavailableKexes() {
+        return kexes.unavailable;
+    }
+
+    /**
+     * Returns the checked signatures that are not usable.
+     * 
+     * @return The unavailable signatures
+     */
+    public List<String> getUnavailableSignatures() {
+        return signatures.unavailable;
+    }
+
+    private static List<String> split( String list ) {
+        List<String> algorithms = new ArrayList<String>();
+        if ( list != null ) {
+            for ( String algorithm : list.split( "," ) ) {
+                algorithm = algorithm.trim();
+                if ( !algorithm.isEmpty() ) {
+                    algorithms.add( algorithm );
+                }
+            }
+        }
+        return algorithms;
+    }
+
+    @Override
+    public String toString() {
+        return "AlgorithmProbe(unavailable ciphers=" + ciphers.unavailable
+                + ", kexes=" + kexes.unavailable
+                + ", signatures=" + signatures.unavailable + ")";
+    }
+
+    private static class Group {
+        private final String checkKey;
+        private final String checked;
+        private final String[] proposalKeys;
+        private final List<String> unavailable;
+
+        private Group( String checkKey, String checked, List<String> unavailable, String... proposalKeys ) {
+            this.checkKey = checkKey;
+            this.checked = checked;
+            this.unavailable = Collections.unmodifiableList( unavailable );
+            this.proposalKeys = proposalKeys;
+        }
+
+        private void apply( Session session, Map<String, String> config ) {
+            if ( config != null ) {
+                if ( config.containsKey( checkKey ) ) {
+                    return;
+                }
+                for ( String algorithm : split( checked ) ) {
+                    if ( config.containsKey( algorithm ) ) {
+                        return;
+                    }
+                }
+            }
+            String[] proposals = new String[proposalKeys.length];
+            for ( int i = 0; i < proposalKeys.length; i++ ) {
+                proposals[i] = filter( session.getConfig( proposalKeys[i] ), unavailable );
+                if ( proposals[i] == null ) {
+                    return;
+                }
+            }
+            for ( int i = 0; i < proposalKeys.length; i++ ) {
+                session.setConfig( proposalKeys[i], proposals[i] );
+            }
+            session.setConfig( checkKey, "" );
+        }
+
+        @Override
+        public String toString() {
+            return checkKey + ": " + checked + ", unavailable: "
+                    + (unavailable.isEmpty() ? "none" : unavailable.toString());
+        }
+    }
+}
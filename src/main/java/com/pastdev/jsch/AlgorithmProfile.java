@@ -0,0 +1,121 @@
+package com.pastdev.jsch;
+
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Named sets of algorithm preferences for the sessions created by a
+ * {@link DefaultSessionFactory}, so that tuning a factory does not require
+ * knowing the JSch configuration keys. Each profile only reorders, or trims,
+ * the algorithms JSch supports, keeping a fallback that any OpenSSH server
+ * accepts.
+ * 
+ * <pre>
+ * DefaultSessionFactory sessionFactory = new DefaultSessionFactory( username, hostname, port );
+ * sessionFactory.setAlgorithmProfile( AlgorithmProfile.MAX_THROUGHPUT );
+ * </pre>
+ * 
+ * @see DefaultSessionFactory#setAlgorithmProfile(AlgorithmProfile)
+ * @see SessionFactory.SessionFactoryBuilder#setAlgorithmProfile(AlgorithmProfile)
+ */
+public enum AlgorithmProfile {
+    /**
+     * For bulk transfers over fast links. Proposes AES, which the JVM
+     * accelerates with AES-NI, and the cheaper MACs, without compression. The
+     * order is fixed: <code>aes128-ctr</code>, whose key schedule is the
+     * cheapest, first, and <code>hmac-sha1</code> and
+     * <code>hmac-sha2-256</code> ahead of <code>hmac-md5</code>, as the JVM's
+     * SHA intrinsics make them the faster MACs on current CPUs. To order them
+     * by what this JVM actually measures instead, use
+     * {@link #getConfig(CipherBenchmark)}.
+     */
+    MAX_THROUGHPUT(
+            "cipher.c2s", "aes128-ctr,aes192-ctr,aes256-ctr,aes128-cbc,aes256-cbc",
+            "cipher.s2c", "aes128-ctr,aes192-ctr,aes256-ctr,aes128-cbc,aes256-cbc",
+            "mac.c2s", "hmac-sha1,hmac-sha2-256,hmac-md5",
+            "mac.s2c", "hmac-sha1,hmac-sha2-256,hmac-md5",
+            "compression.c2s", "none",
+            "compression.s2c", "none" ),
+
+    /**
+     * For many short lived sessions. Prefers the cheapest key exchanges,
+     * <code>curve25519-sha256</code> where the JVM supports X25519, then
+     * <code>ecdh-sha2-nistp256</code>, and RSA host keys, which verify faster
+     * than ECDSA, and skips <code>gssapi-with-mic</code>, which otherwise costs
+     * a round trip on every connect to a server without Kerberos.
+     */
+    LOW_LATENCY_HANDSHAKE(
+            "kex", "curve25519-sha256,curve25519-sha256@libssh.org,ecdh-sha2-nistp256,"
+                    + "diffie-hellman-group14-sha1,diffie-hellman-group-exchange-sha256",
+            "server_host_key", "ssh-rsa,ecdsa-sha2-nistp256,ecdsa-sha2-nistp384,ecdsa-sha2-nistp521,ssh-dss",
+            "cipher.c2s", "aes128-ctr,aes256-ctr,aes128-cbc",
+            "cipher.s2c", "aes128-ctr,aes256-ctr,aes128-cbc",
+            "PreferredAuthentications", "publickey,keyboard-interactive,password",
+            "compression.c2s", "none",
+            "compression.s2c", "none" ),
+
+    /**
+     * For slow, or metered, links. Compresses with <code>zlib</code>, preferring
+     * the delayed variant, and prefers truncated MACs, which send 12 rather
+     * than 20 or 32 bytes per packet. Compression is done by the JDK's zlib,
+     * see {@link JdkCompression}.
+     */
+    LOW_BANDWIDTH_LINK(
+            "cipher.c2s", "aes128-ctr,aes192-ctr,aes256-ctr,aes128-cbc",
+            "cipher.s2c", "aes128-ctr,aes192-ctr,aes256-ctr,aes128-cbc",
+            "mac.c2s", "hmac-sha1-96,hmac-md5-96,hmac-sha1,hmac-sha2-256",
+            "mac.s2c", "hmac-sha1-96,hmac-md5-96,hmac-sha1,hmac-sha2-256",
+            "compression.c2s", "zlib@openssh.com,zlib,none",
+            "compression.s2c", "zlib@openssh.com,zlib,none",
+            "compression_level", "6" );
+
+    private final Map<String, String> config;
+
+    private AlgorithmProfile( String... keyValues ) {
+        Map<String, String> config = new HashMap<String, String>();
+        for ( int i = 0; i < keyValues.length; i += 2 ) {
+            config.put( keyValues[i], keyValues[i + 1] );
+        }
+        this.config = Collections.unmodifiableMap( config );
+    }
+
+    /**
+     * Returns the JSch configuration set by this profile.
+     * 
+     * @return The configuration
+     */
+    public Map<String, String> getConfig() {
+        return config;
+    }
+
+    /**
+     * Returns the JSch configuration set by this profile, with its ciphers and
+     * MACs ordered fastest first as measured by <code>benchmark</code>. The
+     * benchmark is run by the caller, for example once at startup, so that
+     * the order a profile proposes never depends on a measurement made behind
+     * the caller's back.
+     * 
+     * <pre>
+     * sessionFactory.setAlgorithmProfile( AlgorithmProfile.MAX_THROUGHPUT, CipherBenchmark.getDefault() );
+     * </pre>
+     * 
+     * @param benchmark
+     *            The measured throughput of the ciphers and MACs
+     * @return The reordered configuration
+     * 
+     * @see DefaultSessionFactory#setAlgorithmProfile(AlgorithmProfile, CipherBenchmark)
+     */
+    public Map<String, String> getConfig( CipherBenchmark benchmark ) {
+        Map<String, String> ordered = new HashMap<String, String>( config );
+        for ( String key : new String[] { "cipher.c2s", "cipher.s2c", "mac.c2s", "mac.s2c" } ) {
+            String candidates = config.get( key );
+            if ( candidates != null ) {
+                ordered.put( key, benchmark.order( candidates ) );
+            }
+        }
+        return Collections.unmodifiableMap( ordered );
+    }
+}
@@ -0,0 +1,386 @@
+package com.pastdev.jsch;
+
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+import com.jcraft.jsch.JSchException;
+
+
+/**
+ * Limits the number of channels open at once on a session. Requests beyond
+ * the limit wait, in the order they arrived, for a channel to be released,
+ * up to a deadline. The limit can be set up front, to match the server's
+ * <code>MaxSessions</code>, or learned: when the server refuses to open a
+ * channel, the limit is lowered to the number of channels that were open at
+ * the time.
+ * <p>
+ * A learned limit is not permanent, as a refusal may have been transient. It
+ * is raised by one channel, up to the limit that was set, after
+ * {@link #DEFAULT_RECOVERY_SUCCESSES} channels were released without a
+ * refusal, or after {@link #DEFAULT_RECOVERY_QUIET_MILLIS} without one,
+ * see {@link #setRecovery(int, long, TimeUnit)}. A raise beyond what the
+ * server allows costs one refused, and retried, channel. {@link #reset()}
+ * drops the learned limit altogether, as {@link SessionManager} does for
+ * every new session.
+ * </p>
+ * 
+ * @see SessionManager#getChannelAdmissionController()
+ */
+public class ChannelAdmissionController {
+    private static Logger logger = LoggerFactory.getLogger( ChannelAdmissionController.class );
+    /**
+     * The message of the exception thrown by JSch when the server does not
+     * open a channel.
+     */
+    public static final String CHANNEL_NOT_OPENED = "channel is not opened.";
+    /**
+     * The number of times a refused channel is retried before the refusal is
+     * passed to the caller.
+     */
+    public static final int MAX_REJECTED_ATTEMPTS = 3;
+    public static final long DEFAULT_RECOVERY_QUIET_MILLIS = 60000L;
+    public static final int DEFAULT_RECOVERY_SUCCESSES = 32;
+    public static final int UNLIMITED = Integer.MAX_VALUE;
+
+    private final Condition changed;
+    private int configuredMaxChannels;
+    private int inUse;
+    private long lastChangeNanos = System.nanoTime();
+    private final ReentrantLock lock = new ReentrantLock();
+    private int maxChannels;
+    private long recoveryQuietNanos = TimeUnit.MILLISECONDS.toNanos( DEFAULT_RECOVERY_QUIET_MILLIS );
+    private int recoverySuccesses = DEFAULT_RECOVERY_SUCCESSES;
+    private long rejectedCount;
+    private int successes;
+    private long timeoutCount;
+    private final Deque<Thread> waiting = new ArrayDeque<Thread>();
+
+    /**
+     * Creates a controller with no limit until one is learned.
+     */
+    public ChannelAdmissionController() {
+        this( UNLIMITED );
+    }
+
+    /**
+     * Creates a controller allowing <code>maxChannels</code> open channels.
+     * 
+     * @param maxChannels
+     *            The maximum number of open channels
+     */
+    public ChannelAdmissionController( int maxChannels ) {
+        this.changed = lock.newCondition();
+        setMaxChannels( maxChannels );
+    }
+
+    /**
+     * Returns true if <code>e</code> was thrown because the server did not
+     * open a channel.
+     * 
+     * @param e
+     *            An exception thrown while opening a channel
+     * @return True if the channel was refused
+     */
+    public static boolean isRejection( JSchException e ) {
+        return CHANNEL_NOT_OPENED.equals( e.getMessage() );
+    }
+
+    /**
+     * Waits, behind any earlier callers, until a channel may be opened.
+     * 
+     * @param timeout
+     *            The maximum time to wait, 0 or less to wait indefinitely
+     * @param unit
+     *            The unit of <code>timeout</code>
+     * @throws JSchException
+     *             If the deadline passed, or the thread was interrupted
+     */
+    public void acquire( long timeout, TimeUnit unit ) throws JSchException {
+        long remaining = unit.toNanos( timeout );
+        Thread current = Thread.currentThread();
+        lock.lock();
+        try {
+            recover( false );
+            if ( waiting.isEmpty() && inUse < maxChannels ) {
+                inUse++;
+                return;
+            }
+
+            waiting.addLast( current );
+            try {
+                while ( waiting.peekFirst() != current || inUse >= maxChannels ) {
+                    if ( timeout <= 0 ) {
+                        changed.await();
+                    }
+                    else if ( remaining <= 0 ) {
+                        timeoutCount++;
+                        throw new JSchException( "timed out waiting for one of "
+                                + maxChannels + " channels" );
+                    }
+                    else {
+                        remaining = changed.awaitNanos( remaining );
+                    }
+                }
+                inUse++;
+            }
+            catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new JSchException( "interrupted waiting for a channel", e );
+            }
+            finally {
+                waiting.remove( current );
+                changed.signalAll();
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of channels currently admitted.
+     * 
+     * @return The number of channels in use
+     */
+    public int getInUse() {
+        lock.lock();
+        try {
+            return inUse;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the current limit, {@link #UNLIMITED} if there is none.
+     * 
+     * @return The maximum number of open channels
+     */
+    public int getMaxChannels() {
+        lock.lock();
+        try {
+            return maxChannels;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of callers waiting for a channel.
+     * 
+     * @return The queue length
+     */
+    public int getQueueLength() {
+        lock.lock();
+        try {
+            return waiting.size();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of channels the server refused to open.
+     * 
+     * @return The rejected count
+     */
+    public long getRejectedCount() {
+        lock.lock();
+        try {
+            return rejectedCount;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of callers that gave up waiting for a channel.
+     * 
+     * @return The timeout count
+     */
+    public long getTimeoutCount() {
+        lock.lock();
+        try {
+            return timeoutCount;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases an admitted channel after the server refused to open it, and
+     * lowers the limit to the number of channels still open.
+     */
+    public void rejected() {
+        lock.lock();
+        try {
+            rejectedCount++;
+            inUse--;
+            successes = 0;
+            lastChangeNanos = System.nanoTime();
+            int learned = Math.max( 1, inUse );
+            if ( learned < maxChannels ) {
+                logger.info( "server refused channel, limiting to {} channels", learned );
+                maxChannels = learned;
+            }
+            changed.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Raises a learned limit by one channel if enough channels have been
+     * released, or enough time has passed, since the last refusal or raise.
+     * Must be called holding the lock.
+     */
+    private void recover( boolean released ) {
+        if ( maxChannels >= configuredMaxChannels ) {
+            return;
+        }
+        if ( released ) {
+            successes++;
+        }
+        long now = System.nanoTime();
+        if ( successes >= recoverySuccesses || now - lastChangeNanos >= recoveryQuietNanos ) {
+            maxChannels++;
+            successes = 0;
+            lastChangeNanos = now;
+            logger.debug( "no channel refused recently, raising limit to {} channels", maxChannels );
+            changed.signalAll();
+        }
+    }
+
+    /**
+     * Releases an admitted channel once it has been closed.
+     */
+    public void release() {
+        lock.lock();
+        try {
+            if ( inUse > 0 ) {
+                inUse--;
+            }
+            recover( true );
+            changed.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the learned limit, returning to the limit that was set, or to
+     * {@link #UNLIMITED}. Channels already admitted stay admitted.
+     */
+    public void reset() {
+        lock.lock();
+        try {
+            if ( maxChannels != configuredMaxChannels ) {
+                logger.debug( "dropping learned limit of {} channels", maxChannels );
+            }
+            maxChannels = configuredMaxChannels;
+            successes = 0;
+            lastChangeNanos = System.nanoTime();
+            changed.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the limit, for example to the server's <code>MaxSessions</code>.
+     * 
+     * @param maxChannels
+     *            The maximum number of open channels
+     */
+    public void setMaxChannels( int maxChannels ) {
+        if ( maxChannels < 1 ) {
+            throw new IllegalArgumentException( "maxChannels must be positive" );
+        }
+        lock.lock();
+        try {
+            this.configuredMaxChannels = maxChannels;
+            this.maxChannels = maxChannels;
+            successes = 0;
+            changed.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets how a learned limit recovers: it is raised by one channel after
+     * <code>successes</code> channels were released without a refusal, or
+     * after <code>quietPeriod</code> without a refusal, whichever comes first.
+     * Defaults to {@link #DEFAULT_RECOVERY_SUCCESSES} and
+     * {@link #DEFAULT_RECOVERY_QUIET_MILLIS}.
+     * 
+     * @param successes
+     *            The released channels after which the limit is raised
+     * @param quietPeriod
+     *            The time without a refusal after which the limit is raised
+     * @param unit
+     *            The unit of <code>quietPeriod</code>
+     */
+    public void setRecovery( int successes, long quietPeriod, TimeUnit unit ) {
+        lock.lock();
+        try {
+            this.recoverySuccesses = successes;
+            this.recoveryQuietNanos = unit.toNanos( quietPeriod );
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return "ChannelAdmission(inUse=" + inUse + ", max="
+                    + (maxChannels == UNLIMITED ? "unlimited" : String.valueOf( maxChannels ))
+                    + ", waiting=" + waiting.size() + ")";
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Admits a channel only if one may be opened right away, without waiting
+     * and without overtaking callers already waiting.
+     * 
+     * @return True if the channel was admitted, and must be released
+     */
+    public boolean tryAcquire() {
+        lock.lock();
+        try {
+            recover( false );
+            if ( waiting.isEmpty() && inUse < maxChannels ) {
+                inUse++;
+                return true;
+            }
+            return false;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package com.pastdev.jsch;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+import com.jcraft.jsch.Cipher;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.MAC;
+
+
+/**
+ * Measures, in this JVM, the throughput of the JSch implementations of the
+ * ciphers and MACs that JSch proposes. Every packet is encrypted and then
+ * passed through the MAC, so the fastest pair is the one to prefer for bulk
+ * transfers. Which pair that is depends on the CPU, for example on whether the
+ * JVM has AES-NI or SHA intrinsics. Measuring takes close to a second, so it
+ * is only done when asked for, and a profile can then be ordered by the
+ * result with
+ * {@link DefaultSessionFactory#setAlgorithmProfile(AlgorithmProfile, CipherBenchmark)}.
+ * 
+ * <pre>
+ * CipherBenchmark benchmark = CipherBenchmark.getDefault();
+ * logger.info( benchmark.getReport() );
+ * sessionFactory.setAlgorithmProfile( AlgorithmProfile.MAX_THROUGHPUT, benchmark );
+ * </pre>
+ */
+public class CipherBenchmark {
+    private static Logger logger = LoggerFactory.getLogger( CipherBenchmark.class );
+    public static final long DEFAULT_MEASURE_MILLIS = 20;
+    public static final int PACKET_SIZE = 32768;
+    public static final int ROUNDS = 3;
+
+    private static volatile CipherBenchmark defaultBenchmark;
+
+    private final List<Result> ciphers;
+    private final List<Result> macs;
+
+    /**
+     * Measures each cipher and MAC for {@link #DEFAULT_MEASURE_MILLIS} per
+     * round.
+     */
+    public CipherBenchmark() {
+        this( DEFAULT_MEASURE_MILLIS );
+    }
+
+    /**
+     * Measures each cipher and MAC for <code>measureMillis</code> in each of
+     * {@link #ROUNDS} rounds, keeping its best round. The rounds are
+     * interleaved, as the JIT compiles code shared by the algorithms while the
+     * first of them are measured.
+     * 
+     * @param measureMillis
+     *            The time to measure each algorithm for per round
+     */
+    public CipherBenchmark( long measureMillis ) {
+        long measureNanos = measureMillis * 1000000L;
+        List<String> cipherNames = union( JSch.getConfig( "cipher.c2s" ), JSch.getConfig( "cipher.s2c" ) );
+        List<String> macNames = union( JSch.getConfig( "mac.c2s" ), JSch.getConfig( "mac.s2c" ) );
+
+        List<String> names = new ArrayList<String>( cipherNames );
+        names.addAll( macNames );
+        Packet[] packets = new Packet[names.size()];
+        for ( int i = 0; i < packets.length; i++ ) {
+            packets[i] = i < cipherNames.size()
+                    ? cipher( names.get( i ) )
+                    : mac( names.get( i ) );
+        }
+
+        double[] best = new double[packets.length];
+        for ( int round = 0; round < ROUNDS; round++ ) {
+            for ( int i = 0; i < packets.length; i++ ) {
+                if ( packets[i] != null ) {
+                    best[i] = Math.max( best[i], throughput( packets[i], measureNanos ) );
+                }
+            }
+        }
+
+        List<Result> ciphers = new ArrayList<Result>();
+        List<Result> macs = new ArrayList<Result>();
+        for ( int i = 0; i < packets.length; i++ ) {
+            (i < cipherNames.size() ? ciphers : macs).add( new Result( names.get( i ), best[i] ) );
+        }
+        this.ciphers = sorted( ciphers );
+        this.macs = sorted( macs );
+    }
+
+    private static Packet cipher( String name ) {
+        final byte[] packet = new byte[PACKET_SIZE];
+        try {
+            final Cipher cipher = (Cipher) Class.forName( JSch.getConfig( name ) ).getDeclaredConstructor().newInstance();
+            cipher.init( Cipher.ENCRYPT_MODE,
+                    new byte[cipher.getBlockSize()],
+                    new byte[cipher.getIVSize()] );
+            return new Packet() {
+                @Override
+                public void process() throws Exception {
+                    cipher.update( packet, 0, packet.length, packet, 0 );
+                }
+            };
+        }
+        catch ( Exception e ) {
+            logger.debug( "cipher {} unavailable: {}", name, e.toString() );
+            return null;
+        }
+    }
+
+    /**
+     * Returns a benchmark shared by the process, measuring the first time it
+     * is called.
+     * 
+     * @return The default benchmark
+     */
+    public static CipherBenchmark getDefault() {
+        CipherBenchmark benchmark = defaultBenchmark;
+        if ( benchmark == null ) {
+            synchronized ( CipherBenchmark.class ) {
+                benchmark = defaultBenchmark;
+                if ( benchmark == null ) {
+                    benchmark = new CipherBenchmark();
+                    logger.info( "{}", benchmark.getReport() );
+                    defaultBenchmark = benchmark;
+                }
+            }
+        }
+        return benchmark;
+    }
+
+    /**
+     * Returns the measured ciphers, fastest first. Ciphers that could not be
+     * initialized are last, with a throughput of 0.
+     * 
+     * @return The cipher results
+     */
+    public List<Result> getCiphers() {
+        return ciphers;
+    }
+
+    /**
+     * Returns the measured MACs, fastest first. MACs that could not be
+     * initialized are last, with a throughput of 0.
+     * 
+     * @return The MAC results
+     */
+    public List<Result> getMacs() {
+        return macs;
+    }
+
+    /**
+     * Returns <code>candidates</code>, a comma separated list of algorithms,
+     * ordered fastest first. Candidates that were not measured follow, in
+     * their original order, and those that could not be initialized are
+     * dropped.
+     * 
+     * @param candidates
+     *            The algorithms to order
+     * @return The ordered algorithms
+     */
+    public String order( String candidates ) {
+        List<String> remaining = union( candidates );
+        StringBuilder ordered = new StringBuilder();
+        List<Result> results = new ArrayList<Result>( ciphers );
+        results.addAll( macs );
+        for ( Result result : sorted( results ) ) {
+            if ( remaining.remove( result.name ) && result.bytesPerSecond > 0 ) {
+                ordered.append( ordered.length() == 0 ? "" : "," ).append( result.name );
+            }
+        }
+        for ( String name : remaining ) {
+            ordered.append( ordered.length() == 0 ? "" : "," ).append( name );
+        }
+        return ordered.toString();
+    }
+
+    /**
+     * Returns a description of the measured throughput of each algorithm.
+     * 
+     * @return The report
+     */
+    public String getReport() {
+        StringBuilder report = new StringBuilder( "cipher and MAC throughput, "
+                + PACKET_SIZE + " byte packets" );
+        for ( Result result : ciphers ) {
+            report.append( String.format( "%n  cipher %-14s %s", result.name, result.describe() ) );
+        }
+        for ( Result result : macs ) {
+            report.append( String.format( "%n  mac    %-14s %s", result.name, result.describe() ) );
+        }
+        return report.toString();
+    }
+
+    private static Packet mac( String name ) {
+        final byte[] packet = new byte[PACKET_SIZE];
+        try {
+            final MAC mac = (MAC) Class.forName( JSch.getConfig( name ) ).getDeclaredConstructor().newInstance();
+            mac.init( new byte[mac.getBlockSize()] );
+            final byte[] digest = new byte[mac.getBlockSize()];
+            return new Packet() {
+                private int sequence;
+
+                @Override
+                public void process() {
+                    mac.update( sequence++ );
+                    mac.update( packet, 0, packet.length );
+                    mac.doFinal( digest, 0 );
+                }
+            };
+        }
+        catch ( Exception e ) {
+            logger.debug( "mac {} unavailable: {}", name, e.toString() );
+            return null;
+        }
+    }
+
+    private static List<Result> sorted( List<Result> results ) {
+        List<Result> sorted = new ArrayList<Result>( results );
+        Collections.sort( sorted, new Comparator<Result>() {
+            @Override
+            public int compare( Result first, Result second ) {
+                return Double.compare( second.bytesPerSecond, first.bytesPerSecond );
+            }
+        } );
+        return Collections.unmodifiableList( sorted );
+    }
+
+    private static double throughput( Packet packet, long measureNanos ) {
+        long count = 0;
+        long start = System.nanoTime();
+        long end = start + measureNanos;
+        long now;
+        try {
+            do {
+                packet.process();
+                count++;
+            } while ( (now = System.nanoTime()) < end );
+        }
+        catch ( Exception e ) {
+            logger.debug( "failed measuring: {}", e.toString() );
+            return 0;
+        }
+        return count * PACKET_SIZE * 1e9 / (now - start);
+    }
+
+    private static List<String> union( String... lists ) {
+        List<String> names = new ArrayList<String>();
+        for ( String list : lists ) {
+            if ( list == null ) {
+                continue;
+            }
+            for ( String name : list.split( "," ) ) {
+                name = name.trim();
+                if ( !name.isEmpty() && !names.contains( name ) ) {
+                    names.add( name );
+                }
+            }
+        }
+        return names;
+    }
+
+    @Override
+    public String toString() {
+        return "CipherBenchmark(ciphers=" + ciphers + ", macs=" + macs + ")";
+    }
+
+    private interface Packet {
+        void process() throws Exception;
+    }
+
+    /**
+     * The measured throughput of one algorithm.
+     */
+    public static class Result {
+        private final double bytesPerSecond;
+        private final String name;
+
+        private Result( String name, double bytesPerSecond ) {
+            this.name = name;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        private String describe() {
+            return bytesPerSecond > 0
+                    ? String.format( "%8.1f MB/s", bytesPerSecond / 1e6 )
+                    : "unavailable";
+        }
+
+        /**
+         * Returns the measured throughput in bytes per second, or 0 if the
+         * algorithm could not be initialized.
+         * 
+         * @return The throughput
+         */
+        public double getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+
+        /**
+         * Returns the SSH name of the algorithm.
+         * 
+         * @return The name
+         */
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String toString() {
+            return name + "=" + describe().trim();
+        }
+    }
+}
@@ -0,0 +1,673 @@
+package com.pastdev.jsch;
+
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+
+/**
+ * Governs every <code>session.connect()</code> made by this library so that a
+ * host that restarts, or goes away, is not stampeded by every session in the
+ * JVM reconnecting at once. Each connect to a host goes through, in order:
+ * <ol>
+ * <li>A per-host circuit breaker. After <code>failureThreshold</code>
+ * consecutive failures to reach a host, connects to it fail immediately for
+ * <code>openDuration</code>, after which a single trial connect is let
+ * through.</li>
+ * <li>Exponential backoff with full jitter. After a failure, connects to the
+ * same host wait until a random time within a backoff window of
+ * <code>initialBackoff * 2^(failures - 1)</code>, capped at
+ * <code>maxBackoff</code>. The time is drawn for each connect, so callers
+ * waiting on the same host are spread over the window.</li>
+ * <li>A per-host limit on handshakes in progress at once, which should be kept
+ * below the server's <code>MaxStartups</code>.</li>
+ * <li>A global, and a per-host, rate limit on connects per second.</li>
+ * </ol>
+ * Only transport failures count towards the breaker and the backoff: a socket
+ * that could not be connected, a timeout, or a connection dropped during the
+ * handshake. Any other failure, such as a failed algorithm negotiation or
+ * authentication, shows that the host is up, so that a misconfigured factory
+ * does not shut out every other factory connecting to the same host.
+ * <p>
+ * A host is forgotten once it has been idle for the
+ * {@link #setHostIdleTimeout(long, TimeUnit) host idle timeout}, unless its
+ * last connect failed, so that a service connecting to many hosts does not
+ * accumulate state for all of them.
+ * </p>
+ * <p>
+ * {@link SessionManager}, {@link SessionPool}, the tunnel, scp and proxy
+ * classes all use the {@link #getDefault() default} governor, which can be
+ * configured, or replaced, at startup.
+ * </p>
+ * 
+ * <pre>
+ * ConnectionGovernor governor = ConnectionGovernor.getDefault();
+ * governor.setGlobalRate( 20 );
+ * governor.setMaxConcurrentPerHost( 5 );
+ * ...
+ * HostStatus status = governor.getHostStatus( &quot;bastion&quot;, 22 );
+ * </pre>
+ */
+public class ConnectionGovernor {
+    private static Logger logger = LoggerFactory.getLogger( ConnectionGovernor.class );
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final double DEFAULT_GLOBAL_RATE = 50;
+    public static final long DEFAULT_HOST_IDLE_MILLIS = 300000L;
+    public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 250L;
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 30000L;
+    public static final int DEFAULT_MAX_CONCURRENT_PER_HOST = 8;
+    public static final long DEFAULT_OPEN_DURATION_MILLIS = 30000L;
+    public static final double DEFAULT_PER_HOST_RATE = 10;
+
+    // the timeout of the connect in progress on each thread, as JSch does not
+    // pass it to a socket factory
+    private static final ThreadLocal<Integer> connectTimeout = new ThreadLocal<Integer>();
+    private static volatile ConnectionGovernor defaultGovernor = new ConnectionGovernor();
+
+    private final AtomicLong attemptCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+    private volatile int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private volatile RateLimiter globalLimiter = new RateLimiter( DEFAULT_GLOBAL_RATE );
+    private volatile long hostIdleMillis = DEFAULT_HOST_IDLE_MILLIS;
+    private final Map<String, Host> hosts = new HashMap<String, Host>();
+    private volatile long initialBackoffMillis = DEFAULT_INITIAL_BACKOFF_MILLIS;
+    private volatile long maxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+    private volatile int maxConcurrentPerHost = DEFAULT_MAX_CONCURRENT_PER_HOST;
+    private volatile long openDurationMillis = DEFAULT_OPEN_DURATION_MILLIS;
+    private volatile double perHostRate = DEFAULT_PER_HOST_RATE;
+    private final Random random = new Random();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    // guarded by hosts
+    private long lastSweep = System.currentTimeMillis();
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    /**
+     * Returns the governor used by all session creation paths of this
+     * library.
+     * 
+     * @return The default governor
+     */
+    public static ConnectionGovernor getDefault() {
+        return defaultGovernor;
+    }
+
+    /**
+     * Replaces the governor used by all session creation paths of this
+     * library.
+     * 
+     * @param governor
+     *            The new default governor
+     */
+    public static void setDefault( ConnectionGovernor governor ) {
+        defaultGovernor = governor;
+    }
+
+    private static void sleepUntil( long deadline ) throws JSchException {
+        long remaining;
+        while ( (remaining = deadline - System.nanoTime()) > 0 ) {
+            try {
+                TimeUnit.NANOSECONDS.sleep( remaining );
+            }
+            catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new JSchException( "interrupted waiting to connect", e );
+            }
+        }
+    }
+
+    /**
+     * Connects <code>session</code> with its own
+     * {@link Session#getTimeout() timeout}, as <code>session.connect()</code>
+     * does, subject to the limits of this governor.
+     * 
+     * @param session
+     *            The session to connect
+     * @throws JSchException
+     *             If the circuit for the host is open, or unable to connect
+     */
+    public void connect( Session session ) throws JSchException {
+        connect( session, session.getTimeout() );
+    }
+
+    /**
+     * Connects <code>session</code>, subject to the limits of this governor.
+     * 
+     * @param session
+     *            The session to connect
+     * @param timeout
+     *            The connect timeout in milliseconds, 0 for none
+     * @throws JSchException
+     *             If the circuit for the host is open, or unable to connect
+     */
+    public void connect( Session session, int timeout ) throws JSchException {
+        Host host = host( session.getHost() + ":" + session.getPort() );
+        try {
+            connect( session, timeout, host );
+        }
+        finally {
+            done( host );
+        }
+    }
+
+    private void connect( Session session, int timeout, Host host ) throws JSchException {
+        String key = host.key;
+        long start = System.nanoTime();
+        long notBefore = host.admit( System.currentTimeMillis() );
+        if ( notBefore < 0 ) {
+            rejectedCount.incrementAndGet();
+            throw new JSchException( "circuit open for " + key + ", not connecting" );
+        }
+
+        boolean permitted = false;
+        try {
+            long backoff = notBefore - System.currentTimeMillis();
+            if ( backoff > 0 ) {
+                logger.debug( "backing off {}ms before connecting to {}", backoff, key );
+                sleepUntil( start + TimeUnit.MILLISECONDS.toNanos( backoff ) );
+            }
+            try {
+                host.handshakes.acquire();
+                permitted = true;
+            }
+            catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new JSchException( "interrupted waiting to connect", e );
+            }
+            sleepUntil( Math.max( globalLimiter.reserve(), host.limiter.reserve() ) );
+            waitNanos.addAndGet( System.nanoTime() - start );
+
+            attemptCount.incrementAndGet();
+            // a proxy may connect a session of its own on this thread
+            Integer outerTimeout = connectTimeout.get();
+            connectTimeout.set( timeout );
+            try {
+                session.connect( timeout );
+            }
+            catch ( JSchException e ) {
+                if ( isHostDown( e ) ) {
+                    failureCount.incrementAndGet();
+                    host.failure();
+                }
+                else {
+                    host.success();
+                }
+                throw e;
+            }
+            finally {
+                if ( outerTimeout == null ) {
+                    connectTimeout.remove();
+                }
+                else {
+                    connectTimeout.set( outerTimeout );
+                }
+            }
+            host.success();
+        }
+        finally {
+            if ( permitted ) {
+                host.handshakes.release();
+            }
+            host.attemptDone();
+        }
+    }
+
+    /**
+     * Returns the number of connects attempted.
+     * 
+     * @return The attempt count
+     */
+    public long getAttemptCount() {
+        return attemptCount.get();
+    }
+
+    /**
+     * Returns the timeout, in milliseconds, of the connect a governor is
+     * making on the current thread, or -1 if there is none. A socket factory
+     * connecting the socket itself looks it up here, as JSch calls it without
+     * the timeout passed to <code>session.connect(int)</code>.
+     * 
+     * @return The connect timeout, 0 for none
+     */
+    static int getConnectTimeout() {
+        Integer timeout = connectTimeout.get();
+        return timeout == null ? -1 : timeout.intValue();
+    }
+
+    /**
+     * Returns the number of connects that failed because the host could not
+     * be reached.
+     * 
+     * @return The failure count
+     */
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    /**
+     * Returns the status of <code>hostname:port</code>, or null if no connect
+     * to it has been governed, or it has since been forgotten.
+     * 
+     * @param hostname
+     *            The host name
+     * @param port
+     *            The port
+     * @return The status of the host
+     */
+    public HostStatus getHostStatus( String hostname, int port ) {
+        Host host;
+        synchronized ( hosts ) {
+            host = hosts.get( hostname + ":" + port );
+        }
+        return host == null ? null : host.status();
+    }
+
+    /**
+     * Returns the number of connects that failed immediately because the
+     * circuit for their host was open.
+     * 
+     * @return The rejected count
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Returns the total time connects spent waiting on backoff and limits.
+     * 
+     * @param unit
+     *            The unit of the result
+     * @return The total wait
+     */
+    public long getWaitTime( TimeUnit unit ) {
+        return unit.convert( waitNanos.get(), TimeUnit.NANOSECONDS );
+    }
+
+    /**
+     * Marks a connect to <code>host</code> as finished.
+     */
+    private void done( Host host ) {
+        synchronized ( hosts ) {
+            host.users--;
+            host.lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Returns the state of <code>key</code>, counting the caller as using it
+     * until {@link #done(Host)}, so that it is not evicted meanwhile.
+     */
+    private Host host( String key ) {
+        synchronized ( hosts ) {
+            long now = System.currentTimeMillis();
+            if ( now - lastSweep >= hostIdleMillis ) {
+                lastSweep = now;
+                sweep( now );
+            }
+            Host host = hosts.get( key );
+            if ( host == null ) {
+                host = new Host( key );
+                hosts.put( key, host );
+            }
+            host.users++;
+            return host;
+        }
+    }
+
+    /**
+     * Returns true if <code>e</code> shows that the host could not be reached,
+     * rather than that it was reached and the connect failed for another
+     * reason.
+     */
+    static boolean isHostDown( JSchException e ) {
+        if ( e.getCause() instanceof IOException ) {
+            // the socket could not be connected, see Util.createSocket
+            return true;
+        }
+        String message = e.getMessage();
+        if ( message == null ) {
+            return false;
+        }
+        if ( message.startsWith( "timeout: " ) || message.equals( "connection is closed by foreign host" ) ) {
+            return true;
+        }
+        // JSch drops the cause of anything but its own exceptions, such as a
+        // read timeout during the handshake
+        String wrapped = "Session.connect: ";
+        return message.startsWith( wrapped ) && isIOException( message.substring( wrapped.length() ) );
+    }
+
+    /**
+     * Returns true if <code>description</code>, as returned by
+     * {@link Throwable#toString()}, describes an {@link IOException}.
+     */
+    private static boolean isIOException( String description ) {
+        int colon = description.indexOf( ':' );
+        String className = colon < 0 ? description : description.substring( 0, colon );
+        try {
+            return IOException.class.isAssignableFrom(
+                    Class.forName( className.trim(), false, ConnectionGovernor.class.getClassLoader() ) );
+        }
+        catch ( ClassNotFoundException e ) {
+            return false;
+        }
+    }
+
+    /**
+     * Sets the exponential backoff applied to connects to a host after it
+     * fails. Defaults to {@link #DEFAULT_INITIAL_BACKOFF_MILLIS} and
+     * {@link #DEFAULT_MAX_BACKOFF_MILLIS}.
+     * 
+     * @param initialBackoff
+     *            The maximum wait after the first failure
+     * @param maxBackoff
+     *            The cap on the maximum wait
+     * @param unit
+     *            The unit of both values
+     */
+    public void setBackoff( long initialBackoff, long maxBackoff, TimeUnit unit ) {
+        this.initialBackoffMillis = unit.toMillis( initialBackoff );
+        this.maxBackoffMillis = unit.toMillis( maxBackoff );
+    }
+
+    /**
+     * Sets how long a host must go without a connect before it is forgotten,
+     * if its last connect did not fail. Defaults to
+     * {@link #DEFAULT_HOST_IDLE_MILLIS}.
+     * 
+     * @param idleTimeout
+     *            The host idle timeout
+     * @param unit
+     *            The unit of <code>idleTimeout</code>
+     */
+    public void setHostIdleTimeout( long idleTimeout, TimeUnit unit ) {
+        this.hostIdleMillis = unit.toMillis( idleTimeout );
+    }
+
+    /**
+     * Sets the circuit breaker. After <code>failureThreshold</code>
+     * consecutive failures, connects to the host fail immediately for
+     * <code>openDuration</code>. Defaults to
+     * {@link #DEFAULT_FAILURE_THRESHOLD} and
+     * {@link #DEFAULT_OPEN_DURATION_MILLIS}.
+     * 
+     * @param failureThreshold
+     *            The consecutive failures that open the circuit
+     * @param openDuration
+     *            How long the circuit stays open
+     * @param unit
+     *            The unit of <code>openDuration</code>
+     */
+    public void setCircuitBreaker( int failureThreshold, long openDuration, TimeUnit unit ) {
+        this.failureThreshold = failureThreshold;
+        this.openDurationMillis = unit.toMillis( openDuration );
+    }
+
+    /**
+     * Sets the maximum connects per second across all hosts, 0 for no limit.
+     * Defaults to {@link #DEFAULT_GLOBAL_RATE}.
+     * 
+     * @param connectsPerSecond
+     *            The global rate
+     */
+    public void setGlobalRate( double connectsPerSecond ) {
+        this.globalLimiter = new RateLimiter( connectsPerSecond );
+    }
+
+    /**
+     * Sets the maximum number of handshakes in progress to any one host.
+     * Applies to hosts first connected to after this call. Defaults to
+     * {@link #DEFAULT_MAX_CONCURRENT_PER_HOST}.
+     * 
+     * @param maxConcurrentPerHost
+     *            The maximum concurrent handshakes per host
+     */
+    public void setMaxConcurrentPerHost( int maxConcurrentPerHost ) {
+        this.maxConcurrentPerHost = maxConcurrentPerHost;
+    }
+
+    /**
+     * Sets the maximum connects per second to any one host, 0 for no limit.
+     * Applies to hosts first connected to after this call. Defaults to
+     * {@link #DEFAULT_PER_HOST_RATE}.
+     * 
+     * @param connectsPerSecond
+     *            The per-host rate
+     */
+    public void setPerHostRate( double connectsPerSecond ) {
+        this.perHostRate = connectsPerSecond;
+    }
+
+    /**
+     * Removes the hosts that are healthy and have been idle for the host idle
+     * timeout. Must be called holding <code>hosts</code>.
+     */
+    private void sweep( long now ) {
+        for ( Iterator<Host> iterator = hosts.values().iterator(); iterator.hasNext(); ) {
+            Host host = iterator.next();
+            if ( host.users == 0 && now - host.lastUsed >= hostIdleMillis && host.isHealthy() ) {
+                logger.trace( "forgetting idle host {}", host.key );
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * The state of the circuit breaker for a host.
+     */
+    public static enum CircuitState {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private class Host {
+        private long attempts;
+        private int consecutiveFailures;
+        private long failures;
+        private final Semaphore handshakes = new Semaphore( maxConcurrentPerHost, true );
+        private final String key;
+        // guarded by hosts
+        private long lastUsed = System.currentTimeMillis();
+        private final RateLimiter limiter = new RateLimiter( perHostRate );
+        // the end of the backoff window of the last failure
+        private long backoffUntil;
+        private long openUntil;
+        private long rejected;
+        private CircuitState state = CircuitState.CLOSED;
+        private Thread trial;
+        // the connects using this host, guarded by hosts
+        private int users;
+
+        private Host( String key ) {
+            this.key = key;
+        }
+
+        /**
+         * Returns the time before which the caller must not connect, drawn
+         * for this caller from what remains of the backoff window, or -1 if
+         * the circuit is open.
+         */
+        private synchronized long admit( long now ) {
+            if ( state == CircuitState.OPEN ) {
+                if ( now < openUntil ) {
+                    rejected++;
+                    return -1;
+                }
+                logger.info( "circuit for {} half open, allowing a trial connect", key );
+                state = CircuitState.HALF_OPEN;
+            }
+            if ( state == CircuitState.HALF_OPEN ) {
+                if ( trial != null ) {
+                    rejected++;
+                    return -1;
+                }
+                trial = Thread.currentThread();
+            }
+            attempts++;
+            if ( backoffUntil <= now ) {
+                return 0;
+            }
+            synchronized ( random ) {
+                return now + (long) (random.nextDouble() * (backoffUntil - now));
+            }
+        }
+
+        private synchronized void attemptDone() {
+            if ( trial == Thread.currentThread() ) {
+                trial = null;
+            }
+        }
+
+        private synchronized boolean isHealthy() {
+            return state == CircuitState.CLOSED && consecutiveFailures == 0;
+        }
+
+        private synchronized void failure() {
+            failures++;
+            consecutiveFailures++;
+            long now = System.currentTimeMillis();
+            long backoff = Math.min( maxBackoffMillis,
+                    initialBackoffMillis << Math.min( 30, consecutiveFailures - 1 ) );
+            backoffUntil = now + backoff;
+            if ( state == CircuitState.HALF_OPEN || consecutiveFailures >= failureThreshold ) {
+                logger.warn( "circuit for {} open after {} consecutive failures", key, consecutiveFailures );
+                state = CircuitState.OPEN;
+                openUntil = now + openDurationMillis;
+            }
+        }
+
+        private synchronized HostStatus status() {
+            CircuitState current = state == CircuitState.OPEN && System.currentTimeMillis() >= openUntil
+                    ? CircuitState.HALF_OPEN : state;
+            return new HostStatus( current, consecutiveFailures, attempts, failures, rejected );
+        }
+
+        private synchronized void success() {
+            if ( state != CircuitState.CLOSED ) {
+                logger.info( "circuit for {} closed", key );
+            }
+            state = CircuitState.CLOSED;
+            consecutiveFailures = 0;
+            backoffUntil = 0;
+        }
+    }
+
+    /**
+     * A snapshot of the governed state of a host.
+     */
+    public static class HostStatus {
+        private final long attemptCount;
+        private final CircuitState circuitState;
+        private final int consecutiveFailures;
+        private final long failureCount;
+        private final long rejectedCount;
+
+        private HostStatus( CircuitState circuitState, int consecutiveFailures, long attemptCount, long failureCount, long rejectedCount ) {
+            this.circuitState = circuitState;
+            this.consecutiveFailures = consecutiveFailures;
+            this.attemptCount = attemptCount;
+            this.failureCount = failureCount;
+            this.rejectedCount = rejectedCount;
+        }
+
+        /**
+         * Returns the number of connects admitted to the host.
+         * 
+         * @return The attempt count
+         */
+        public long getAttemptCount() {
+            return attemptCount;
+        }
+
+        /**
+         * Returns the state of the circuit breaker for the host.
+         * 
+         * @return The circuit state
+         */
+        public CircuitState getCircuitState() {
+            return circuitState;
+        }
+
+        /**
+         * Returns the number of failures since the last successful connect.
+         * 
+         * @return The consecutive failure count
+         */
+        public int getConsecutiveFailures() {
+            return consecutiveFailures;
+        }
+
+        /**
+         * Returns the number of connects that failed to reach the host.
+         * 
+         * @return The failure count
+         */
+        public long getFailureCount() {
+            return failureCount;
+        }
+
+        /**
+         * Returns the number of connects rejected by the open circuit.
+         * 
+         * @return The rejected count
+         */
+        public long getRejectedCount() {
+            return rejectedCount;
+        }
+
+        @Override
+        public String toString() {
+            return "HostStatus(" + circuitState + ", consecutiveFailures=" + consecutiveFailures
+                    + ", attempts=" + attemptCount + ", failures=" + failureCount
+                    + ", rejected=" + rejectedCount + ")";
+        }
+    }
+
+    /**
+     * A rate limiter allowing bursts of up to one second's worth of permits,
+     * implemented as a generic cell rate algorithm.
+     */
+    private static class RateLimiter {
+        private final long intervalNanos;
+        private long theoreticalArrival = System.nanoTime();
+        private final long toleranceNanos;
+
+        private RateLimiter( double permitsPerSecond ) {
+            if ( permitsPerSecond <= 0 ) {
+                this.intervalNanos = 0;
+                this.toleranceNanos = 0;
+            }
+            else {
+                this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos( 1 ) / permitsPerSecond);
+                this.toleranceNanos = intervalNanos * Math.max( 0, (long) Math.ceil( permitsPerSecond ) - 1 );
+            }
+        }
+
+        /**
+         * Reserves a permit and returns the time, per
+         * {@link System#nanoTime()}, at which it may be used.
+         */
+        private synchronized long reserve() {
+            long now = System.nanoTime();
+            if ( intervalNanos == 0 ) {
+                return now;
+            }
+            long earliest = theoreticalArrival - toleranceNanos;
+            long scheduled = earliest - now > 0 ? earliest : now;
+            theoreticalArrival = (theoreticalArrival - scheduled > 0 ? theoreticalArrival : scheduled) + intervalNanos;
+            return scheduled;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.pastdev.jsch;
+
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Map;
+
+
+import javax.crypto.KeyAgreement;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+import com.jcraft.jsch.Buffer;
+import com.jcraft.jsch.HASH;
+import com.jcraft.jsch.KeyExchange;
+import com.jcraft.jsch.Packet;
+import com.jcraft.jsch.Session;
+
+
+/**
+ * The <code>curve25519-sha256</code> key exchange of RFC 8731, which JSch
+ * 0.1.54 lacks, using the X25519 support of the JDK (Java 11 and later). It
+ * costs less CPU than the Diffie-Hellman groups, and sends 32 byte keys rather
+ * than hundreds of bytes.
+ * <p>
+ * {@link DefaultSessionFactory} registers it, under both
+ * <code>curve25519-sha256</code> and the older
+ * <code>curve25519-sha256@libssh.org</code>, for every session it creates, and
+ * proposes it first unless the configuration of the factory sets
+ * <code>kex</code>. On a JVM without X25519 it is taken out of the proposal
+ * instead, see {@link #apply(Session, Map)}.
+ * </p>
+ */
+public class Curve25519KeyExchange extends KeyExchange {
+    private static Logger logger = LoggerFactory.getLogger( Curve25519KeyExchange.class );
+    private static final int KEY_SIZE = 32;
+    private static final int SSH_MSG_KEX_ECDH_INIT = 30;
+    private static final int SSH_MSG_KEX_ECDH_REPLY = 31;
+    private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+    // the DER header of an X.509 encoded X25519 public key, RFC 8410
+    private static final byte[] X509_HEADER = {
+            0x30, 0x2a, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x6e, 0x03, 0x21, 0x00 };
+
+    /**
+     * The names of this key exchange.
+     */
+    public static final String[] METHODS = { "curve25519-sha256", "curve25519-sha256@libssh.org" };
+
+    private static volatile Boolean available;
+
+    private byte[] clientKexInit;
+    private byte[] clientPublicKey;
+    private byte[] clientVersion;
+    private PrivateKey privateKey;
+    private byte[] serverKexInit;
+    private byte[] serverVersion;
+    private int state;
+
+    /**
+     * Registers this key exchange on <code>session</code>, unless
+     * <code>config</code>, the configuration the session was created with,
+     * maps its names to another class. If this JVM supports X25519, it is
+     * added to the front of the <code>kex</code> proposal, unless
+     * <code>config</code> sets the proposal. Otherwise it is removed from the
+     * proposal, so that servers that offer it fall back to another.
+     * 
+     * @param session
+     *            The session, not yet connected
+     * @param config
+     *            The explicit configuration of the session, may be null
+     */
+    public static void apply( Session session, Map<String, String> config ) {
+        if ( config != null ) {
+            for ( String method : METHODS ) {
+                if ( config.containsKey( method ) ) {
+                    return;
+                }
+            }
+        }
+        for ( String method : METHODS ) {
+            session.setConfig( method, Curve25519KeyExchange.class.getName() );
+        }
+
+        String kex = session.getConfig( "kex" );
+        StringBuilder proposal = new StringBuilder();
+        boolean available = isAvailable();
+        if ( available && (config == null || !config.containsKey( "kex" )) ) {
+            for ( String method : METHODS ) {
+                proposal.append( method ).append( "," );
+            }
+        }
+        for ( String algorithm : kex.split( "," ) ) {
+            algorithm = algorithm.trim();
+            if ( !algorithm.isEmpty() && (available
+                    ? proposal.indexOf( algorithm + "," ) < 0
+                    : !Arrays.asList( METHODS ).contains( algorithm )) ) {
+                proposal.append( algorithm ).append( "," );
+            }
+        }
+        if ( proposal.length() > 0 ) {
+            session.setConfig( "kex", proposal.substring( 0, proposal.length() - 1 ) );
+        }
+    }
+
+    /**
+     * Returns true if the JVM supports X25519.
+     * 
+     * @return True if this key exchange can be used
+     */
+    public static boolean isAvailable() {
+        if ( available == null ) {
+            try {
+                KeyPairGenerator.getInstance( "X25519" );
+                KeyAgreement.getInstance( "X25519" );
+                available = Boolean.TRUE;
+            }
+            catch ( GeneralSecurityException e ) {
+                logger.info( "curve25519-sha256 unavailable: {}", e.toString() );
+                available = Boolean.FALSE;
+            }
+        }
+        return available;
+    }
+
+    private byte[] agree( byte[] serverPublicKey ) throws GeneralSecurityException {
+        byte[] encoded = Arrays.copyOf( X509_HEADER, X509_HEADER.length + KEY_SIZE );
+        System.arraycopy( serverPublicKey, 0, encoded, X509_HEADER.length, KEY_SIZE );
+        KeyAgreement agreement = KeyAgreement.getInstance( "X25519" );
+        agreement.init( privateKey );
+        agreement.doPhase( KeyFactory.getInstance( "X25519" )
+                .generatePublic( new X509EncodedKeySpec( encoded ) ), true );
+        return agreement.generateSecret();
+    }
+
+    /**
+     * Returns the ephemeral X25519 key pair for one key exchange.
+     * 
+     * @return A new key pair
+     * @throws GeneralSecurityException
+     *             If the JVM does not support X25519
+     */
+    protected KeyPair generateKeyPair() throws GeneralSecurityException {
+        return KeyPairGenerator.getInstance( "X25519" ).generateKeyPair();
+    }
+
+    @Override
+    public int getState() {
+        return state;
+    }
+
+    @Override
+    public void init( Session session, byte[] serverVersion, byte[] clientVersion, byte[] serverKexInit, byte[] clientKexInit ) throws Exception {
+        this.session = session;
+        this.serverVersion = serverVersion;
+        this.clientVersion = clientVersion;
+        this.serverKexInit = serverKexInit;
+        this.clientKexInit = clientKexInit;
+
+        sha = (HASH) Class.forName( session.getConfig( "sha-256" ) ).getDeclaredConstructor().newInstance();
+        sha.init();
+
+        KeyPair keyPair = generateKeyPair();
+        privateKey = keyPair.getPrivate();
+        byte[] encoded = keyPair.getPublic().getEncoded();
+        clientPublicKey = Arrays.copyOfRange( encoded, encoded.length - KEY_SIZE, encoded.length );
+
+        if ( serverVersion == null ) {
+            // JSch checks that a key exchange is usable by initializing it
+            // without a peer
+            return;
+        }
+
+        Buffer buffer = new Buffer();
+        Packet packet = new Packet( buffer );
+        packet.reset();
+        buffer.putByte( (byte) SSH_MSG_KEX_ECDH_INIT );
+        buffer.putString( clientPublicKey );
+        session.write( packet );
+        logger.debug( "SSH_MSG_KEX_ECDH_INIT sent, expecting SSH_MSG_KEX_ECDH_REPLY" );
+        state = SSH_MSG_KEX_ECDH_REPLY;
+    }
+
+    @Override
+    public boolean next( Buffer buffer ) throws Exception {
+        if ( state != SSH_MSG_KEX_ECDH_REPLY ) {
+            return false;
+        }
+        state = STATE_END;
+
+        buffer.getInt(); // packet length
+        buffer.getByte(); // padding length
+        int type = buffer.getByte();
+        if ( type != SSH_MSG_KEX_ECDH_REPLY ) {
+            logger.error( "expected SSH_MSG_KEX_ECDH_REPLY, got {}", type );
+            return false;
+        }
+
+        K_S = buffer.getString();
+        byte[] serverPublicKey = buffer.getString();
+        byte[] signature = buffer.getString();
+        if ( serverPublicKey.length != KEY_SIZE ) {
+            logger.error( "server sent a {} byte key, expected {}", serverPublicKey.length, KEY_SIZE );
+            return false;
+        }
+
+        byte[] secret = agree( serverPublicKey );
+        privateKey = null;
+        // RFC 8731 3: a shared secret of all zeros means the server's key was
+        // of low order, and must be rejected
+        int bits = 0;
+        for ( byte b : secret ) {
+            bits |= b;
+        }
+        if ( bits == 0 ) {
+            logger.error( "server key gave an all zero shared secret" );
+            return false;
+        }
+        // the secret is an unsigned big endian integer, so it is encoded as
+        // an mpint, without unneeded leading zeros
+        K = normalize( secret );
+
+        Buffer exchange = new Buffer();
+        exchange.putString( clientVersion );
+        exchange.putString( serverVersion );
+        exchange.putString( clientKexInit );
+        exchange.putString( serverKexInit );
+        exchange.putString( K_S );
+        exchange.putString( clientPublicKey );
+        exchange.putString( serverPublicKey );
+        exchange.putMPInt( K );
+        byte[] hashed = new byte[exchange.getLength()];
+        exchange.getByte( hashed );
+        sha.update( hashed, 0, hashed.length );
+        H = sha.digest();
+
+        int length = ((K_S[0] & 0xff) << 24) | ((K_S[1] & 0xff) << 16)
+                | ((K_S[2] & 0xff) << 8) | (K_S[3] & 0xff);
+        String algorithm = new String( K_S, 4, length, UTF_8 );
+        return verify( algorithm, K_S, 4 + length, signature );
+    }
+}
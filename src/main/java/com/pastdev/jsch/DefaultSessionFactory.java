@@ -3,18 +3,19 @@ package com.pastdev.jsch;
 
 import java.io.File;
 import java.io.InputStream;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Vector;
 
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
+import com.jcraft.jsch.HostKeyRepository;
 import com.jcraft.jsch.Identity;
 import com.jcraft.jsch.IdentityRepository;
 import com.jcraft.jsch.JSch;
@@ -22,10 +23,7 @@ import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.Proxy;
 import com.jcraft.jsch.Session;
 import com.jcraft.jsch.UserInfo;
-import com.jcraft.jsch.agentproxy.AgentProxyException;
-import com.jcraft.jsch.agentproxy.Connector;
 import com.jcraft.jsch.agentproxy.ConnectorFactory;
-import com.jcraft.jsch.agentproxy.RemoteIdentityRepository;
 
 
 /**
@@ -47,19 +45,40 @@ import com.jcraft.jsch.agentproxy.RemoteIdentityRepository;
  * directory concatenated with all 3 of <code>"/id_rsa"</code>,
  * <code>"/id_dsa"</code>, and <code>"/id_ecdsa"</code> if they exist.
  * </p>
+ * <p>
+ * The default identities and known hosts are resolved on the first call to
+ * {@link #newSession()}, and only if they were not set explicitly before then.
+ * The agent lookup and parsed private key files are shared by all factories in
+ * the process.
+ * </p>
+ * <p>
+ * Identities are offered to each target with the one that last authenticated
+ * it first, as remembered by an {@link IdentityOrder}. The algorithms JSch
+ * would check on every connect are checked once per process by the
+ * {@link AlgorithmProbe}, and compression, when enabled, uses the JDK's zlib
+ * through {@link JdkCompression}. Where the JVM supports X25519, the
+ * <code>curve25519-sha256</code> key exchange of
+ * {@link Curve25519KeyExchange} is proposed first, and the key pairs of key
+ * exchanges can be generated ahead of time by a {@link KeyExchangePool}.
+ * </p>
  */
 public class DefaultSessionFactory implements SessionFactory {
     private static Logger logger = LoggerFactory.getLogger( DefaultSessionFactory.class );
     public static final String PROPERTY_JSCH_DOT_SSH = "jsch.dotSsh";
     public static final String PROPERTY_JSCH_KNOWN_HOSTS_FILE = "jsch.knownHosts.file";
     public static final String PROPERTY_JSCH_PRIVATE_KEY_FILES = "jsch.privateKey.files";
+    private static final Charset UTF_8 = Charset.forName( "UTF-8" );
 
+    private AdaptiveCompression adaptiveCompression;
     private Map<String, String> config;
+    private final PendingDefaults defaults;
     private File dotSshDir;
     private String hostname;
+    private IdentityOrder identityOrder;
     private JSch jsch;
     private String password;
     private int port = SSH_PORT;
+    private boolean precomputeKeyExchange;
     private Proxy proxy;
     private UserInfo userInfo;
     private String username;
@@ -84,20 +103,7 @@ public class DefaultSessionFactory implements SessionFactory {
     public DefaultSessionFactory( String username, String hostname, Integer port ) {
         JSch.setLogger( new Slf4jBridge() );
         jsch = new JSch();
-
-        try {
-            setDefaultIdentities();
-        }
-        catch ( JSchException e ) {
-            logger.warn( "Unable to set default identities: ", e );
-        }
-
-        try {
-            setDefaultKnownHosts();
-        }
-        catch ( JSchException e ) {
-            logger.warn( "Unable to set default known_hosts: ", e );
-        }
+        defaults = new PendingDefaults();
 
         if ( username == null ) {
             this.username = System.getProperty( "user.name" ).toLowerCase();
@@ -121,8 +127,9 @@ public class DefaultSessionFactory implements SessionFactory {
         }
     }
 
-    private DefaultSessionFactory( JSch jsch, String username, String hostname, int port, Proxy proxy ) {
+    private DefaultSessionFactory( JSch jsch, PendingDefaults defaults, String username, String hostname, int port, Proxy proxy ) {
         this.jsch = jsch;
+        this.defaults = defaults;
         this.username = username;
         this.hostname = hostname;
         this.port = port;
@@ -130,6 +137,7 @@ public class DefaultSessionFactory implements SessionFactory {
     }
 
     private void clearIdentityRepository() throws JSchException {
+        identitiesSet();
         jsch.setIdentityRepository( null ); // revert to default identity repo
         jsch.removeAllIdentity();
     }
@@ -149,6 +157,18 @@ public class DefaultSessionFactory implements SessionFactory {
         return dotSshDir;
     }
 
+    private void identitiesSet() {
+        synchronized ( defaults ) {
+            defaults.identities = false;
+        }
+    }
+
+    private void knownHostsSet() {
+        synchronized ( defaults ) {
+            defaults.knownHosts = false;
+        }
+    }
+
     @Override
     public String getHostname() {
         return hostname;
@@ -176,12 +196,34 @@ public class DefaultSessionFactory implements SessionFactory {
 
     @Override
     public Session newSession() throws JSchException {
+        resolveDefaults();
         Session session = jsch.getSession( username, hostname, port );
+        IdentityOrder order = identityOrder == null ? IdentityOrder.getDefault() : identityOrder;
+        session.setIdentityRepository( order.wrap( jsch.getIdentityRepository(), username, hostname, port ) );
         if ( config != null ) {
             for ( String key : config.keySet() ) {
                 session.setConfig( key, config.get( key ) );
             }
         }
+        for ( String method : JdkCompression.METHODS ) {
+            if ( config == null || !config.containsKey( method ) ) {
+                session.setConfig( method, JdkCompression.class.getName() );
+            }
+        }
+        // JSch only hashes the host keys it adds to its own KnownHosts
+        HostKeyRepository hostKeyRepository = jsch.getHostKeyRepository();
+        if ( hostKeyRepository instanceof KnownHostsRepository
+                && "yes".equals( session.getConfig( "HashKnownHosts" ) ) ) {
+            session.setHostKeyRepository( ((KnownHostsRepository) hostKeyRepository).hashing() );
+        }
+        Curve25519KeyExchange.apply( session, config );
+        if ( precomputeKeyExchange ) {
+            KeyExchangePool.getDefault().apply( session, config );
+        }
+        if ( adaptiveCompression != null ) {
+            adaptiveCompression.apply( session, config, proxy );
+        }
+        AlgorithmProbe.getDefault().apply( session, config );
         if ( proxy != null ) {
             session.setProxy( proxy );
         }
@@ -199,15 +241,67 @@ public class DefaultSessionFactory implements SessionFactory {
         return new SessionFactoryBuilder( jsch, username, hostname, port, proxy, config, userInfo ) {
             @Override
             public SessionFactory build() {
-                DefaultSessionFactory sessionFactory = new DefaultSessionFactory( jsch, username, hostname, port, proxy );
+                DefaultSessionFactory sessionFactory = new DefaultSessionFactory( jsch, defaults, username, hostname, port, proxy );
+                sessionFactory.adaptiveCompression = adaptiveCompression;
                 sessionFactory.config = config;
+                sessionFactory.identityOrder = identityOrder;
                 sessionFactory.password = password;
+                sessionFactory.precomputeKeyExchange = precomputeKeyExchange;
                 sessionFactory.userInfo = userInfo;
                 return sessionFactory;
             }
         };
     }
 
+    /**
+     * Lets <code>adaptiveCompression</code> choose whether the sessions created
+     * by this factory are compressed, unless the configuration sets
+     * <code>compression.c2s</code> or <code>compression.s2c</code>. It is
+     * shared with factories built by {@link #newSessionFactoryBuilder()}.
+     * 
+     * @param adaptiveCompression
+     *            The adaptive compression, or null to use the configuration
+     *            alone
+     */
+    public void setAdaptiveCompression( AdaptiveCompression adaptiveCompression ) {
+        this.adaptiveCompression = adaptiveCompression;
+    }
+
+    /**
+     * Adds the configuration of <code>profile</code> to the options for the
+     * sessions created by this factory, replacing any of the same options
+     * already set. Factories built by {@link #newSessionFactoryBuilder()}
+     * inherit it with the rest of the configuration.
+     * 
+     * @param profile
+     *            The algorithm profile
+     * 
+     * @see #setConfig(String, String)
+     */
+    public void setAlgorithmProfile( AlgorithmProfile profile ) {
+        for ( Map.Entry<String, String> entry : profile.getConfig().entrySet() ) {
+            setConfig( entry.getKey(), entry.getValue() );
+        }
+    }
+
+    /**
+     * Adds the configuration of <code>profile</code>, with its ciphers and
+     * MACs ordered fastest first as measured by <code>benchmark</code>.
+     * 
+     * @param profile
+     *            The algorithm profile
+     * @param benchmark
+     *            The measured throughput of the ciphers and MACs
+     * 
+     * @see AlgorithmProfile#getConfig(CipherBenchmark)
+     * @see #setAlgorithmProfile(AlgorithmProfile)
+     */
+    public void setAlgorithmProfile( AlgorithmProfile profile, CipherBenchmark benchmark ) {
+        for ( Map.Entry<String, String> entry : profile.getConfig( benchmark ).entrySet() ) {
+            setConfig( entry.getKey(), entry.getValue() );
+        }
+    }
+
     /**
      * Sets the configuration options for the sessions created by this factory.
      * This method will replace the current SessionFactory <code>config</code>
@@ -249,6 +343,38 @@ public class DefaultSessionFactory implements SessionFactory {
         config.put( key, value );
     }
 
+    /**
+     * Sets the default identities and known hosts, unless they were already
+     * set explicitly, the first time a session is needed. Factories built from
+     * this one share its JSch instance, and so share its defaults.
+     */
+    private void resolveDefaults() {
+        if ( defaults.resolved ) {
+            return;
+        }
+        synchronized ( defaults ) {
+            if ( defaults.identities ) {
+                defaults.identities = false;
+                try {
+                    setDefaultIdentities();
+                }
+                catch ( JSchException e ) {
+                    logger.warn( "Unable to set default identities: ", e );
+                }
+            }
+            if ( defaults.knownHosts ) {
+                defaults.knownHosts = false;
+                try {
+                    setDefaultKnownHosts();
+                }
+                catch ( JSchException e ) {
+                    logger.warn( "Unable to set default known_hosts: ", e );
+                }
+            }
+            defaults.resolved = true;
+        }
+    }
+
     private void setDefaultKnownHosts() throws JSchException {
         String knownHosts = System.getProperty( PROPERTY_JSCH_KNOWN_HOSTS_FILE );
         if ( knownHosts != null && !knownHosts.isEmpty() ) {
@@ -264,22 +390,10 @@ public class DefaultSessionFactory implements SessionFactory {
 
     private void setDefaultIdentities() throws JSchException {
         boolean identitiesSet = false;
-        try {
-            Connector connector = ConnectorFactory.getDefault()
-                    .createConnector();
-            if ( connector != null ) {
-                logger.info( "An AgentProxy Connector was found, check for identities" );
-                RemoteIdentityRepository repository = new RemoteIdentityRepository( connector );
-                Vector<Identity> identities = repository.getIdentities();
-                if ( identities.size() > 0 ) {
-                    logger.info( "Using AgentProxy identities: {}", identities );
-                    setIdentityRepository( repository );
-                    identitiesSet = true;
-                }
-            }
-        }
-        catch ( AgentProxyException e ) {
-            logger.debug( "Failed to load any keys from AgentProxy:", e );
+        IdentityRepository agent = SharedIdentities.agent();
+        if ( agent != null ) {
+            setIdentityRepository( agent );
+            identitiesSet = true;
         }
         if ( !identitiesSet ) {
             String privateKeyFilesString = System.getProperty( PROPERTY_JSCH_PRIVATE_KEY_FILES );
@@ -328,14 +442,16 @@ public class DefaultSessionFactory implements SessionFactory {
      */
     public void setIdentityFromPrivateKey( String privateKey ) throws JSchException {
         clearIdentityRepository();
-        jsch.addIdentity( privateKey );
+        SharedIdentities.addPrivateKey( jsch, privateKey );
     }
 
     /**
      * Configures this factory to use a single identity authenticated by the
      * supplied private key and pass phrase. The private key should be the path
      * to a private key file in OpenSSH format. Clears out the current
-     * {@link IdentityRepository} before adding this key.
+     * {@link IdentityRepository} before adding this key. The decrypted key is
+     * shared with every factory configured with the same file and pass phrase
+     * until the file changes.
      *
      * @param privateKey
      *            Path to a private key file
@@ -346,7 +462,15 @@ public class DefaultSessionFactory implements SessionFactory {
      */
     public void setIdentityFromPrivateKey( String privateKey, String passPhrase ) throws JSchException {
         clearIdentityRepository();
-        jsch.addIdentity( privateKey, passPhrase );
+        byte[] passPhraseBytes = passPhrase == null ? null : passPhrase.getBytes( UTF_8 );
+        try {
+            SharedIdentities.addPrivateKey( jsch, privateKey, passPhraseBytes );
+        }
+        finally {
+            if ( passPhraseBytes != null ) {
+                Arrays.fill( passPhraseBytes, (byte) 0 );
+            }
+        }
     }
 
     /**
@@ -363,10 +487,23 @@ public class DefaultSessionFactory implements SessionFactory {
     public void setIdentitiesFromPrivateKeys( List<String> privateKeys ) throws JSchException {
         clearIdentityRepository();
         for ( String privateKey : privateKeys ) {
-            jsch.addIdentity( privateKey );
+            SharedIdentities.addPrivateKey( jsch, privateKey );
         }
     }
 
+    /**
+     * Sets the order that remembers which identity authenticated each target,
+     * and offers it first. Without it, the {@link IdentityOrder#getDefault()
+     * default} order is used. The order is shared with factories built by
+     * {@link #newSessionFactoryBuilder()}.
+     * 
+     * @param identityOrder
+     *            The identity order
+     */
+    public void setIdentityOrder( IdentityOrder identityOrder ) {
+        this.identityOrder = identityOrder;
+    }
+
     /**
      * Sets the {@link IdentityRepository} for this factory. This will replace
      * any current IdentityRepository, so you should be sure to call this before
@@ -378,6 +515,7 @@ public class DefaultSessionFactory implements SessionFactory {
      * @see JSch#setIdentityRepository(IdentityRepository)
      */
     public void setIdentityRepository( IdentityRepository identityRepository ) {
+        identitiesSet();
         jsch.setIdentityRepository( identityRepository );
     }
 
@@ -394,21 +532,26 @@ public class DefaultSessionFactory implements SessionFactory {
      * @see JSch#setKnownHosts(InputStream)
      */
     public void setKnownHosts( InputStream knownHosts ) throws JSchException {
+        knownHostsSet();
+        jsch.setHostKeyRepository( null ); // revert to a private KnownHosts
         jsch.setKnownHosts( knownHosts );
     }
 
     /**
-     * Sets the known hosts from a file at path <code>knownHosts</code>.
+     * Sets the known hosts from a file at path <code>knownHosts</code>. The
+     * file is parsed once per process, and the parsed host keys shared with
+     * every other factory using the same file.
      * 
      * @param knownHosts
      *            The path to a known hosts file
      * @throws JSchException
      *             If an I/O error occurs
      * 
-     * @see JSch#setKnownHosts(String)
+     * @see KnownHostsRepository#forFile(String)
      */
     public void setKnownHosts( String knownHosts ) throws JSchException {
-        jsch.setKnownHosts( knownHosts );
+        knownHostsSet();
+        jsch.setHostKeyRepository( KnownHostsRepository.forFile( knownHosts ) );
     }
 
     /**
@@ -435,6 +578,19 @@ public class DefaultSessionFactory implements SessionFactory {
         this.port = port;
     }
 
+    /**
+     * Sets whether the sessions created by this factory take the ephemeral key
+     * pairs of their key exchanges from the default {@link KeyExchangePool},
+     * which generates them in the background ahead of the connects. It is
+     * shared with factories built by {@link #newSessionFactoryBuilder()}.
+     * 
+     * @param precomputeKeyExchange
+     *            True to use pooled key pairs
+     */
+    public void setPrecomputeKeyExchange( boolean precomputeKeyExchange ) {
+        this.precomputeKeyExchange = precomputeKeyExchange;
+    }
+
     /**
      * Sets the proxy through which all connections will be piped.
      * 
@@ -475,4 +631,13 @@ public class DefaultSessionFactory implements SessionFactory {
         return (proxy == null ? "" : proxy.toString() + " ") +
                 "ssh://" + username + "@" + hostname + ":" + port;
     }
+
+    /**
+     * Tracks which defaults still need to be set on a JSch instance.
+     */
+    private static class PendingDefaults {
+        private boolean identities = true;
+        private boolean knownHosts = true;
+        private volatile boolean resolved;
+    }
 }
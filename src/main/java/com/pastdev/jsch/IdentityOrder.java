@@ -0,0 +1,435 @@
+package com.pastdev.jsch;
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+import com.jcraft.jsch.Identity;
+import com.jcraft.jsch.IdentityRepository;
+import com.jcraft.jsch.JSchException;
+
+
+/**
+ * Remembers which identity last authenticated each
+ * <code>user@host:port</code>, and offers it first on the next connect to the
+ * same target. JSch offers identities in order, and every identity the server
+ * does not accept costs a round trip, and counts towards the server's
+ * <code>MaxAuthTries</code>, so a target that accepts the sixth of six agent
+ * keys otherwise pays five wasted round trips per handshake.
+ * <p>
+ * An identity is remembered when it signs the authentication request. JSch
+ * only signs with an identity the server has said it will accept, so this is
+ * the identity that authenticated. Identities are remembered by the SHA-256
+ * fingerprint of their public key, so the memory holds no key material and
+ * may be {@link #IdentityOrder(File) persisted} to a file.
+ * </p>
+ * <p>
+ * Every {@link DefaultSessionFactory} uses the {@link #getDefault() default}
+ * order, which only lives as long as the process, unless another is
+ * {@link DefaultSessionFactory#setIdentityOrder(IdentityOrder) set}.
+ * </p>
+ * 
+ * <pre>
+ * IdentityOrder.setDefault( new IdentityOrder( new File( cacheDir, &quot;identity-order&quot; ) ) );
+ * </pre>
+ */
+public class IdentityOrder {
+    private static Logger logger = LoggerFactory.getLogger( IdentityOrder.class );
+
+    private static volatile IdentityOrder defaultOrder = new IdentityOrder();
+
+    private volatile boolean enabled = true;
+    private final File file;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final Map<String, String> preferred = new HashMap<String, String>();
+    private final AtomicLong recordedCount = new AtomicLong();
+
+    /**
+     * Creates an order that is only kept in memory.
+     */
+    public IdentityOrder() {
+        this.file = null;
+    }
+
+    /**
+     * Creates an order that is loaded from, and saved to, <code>file</code>.
+     * A missing or unreadable file starts an empty order.
+     * 
+     * @param file
+     *            The file to persist the order in
+     */
+    public IdentityOrder( File file ) {
+        this.file = file;
+        load();
+    }
+
+    /**
+     * Returns the order used by every {@link DefaultSessionFactory} that has
+     * not been given another.
+     * 
+     * @return The default order
+     */
+    public static IdentityOrder getDefault() {
+        return defaultOrder;
+    }
+
+    /**
+     * Replaces the order used by every {@link DefaultSessionFactory} that has
+     * not been given another.
+     * 
+     * @param order
+     *            The new default order
+     */
+    public static void setDefault( IdentityOrder order ) {
+        defaultOrder = order;
+    }
+
+    /**
+     * Forgets every remembered identity.
+     */
+    public void clear() {
+        synchronized ( preferred ) {
+            preferred.clear();
+        }
+        save();
+    }
+
+    private static String fingerprint( byte[] publicKeyBlob ) {
+        try {
+            return new BigInteger( 1, MessageDigest.getInstance( "SHA-256" )
+                    .digest( publicKeyBlob ) ).toString( 16 );
+        }
+        catch ( NoSuchAlgorithmException e ) {
+            throw new IllegalStateException( "SHA-256 unavailable", e );
+        }
+    }
+
+    /**
+     * Forgets the identity remembered for <code>user@host:port</code>.
+     * 
+     * @param username
+     *            The username
+     * @param hostname
+     *            The hostname
+     * @param port
+     *            The port
+     */
+    public void forget( String username, String hostname, int port ) {
+        String removed;
+        synchronized ( preferred ) {
+            removed = preferred.remove( target( username, hostname, port ) );
+        }
+        if ( removed != null ) {
+            save();
+        }
+    }
+
+    /**
+     * Returns the number of times a remembered identity was offered first.
+     * 
+     * @return The hit count
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Returns the SHA-256 fingerprint, in hex, of the public key of the
+     * identity remembered for <code>user@host:port</code>, or null if there is
+     * none.
+     * 
+     * @param username
+     *            The username
+     * @param hostname
+     *            The hostname
+     * @param port
+     *            The port
+     * @return The fingerprint of the remembered identity
+     */
+    public String getPreferred( String username, String hostname, int port ) {
+        synchronized ( preferred ) {
+            return preferred.get( target( username, hostname, port ) );
+        }
+    }
+
+    /**
+     * Returns the number of times a newly successful identity was remembered.
+     * 
+     * @return The recorded count
+     */
+    public long getRecordedCount() {
+        return recordedCount.get();
+    }
+
+    /**
+     * Returns true if identities are reordered and remembered.
+     * 
+     * @return True if enabled
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    private void load() {
+        if ( file == null || !file.exists() ) {
+            return;
+        }
+        Properties properties = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream( file );
+            properties.load( in );
+        }
+        catch ( IOException e ) {
+            logger.warn( "unable to read identity order from {}: {}", file, e.getMessage() );
+            return;
+        }
+        finally {
+            if ( in != null ) {
+                IOUtils.closeAndLogException( in );
+            }
+        }
+        synchronized ( preferred ) {
+            for ( String target : properties.stringPropertyNames() ) {
+                preferred.put( target, properties.getProperty( target ) );
+            }
+        }
+        logger.debug( "loaded {} remembered identities from {}", properties.size(), file );
+    }
+
+    private void record( String target, byte[] publicKeyBlob ) {
+        if ( publicKeyBlob == null ) {
+            return;
+        }
+        String fingerprint = fingerprint( publicKeyBlob );
+        String previous;
+        synchronized ( preferred ) {
+            previous = preferred.put( target, fingerprint );
+        }
+        if ( !fingerprint.equals( previous ) ) {
+            logger.debug( "remembering identity {} for {}", fingerprint, target );
+            recordedCount.incrementAndGet();
+            save();
+        }
+    }
+
+    private void save() {
+        if ( file == null ) {
+            return;
+        }
+        Properties properties = new Properties();
+        synchronized ( preferred ) {
+            properties.putAll( preferred );
+        }
+        synchronized ( this ) {
+            File temp = new File( file.getPath() + ".tmp" );
+            OutputStream out = null;
+            try {
+                out = new FileOutputStream( temp );
+                properties.store( out, "identity last authenticated per user@host:port" );
+                out.close();
+                out = null;
+                if ( !temp.renameTo( file ) ) {
+                    file.delete();
+                    if ( !temp.renameTo( file ) ) {
+                        throw new IOException( "unable to rename " + temp + " to " + file );
+                    }
+                }
+            }
+            catch ( IOException e ) {
+                logger.warn( "unable to save identity order to {}: {}", file, e.getMessage() );
+            }
+            finally {
+                if ( out != null ) {
+                    IOUtils.closeAndLogException( out );
+                }
+            }
+        }
+    }
+
+    /**
+     * Enables, or disables, reordering and remembering identities. Enabled by
+     * default.
+     * 
+     * @param enabled
+     *            True to enable
+     */
+    public void setEnabled( boolean enabled ) {
+        this.enabled = enabled;
+    }
+
+    private static String target( String username, String hostname, int port ) {
+        return username + "@" + hostname + ":" + port;
+    }
+
+    @Override
+    public String toString() {
+        int size;
+        synchronized ( preferred ) {
+            size = preferred.size();
+        }
+        return "IdentityOrder(size=" + size + ", hits=" + hitCount.get()
+                + ", recorded=" + recordedCount.get()
+                + (file == null ? "" : ", file=" + file) + ")";
+    }
+
+    /**
+     * Returns a repository offering the identities of <code>repository</code>
+     * with the one remembered for <code>user@host:port</code> first, and that
+     * remembers the identity that authenticates. Pass the result to
+     * {@link com.jcraft.jsch.Session#setIdentityRepository(IdentityRepository)
+     * Session.setIdentityRepository}. If disabled, <code>repository</code> is
+     * returned as is.
+     * 
+     * @param repository
+     *            The repository holding the identities
+     * @param username
+     *            The username
+     * @param hostname
+     *            The hostname
+     * @param port
+     *            The port
+     * @return The ordering repository
+     */
+    public IdentityRepository wrap( IdentityRepository repository, String username, String hostname, int port ) {
+        if ( !enabled ) {
+            return repository;
+        }
+        return new OrderedIdentityRepository( repository, target( username, hostname, port ) );
+    }
+
+    private class OrderedIdentityRepository implements IdentityRepository {
+        private final IdentityRepository repository;
+        private final String target;
+
+        private OrderedIdentityRepository( IdentityRepository repository, String target ) {
+            this.repository = repository;
+            this.target = target;
+        }
+
+        @Override
+        public boolean add( byte[] identity ) {
+            return repository.add( identity );
+        }
+
+        @Override
+        @SuppressWarnings( { "rawtypes", "unchecked" } )
+        public Vector getIdentities() {
+            Vector identities = repository.getIdentities();
+            String fingerprint;
+            synchronized ( preferred ) {
+                fingerprint = preferred.get( target );
+            }
+
+            Vector ordered = new Vector( identities.size() );
+            for ( Object identity : identities ) {
+                RecordingIdentity recording = new RecordingIdentity( (Identity) identity, target );
+                byte[] blob = recording.getPublicKeyBlob();
+                if ( fingerprint != null && blob != null && fingerprint.equals( fingerprint( blob ) ) ) {
+                    if ( !ordered.isEmpty() ) {
+                        logger.trace( "offering remembered identity first for {}", target );
+                    }
+                    hitCount.incrementAndGet();
+                    ordered.add( 0, recording );
+                    fingerprint = null;
+                }
+                else {
+                    ordered.add( recording );
+                }
+            }
+            return ordered;
+        }
+
+        @Override
+        public String getName() {
+            return repository.getName();
+        }
+
+        @Override
+        public int getStatus() {
+            return repository.getStatus();
+        }
+
+        @Override
+        public boolean remove( byte[] blob ) {
+            return repository.remove( blob );
+        }
+
+        @Override
+        public void removeAll() {
+            repository.removeAll();
+        }
+    }
+
+    private class RecordingIdentity implements Identity {
+        private final Identity identity;
+        private final String target;
+
+        private RecordingIdentity( Identity identity, String target ) {
+            this.identity = identity;
+            this.target = target;
+        }
+
+        @Override
+        public void clear() {
+            identity.clear();
+        }
+
+        @Override
+        @SuppressWarnings( "deprecation" )
+        public boolean decrypt() {
+            return identity.decrypt();
+        }
+
+        @Override
+        public String getAlgName() {
+            return identity.getAlgName();
+        }
+
+        @Override
+        public String getName() {
+            return identity.getName();
+        }
+
+        @Override
+        public byte[] getPublicKeyBlob() {
+            return identity.getPublicKeyBlob();
+        }
+
+        @Override
+        public byte[] getSignature( byte[] data ) {
+            byte[] signature = identity.getSignature( data );
+            if ( signature != null ) {
+                record( target, identity.getPublicKeyBlob() );
+            }
+            return signature;
+        }
+
+        @Override
+        public boolean isEncrypted() {
+            return identity.isEncrypted();
+        }
+
+        @Override
+        public boolean setPassphrase( byte[] passphrase ) throws JSchException {
+            return identity.setPassphrase( passphrase );
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.pastdev.jsch;
+
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+import com.jcraft.jsch.Compression;
+
+
+/**
+ * A JSch {@link Compression} backed by the native zlib of the JDK's
+ * {@link Deflater} and {@link Inflater}, rather than the pure Java JZlib port
+ * JSch uses by default. It is registered for both <code>zlib</code> and
+ * <code>zlib@openssh.com</code>, and JSch itself delays the latter until the
+ * session is authenticated. The level is taken from the
+ * <code>compression_level</code> configuration, 6 by default. The sizes of the
+ * packets it passes are recorded for {@link AdaptiveCompression}.
+ * <p>
+ * Each instance holds native zlib memory outside the Java heap, about 256KB
+ * for a deflater at the default window and memory level, which the JDK does
+ * not allow to be lowered, and about 40KB for an inflater. JSch 0.1.54 has no
+ * hook to release it: it creates a new instance for every key exchange and
+ * drops the last, whose native memory is then only freed once it is garbage
+ * collected. {@link #init(int, int)} ends any native instance it replaces,
+ * and {@link #end()} releases it early. The Java buffer starts at 4KB and
+ * only grows to the largest packet seen.
+ * </p>
+ * <p>
+ * {@link DefaultSessionFactory} registers it for every session it creates,
+ * unless its configuration maps the methods to another class, so enabling
+ * compression only requires:
+ * </p>
+ * 
+ * <pre>
+ * sessionFactory.setConfig( &quot;compression.s2c&quot;, &quot;zlib@openssh.com,zlib,none&quot; );
+ * sessionFactory.setConfig( &quot;compression.c2s&quot;, &quot;zlib@openssh.com,zlib,none&quot; );
+ * sessionFactory.setConfig( &quot;compression_level&quot;, &quot;1&quot; );
+ * </pre>
+ */
+public class JdkCompression implements Compression {
+    private static Logger logger = LoggerFactory.getLogger( JdkCompression.class );
+    private static final int BUFFER_SIZE = 4096;
+    // room left after the payload for padding and the MAC, as JSch does
+    private static final int BUFFER_MARGIN = 32 + 20;
+
+    /**
+     * The compression methods this class implements.
+     */
+    public static final String[] METHODS = { "zlib", "zlib@openssh.com" };
+
+    private Deflater deflater;
+    private Inflater inflater;
+    private byte[] output = new byte[BUFFER_SIZE];
+
+    @Override
+    public byte[] compress( byte[] buffer, int start, int[] length ) {
+        deflater.setInput( buffer, start, length[0] - start );
+        int end = 0;
+        while ( true ) {
+            end += deflater.deflate( output, end, output.length - end, Deflater.SYNC_FLUSH );
+            if ( end < output.length ) {
+                break;
+            }
+            output = grow( output, output.length * 2 );
+        }
+
+        if ( buffer.length < start + end + BUFFER_MARGIN ) {
+            buffer = grow( buffer, (start + end + BUFFER_MARGIN) * 2, start );
+        }
+        System.arraycopy( output, 0, buffer, start, end );
+        AdaptiveCompression.sample( length[0] - start, end );
+        length[0] = start + end;
+        return buffer;
+    }
+
+    private static byte[] grow( byte[] buffer, int size ) {
+        return grow( buffer, size, buffer.length );
+    }
+
+    private static byte[] grow( byte[] buffer, int size, int keep ) {
+        byte[] grown = new byte[size];
+        System.arraycopy( buffer, 0, grown, 0, keep );
+        return grown;
+    }
+
+    /**
+     * Releases the native zlib memory. The instance may not be used again
+     * until {@link #init(int, int)} is called.
+     */
+    public void end() {
+        if ( deflater != null ) {
+            deflater.end();
+            deflater = null;
+        }
+        if ( inflater != null ) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+
+    @Override
+    public void init( int type, int level ) {
+        end();
+        if ( type == DEFLATER ) {
+            deflater = new Deflater( level );
+        }
+        else if ( type == INFLATER ) {
+            inflater = new Inflater();
+        }
+    }
+
+    @Override
+    public byte[] uncompress( byte[] buffer, int start, int[] length ) {
+        inflater.setInput( buffer, start, length[0] );
+        int end = 0;
+        try {
+            while ( true ) {
+                end += inflater.inflate( output, end, output.length - end );
+                if ( end < output.length ) {
+                    break;
+                }
+                output = grow( output, output.length * 2 );
+            }
+        }
+        catch ( DataFormatException e ) {
+            logger.error( "uncompress failed: {}", e.getMessage() );
+            return null;
+        }
+
+        if ( buffer.length < start + end ) {
+            buffer = grow( buffer, start + end, start );
+        }
+        System.arraycopy( output, 0, buffer, start, end );
+        AdaptiveCompression.sample( end, length[0] );
+        length[0] = end;
+        return buffer;
+    }
+}
@@ -0,0 +1,477 @@
+package com.pastdev.jsch;
+
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.ECFieldFp;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.EllipticCurve;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.interfaces.DHPublicKey;
+import javax.crypto.spec.DHParameterSpec;
+import javax.crypto.spec.DHPublicKeySpec;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+
+/**
+ * Generates the ephemeral key pairs of key exchanges on a background thread,
+ * ahead of the connects that need them, so that a burst of new sessions does
+ * not generate them on the critical path of <code>session.connect()</code>.
+ * Each key pair is taken out of the pool by the key exchange that uses it, so
+ * is never used twice, and the pool is refilled behind it. When the pool for
+ * an algorithm is empty, the key exchange generates its key pair itself, as it
+ * would without the pool.
+ * <p>
+ * Sessions from a {@link DefaultSessionFactory} with
+ * {@link DefaultSessionFactory#setPrecomputeKeyExchange(boolean) precomputed
+ * key exchange} use pooled versions of the JSch Diffie-Hellman and ECDH
+ * primitives, and of {@link Curve25519KeyExchange}. JSch creates those from
+ * class names alone, so they all take from the {@link #getDefault() default}
+ * pool. The first key exchange each session proposes, the one most servers
+ * pick, is kept stocked from then on. Any other is stocked once a key exchange
+ * has used it, which for <code>diffie-hellman-group-exchange</code> only helps
+ * servers that always send the same group.
+ * </p>
+ * 
+ * <pre>
+ * KeyExchangePool.getDefault().setSize( 16 );
+ * sessionFactory.setPrecomputeKeyExchange( true );
+ * </pre>
+ */
+public class KeyExchangePool {
+    private static Logger logger = LoggerFactory.getLogger( KeyExchangePool.class );
+    public static final int DEFAULT_SIZE = 8;
+    // bounds the groups a server can make the pool generate keys for
+    private static final int MAX_STOCKS = 16;
+    private static final String X25519 = "X25519";
+
+    private static volatile KeyExchangePool defaultPool = new KeyExchangePool();
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong generatedCount = new AtomicLong();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private volatile int size;
+    private final ConcurrentMap<String, Stock> stocks = new ConcurrentHashMap<String, Stock>();
+
+    /**
+     * Creates a pool that keeps {@link #DEFAULT_SIZE} key pairs ready for each
+     * key exchange it stocks.
+     */
+    public KeyExchangePool() {
+        this( DEFAULT_SIZE );
+    }
+
+    /**
+     * Creates a pool that keeps <code>size</code> key pairs ready for each key
+     * exchange it stocks. Its background thread is started when first needed,
+     * and stops when it has been idle for a while.
+     * 
+     * @param size
+     *            The number of key pairs to keep per key exchange
+     */
+    public KeyExchangePool( int size ) {
+        this.size = size;
+        final AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor( 1, 1, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread( Runnable runnable ) {
+                        Thread thread = new Thread( runnable, "KeyExchangePool-" + count.incrementAndGet() );
+                        thread.setDaemon( true );
+                        return thread;
+                    }
+                } );
+        executor.allowCoreThreadTimeOut( true );
+    }
+
+    /**
+     * Returns the pool the pooled key exchange primitives take from.
+     * 
+     * @return The default pool
+     */
+    public static KeyExchangePool getDefault() {
+        return defaultPool;
+    }
+
+    /**
+     * Replaces the pool the pooled key exchange primitives take from.
+     * 
+     * @param pool
+     *            The new default pool
+     */
+    public static void setDefault( KeyExchangePool pool ) {
+        defaultPool = pool;
+    }
+
+    private static String curve( int size ) throws JSchException {
+        switch ( size ) {
+            case 256:
+                return "secp256r1";
+            case 384:
+                return "secp384r1";
+            case 521:
+                return "secp521r1";
+            default:
+                throw new JSchException( "unsupported key size: " + size );
+        }
+    }
+
+    private static KeyPair generate( String algorithm, AlgorithmParameterSpec spec ) throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance( algorithm );
+        if ( spec != null ) {
+            generator.initialize( spec );
+        }
+        return generator.generateKeyPair();
+    }
+
+    private static void register( Session session, Map<String, String> config, String key, Class<?> type ) {
+        if ( config == null || !config.containsKey( key ) ) {
+            session.setConfig( key, type.getName() );
+        }
+    }
+
+    private static byte[] unsigned( BigInteger value, int length ) {
+        byte[] bytes = value.toByteArray();
+        byte[] fixed = new byte[length];
+        int copy = Math.min( bytes.length, length );
+        System.arraycopy( bytes, bytes.length - copy, fixed, length - copy, copy );
+        return fixed;
+    }
+
+    /**
+     * Registers the pooled key exchange primitives on <code>session</code>,
+     * except those <code>config</code>, the configuration the session was
+     * created with, maps to other classes, and starts stocking the first key
+     * exchange it proposes.
+     * 
+     * @param session
+     *            The session, not yet connected
+     * @param config
+     *            The explicit configuration of the session, may be null
+     */
+    public void apply( Session session, Map<String, String> config ) {
+        register( session, config, "dh", Dh.class );
+        register( session, config, "ecdh-sha2-nistp", Ecdh.class );
+        for ( String method : Curve25519KeyExchange.METHODS ) {
+            if ( Curve25519KeyExchange.class.getName().equals( session.getConfig( method ) ) ) {
+                session.setConfig( method, Curve25519.class.getName() );
+            }
+        }
+
+        String first = session.getConfig( "kex" ).split( "," )[0].trim();
+        try {
+            if ( first.startsWith( "curve25519-sha256" ) ) {
+                refill( stock( X25519, X25519, null ) );
+            }
+            else if ( first.startsWith( "ecdh-sha2-nistp" ) ) {
+                String curve = curve( Integer.parseInt( first.substring( "ecdh-sha2-nistp".length() ) ) );
+                refill( stock( curve, "EC", new ECGenParameterSpec( curve ) ) );
+            }
+        }
+        catch ( JSchException e ) {
+            logger.debug( "not stocking {}: {}", first, e.getMessage() );
+        }
+        catch ( NumberFormatException e ) {
+            logger.debug( "not stocking {}: {}", first, e.getMessage() );
+        }
+    }
+
+    /**
+     * Discards every pooled key pair.
+     */
+    public void clear() {
+        for ( Stock stock : stocks.values() ) {
+            stock.keyPairs.clear();
+        }
+    }
+
+    /**
+     * Returns the number of key pairs ready in the pool.
+     * 
+     * @return The number of key pairs
+     */
+    public int getAvailableCount() {
+        int available = 0;
+        for ( Stock stock : stocks.values() ) {
+            available += stock.keyPairs.size();
+        }
+        return available;
+    }
+
+    /**
+     * Returns the number of key pairs generated in the background.
+     * 
+     * @return The number of key pairs generated
+     */
+    public long getGeneratedCount() {
+        return generatedCount.get();
+    }
+
+    /**
+     * Returns the number of key exchanges that took a key pair from the pool.
+     * 
+     * @return The hit count
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Returns the number of key exchanges that found the pool empty, and
+     * generated their own key pair.
+     * 
+     * @return The miss count
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    private void refill( final Stock stock ) {
+        if ( stock == null || stock.keyPairs.size() >= size || !stock.refilling.compareAndSet( false, true ) ) {
+            return;
+        }
+        executor.execute( new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while ( stock.keyPairs.size() < size ) {
+                        stock.keyPairs.offer( generate( stock.algorithm, stock.spec ) );
+                        generatedCount.incrementAndGet();
+                    }
+                }
+                catch ( GeneralSecurityException e ) {
+                    logger.warn( "unable to generate {} key pairs: {}", stock.name, e.toString() );
+                }
+                catch ( RuntimeException e ) {
+                    logger.error( "generating {} key pairs failed unexpectedly: {}", stock.name, e );
+                }
+                finally {
+                    stock.refilling.set( false );
+                }
+            }
+        } );
+    }
+
+    /**
+     * Sets the number of key pairs to keep ready for each key exchange.
+     * 
+     * @param size
+     *            The number of key pairs
+     */
+    public void setSize( int size ) {
+        this.size = size;
+    }
+
+    private Stock stock( String name, String algorithm, AlgorithmParameterSpec spec ) {
+        Stock stock = stocks.get( name );
+        if ( stock == null && stocks.size() < MAX_STOCKS ) {
+            Stock created = new Stock( name, algorithm, spec );
+            stock = stocks.putIfAbsent( name, created );
+            if ( stock == null ) {
+                stock = created;
+            }
+        }
+        return stock;
+    }
+
+    /**
+     * Removes a key pair from the pool, or generates one if the pool has none
+     * ready, and refills the pool in the background.
+     */
+    KeyPair take( String name, String algorithm, AlgorithmParameterSpec spec ) throws GeneralSecurityException {
+        Stock stock = stock( name, algorithm, spec );
+        KeyPair keyPair = stock == null ? null : stock.keyPairs.poll();
+        if ( keyPair == null ) {
+            missCount.incrementAndGet();
+            keyPair = generate( algorithm, spec );
+        }
+        else {
+            hitCount.incrementAndGet();
+        }
+        refill( stock );
+        return keyPair;
+    }
+
+    @Override
+    public String toString() {
+        return "KeyExchangePool(size=" + size + ", available=" + getAvailableCount()
+                + ", hits=" + hitCount + ", misses=" + missCount + ")";
+    }
+
+    /**
+     * The key pairs ready for one key exchange algorithm and its parameters.
+     */
+    private static class Stock {
+        private final String algorithm;
+        private final Queue<KeyPair> keyPairs = new ConcurrentLinkedQueue<KeyPair>();
+        private final String name;
+        private final AtomicBoolean refilling = new AtomicBoolean();
+        private final AlgorithmParameterSpec spec;
+
+        private Stock( String name, String algorithm, AlgorithmParameterSpec spec ) {
+            this.name = name;
+            this.algorithm = algorithm;
+            this.spec = spec;
+        }
+    }
+
+    /**
+     * {@link Curve25519KeyExchange} taking its key pairs from the default
+     * pool.
+     */
+    public static class Curve25519 extends Curve25519KeyExchange {
+        @Override
+        protected KeyPair generateKeyPair() throws GeneralSecurityException {
+            return getDefault().take( X25519, X25519, null );
+        }
+    }
+
+    /**
+     * The JSch Diffie-Hellman primitive, taking its key pairs from the default
+     * pool. Pools are kept per group.
+     */
+    public static class Dh implements com.jcraft.jsch.DH {
+        private KeyAgreement agreement;
+        private byte[] e;
+        private BigInteger f;
+        private BigInteger g;
+        private BigInteger p;
+
+        @Override
+        public void checkRange() throws Exception {
+            if ( f.compareTo( BigInteger.ONE ) <= 0 || f.compareTo( p.subtract( BigInteger.ONE ) ) >= 0 ) {
+                throw new JSchException( "invalid DH value" );
+            }
+        }
+
+        @Override
+        public byte[] getE() throws Exception {
+            if ( e == null ) {
+                KeyPair keyPair = getDefault().take( "DH/" + g.toString( 16 ) + "/" + p.toString( 16 ),
+                        "DH", new DHParameterSpec( p, g ) );
+                agreement = KeyAgreement.getInstance( "DH" );
+                agreement.init( keyPair.getPrivate() );
+                e = ((DHPublicKey) keyPair.getPublic()).getY().toByteArray();
+            }
+            return e;
+        }
+
+        @Override
+        public byte[] getK() throws Exception {
+            agreement.doPhase( KeyFactory.getInstance( "DH" )
+                    .generatePublic( new DHPublicKeySpec( f, p, g ) ), true );
+            return agreement.generateSecret();
+        }
+
+        @Override
+        public void init() throws Exception {
+        }
+
+        @Override
+        public void setF( byte[] f ) {
+            this.f = new BigInteger( 1, f );
+        }
+
+        @Override
+        public void setG( byte[] g ) {
+            this.g = new BigInteger( 1, g );
+        }
+
+        @Override
+        public void setP( byte[] p ) {
+            this.p = new BigInteger( 1, p );
+        }
+    }
+
+    /**
+     * The JSch ECDH primitive for the NIST curves, taking its key pairs from
+     * the default pool.
+     */
+    public static class Ecdh implements com.jcraft.jsch.ECDH {
+        private static final BigInteger THREE = BigInteger.valueOf( 3 );
+        private static final BigInteger TWO = BigInteger.valueOf( 2 );
+
+        private KeyAgreement agreement;
+        private ECParameterSpec params;
+        private byte[] q;
+
+        @Override
+        public byte[] getQ() throws Exception {
+            return q;
+        }
+
+        @Override
+        public byte[] getSecret( byte[] r, byte[] s ) throws Exception {
+            ECPoint w = new ECPoint( new BigInteger( 1, r ), new BigInteger( 1, s ) );
+            agreement.doPhase( KeyFactory.getInstance( "EC" )
+                    .generatePublic( new ECPublicKeySpec( w, params ) ), true );
+            return agreement.generateSecret();
+        }
+
+        @Override
+        public void init( int size ) throws Exception {
+            String curve = curve( size );
+            KeyPair keyPair = getDefault().take( curve, "EC", new ECGenParameterSpec( curve ) );
+            ECPublicKey publicKey = (ECPublicKey) keyPair.getPublic();
+            params = publicKey.getParams();
+
+            // the uncompressed point of SEC 1, 2.3.3
+            int length = (size + 7) / 8;
+            q = new byte[1 + 2 * length];
+            q[0] = 0x04;
+            System.arraycopy( unsigned( publicKey.getW().getAffineX(), length ), 0, q, 1, length );
+            System.arraycopy( unsigned( publicKey.getW().getAffineY(), length ), 0, q, 1 + length, length );
+
+            agreement = KeyAgreement.getInstance( "ECDH" );
+            agreement.init( keyPair.getPrivate() );
+        }
+
+        @Override
+        public boolean validate( byte[] r, byte[] s ) throws Exception {
+            // the checks of JSch's own implementation, RFC 5656 4
+            BigInteger x = new BigInteger( 1, r );
+            BigInteger y = new BigInteger( 1, s );
+            if ( new ECPoint( x, y ).equals( ECPoint.POINT_INFINITY ) ) {
+                return false;
+            }
+            EllipticCurve curve = params.getCurve();
+            BigInteger p = ((ECFieldFp) curve.getField()).getP();
+            BigInteger max = p.subtract( BigInteger.ONE );
+            if ( x.compareTo( max ) > 0 || y.compareTo( max ) > 0 ) {
+                return false;
+            }
+            BigInteger right = x.multiply( curve.getA() ).add( curve.getB() ).add( x.modPow( THREE, p ) ).mod( p );
+            return y.modPow( TWO, p ).equals( right );
+        }
+    }
+}
@@ -0,0 +1,879 @@
+package com.pastdev.jsch;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+import com.jcraft.jsch.HostKey;
+import com.jcraft.jsch.HostKeyRepository;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.UserInfo;
+
+
+/**
+ * A {@link HostKeyRepository} backed by a known_hosts file that is parsed once
+ * per process and shared by every session factory using that file. The parsed
+ * entries are an immutable snapshot which is replaced when the file's
+ * modification time or length changes. A file that has only been appended
+ * to, as it is when new hosts are accepted, is reloaded by parsing just the
+ * appended lines, which is detected by a checksum of the previously parsed
+ * content.
+ * <p>
+ * Hashed (<code>|1|salt|hash</code>) entries, comma separated host lists and
+ * <code>[host]:port</code> entries are matched as they are by
+ * <code>com.jcraft.jsch.KnownHosts</code>, but through an index rather than by
+ * trying every entry, so verifying a host key does not slow down as the file
+ * grows. Host keys added by a session are appended to the file. Their host
+ * names are hashed only if they are added through the {@link #hashing()}
+ * view, which {@link DefaultSessionFactory} sets on sessions configured with
+ * <code>HashKnownHosts=yes</code>, so that one factory's setting does not
+ * change how the others sharing the file write it.
+ * </p>
+ * 
+ * <pre>
+ * jsch.setHostKeyRepository( KnownHostsRepository.forFile( &quot;~/.ssh/known_hosts&quot; ) );
+ * </pre>
+ * 
+ * @see DefaultSessionFactory#setKnownHosts(String)
+ */
+public class KnownHostsRepository implements HostKeyRepository {
+    private static Logger logger = LoggerFactory.getLogger( KnownHostsRepository.class );
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final String HASH_MAGIC = "|1|";
+    // the block size of HmacSHA1, as used by OpenSSH and JSch
+    private static final int SALT_LENGTH = 20;
+    private static final String[] KEY_TYPES = {
+            "ssh-dss", "ssh-rsa", "ecdsa-sha2-nistp256", "ecdsa-sha2-nistp384", "ecdsa-sha2-nistp521" };
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+    private static final Map<String, KnownHostsRepository> repositories = new HashMap<String, KnownHostsRepository>();
+    private static final SecureRandom random = new SecureRandom();
+
+    private final File file;
+    private long fullLoadCount;
+    private final HostKeyRepository hashing = new Hashing();
+    private long incrementalLoadCount;
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+
+    private KnownHostsRepository( File file ) {
+        this.file = file;
+    }
+
+    /**
+     * Returns the repository shared by all callers for the known_hosts file at
+     * <code>path</code>. A leading <code>~</code> is replaced with the user's
+     * home directory. The file need not exist yet.
+     * 
+     * @param path
+     *            The path to a known_hosts file
+     * @return The shared repository
+     */
+    public static KnownHostsRepository forFile( String path ) {
+        if ( path.startsWith( "~" ) ) {
+            path = System.getProperty( "user.home" ) + path.substring( 1 );
+        }
+        File file = new File( path ).getAbsoluteFile();
+        synchronized ( repositories ) {
+            KnownHostsRepository repository = repositories.get( file.getPath() );
+            if ( repository == null ) {
+                repository = new KnownHostsRepository( file );
+                repositories.put( file.getPath(), repository );
+            }
+            return repository;
+        }
+    }
+
+    @Override
+    public void add( HostKey hostkey, UserInfo userinfo ) {
+        add( hostkey, userinfo, false );
+    }
+
+    private void add( HostKey hostkey, UserInfo userinfo, boolean hash ) {
+        synchronized ( this ) {
+            refresh();
+            List<String> lines = new ArrayList<String>();
+            List<Entry> entries = new ArrayList<Entry>();
+            for ( String host : hash ? hostkey.getHost().split( "," ) : new String[] { hostkey.getHost() } ) {
+                String line = line( hostkey, hash ? hash( host ) : host );
+                try {
+                    Entry entry = Entry.parse( line );
+                    if ( entry != null ) {
+                        lines.add( line );
+                        entries.add( entry );
+                    }
+                }
+                catch ( IllegalArgumentException e ) {
+                    logger.warn( "unable to add host key for {}: {}", hostkey.getHost(), e.getMessage() );
+                    return;
+                }
+            }
+            if ( entries.isEmpty() ) {
+                return;
+            }
+
+            if ( (file.exists() || confirmCreate( userinfo )) && append( lines ) ) {
+                refresh();
+            }
+            else {
+                logger.debug( "keeping host key for {} in memory only", hostkey.getHost() );
+                snapshot = snapshot.with( entries );
+            }
+        }
+    }
+
+    private boolean append( List<String> lines ) {
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream( file, true );
+            if ( snapshot.lineEnd < snapshot.length ) {
+                out.write( '\n' );
+            }
+            for ( String line : lines ) {
+                out.write( (line + "\n").getBytes( UTF8 ) );
+            }
+            return true;
+        }
+        catch ( IOException e ) {
+            logger.warn( "unable to write {}: {}", file, e.getMessage() );
+            return false;
+        }
+        finally {
+            IOUtils.closeAndLogException( out );
+        }
+    }
+
+    @Override
+    public int check( String host, byte[] key ) {
+        if ( host == null ) {
+            return NOT_INCLUDED;
+        }
+        refresh();
+        int result = snapshot.check( host, key );
+        if ( result == NOT_INCLUDED && host.startsWith( "[" ) && host.indexOf( "]:" ) > 1 ) {
+            return check( host.substring( 1, host.indexOf( "]:" ) ), key );
+        }
+        return result;
+    }
+
+    private boolean confirmCreate( UserInfo userinfo ) {
+        if ( userinfo == null || !userinfo.promptYesNo( file
+                + " does not exist.\nAre you sure you want to create it?" ) ) {
+            return false;
+        }
+        File parent = file.getParentFile();
+        if ( parent != null && !parent.exists() ) {
+            if ( !userinfo.promptYesNo( "The parent directory " + parent
+                    + " does not exist.\nAre you sure you want to create it?" ) ) {
+                return false;
+            }
+            if ( !parent.mkdirs() ) {
+                userinfo.showMessage( parent + " has not been created." );
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long checksum( byte[] bytes, int length ) {
+        CRC32 crc = new CRC32();
+        crc.update( bytes, 0, length );
+        return crc.getValue();
+    }
+
+    private static String encodeBase64( byte[] bytes ) {
+        StringBuilder out = new StringBuilder( (bytes.length + 2) / 3 * 4 );
+        for ( int i = 0; i < bytes.length; i += 3 ) {
+            int remaining = Math.min( 3, bytes.length - i );
+            int buffer = (bytes[i] & 0xff) << 16;
+            if ( remaining > 1 ) {
+                buffer |= (bytes[i + 1] & 0xff) << 8;
+            }
+            if ( remaining > 2 ) {
+                buffer |= bytes[i + 2] & 0xff;
+            }
+            for ( int j = 0; j < 4; j++ ) {
+                out.append( j <= remaining ? BASE64[(buffer >> (18 - 6 * j)) & 0x3f] : '=' );
+            }
+        }
+        return out.toString();
+    }
+
+    static byte[] decodeBase64( String value ) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream( value.length() * 3 / 4 );
+        int buffer = 0;
+        int bits = 0;
+        for ( int i = 0; i < value.length(); i++ ) {
+            char c = value.charAt( i );
+            int digit;
+            if ( c >= 'A' && c <= 'Z' ) {
+                digit = c - 'A';
+            }
+            else if ( c >= 'a' && c <= 'z' ) {
+                digit = c - 'a' + 26;
+            }
+            else if ( c >= '0' && c <= '9' ) {
+                digit = c - '0' + 52;
+            }
+            else if ( c == '+' ) {
+                digit = 62;
+            }
+            else if ( c == '/' ) {
+                digit = 63;
+            }
+            else if ( c == '=' ) {
+                break;
+            }
+            else {
+                throw new IllegalArgumentException( "invalid base64: " + value );
+            }
+            buffer = (buffer << 6) | digit;
+            bits += 6;
+            if ( bits >= 8 ) {
+                bits -= 8;
+                out.write( (buffer >> bits) & 0xff );
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns the number of times the whole file was parsed.
+     * 
+     * @return The full load count
+     */
+    public synchronized long getFullLoadCount() {
+        return fullLoadCount;
+    }
+
+    @Override
+    public HostKey[] getHostKey() {
+        return getHostKey( null, null );
+    }
+
+    @Override
+    public HostKey[] getHostKey( String host, String type ) {
+        refresh();
+        List<HostKey> hostKeys = new ArrayList<HostKey>();
+        for ( Entry entry : host == null ? snapshot.entries : snapshot.lookup( host ) ) {
+            if ( type == null || entry.type.equals( type ) ) {
+                try {
+                    hostKeys.add( entry.toHostKey() );
+                }
+                catch ( JSchException e ) {
+                    logger.debug( "skipping invalid host key for {}: {}", entry.hosts, e.getMessage() );
+                }
+            }
+        }
+        if ( host != null && host.startsWith( "[" ) && host.indexOf( "]:" ) > 1 ) {
+            hostKeys.addAll( Arrays.asList( getHostKey( host.substring( 1, host.indexOf( "]:" ) ), type ) ) );
+        }
+        return hostKeys.toArray( new HostKey[hostKeys.size()] );
+    }
+
+    /**
+     * Returns the number of times only lines appended to the file were parsed.
+     * 
+     * @return The incremental load count
+     */
+    public synchronized long getIncrementalLoadCount() {
+        return incrementalLoadCount;
+    }
+
+    @Override
+    public String getKnownHostsRepositoryID() {
+        return file.getPath();
+    }
+
+    /**
+     * Returns the number of host keys currently loaded.
+     * 
+     * @return The number of entries
+     */
+    public int size() {
+        refresh();
+        return snapshot.entries.size();
+    }
+
+    /**
+     * Returns a view of this repository that hashes the host names of the
+     * host keys added through it, as OpenSSH does with
+     * <code>HashKnownHosts yes</code>. Everything else is done by, and shared
+     * with, this repository.
+     * 
+     * <pre>
+     * session.setHostKeyRepository( KnownHostsRepository.forFile( path ).hashing() );
+     * </pre>
+     * 
+     * @return The hashing view
+     */
+    public HostKeyRepository hashing() {
+        return hashing;
+    }
+
+    /**
+     * Returns <code>host</code> hashed as it is by OpenSSH's
+     * <code>HashKnownHosts</code>, with a new random salt.
+     */
+    static String hash( String host ) {
+        byte[] salt = new byte[SALT_LENGTH];
+        synchronized ( random ) {
+            random.nextBytes( salt );
+        }
+        return HASH_MAGIC + encodeBase64( salt ) + "|" + encodeBase64( hmacSha1( salt, host ) );
+    }
+
+    private static String line( HostKey hostkey, String hosts ) {
+        StringBuilder line = new StringBuilder();
+        if ( hostkey.getMarker() != null && !hostkey.getMarker().isEmpty() ) {
+            line.append( hostkey.getMarker() ).append( " " );
+        }
+        line.append( hosts ).append( " " ).append( hostkey.getType() )
+                .append( " " ).append( hostkey.getKey() );
+        if ( hostkey.getComment() != null ) {
+            line.append( " " ).append( hostkey.getComment() );
+        }
+        return line.toString();
+    }
+
+    /**
+     * Reloads the file if it has changed since it was last read.
+     */
+    private synchronized void refresh() {
+        long lastModified = file.lastModified();
+        long length = file.length();
+        Snapshot current = snapshot;
+        if ( current.loaded && lastModified == current.lastModified && length == current.length ) {
+            return;
+        }
+        if ( lastModified == 0 ) {
+            // missing, keep any keys added in memory
+            if ( current.length != 0 ) {
+                snapshot = Snapshot.EMPTY.loaded();
+            }
+            else if ( !current.loaded ) {
+                snapshot = current.loaded();
+            }
+            return;
+        }
+
+        InputStream in = null;
+        try {
+            in = new FileInputStream( file );
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream( (int) length );
+            IOUtils.copy( in, buffer );
+            byte[] bytes = buffer.toByteArray();
+            if ( current.length > 0 && bytes.length > current.length
+                    && checksum( bytes, current.lineEnd ) == current.checksum ) {
+                logger.debug( "parsing lines appended to {}", file );
+                snapshot = current.append( bytes, lastModified );
+                incrementalLoadCount++;
+            }
+            else {
+                logger.debug( "parsing {}", file );
+                snapshot = Snapshot.EMPTY.append( bytes, lastModified );
+                fullLoadCount++;
+            }
+        }
+        catch ( IOException e ) {
+            logger.warn( "unable to read {}, keeping previous host keys: {}", file, e.getMessage() );
+        }
+        finally {
+            IOUtils.closeAndLogException( in );
+        }
+    }
+
+    @Override
+    public void remove( String host, String type ) {
+        remove( host, type, null );
+    }
+
+    @Override
+    public synchronized void remove( String host, String type, byte[] key ) {
+        if ( !file.exists() ) {
+            List<Entry> kept = new ArrayList<Entry>();
+            for ( Entry entry : snapshot.entries ) {
+                if ( !entry.removedBy( host, type, key ) ) {
+                    kept.add( entry );
+                }
+            }
+            snapshot = new Snapshot( kept, kept.size(), 0, 0, 0, 0, true );
+            return;
+        }
+
+        try {
+            String contents = IOUtils.readFile( file, UTF8 );
+            StringBuilder rewritten = new StringBuilder();
+            boolean changed = false;
+            for ( String line : contents.split( "\n", -1 ) ) {
+                Entry entry = Entry.parseQuietly( line );
+                if ( entry != null && entry.removedBy( host, type, key ) ) {
+                    changed = true;
+                    if ( entry.hashed || entry.hosts.equals( host ) ) {
+                        continue;
+                    }
+                    line = line.replaceFirst( "\\Q" + entry.hosts + "\\E",
+                            Entry.withoutHost( entry.hosts, host ) );
+                }
+                rewritten.append( line ).append( "\n" );
+            }
+            if ( changed ) {
+                // split leaves a trailing empty line for a terminated file
+                rewritten.setLength( rewritten.length() - 1 );
+                IOUtils.writeFile( file, rewritten.toString(), UTF8 );
+                snapshot = Snapshot.EMPTY;
+                refresh();
+            }
+        }
+        catch ( IOException e ) {
+            logger.warn( "unable to remove host key for {} from {}: {}", host, file, e.getMessage() );
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "KnownHosts(" + file + ")";
+    }
+
+    /**
+     * The repository, adding host keys with hashed host names.
+     */
+    private class Hashing implements HostKeyRepository {
+        @Override
+        public void add( HostKey hostkey, UserInfo userinfo ) {
+            KnownHostsRepository.this.add( hostkey, userinfo, true );
+        }
+
+        @Override
+        public int check( String host, byte[] key ) {
+            return KnownHostsRepository.this.check( host, key );
+        }
+
+        @Override
+        public HostKey[] getHostKey() {
+            return KnownHostsRepository.this.getHostKey();
+        }
+
+        @Override
+        public HostKey[] getHostKey( String host, String type ) {
+            return KnownHostsRepository.this.getHostKey( host, type );
+        }
+
+        @Override
+        public String getKnownHostsRepositoryID() {
+            return KnownHostsRepository.this.getKnownHostsRepositoryID();
+        }
+
+        @Override
+        public void remove( String host, String type ) {
+            KnownHostsRepository.this.remove( host, type );
+        }
+
+        @Override
+        public void remove( String host, String type, byte[] key ) {
+            KnownHostsRepository.this.remove( host, type, key );
+        }
+
+        @Override
+        public String toString() {
+            return "Hashing" + KnownHostsRepository.this;
+        }
+    }
+
+    /**
+     * A single parsed host key line.
+     */
+    static class Entry {
+        private final String comment;
+        private final byte[] hash;
+        private final boolean hashed;
+        private final String hosts;
+        private final byte[] key;
+        private final String marker;
+        private final byte[] salt;
+        private final String type;
+
+        private Entry( String marker, String hosts, String type, byte[] key, String comment ) {
+            this.marker = marker;
+            this.hosts = hosts;
+            this.type = type;
+            this.key = key;
+            this.comment = comment;
+
+            String[] parts = hosts.startsWith( HASH_MAGIC ) ? hosts.substring( HASH_MAGIC.length() ).split( "\\|" ) : null;
+            if ( parts != null && parts.length == 2 ) {
+                this.hashed = true;
+                this.salt = decodeBase64( parts[0] );
+                this.hash = decodeBase64( parts[1] );
+            }
+            else {
+                this.hashed = false;
+                this.salt = null;
+                this.hash = null;
+            }
+        }
+
+        /**
+         * Returns the entry on <code>line</code>, or null if it is blank, a
+         * comment or not a supported key type.
+         */
+        static Entry parse( String line ) {
+            String rest = line.trim();
+            if ( rest.isEmpty() || rest.startsWith( "#" ) ) {
+                return null;
+            }
+            String marker = "";
+            if ( rest.startsWith( "@" ) ) {
+                String[] split = rest.split( "[ \t]+", 2 );
+                if ( split.length < 2 ) {
+                    return null;
+                }
+                marker = split[0];
+                rest = split[1];
+            }
+            String[] fields = rest.split( "[ \t]+", 4 );
+            if ( fields.length < 3 || !Arrays.asList( KEY_TYPES ).contains( fields[1] ) ) {
+                return null;
+            }
+            return new Entry( marker, fields[0], fields[1], decodeBase64( fields[2] ),
+                    fields.length > 3 ? fields[3] : null );
+        }
+
+        static Entry parseQuietly( String line ) {
+            try {
+                return parse( line );
+            }
+            catch ( IllegalArgumentException e ) {
+                logger.debug( "skipping invalid known_hosts line: {}", e.getMessage() );
+                return null;
+            }
+        }
+
+        boolean matches( String host ) {
+            if ( hashed ) {
+                return Arrays.equals( hash, hmacSha1( salt, host ) );
+            }
+            for ( String candidate : hosts.split( "," ) ) {
+                if ( candidate.equalsIgnoreCase( host ) ) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean removedBy( String host, String type, byte[] key ) {
+            return host == null || (matches( host )
+                    && (type == null || (this.type.equals( type )
+                            && (key == null || Arrays.equals( key, this.key )))));
+        }
+
+        private HostKey toHostKey() throws JSchException {
+            return new HostKey( marker, hosts, Arrays.asList( KEY_TYPES ).indexOf( type ) + 1, key, comment );
+        }
+
+        private static String withoutHost( String hosts, String host ) {
+            StringBuilder remaining = new StringBuilder();
+            for ( String candidate : hosts.split( "," ) ) {
+                if ( !candidate.equalsIgnoreCase( host ) ) {
+                    if ( remaining.length() > 0 ) {
+                        remaining.append( "," );
+                    }
+                    remaining.append( candidate );
+                }
+            }
+            return remaining.toString();
+        }
+    }
+
+    static byte[] hmacSha1( byte[] salt, String host ) {
+        return hmacSha1( newMac(), salt, host.getBytes( UTF8 ) );
+    }
+
+    private static byte[] hmacSha1( Mac mac, byte[] salt, byte[] host ) {
+        try {
+            mac.init( new SecretKeySpec( salt, "HmacSHA1" ) );
+            return mac.doFinal( host );
+        }
+        catch ( GeneralSecurityException e ) {
+            throw new IllegalStateException( "invalid salt", e );
+        }
+    }
+
+    private static Mac newMac() {
+        try {
+            return Mac.getInstance( "HmacSHA1" );
+        }
+        catch ( GeneralSecurityException e ) {
+            throw new IllegalStateException( "HmacSHA1 unavailable", e );
+        }
+    }
+
+    /**
+     * An immutable view of the parsed file, indexed so that a host is looked
+     * up in a constant number of steps. Plain host names are kept in a hash
+     * map. Hashed entries are grouped by salt, which costs one HMAC per
+     * distinct salt, and the result for each host is remembered so the cost
+     * is paid once per host rather than on every connect. Those results are
+     * carried over to the snapshot that replaces this one when lines are
+     * appended, so that only the appended entries are hashed for them.
+     */
+    private static class Snapshot {
+        private static final Snapshot EMPTY = new Snapshot( Collections.<Entry> emptyList(), 0, 0, 0, 0, 0, false );
+        private static final int MAX_REMEMBERED_HOSTS = 1024;
+
+        private final Map<String, List<Entry>> byHost = new HashMap<String, List<Entry>>();
+        private final Map<ByteBuffer, HashedGroup> bySalt = new HashMap<ByteBuffer, HashedGroup>();
+        private final long checksum;
+        private final int completeEntries;
+        private final List<Entry> entries;
+        private final Map<String, List<Entry>> hashedByHost;
+        private final long lastModified;
+        private final long length;
+        private final int lineEnd;
+        private final boolean loaded;
+
+        private Snapshot( List<Entry> entries, int completeEntries, long lastModified, long length, int lineEnd, long checksum, boolean loaded ) {
+            this.entries = Collections.unmodifiableList( entries );
+            this.completeEntries = completeEntries;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.lineEnd = lineEnd;
+            this.checksum = checksum;
+            this.loaded = loaded;
+            this.hashedByHost = new LinkedHashMap<String, List<Entry>>( 16, 0.75f, true ) {
+                private static final long serialVersionUID = -1739481012305376453L;
+
+                @Override
+                protected boolean removeEldestEntry( Map.Entry<String, List<KnownHostsRepository.Entry>> eldest ) {
+                    return size() > MAX_REMEMBERED_HOSTS;
+                }
+            };
+
+            for ( Entry entry : entries ) {
+                if ( entry.hashed ) {
+                    ByteBuffer salt = ByteBuffer.wrap( entry.salt );
+                    HashedGroup group = bySalt.get( salt );
+                    if ( group == null ) {
+                        group = new HashedGroup( entry.salt );
+                        bySalt.put( salt, group );
+                    }
+                    add( group.byHash, ByteBuffer.wrap( entry.hash ), entry );
+                }
+                else {
+                    for ( String host : entry.hosts.split( "," ) ) {
+                        add( byHost, host.toLowerCase( Locale.ENGLISH ), entry );
+                    }
+                }
+            }
+        }
+
+        private static <K> void add( Map<K, List<Entry>> index, K key, Entry entry ) {
+            List<Entry> list = index.get( key );
+            if ( list == null ) {
+                list = new ArrayList<Entry>( 1 );
+                index.put( key, list );
+            }
+            list.add( entry );
+        }
+
+        /**
+         * Returns the entries matching <code>host</code>.
+         */
+        private List<Entry> lookup( String host ) {
+            List<Entry> plain = byHost.get( host.toLowerCase( Locale.ENGLISH ) );
+            List<Entry> hashed = lookupHashed( host );
+            if ( plain == null ) {
+                return hashed;
+            }
+            if ( hashed.isEmpty() ) {
+                return plain;
+            }
+            List<Entry> matches = new ArrayList<Entry>( plain );
+            matches.addAll( hashed );
+            return matches;
+        }
+
+        private List<Entry> lookupHashed( String host ) {
+            if ( bySalt.isEmpty() ) {
+                return Collections.emptyList();
+            }
+            synchronized ( hashedByHost ) {
+                List<Entry> matches = hashedByHost.get( host );
+                if ( matches != null ) {
+                    return matches;
+                }
+            }
+
+            List<Entry> matches = new ArrayList<Entry>();
+            Mac mac = newMac();
+            byte[] bytes = host.getBytes( UTF8 );
+            for ( HashedGroup group : bySalt.values() ) {
+                List<Entry> found = group.byHash.get( ByteBuffer.wrap( hmacSha1( mac, group.salt, bytes ) ) );
+                if ( found != null ) {
+                    matches.addAll( found );
+                }
+            }
+            synchronized ( hashedByHost ) {
+                hashedByHost.put( host, matches );
+            }
+            return matches;
+        }
+
+        /**
+         * Returns a snapshot of the entries in this one that were on complete
+         * lines, plus those on the lines of <code>bytes</code> after
+         * <code>lineEnd</code>.
+         */
+        private Snapshot append( byte[] bytes, long lastModified ) {
+            List<Entry> appended = new ArrayList<Entry>( entries.subList( 0, completeEntries ) );
+            int complete = appended.size();
+            int end = lineEnd;
+            int start = lineEnd;
+            for ( int i = lineEnd; i <= bytes.length; i++ ) {
+                if ( i == bytes.length || bytes[i] == '\n' ) {
+                    Entry entry = Entry.parseQuietly( new String( bytes, start, i - start, UTF8 ) );
+                    if ( entry != null ) {
+                        appended.add( entry );
+                    }
+                    if ( i < bytes.length ) {
+                        complete = appended.size();
+                        end = i + 1;
+                    }
+                    start = i + 1;
+                }
+            }
+            return new Snapshot( appended, complete, lastModified, bytes.length, end,
+                    checksum( bytes, end ), true ).remember( this, completeEntries );
+        }
+
+        private int check( String host, byte[] key ) {
+            String type;
+            try {
+                type = new HostKey( host, key ).getType();
+            }
+            catch ( JSchException e ) {
+                return NOT_INCLUDED;
+            }
+            catch ( RuntimeException e ) {
+                return NOT_INCLUDED;
+            }
+            // a plain entry that verifies the key saves hashing the host
+            int result = check( byHost.get( host.toLowerCase( Locale.ENGLISH ) ), type, key );
+            if ( result == OK ) {
+                return OK;
+            }
+            int hashed = check( lookupHashed( host ), type, key );
+            return hashed == NOT_INCLUDED ? result : hashed;
+        }
+
+        private static int check( List<Entry> matches, String type, byte[] key ) {
+            int result = NOT_INCLUDED;
+            if ( matches != null ) {
+                for ( Entry entry : matches ) {
+                    if ( entry.type.equals( type ) ) {
+                        if ( Arrays.equals( entry.key, key ) ) {
+                            return OK;
+                        }
+                        result = CHANGED;
+                    }
+                }
+            }
+            return result;
+        }
+
+        private Snapshot loaded() {
+            return new Snapshot( entries, completeEntries, lastModified, length, lineEnd, checksum, true )
+                    .remember( this, entries.size() );
+        }
+
+        /**
+         * Carries over the hashed lookups of <code>previous</code>, whose first
+         * <code>kept</code> entries are also the first entries of this
+         * snapshot, checking each remembered host against the entries after
+         * those only.
+         */
+        private Snapshot remember( Snapshot previous, int kept ) {
+            Map<String, List<Entry>> remembered;
+            synchronized ( previous.hashedByHost ) {
+                if ( previous.hashedByHost.isEmpty() ) {
+                    return this;
+                }
+                remembered = new LinkedHashMap<String, List<Entry>>( previous.hashedByHost );
+            }
+            Set<Entry> keptEntries = Collections.newSetFromMap( new IdentityHashMap<Entry, Boolean>() );
+            keptEntries.addAll( previous.entries.subList( 0, kept ) );
+            List<Entry> added = new ArrayList<Entry>();
+            for ( Entry entry : entries.subList( kept, entries.size() ) ) {
+                if ( entry.hashed ) {
+                    added.add( entry );
+                }
+            }
+
+            Mac mac = newMac();
+            synchronized ( hashedByHost ) {
+                for ( Map.Entry<String, List<Entry>> lookup : remembered.entrySet() ) {
+                    List<Entry> matches = new ArrayList<Entry>();
+                    for ( Entry entry : lookup.getValue() ) {
+                        if ( keptEntries.contains( entry ) ) {
+                            matches.add( entry );
+                        }
+                    }
+                    byte[] host = lookup.getKey().getBytes( UTF8 );
+                    for ( Entry entry : added ) {
+                        if ( Arrays.equals( entry.hash, hmacSha1( mac, entry.salt, host ) ) ) {
+                            matches.add( entry );
+                        }
+                    }
+                    hashedByHost.put( lookup.getKey(), matches );
+                }
+            }
+            return this;
+        }
+
+        private Snapshot with( List<Entry> entries ) {
+            List<Entry> added = new ArrayList<Entry>( this.entries );
+            added.addAll( entries );
+            return new Snapshot( added, completeEntries, lastModified, length, lineEnd, checksum, loaded )
+                    .remember( this, this.entries.size() );
+        }
+    }
+
+    /**
+     * The hashed entries sharing a salt, by hash.
+     */
+    private static class HashedGroup {
+        private final Map<ByteBuffer, List<Entry>> byHash = new HashMap<ByteBuffer, List<Entry>>();
+        private final byte[] salt;
+
+        private HashedGroup( byte[] salt ) {
+            this.salt = salt;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.pastdev.jsch;
 
 
+import java.util.HashMap;
 import java.util.Map;
 
 
@@ -96,6 +97,47 @@ public interface SessionFactory {
             this.userInfo = userInfo;
         }
 
+        /**
+         * Adds the configuration of <code>profile</code> to a copy of the
+         * current config, so the factory this builder came from is not
+         * affected.
+         * 
+         * @param profile
+         *            The algorithm profile
+         * @return This builder
+         * 
+         * @see com.pastdev.jsch.DefaultSessionFactory#setAlgorithmProfile(AlgorithmProfile)
+         */
+        public SessionFactoryBuilder setAlgorithmProfile( AlgorithmProfile profile ) {
+            return addConfig( profile.getConfig() );
+        }
+
+        /**
+         * Adds the configuration of <code>profile</code>, with its ciphers and
+         * MACs ordered fastest first as measured by <code>benchmark</code>,
+         * to a copy of the current config.
+         * 
+         * @param profile
+         *            The algorithm profile
+         * @param benchmark
+         *            The measured throughput of the ciphers and MACs
+         * @return This builder
+         * 
+         * @see com.pastdev.jsch.AlgorithmProfile#getConfig(CipherBenchmark)
+         */
+        public SessionFactoryBuilder setAlgorithmProfile( AlgorithmProfile profile, CipherBenchmark benchmark ) {
+            return addConfig( profile.getConfig( benchmark ) );
+        }
+
+        private SessionFactoryBuilder addConfig( Map<String, String> added ) {
+            Map<String, String> profiled = config == null
+                    ? new HashMap<String, String>()
+                    : new HashMap<String, String>( config );
+            profiled.putAll( added );
+            this.config = profiled;
+            return this;
+        }
+
         /**
          * Replaces the current config with <code>config</code>
          * 
@@ -110,6 +152,27 @@ public interface SessionFactory {
             return this;
         }
 
+        /**
+         * Adds a single configuration option to a copy of the current config,
+         * so the factory this builder came from is not affected.
+         * 
+         * @param key
+         *            The name of the option
+         * @param value
+         *            The value of the option
+         * @return This builder
+         * 
+         * @see com.pastdev.jsch.DefaultSessionFactory#setConfig(String, String)
+         */
+        public SessionFactoryBuilder setConfig( String key, String value ) {
+            Map<String, String> copy = config == null
+                    ? new HashMap<String, String>()
+                    : new HashMap<String, String>( config );
+            copy.put( key, value );
+            this.config = copy;
+            return this;
+        }
+
         /**
          * Replaces the current hostname with <code>hostname</code>
          * 
@@ -0,0 +1,417 @@
+package com.pastdev.jsch;
+
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+import com.jcraft.jsch.Channel;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+
+/**
+ * Periodically probes the sessions of registered {@link SessionManager
+ * SessionManager's} so that dead connections are found, and replaced, in the
+ * background rather than by the next caller of
+ * {@link SessionManager#getSession()}.
+ * <p>
+ * A session on which no channel has been acquired or released for at least
+ * the probe interval is probed by opening, and immediately closing, a bare
+ * <code>session</code> channel. This costs one round trip, starts no process
+ * on the remote system, and unlike an unanswered keepalive, will fail on a
+ * half open connection once the probe timeout elapses. The probe channel is
+ * admitted through the manager's {@link ChannelAdmissionController}, and is
+ * skipped rather than queued when no channel is free. A server refusing the
+ * probe channel has answered, so the probe counts as a success. While the
+ * manager has channels in use, the session is busy rather than idle, and is
+ * only sent a keepalive message.
+ * </p>
+ * <p>
+ * The session is dropped and a new one connected only when its transport is
+ * down: as soon as it is found disconnected, or after <code>maxFailures</code>
+ * consecutive probes that timed out. Callers asking for the session while it
+ * is being replaced wait for, and share, the new one. Sessions that have not
+ * been connected yet, or whose manager was closed, are left alone.
+ * </p>
+ * <p>
+ * The round trip time of every probe is recorded, and is available along with
+ * failure and reconnect counts through {@link #getHealth(SessionManager)}.
+ * </p>
+ * 
+ * <pre>
+ * SessionHealthMonitor monitor = new SessionHealthMonitor( 30, TimeUnit.SECONDS );
+ * monitor.register( sessionManager );
+ * ...
+ * long rtt = monitor.getHealth( sessionManager ).getLastRoundTripMillis();
+ * ...
+ * monitor.close();
+ * </pre>
+ */
+public class SessionHealthMonitor implements Closeable {
+    private static Logger logger = LoggerFactory.getLogger( SessionHealthMonitor.class );
+    public static final int DEFAULT_MAX_FAILURES = 2;
+    public static final long DEFAULT_PROBE_TIMEOUT_MILLIS = 10000L;
+
+    private final ScheduledExecutorService executor;
+    private final long intervalMillis;
+    private volatile int maxFailures = DEFAULT_MAX_FAILURES;
+    private final Map<SessionManager, Monitored> monitored = new ConcurrentHashMap<SessionManager, Monitored>();
+    private volatile long probeTimeoutMillis = DEFAULT_PROBE_TIMEOUT_MILLIS;
+
+    /**
+     * Creates a monitor that probes each idle session every
+     * <code>interval</code> on a single background thread.
+     * 
+     * @param interval
+     *            The time between probes
+     * @param unit
+     *            The unit of <code>interval</code>
+     */
+    public SessionHealthMonitor( long interval, TimeUnit unit ) {
+        this( interval, unit, 1 );
+    }
+
+    /**
+     * Creates a monitor that probes each idle session every
+     * <code>interval</code> using <code>threads</code> background threads.
+     * 
+     * @param interval
+     *            The time between probes
+     * @param unit
+     *            The unit of <code>interval</code>
+     * @param threads
+     *            The number of probing threads
+     */
+    public SessionHealthMonitor( long interval, TimeUnit unit, int threads ) {
+        this.intervalMillis = unit.toMillis( interval );
+        if ( intervalMillis <= 0 ) {
+            throw new IllegalArgumentException( "interval must be positive" );
+        }
+        final AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newScheduledThreadPool( threads, new ThreadFactory() {
+            @Override
+            public Thread newThread( Runnable runnable ) {
+                Thread thread = new Thread( runnable, "SessionHealthMonitor-" + count.incrementAndGet() );
+                thread.setDaemon( true );
+                return thread;
+            }
+        } );
+    }
+
+    /**
+     * Stops probing and releases the background threads. Registered managers
+     * are not closed.
+     */
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        monitored.clear();
+    }
+
+    /**
+     * Returns the health of the session of <code>sessionManager</code>, or
+     * null if it is not registered.
+     * 
+     * @param sessionManager
+     *            A registered session manager
+     * @return The health
+     */
+    public Health getHealth( SessionManager sessionManager ) {
+        Monitored entry = monitored.get( sessionManager );
+        return entry == null ? null : entry.health;
+    }
+
+    private void probe( SessionManager sessionManager, Health health ) {
+        Session session = sessionManager.peekSession();
+        if ( session == null ) {
+            return;
+        }
+        if ( !session.isConnected() ) {
+            logger.info( "session to {} is disconnected, reconnecting", sessionManager );
+            reconnect( sessionManager, session, health );
+            return;
+        }
+        if ( System.currentTimeMillis() - sessionManager.getLastUsed() < intervalMillis ) {
+            return;
+        }
+        ChannelAdmissionController admission = sessionManager.getChannelAdmissionController();
+        if ( admission.getInUse() > 0 ) {
+            keepAlive( sessionManager, session, health );
+            return;
+        }
+        if ( !admission.tryAcquire() ) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        Channel channel = null;
+        try {
+            channel = session.openChannel( "session" );
+            channel.connect( (int) Math.max( 1, probeTimeoutMillis ) );
+            health.success( System.nanoTime() - start );
+            logger.trace( "probed {} in {}ms", sessionManager, health.getLastRoundTripMillis() );
+        }
+        catch ( JSchException e ) {
+            if ( !session.isConnected() ) {
+                health.failure();
+                logger.warn( "probe of {} found the session down: {}", sessionManager, e.getMessage() );
+                reconnect( sessionManager, session, health );
+            }
+            else if ( channel != null && channel.getExitStatus() != -1 ) {
+                // JSch records the reason code of a channel open failure as
+                // the exit status, so the server answered and the transport
+                // is alive, it just would not open another channel
+                health.success( System.nanoTime() - start );
+                logger.debug( "probe channel refused by {}, reason {}", sessionManager, channel.getExitStatus() );
+            }
+            else {
+                int failures = health.failure();
+                logger.warn( "probe {} of {} failed: {}", failures, sessionManager, e.getMessage() );
+                if ( failures >= maxFailures ) {
+                    reconnect( sessionManager, session, health );
+                }
+            }
+        }
+        finally {
+            if ( channel != null ) {
+                channel.disconnect();
+            }
+            admission.release();
+        }
+    }
+
+    private void keepAlive( SessionManager sessionManager, Session session, Health health ) {
+        try {
+            session.sendKeepAliveMsg();
+            logger.trace( "sent keepalive on busy session to {}", sessionManager );
+        }
+        catch ( Exception e ) {
+            if ( !session.isConnected() ) {
+                health.failure();
+                logger.warn( "keepalive to {} found the session down: {}", sessionManager, e.getMessage() );
+                reconnect( sessionManager, session, health );
+            }
+            else {
+                logger.debug( "keepalive to {} failed: {}", sessionManager, e.getMessage() );
+            }
+        }
+    }
+
+    private void reconnect( SessionManager sessionManager, Session stale, Health health ) {
+        if ( stale.isConnected() ) {
+            stale.disconnect();
+        }
+        try {
+            sessionManager.getSession();
+            health.reconnected();
+            logger.info( "reconnected session to {}", sessionManager );
+        }
+        catch ( JSchException e ) {
+            logger.warn( "unable to reconnect session to {}: {}", sessionManager, e.getMessage() );
+        }
+        catch ( RuntimeException e ) {
+            logger.warn( "unable to reconnect session to {}: {}", sessionManager, e.getMessage() );
+        }
+    }
+
+    /**
+     * Starts probing the session of <code>sessionManager</code>. Registering
+     * an already registered manager has no effect.
+     * 
+     * @param sessionManager
+     *            The session manager to monitor
+     */
+    public void register( final SessionManager sessionManager ) {
+        synchronized ( monitored ) {
+            if ( monitored.containsKey( sessionManager ) ) {
+                return;
+            }
+            final Health health = new Health();
+            ScheduledFuture<?> future = executor.scheduleWithFixedDelay( new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        probe( sessionManager, health );
+                    }
+                    catch ( RuntimeException e ) {
+                        logger.error( "probe of {} failed unexpectedly: {}", sessionManager, e );
+                    }
+                }
+            }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS );
+            monitored.put( sessionManager, new Monitored( future, health ) );
+        }
+    }
+
+    /**
+     * Sets the number of consecutive failed probes after which the session is
+     * replaced. Defaults to {@link #DEFAULT_MAX_FAILURES}.
+     * 
+     * @param maxFailures
+     *            The maximum consecutive failures
+     */
+    public void setMaxFailures( int maxFailures ) {
+        this.maxFailures = maxFailures;
+    }
+
+    /**
+     * Sets how long a probe may wait for the server to respond. Defaults to
+     * {@link #DEFAULT_PROBE_TIMEOUT_MILLIS}.
+     * 
+     * @param probeTimeout
+     *            The probe timeout
+     * @param unit
+     *            The unit of <code>probeTimeout</code>
+     */
+    public void setProbeTimeout( long probeTimeout, TimeUnit unit ) {
+        this.probeTimeoutMillis = unit.toMillis( probeTimeout );
+    }
+
+    /**
+     * Stops probing the session of <code>sessionManager</code>.
+     * 
+     * @param sessionManager
+     *            The session manager to stop monitoring
+     */
+    public void unregister( SessionManager sessionManager ) {
+        Monitored entry = monitored.remove( sessionManager );
+        if ( entry != null ) {
+            entry.future.cancel( false );
+        }
+    }
+
+    /**
+     * The probe metrics of a single monitored session.
+     */
+    public static class Health {
+        private volatile int consecutiveFailures;
+        private volatile long failureCount;
+        private volatile long lastProbeTime;
+        private volatile long lastRoundTripNanos = -1;
+        private volatile long probeCount;
+        private volatile long reconnectCount;
+        private volatile long totalRoundTripNanos;
+
+        private Health() {
+        }
+
+        private synchronized int failure() {
+            lastProbeTime = System.currentTimeMillis();
+            probeCount++;
+            failureCount++;
+            return ++consecutiveFailures;
+        }
+
+        /**
+         * Returns the average round trip time of all successful probes in
+         * milliseconds, or -1 if none have succeeded.
+         * 
+         * @return The average round trip time
+         */
+        public synchronized double getAverageRoundTripMillis() {
+            long successes = probeCount - failureCount;
+            return successes == 0 ? -1 : totalRoundTripNanos / 1e6 / successes;
+        }
+
+        /**
+         * Returns the number of consecutive failed probes, 0 if the last probe
+         * succeeded.
+         * 
+         * @return The consecutive failure count
+         */
+        public int getConsecutiveFailures() {
+            return consecutiveFailures;
+        }
+
+        /**
+         * Returns the total number of failed probes.
+         * 
+         * @return The failure count
+         */
+        public long getFailureCount() {
+            return failureCount;
+        }
+
+        /**
+         * Returns the time, in milliseconds since the epoch, of the last
+         * probe, or 0 if there has been none.
+         * 
+         * @return The time of the last probe
+         */
+        public long getLastProbeTime() {
+            return lastProbeTime;
+        }
+
+        /**
+         * Returns the round trip time of the last successful probe in
+         * milliseconds, or -1 if none have succeeded.
+         * 
+         * @return The last round trip time
+         */
+        public double getLastRoundTripMillis() {
+            long nanos = lastRoundTripNanos;
+            return nanos < 0 ? -1 : nanos / 1e6;
+        }
+
+        /**
+         * Returns the total number of probes.
+         * 
+         * @return The probe count
+         */
+        public long getProbeCount() {
+            return probeCount;
+        }
+
+        /**
+         * Returns the number of times the session was replaced by the
+         * monitor.
+         * 
+         * @return The reconnect count
+         */
+        public long getReconnectCount() {
+            return reconnectCount;
+        }
+
+        private synchronized void reconnected() {
+            consecutiveFailures = 0;
+            reconnectCount++;
+        }
+
+        private synchronized void success( long roundTripNanos ) {
+            lastProbeTime = System.currentTimeMillis();
+            probeCount++;
+            consecutiveFailures = 0;
+            lastRoundTripNanos = roundTripNanos;
+            totalRoundTripNanos += roundTripNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "Health(probes=" + probeCount + ", failures=" + failureCount
+                    + ", reconnects=" + reconnectCount + ", lastRoundTrip="
+                    + getLastRoundTripMillis() + "ms)";
+        }
+    }
+
+    private static class Monitored {
+        private final ScheduledFuture<?> future;
+        private final Health health;
+
+        private Monitored( ScheduledFuture<?> future, Health health ) {
+            this.future = future;
+            this.health = health;
+        }
+    }
+}
@@ -1,8 +1,11 @@
 package com.pastdev.jsch;
 
 
-import java.io.Closeable;
 import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
 
 import org.slf4j.Logger;
@@ -18,12 +21,37 @@ import com.jcraft.jsch.Session;
  * connection for you. Every time you obtain your session through a call to
  * {@link #getSession()} the current session will have its connection verified,
  * and will reconnect if necessary.
+ * <p>
+ * A SessionManager is safe to share between threads. While the session is
+ * connected, {@link #getSession()} does not lock. When the session needs to be
+ * reconnected, exactly one caller connects a new session while all other
+ * callers wait for, and share, its result. If {@link #close()} is called while
+ * a session is connecting, that session is disconnected once connected, and
+ * its callers get an exception rather than a session nobody will close.
+ * </p>
+ * <p>
+ * Channels acquired through {@link #acquireSession()} pass through a
+ * {@link ChannelAdmissionController}, so that no more channels are opened than
+ * the server allows. Its limit may be {@link #setMaxChannels(int) set}, or is
+ * learned the first time the server refuses a channel, and learned afresh for
+ * every new session. Callers beyond the limit wait, in order, for up to the
+ * {@link #setAdmissionTimeout(long, TimeUnit) admission timeout}.
+ * </p>
  */
-public class SessionManager implements Closeable {
+public class SessionManager implements SessionProvider {
     private static final Logger logger = LoggerFactory.getLogger( SessionManager.class );
+    public static final long DEFAULT_ADMISSION_TIMEOUT_MILLIS = 60000;
 
+    private final ChannelAdmissionController admission = new ChannelAdmissionController();
+    private volatile long admissionTimeoutMillis = DEFAULT_ADMISSION_TIMEOUT_MILLIS;
+    private FutureTask<Session> connecting;
+    // bumped by close(), so that a connect in flight does not publish its
+    // session after the manager was closed
+    private int generation;
+    private volatile long lastUsed = System.currentTimeMillis();
+    private final Object lock = new Object();
+    private volatile Session session;
     private final SessionFactory sessionFactory;
-    private Session session;
 
     /**
      * Creates a SessionManager for the supplied <code>sessionFactory</code>.
@@ -35,12 +63,91 @@ public class SessionManager implements Closeable {
         this.sessionFactory = sessionFactory;
     }
 
+    /**
+     * Returns the managed session, as every channel shares the one session,
+     * once the {@link #getChannelAdmissionController() admission controller}
+     * allows another channel to be opened on it.
+     * 
+     * @return A connected session
+     * @throws JSchException
+     *             If unable to connect the session, or no channel became
+     *             available before the admission timeout
+     * 
+     * @see #getSession()
+     */
+    @Override
+    public Session acquireSession() throws JSchException {
+        admission.acquire( admissionTimeoutMillis, TimeUnit.MILLISECONDS );
+        boolean acquired = false;
+        try {
+            Session current = getSession();
+            acquired = true;
+            return current;
+        }
+        finally {
+            if ( !acquired ) {
+                admission.release();
+            }
+        }
+    }
+
+    /**
+     * Releases the acquisition and lowers the channel limit to the number of
+     * channels still open.
+     */
+    @Override
+    public void channelRejected( Session session ) {
+        logger.debug( "channel refused on {}, {}", this, admission );
+        admission.rejected();
+    }
+
     @Override
     public void close() throws IOException {
+        Session toClose;
+        synchronized ( lock ) {
+            toClose = session;
+            session = null;
+            generation++;
+        }
+        disconnect( toClose );
+    }
+
+    private Session connect() throws JSchException {
+        Session stale;
+        int started;
+        synchronized ( lock ) {
+            stale = session;
+            session = null;
+            started = generation;
+        }
+        if ( stale != null ) {
+            logger.debug( "disconnecting stale session" );
+            disconnect( stale );
+        }
+
+        logger.debug( "getting new session from factory session" );
+        Session newSession = sessionFactory.newSession();
+        logger.debug( "connecting session" );
+        ConnectionGovernor.getDefault().connect( newSession );
+
+        synchronized ( lock ) {
+            if ( generation == started ) {
+                session = newSession;
+                // a new session may be to a server, or under load, that
+                // allows more channels than the last
+                admission.reset();
+                return newSession;
+            }
+        }
+        logger.debug( "closed while connecting, disconnecting new session" );
+        disconnect( newSession );
+        throw new JSchException( "session manager closed while connecting" );
+    }
+
+    private static void disconnect( Session session ) {
         if ( session != null && session.isConnected() ) {
             session.disconnect();
         }
-        session = null;
     }
 
     /**
@@ -52,12 +159,109 @@ public class SessionManager implements Closeable {
      *             If unable to connect the session
      */
     public Session getSession() throws JSchException {
-        if ( session == null || !session.isConnected() ) {
-            logger.debug( "getting new session from factory session" );
-            session = sessionFactory.newSession();
-            logger.debug( "connecting session" );
-            session.connect();
+        lastUsed = System.currentTimeMillis();
+        Session current = session;
+        if ( current != null && current.isConnected() ) {
+            return current;
         }
+
+        FutureTask<Session> task;
+        boolean owner = false;
+        synchronized ( lock ) {
+            current = session;
+            if ( current != null && current.isConnected() ) {
+                return current;
+            }
+            if ( connecting == null ) {
+                connecting = new FutureTask<Session>( new Callable<Session>() {
+                    @Override
+                    public Session call() throws Exception {
+                        return connect();
+                    }
+                } );
+                owner = true;
+            }
+            task = connecting;
+        }
+
+        if ( owner ) {
+            try {
+                task.run();
+            }
+            finally {
+                synchronized ( lock ) {
+                    if ( connecting == task ) {
+                        connecting = null;
+                    }
+                }
+            }
+        }
+        else {
+            logger.trace( "waiting on reconnect in progress" );
+        }
+
+        return await( task );
+    }
+
+    private static Session await( FutureTask<Session> task ) throws JSchException {
+        boolean interrupted = false;
+        try {
+            while ( true ) {
+                try {
+                    return task.get();
+                }
+                catch ( InterruptedException e ) {
+                    interrupted = true;
+                }
+                catch ( ExecutionException e ) {
+                    Throwable cause = e.getCause();
+                    if ( cause instanceof JSchException ) {
+                        throw (JSchException) cause;
+                    }
+                    if ( cause instanceof RuntimeException ) {
+                        throw (RuntimeException) cause;
+                    }
+                    if ( cause instanceof Error ) {
+                        throw (Error) cause;
+                    }
+                    throw new JSchException( "unable to connect session", cause );
+                }
+            }
+        }
+        finally {
+            if ( interrupted ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Returns the controller limiting the channels open on the managed
+     * session.
+     * 
+     * @return The admission controller
+     */
+    public ChannelAdmissionController getChannelAdmissionController() {
+        return admission;
+    }
+
+    /**
+     * Returns the time, in milliseconds since the epoch, that the session was
+     * last requested, or a channel acquired on it was released.
+     * 
+     * @return The time of last use
+     */
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * Returns the current session without verifying or establishing its
+     * connection, or null if there is none.
+     * 
+     * @return The current session
+     */
+    Session peekSession() {
         return session;
     }
 
@@ -66,10 +270,46 @@ public class SessionManager implements Closeable {
      * 
      * @return The session factory
      */
+    @Override
     public SessionFactory getSessionFactory() {
         return sessionFactory;
     }
 
+    /**
+     * Allows the next waiting caller to open a channel. The managed session
+     * stays open until {@link #close()}.
+     */
+    @Override
+    public void releaseSession( Session session ) {
+        lastUsed = System.currentTimeMillis();
+        admission.release();
+    }
+
+    /**
+     * Sets how long {@link #acquireSession()} waits for a channel when the
+     * limit is reached. Defaults to {@link #DEFAULT_ADMISSION_TIMEOUT_MILLIS}.
+     * 
+     * @param timeout
+     *            The maximum time to wait, 0 to wait indefinitely
+     * @param unit
+     *            The unit of <code>timeout</code>
+     */
+    public void setAdmissionTimeout( long timeout, TimeUnit unit ) {
+        this.admissionTimeoutMillis = unit.toMillis( timeout );
+    }
+
+    /**
+     * Sets the maximum number of channels open at once on the managed session,
+     * for example to match the server's <code>MaxSessions</code>. Without it,
+     * the limit is learned from the server.
+     * 
+     * @param maxChannels
+     *            The maximum number of open channels
+     */
+    public void setMaxChannels( int maxChannels ) {
+        admission.setMaxChannels( maxChannels );
+    }
+
     @Override
     public String toString() {
         return sessionFactory.toString();
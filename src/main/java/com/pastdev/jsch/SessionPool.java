@@ -0,0 +1,515 @@
+package com.pastdev.jsch;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+
+/**
+ * A pool of sessions created from a single {@link SessionFactory} that keeps
+ * track of the channels open on each of them. Each
+ * {@link #acquireSession() acquire} is given the least loaded session. The
+ * pool grows, up to <code>maxSessions</code>, whenever every session already
+ * has a channel open, and shrinks back to <code>minSessions</code> as sessions
+ * sit idle. No session is given more than
+ * <code>maxChannelsPerSession</code> channels, which should not exceed the
+ * server's limit (<code>MaxSessions</code> for OpenSSH, which defaults to
+ * 10). When every session is at that limit, callers wait for a channel to be
+ * released. If the server refuses a channel anyway, the limit of that session
+ * alone is lowered to the number of channels that were open on it, and
+ * recovers as described by {@link ChannelAdmissionController}.
+ * <p>
+ * For bursts of latency sensitive work, a pool can be asked to keep a number
+ * of {@link #setSpareSessions(int) spare} sessions connected and
+ * authenticated, with no channels open, ready to be handed out without a
+ * handshake. Spares are connected by {@link #warmUp()}, and replenished in the
+ * background whenever one is taken if a
+ * {@link #setWarmUpExecutor(Executor) warm up executor} is set. Idle sessions
+ * beyond the spares and <code>minSessions</code> are still closed after the
+ * idle timeout, so the footprint stays bounded.
+ * </p>
+ * 
+ * <pre>
+ * SessionPool pool = new SessionPool( sessionFactory, 1, 4, 10 );
+ * CommandRunner commandRunner = new CommandRunner( pool );
+ * SftpRunner sftpRunner = new SftpRunner( pool );
+ * ScpFile scpFile = new ScpFile( pool, &quot;path&quot;, &quot;to&quot;, &quot;file&quot; );
+ * ...
+ * pool.close();
+ * </pre>
+ */
+public class SessionPool implements SessionProvider {
+    private static Logger logger = LoggerFactory.getLogger( SessionPool.class );
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 60000L;
+    public static final int DEFAULT_MAX_CHANNELS_PER_SESSION = 10;
+    public static final int DEFAULT_MAX_SESSIONS = 4;
+    public static final int DEFAULT_MIN_SESSIONS = 0;
+
+    private boolean closed;
+    private int connecting;
+    private long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+    private final Object lock = new Object();
+    private final int maxChannelsPerSession;
+    private final int maxSessions;
+    private final int minSessions;
+    private final SessionFactory sessionFactory;
+    private final List<PooledSession> sessions = new ArrayList<PooledSession>();
+    private int spareSessions;
+    private Executor warmUpExecutor;
+    private boolean warmUpPending;
+
+    /**
+     * Creates a pool with the default limits.
+     * 
+     * @param sessionFactory
+     *            The factory to create sessions from
+     */
+    public SessionPool( SessionFactory sessionFactory ) {
+        this( sessionFactory, DEFAULT_MIN_SESSIONS, DEFAULT_MAX_SESSIONS, DEFAULT_MAX_CHANNELS_PER_SESSION );
+    }
+
+    /**
+     * Creates a pool with the supplied limits.
+     * 
+     * @param sessionFactory
+     *            The factory to create sessions from
+     * @param minSessions
+     *            The number of sessions idle sessions are not closed below
+     * @param maxSessions
+     *            The maximum number of sessions
+     * @param maxChannelsPerSession
+     *            The maximum number of channels open on any one session
+     */
+    public SessionPool( SessionFactory sessionFactory, int minSessions, int maxSessions, int maxChannelsPerSession ) {
+        if ( minSessions < 0 || maxSessions < 1 || minSessions > maxSessions || maxChannelsPerSession < 1 ) {
+            throw new IllegalArgumentException( "invalid pool limits" );
+        }
+        this.sessionFactory = sessionFactory;
+        this.minSessions = minSessions;
+        this.maxSessions = maxSessions;
+        this.maxChannelsPerSession = maxChannelsPerSession;
+    }
+
+    /**
+     * Returns the least loaded session, connecting a new one if every session
+     * is in use and the pool is not full. Waits if every session is at its
+     * channel limit.
+     * 
+     * @return A connected session
+     * @throws JSchException
+     *             If unable to connect, or the pool is closed
+     */
+    @Override
+    public Session acquireSession() throws JSchException {
+        List<Session> toDisconnect = new ArrayList<Session>();
+        try {
+            synchronized ( lock ) {
+                while ( true ) {
+                    if ( closed ) {
+                        throw new JSchException( "session pool is closed" );
+                    }
+                    removeStale( System.currentTimeMillis(), toDisconnect );
+
+                    PooledSession leastLoaded = null;
+                    int leastChannels = 0;
+                    for ( PooledSession pooled : sessions ) {
+                        int channels = pooled.admission.getInUse();
+                        if ( channels < pooled.admission.getMaxChannels()
+                                && (leastLoaded == null || channels < leastChannels) ) {
+                            leastLoaded = pooled;
+                            leastChannels = channels;
+                        }
+                    }
+
+                    boolean full = sessions.size() + connecting >= maxSessions;
+                    if ( leastLoaded != null && (leastChannels == 0 || full)
+                            && leastLoaded.admission.tryAcquire() ) {
+                        scheduleWarmUp();
+                        return leastLoaded.session;
+                    }
+                    if ( !full ) {
+                        connecting++;
+                        break;
+                    }
+
+                    logger.trace( "waiting for a channel on {}", this );
+                    try {
+                        lock.wait();
+                    }
+                    catch ( InterruptedException e ) {
+                        Thread.currentThread().interrupt();
+                        throw new JSchException( "interrupted waiting for a session", e );
+                    }
+                }
+            }
+        }
+        finally {
+            disconnect( toDisconnect );
+        }
+
+        return connect( 1 ).session;
+    }
+
+    /**
+     * Releases the acquisition and lowers the channel limit of
+     * <code>session</code> to the number of channels still open on it.
+     */
+    @Override
+    public void channelRejected( Session session ) {
+        release( session, true );
+    }
+
+    @Override
+    public void close() throws IOException {
+        List<Session> toDisconnect = new ArrayList<Session>();
+        synchronized ( lock ) {
+            closed = true;
+            for ( PooledSession pooled : sessions ) {
+                toDisconnect.add( pooled.session );
+            }
+            sessions.clear();
+            lock.notifyAll();
+        }
+        disconnect( toDisconnect );
+    }
+
+    /**
+     * Connects a new session and adds it to the pool with
+     * <code>channels</code> already counted against it. The caller must have
+     * incremented <code>connecting</code>.
+     */
+    private PooledSession connect( int channels ) throws JSchException {
+        Session session = null;
+        boolean added = false;
+        try {
+            logger.debug( "growing {} to {} sessions", this, getSessionCount() + 1 );
+            session = sessionFactory.newSession();
+            ConnectionGovernor.getDefault().connect( session );
+            PooledSession pooled = new PooledSession( session, maxChannelsPerSession );
+            synchronized ( lock ) {
+                if ( !closed ) {
+                    for ( int i = 0; i < channels; i++ ) {
+                        pooled.admission.tryAcquire();
+                    }
+                    sessions.add( pooled );
+                    added = true;
+                }
+            }
+            if ( !added ) {
+                throw new JSchException( "session pool is closed" );
+            }
+            return pooled;
+        }
+        finally {
+            synchronized ( lock ) {
+                connecting--;
+                lock.notifyAll();
+            }
+            if ( !added && session != null && session.isConnected() ) {
+                session.disconnect();
+            }
+        }
+    }
+
+    private static void disconnect( List<Session> sessions ) {
+        for ( Session session : sessions ) {
+            if ( session.isConnected() ) {
+                session.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Closes sessions that have had no open channels for longer than the idle
+     * timeout, keeping at least <code>minSessions</code>. This is done
+     * automatically as sessions are acquired and released, but may also be
+     * called periodically to shrink a pool that is no longer used.
+     */
+    public void evictIdleSessions() {
+        List<Session> toDisconnect = new ArrayList<Session>();
+        synchronized ( lock ) {
+            removeStale( System.currentTimeMillis(), toDisconnect );
+        }
+        disconnect( toDisconnect );
+    }
+
+    /**
+     * Returns the number of connected sessions with no open channels.
+     * 
+     * @return The number of idle sessions
+     */
+    public int getIdleSessionCount() {
+        synchronized ( lock ) {
+            return idleCount();
+        }
+    }
+
+    private int idleCount() {
+        int count = 0;
+        for ( PooledSession pooled : sessions ) {
+            if ( pooled.admission.getInUse() == 0 ) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of channels currently open across all sessions.
+     * 
+     * @return The number of open channels
+     */
+    public int getOpenChannelCount() {
+        synchronized ( lock ) {
+            int count = 0;
+            for ( PooledSession pooled : sessions ) {
+                count += pooled.admission.getInUse();
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Returns the number of sessions currently in the pool.
+     * 
+     * @return The number of sessions
+     */
+    public int getSessionCount() {
+        synchronized ( lock ) {
+            return sessions.size();
+        }
+    }
+
+    /**
+     * Returns the channel limit of <code>session</code>, which is lower than
+     * {@link #getMaxChannelsPerSession()} while a limit learned from a refused
+     * channel has not recovered, or -1 if the session is not in the pool.
+     * 
+     * @param session
+     *            A session acquired from this pool
+     * @return The channel limit of the session
+     */
+    int getMaxChannels( Session session ) {
+        synchronized ( lock ) {
+            for ( PooledSession pooled : sessions ) {
+                if ( pooled.session == session ) {
+                    return pooled.admission.getMaxChannels();
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the maximum number of channels opened on any one session. A
+     * session on which the server refused a channel may have a lower limit
+     * until it recovers.
+     * 
+     * @return The channel limit per session
+     */
+    public int getMaxChannelsPerSession() {
+        return maxChannelsPerSession;
+    }
+
+    @Override
+    public SessionFactory getSessionFactory() {
+        return sessionFactory;
+    }
+
+    @Override
+    public void releaseSession( Session session ) {
+        release( session, false );
+    }
+
+    private void release( Session session, boolean rejected ) {
+        List<Session> toDisconnect = new ArrayList<Session>();
+        synchronized ( lock ) {
+            for ( PooledSession pooled : sessions ) {
+                if ( pooled.session == session ) {
+                    if ( rejected ) {
+                        logger.debug( "channel refused on {}, {}", this, pooled.admission );
+                        pooled.admission.rejected();
+                    }
+                    else {
+                        pooled.admission.release();
+                    }
+                    pooled.lastReleased = System.currentTimeMillis();
+                    break;
+                }
+            }
+            removeStale( System.currentTimeMillis(), toDisconnect );
+            lock.notifyAll();
+        }
+        disconnect( toDisconnect );
+    }
+
+    /**
+     * Returns the number of sessions that must be connected to satisfy
+     * <code>minSessions</code> and the spares, counting those already being
+     * connected. Must be called holding the lock.
+     */
+    private int missingCount() {
+        int missing = Math.max( minSessions - sessions.size(), spareSessions - idleCount() ) - connecting;
+        return Math.min( missing, maxSessions - sessions.size() - connecting );
+    }
+
+    /**
+     * Removes disconnected sessions, and idle sessions beyond
+     * <code>minSessions</code> and the spares. Must be called holding the
+     * lock.
+     */
+    private void removeStale( long now, List<Session> toDisconnect ) {
+        for ( Iterator<PooledSession> iterator = sessions.iterator(); iterator.hasNext(); ) {
+            PooledSession pooled = iterator.next();
+            if ( !pooled.session.isConnected() ) {
+                logger.debug( "removing disconnected session from {}", this );
+                iterator.remove();
+            }
+        }
+        int idle = idleCount();
+        for ( Iterator<PooledSession> iterator = sessions.iterator(); iterator.hasNext()
+                && sessions.size() > minSessions && idle > spareSessions; ) {
+            PooledSession pooled = iterator.next();
+            if ( pooled.admission.getInUse() == 0 && now - pooled.lastReleased >= idleTimeoutMillis ) {
+                idle--;
+                logger.debug( "closing idle session in {}", this );
+                iterator.remove();
+                toDisconnect.add( pooled.session );
+            }
+        }
+    }
+
+    /**
+     * Sets how long a session may go without an open channel before it is
+     * closed. Defaults to {@link #DEFAULT_IDLE_TIMEOUT_MILLIS}.
+     * 
+     * @param idleTimeout
+     *            The idle timeout
+     * @param unit
+     *            The unit of <code>idleTimeout</code>
+     */
+    public void setIdleTimeout( long idleTimeout, TimeUnit unit ) {
+        synchronized ( lock ) {
+            this.idleTimeoutMillis = unit.toMillis( idleTimeout );
+        }
+    }
+
+    /**
+     * Sets the number of connected sessions with no open channels the pool
+     * tries to keep ready, within <code>maxSessions</code>. Spares are not
+     * closed by the idle timeout. Defaults to 0.
+     * 
+     * @param spareSessions
+     *            The number of spare sessions
+     * 
+     * @see #warmUp()
+     */
+    public void setSpareSessions( int spareSessions ) {
+        if ( spareSessions < 0 ) {
+            throw new IllegalArgumentException( "spareSessions must not be negative" );
+        }
+        synchronized ( lock ) {
+            this.spareSessions = spareSessions;
+        }
+    }
+
+    /**
+     * Sets the executor used to replenish spare sessions in the background as
+     * they are handed out. Without one, spares are only connected by
+     * {@link #warmUp()}.
+     * 
+     * @param warmUpExecutor
+     *            The executor, or null
+     */
+    public void setWarmUpExecutor( Executor warmUpExecutor ) {
+        synchronized ( lock ) {
+            this.warmUpExecutor = warmUpExecutor;
+        }
+    }
+
+    /**
+     * Schedules a background warm up if the pool is short of sessions. Must
+     * be called holding the lock.
+     */
+    private void scheduleWarmUp() {
+        if ( warmUpExecutor == null || warmUpPending || closed || missingCount() <= 0 ) {
+            return;
+        }
+        warmUpPending = true;
+        try {
+            warmUpExecutor.execute( new Runnable() {
+                @Override
+                public void run() {
+                    synchronized ( lock ) {
+                        warmUpPending = false;
+                    }
+                    try {
+                        warmUp();
+                    }
+                    catch ( JSchException e ) {
+                        logger.warn( "unable to warm up {}: {}", SessionPool.this, e.getMessage() );
+                    }
+                }
+            } );
+        }
+        catch ( RuntimeException e ) {
+            warmUpPending = false;
+            logger.warn( "unable to schedule warm up of {}: {}", this, e.getMessage() );
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "POOL(" + sessionFactory + ")";
+    }
+
+    /**
+     * Connects, in the calling thread, as many sessions as needed to reach
+     * <code>minSessions</code> and the configured number of spare sessions.
+     * 
+     * @throws JSchException
+     *             If unable to connect a session
+     */
+    public void warmUp() throws JSchException {
+        while ( true ) {
+            List<Session> toDisconnect = new ArrayList<Session>();
+            try {
+                synchronized ( lock ) {
+                    removeStale( System.currentTimeMillis(), toDisconnect );
+                    if ( closed || missingCount() <= 0 ) {
+                        return;
+                    }
+                    connecting++;
+                }
+            }
+            finally {
+                disconnect( toDisconnect );
+            }
+            connect( 0 );
+        }
+    }
+
+    private static class PooledSession {
+        // counts the channels open on the session, and learns its limit
+        private final ChannelAdmissionController admission;
+        private long lastReleased = System.currentTimeMillis();
+        private final Session session;
+
+        private PooledSession( Session session, int maxChannels ) {
+            this.session = session;
+            this.admission = new ChannelAdmissionController( maxChannels );
+        }
+    }
+}
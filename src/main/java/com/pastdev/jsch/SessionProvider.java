@@ -0,0 +1,73 @@
+package com.pastdev.jsch;
+
+
+import java.io.Closeable;
+
+
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+
+/**
+ * A source of connected sessions on which to open channels. Every call to
+ * {@link #acquireSession()} must be matched by a call to
+ * {@link #releaseSession(Session)} once the channel opened on that session has
+ * been disconnected, which allows implementations to track how many channels
+ * are open on each of their sessions.
+ * 
+ * <pre>
+ * Session session = sessionProvider.acquireSession();
+ * try {
+ *     Channel channel = session.openChannel( &quot;exec&quot; );
+ *     ...
+ *     channel.disconnect();
+ * }
+ * finally {
+ *     sessionProvider.releaseSession( session );
+ * }
+ * </pre>
+ * 
+ * @see SessionManager
+ * @see SessionPool
+ */
+public interface SessionProvider extends Closeable {
+    /**
+     * Returns a connected session on which the caller may open one channel.
+     * 
+     * @return A connected session
+     * @throws JSchException
+     *             If unable to connect a session
+     */
+    public Session acquireSession() throws JSchException;
+
+    /**
+     * Signals that the server refused to open the channel on
+     * <code>session</code>, most likely because its limit on channels per
+     * connection was reached. Like {@link #releaseSession(Session)}, this ends
+     * the acquisition. Implementations should open no more channels on the
+     * session than were open when the channel was refused, so callers can
+     * acquire again and wait their turn rather than fail.
+     * 
+     * @param session
+     *            A session returned by {@link #acquireSession()}
+     * 
+     * @see ChannelAdmissionController#isRejection(JSchException)
+     */
+    public void channelRejected( Session session );
+
+    /**
+     * Returns the session factory sessions are created from.
+     * 
+     * @return The session factory
+     */
+    public SessionFactory getSessionFactory();
+
+    /**
+     * Signals that the channel opened on <code>session</code> after it was
+     * acquired has been disconnected.
+     * 
+     * @param session
+     *            A session returned by {@link #acquireSession()}
+     */
+    public void releaseSession( Session session );
+}
@@ -0,0 +1,186 @@
+package com.pastdev.jsch;
+
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+import com.jcraft.jsch.JSchException;
+
+
+/**
+ * Keeps {@link SessionPool SessionPool's} for a set of targets warm, so that
+ * the first request to a host after a quiet period does not pay for a
+ * handshake. Each pool is {@link SessionPool#warmUp() warmed up} in the
+ * background as soon as it is added, and again every interval, which also
+ * closes sessions that have been idle too long. Spares handed out in between
+ * are replenished in the background as they are taken.
+ * 
+ * <pre>
+ * SessionWarmer warmer = new SessionWarmer( 1, TimeUnit.MINUTES );
+ * SessionPool web = warmer.addTarget( webSessionFactory, 2 );
+ * SessionPool db = warmer.addTarget( dbSessionFactory, 1 );
+ * ...
+ * CommandRunner commandRunner = new CommandRunner( web );
+ * ...
+ * warmer.close();
+ * </pre>
+ */
+public class SessionWarmer implements Closeable {
+    private static Logger logger = LoggerFactory.getLogger( SessionWarmer.class );
+
+    private final ScheduledExecutorService executor;
+    private final long intervalMillis;
+    private final Map<SessionPool, ScheduledFuture<?>> pools = new LinkedHashMap<SessionPool, ScheduledFuture<?>>();
+
+    /**
+     * Creates a warmer that refreshes its pools every <code>interval</code>
+     * using two background threads.
+     * 
+     * @param interval
+     *            The time between refreshes of each pool
+     * @param unit
+     *            The unit of <code>interval</code>
+     */
+    public SessionWarmer( long interval, TimeUnit unit ) {
+        this( interval, unit, 2 );
+    }
+
+    /**
+     * Creates a warmer that refreshes its pools every <code>interval</code>
+     * using <code>threads</code> background threads, which bounds the number
+     * of handshakes in progress at once.
+     * 
+     * @param interval
+     *            The time between refreshes of each pool
+     * @param unit
+     *            The unit of <code>interval</code>
+     * @param threads
+     *            The number of background threads
+     */
+    public SessionWarmer( long interval, TimeUnit unit, int threads ) {
+        this.intervalMillis = unit.toMillis( interval );
+        if ( intervalMillis <= 0 ) {
+            throw new IllegalArgumentException( "interval must be positive" );
+        }
+        final AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newScheduledThreadPool( threads, new ThreadFactory() {
+            @Override
+            public Thread newThread( Runnable runnable ) {
+                Thread thread = new Thread( runnable, "SessionWarmer-" + count.incrementAndGet() );
+                thread.setDaemon( true );
+                return thread;
+            }
+        } );
+    }
+
+    /**
+     * Starts keeping <code>pool</code> warm. The warmer takes ownership of the
+     * pool and will close it when the warmer is closed.
+     * 
+     * @param pool
+     *            The pool to keep warm
+     */
+    public void add( final SessionPool pool ) {
+        synchronized ( pools ) {
+            if ( pools.containsKey( pool ) ) {
+                return;
+            }
+            pool.setWarmUpExecutor( executor );
+            pools.put( pool, executor.scheduleWithFixedDelay( new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        pool.warmUp();
+                    }
+                    catch ( JSchException e ) {
+                        logger.warn( "unable to warm up {}: {}", pool, e.getMessage() );
+                    }
+                    catch ( RuntimeException e ) {
+                        logger.error( "warm up of {} failed unexpectedly: {}", pool, e );
+                    }
+                    pool.evictIdleSessions();
+                }
+            }, 0, intervalMillis, TimeUnit.MILLISECONDS ) );
+        }
+    }
+
+    /**
+     * Creates a pool, with default limits, that keeps
+     * <code>spareSessions</code> sessions to the target of
+     * <code>sessionFactory</code> ready, and starts keeping it warm.
+     * 
+     * @param sessionFactory
+     *            The target
+     * @param spareSessions
+     *            The number of spare sessions
+     * @return The pool
+     */
+    public SessionPool addTarget( SessionFactory sessionFactory, int spareSessions ) {
+        SessionPool pool = new SessionPool( sessionFactory, 0,
+                Math.max( SessionPool.DEFAULT_MAX_SESSIONS, spareSessions ),
+                SessionPool.DEFAULT_MAX_CHANNELS_PER_SESSION );
+        pool.setSpareSessions( spareSessions );
+        add( pool );
+        return pool;
+    }
+
+    /**
+     * Stops warming and closes every pool.
+     */
+    @Override
+    public void close() throws IOException {
+        List<SessionPool> toClose;
+        synchronized ( pools ) {
+            toClose = new ArrayList<SessionPool>( pools.keySet() );
+            pools.clear();
+        }
+        executor.shutdownNow();
+        for ( SessionPool pool : toClose ) {
+            pool.setWarmUpExecutor( null );
+            IOUtils.closeAndLogException( pool );
+        }
+    }
+
+    /**
+     * Returns the pools being kept warm.
+     * 
+     * @return The pools
+     */
+    public List<SessionPool> getPools() {
+        synchronized ( pools ) {
+            return new ArrayList<SessionPool>( pools.keySet() );
+        }
+    }
+
+    /**
+     * Stops keeping <code>pool</code> warm, without closing it.
+     * 
+     * @param pool
+     *            The pool
+     */
+    public void remove( SessionPool pool ) {
+        ScheduledFuture<?> future;
+        synchronized ( pools ) {
+            future = pools.remove( pool );
+        }
+        if ( future != null ) {
+            future.cancel( false );
+            pool.setWarmUpExecutor( null );
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package com.pastdev.jsch;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Vector;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+import com.jcraft.jsch.Identity;
+import com.jcraft.jsch.IdentityRepository;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.agentproxy.AgentProxyException;
+import com.jcraft.jsch.agentproxy.Connector;
+import com.jcraft.jsch.agentproxy.ConnectorFactory;
+import com.jcraft.jsch.agentproxy.RemoteIdentityRepository;
+
+
+/**
+ * Identities resolved once per process and shared by every
+ * {@link DefaultSessionFactory}. An agent holding identities is looked up once
+ * per agent socket. Private key files are parsed, and decrypted, once per path,
+ * content and passphrase, and evicted when the content of the file changes.
+ * Shared identities ignore {@link Identity#clear()} so that one factory
+ * replacing its identities does not wipe the key of another.
+ */
+final class SharedIdentities {
+    private static Logger logger = LoggerFactory.getLogger( SharedIdentities.class );
+
+    private static final Map<String, IdentityRepository> agents = new HashMap<String, IdentityRepository>();
+    private static final Map<String, PrivateKey> privateKeys = new HashMap<String, PrivateKey>();
+
+    private SharedIdentities() {
+    }
+
+    /**
+     * Returns a repository backed by the ssh agent if there is one holding at
+     * least one identity, otherwise null. A repository found is cached for the
+     * agent socket named by <code>SSH_AUTH_SOCK</code>. Not finding one is not
+     * cached, so that an agent started, or keys added with
+     * <code>ssh-add</code>, after the first lookup are used by later factories.
+     */
+    static IdentityRepository agent() {
+        String socket = System.getenv( "SSH_AUTH_SOCK" );
+        String key = socket == null ? "" : socket;
+        synchronized ( agents ) {
+            IdentityRepository repository = agents.get( key );
+            if ( repository != null ) {
+                return repository;
+            }
+            try {
+                Connector connector = ConnectorFactory.getDefault()
+                        .createConnector();
+                if ( connector != null ) {
+                    logger.info( "An AgentProxy Connector was found, check for identities" );
+                    RemoteIdentityRepository remote = new RemoteIdentityRepository( connector );
+                    Vector<Identity> identities = remote.getIdentities();
+                    if ( identities.size() > 0 ) {
+                        logger.info( "Using AgentProxy identities: {}", identities );
+                        repository = remote;
+                    }
+                }
+            }
+            catch ( AgentProxyException e ) {
+                logger.debug( "Failed to load any keys from AgentProxy:", e );
+            }
+            if ( repository != null ) {
+                agents.put( key, repository );
+            }
+            return repository;
+        }
+    }
+
+    /**
+     * Adds the identity in the private key file at <code>path</code> to
+     * <code>jsch</code>.
+     * 
+     * @see #addPrivateKey(JSch, String, byte[])
+     */
+    static void addPrivateKey( JSch jsch, String path ) throws JSchException {
+        addPrivateKey( jsch, path, null );
+    }
+
+    /**
+     * Adds the identity in the private key file at <code>path</code>,
+     * decrypted with <code>passphrase</code>, to <code>jsch</code>. Keys that
+     * are unencrypted, or decrypted by the passphrase, are shared until the
+     * contents of the file change. Keys that remain encrypted, because no
+     * passphrase or the wrong one was supplied, are parsed for each call so
+     * that decrypting one later does not decrypt all.
+     */
+    static void addPrivateKey( JSch jsch, String path, byte[] passphrase ) throws JSchException {
+        File file = new File( path ).getAbsoluteFile();
+        PrivateKey privateKey;
+        synchronized ( privateKeys ) {
+            privateKey = privateKeys.get( file.getPath() );
+            if ( privateKey == null || privateKey.isModified() ) {
+                try {
+                    PrivateKey read = new PrivateKey( file );
+                    if ( privateKey == null || !Arrays.equals( privateKey.digest, read.digest ) ) {
+                        if ( privateKey != null ) {
+                            logger.debug( "{} changed, evicting its identities", file );
+                        }
+                        privateKey = read;
+                    }
+                    else {
+                        privateKey.lastModified = read.lastModified;
+                        privateKey.length = read.length;
+                    }
+                }
+                catch ( IOException e ) {
+                    throw new JSchException( e.toString(), e );
+                }
+                privateKeys.put( file.getPath(), privateKey );
+            }
+        }
+        jsch.addIdentity( privateKey.identity( passphrase ), null );
+    }
+
+    /**
+     * The contents of a private key file and the identities decrypted from
+     * it, keyed by a digest of the contents and passphrase so that the
+     * passphrase itself is not kept.
+     */
+    private static class PrivateKey {
+        private final byte[] contents;
+        private final byte[] digest;
+        private final File file;
+        private final Map<String, Identity> identities = new HashMap<String, Identity>();
+        private long lastModified;
+        private long length;
+        private final byte[] publicKey;
+
+        private PrivateKey( File file ) throws IOException {
+            this.file = file;
+            this.lastModified = file.lastModified();
+            this.length = file.length();
+            this.contents = read( file );
+            File publicKeyFile = new File( file.getPath() + ".pub" );
+            this.publicKey = publicKeyFile.exists() ? read( publicKeyFile ) : null;
+            this.digest = sha256( contents, publicKey );
+        }
+
+        private synchronized Identity identity( byte[] passphrase ) throws JSchException {
+            String key = passphrase == null ? ""
+                    : new BigInteger( 1, sha256( digest, passphrase ) ).toString( 16 );
+            Identity identity = identities.get( key );
+            if ( identity != null ) {
+                return identity;
+            }
+
+            JSch parser = new JSch();
+            parser.addIdentity( file.getPath(), contents.clone(),
+                    publicKey == null ? null : publicKey.clone(), passphrase );
+            identity = (Identity) parser.getIdentityRepository()
+                    .getIdentities().firstElement();
+            if ( identity.isEncrypted() ) {
+                return identity;
+            }
+
+            logger.debug( "parsed private key {}", file );
+            identity = new SharedIdentity( identity );
+            identities.put( key, identity );
+            return identity;
+        }
+
+        private boolean isModified() {
+            return file.lastModified() != lastModified || file.length() != length;
+        }
+
+        private static byte[] read( File file ) throws IOException {
+            InputStream in = new FileInputStream( file );
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                IOUtils.copy( in, out );
+                return out.toByteArray();
+            }
+            finally {
+                IOUtils.closeAndLogException( in );
+            }
+        }
+
+        private static byte[] sha256( byte[]... parts ) {
+            try {
+                MessageDigest digest = MessageDigest.getInstance( "SHA-256" );
+                for ( byte[] part : parts ) {
+                    if ( part != null ) {
+                        digest.update( part );
+                    }
+                    digest.update( (byte) 0 );
+                }
+                return digest.digest();
+            }
+            catch ( NoSuchAlgorithmException e ) {
+                throw new IllegalStateException( "SHA-256 unavailable", e );
+            }
+        }
+    }
+
+    private static class SharedIdentity implements Identity {
+        private final Identity identity;
+
+        private SharedIdentity( Identity identity ) {
+            this.identity = identity;
+        }
+
+        @Override
+        public void clear() {
+            // shared with other factories
+        }
+
+        @Override
+        @SuppressWarnings( "deprecation" )
+        public boolean decrypt() {
+            return identity.decrypt();
+        }
+
+        @Override
+        public String getAlgName() {
+            return identity.getAlgName();
+        }
+
+        @Override
+        public String getName() {
+            return identity.getName();
+        }
+
+        @Override
+        public byte[] getPublicKeyBlob() {
+            return identity.getPublicKeyBlob();
+        }
+
+        @Override
+        public byte[] getSignature( byte[] data ) {
+            return identity.getSignature( data );
+        }
+
+        @Override
+        public boolean isEncrypted() {
+            return identity.isEncrypted();
+        }
+
+        @Override
+        public boolean setPassphrase( byte[] passphrase ) throws JSchException {
+            return identity.setPassphrase( passphrase );
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.pastdev.jsch;
+
+
+/**
+ * The kinds of traffic that can be kept on separate sessions to the same
+ * host.
+ * 
+ * @see TrafficClassRouter
+ */
+public enum TrafficClass {
+    /**
+     * Short, latency sensitive exchanges such as command execution.
+     */
+    INTERACTIVE,
+
+    /**
+     * Long running, throughput bound transfers such as <code>scp</code> and
+     * <code>sftp</code>.
+     */
+    BULK,
+
+    /**
+     * Bulk transfers of files that are already compressed, such as archives
+     * and media, which are kept on uncompressed sessions.
+     * 
+     * @see AdaptiveCompression#isCompressed(String)
+     */
+    INCOMPRESSIBLE
+}
@@ -0,0 +1,139 @@
+package com.pastdev.jsch;
+
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+
+
+/**
+ * Keeps each {@link TrafficClass} on its own {@link SessionPool} to the same
+ * target. All channels of a JSch session share one transport and one I/O
+ * thread, so a bulk transfer sharing a session with interactive commands
+ * delays every one of them. Routing the classes to separate sessions, each
+ * with its own limits, keeps interactive latency independent of bulk load.
+ * Transfers of files that are already compressed get sessions of their own
+ * too, created with compression disabled, as compressing them again would only
+ * cost time.
+ * 
+ * <pre>
+ * TrafficClassRouter router = new TrafficClassRouter( sessionFactory );
+ * CommandRunner commandRunner = new CommandRunner(
+ *         router.getSessionProvider( TrafficClass.INTERACTIVE ) );
+ * ScpFile scpFile = new ScpFile(
+ *         router.getSessionProvider( TrafficClass.BULK ), &quot;big.tar&quot; );
+ * ...
+ * router.close();
+ * </pre>
+ * 
+ * @see com.pastdev.jsch.client.SshClient#SshClient(TrafficClassRouter)
+ */
+public class TrafficClassRouter implements Closeable {
+    public static final int DEFAULT_BULK_MAX_CHANNELS_PER_SESSION = 1;
+    public static final int DEFAULT_BULK_MAX_SESSIONS = 4;
+    public static final int DEFAULT_INTERACTIVE_MAX_CHANNELS_PER_SESSION = SessionPool.DEFAULT_MAX_CHANNELS_PER_SESSION;
+    public static final int DEFAULT_INTERACTIVE_MAX_SESSIONS = 2;
+
+    private final Map<TrafficClass, SessionPool> pools = new EnumMap<TrafficClass, SessionPool>( TrafficClass.class );
+    private final SessionFactory sessionFactory;
+
+    /**
+     * Creates a router with default limits for each class. Interactive
+     * traffic shares up to {@link #DEFAULT_INTERACTIVE_MAX_SESSIONS} sessions,
+     * while each bulk transfer gets a session to itself, up to
+     * {@link #DEFAULT_BULK_MAX_SESSIONS} at once, and as many incompressible
+     * transfers.
+     * 
+     * @param sessionFactory
+     *            The target
+     */
+    public TrafficClassRouter( SessionFactory sessionFactory ) {
+        this( new SessionPool( sessionFactory, 0, DEFAULT_INTERACTIVE_MAX_SESSIONS, DEFAULT_INTERACTIVE_MAX_CHANNELS_PER_SESSION ),
+                new SessionPool( sessionFactory, 0, DEFAULT_BULK_MAX_SESSIONS, DEFAULT_BULK_MAX_CHANNELS_PER_SESSION ) );
+    }
+
+    /**
+     * Creates a router using the supplied pools, which must be to the same
+     * target, and are closed with the router. Incompressible transfers use a
+     * pool of uncompressed sessions with the limits of the
+     * <code>bulk</code> pool.
+     * 
+     * @param interactive
+     *            The pool for interactive traffic
+     * @param bulk
+     *            The pool for bulk traffic
+     */
+    public TrafficClassRouter( SessionPool interactive, SessionPool bulk ) {
+        this( interactive, bulk, new SessionPool( AdaptiveCompression.uncompressed( bulk.getSessionFactory() ),
+                0, DEFAULT_BULK_MAX_SESSIONS, bulk.getMaxChannelsPerSession() ) );
+    }
+
+    /**
+     * Creates a router using the supplied pools, which must be to the same
+     * target, and are closed with the router.
+     * 
+     * @param interactive
+     *            The pool for interactive traffic
+     * @param bulk
+     *            The pool for bulk traffic
+     * @param incompressible
+     *            The pool for transfers of compressed files, whose sessions
+     *            should not be compressed
+     */
+    public TrafficClassRouter( SessionPool interactive, SessionPool bulk, SessionPool incompressible ) {
+        if ( interactive == bulk || interactive == incompressible || bulk == incompressible ) {
+            throw new IllegalArgumentException( "traffic classes must not share a pool" );
+        }
+        this.sessionFactory = interactive.getSessionFactory();
+        pools.put( TrafficClass.INTERACTIVE, interactive );
+        pools.put( TrafficClass.BULK, bulk );
+        pools.put( TrafficClass.INCOMPRESSIBLE, incompressible );
+    }
+
+    /**
+     * Closes the pools of every class.
+     */
+    @Override
+    public void close() throws IOException {
+        for ( SessionPool pool : pools.values() ) {
+            IOUtils.closeAndLogException( pool );
+        }
+    }
+
+    /**
+     * Returns the pool for <code>trafficClass</code>.
+     * 
+     * @param trafficClass
+     *            The traffic class
+     * @return The pool
+     */
+    public SessionPool getSessionPool( TrafficClass trafficClass ) {
+        return pools.get( trafficClass );
+    }
+
+    /**
+     * Returns the session provider for <code>trafficClass</code>.
+     * 
+     * @param trafficClass
+     *            The traffic class
+     * @return The session provider
+     */
+    public SessionProvider getSessionProvider( TrafficClass trafficClass ) {
+        return pools.get( trafficClass );
+    }
+
+    /**
+     * Returns the session factory of the target.
+     * 
+     * @return The session factory
+     */
+    public SessionFactory getSessionFactory() {
+        return sessionFactory;
+    }
+
+    @Override
+    public String toString() {
+        return "ROUTER(" + sessionFactory + ")";
+    }
+}
@@ -0,0 +1,302 @@
+package com.pastdev.jsch.client;
+
+
+import java.io.Closeable;
+import java.io.IOException;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+import com.jcraft.jsch.JSchException;
+import com.pastdev.jsch.AdaptiveCompression;
+import com.pastdev.jsch.SessionFactory;
+import com.pastdev.jsch.SessionManager;
+import com.pastdev.jsch.SessionProvider;
+import com.pastdev.jsch.TrafficClass;
+import com.pastdev.jsch.TrafficClassRouter;
+import com.pastdev.jsch.command.CommandMultiplexer;
+import com.pastdev.jsch.command.CommandRunner;
+import com.pastdev.jsch.command.CommandRunner.ChannelExecWrapper;
+import com.pastdev.jsch.command.CommandRunner.ExecuteResult;
+import com.pastdev.jsch.command.RemoteScript;
+import com.pastdev.jsch.scp.DestinationOs;
+import com.pastdev.jsch.scp.ScpFile;
+import com.pastdev.jsch.sftp.SftpRunner;
+import com.pastdev.jsch.sftp.SftpRunner.Sftp;
+
+
+/**
+ * A single point of access to one host for command execution,
+ * <code>sftp</code> and <code>scp</code>. Every operation opens its channel on
+ * a session from the same {@link SessionProvider}, so a mixed workload costs
+ * one connection and one handshake (or one per pooled session) rather than one
+ * per runner. Closing the client closes the provider and with it every
+ * session.
+ * <p>
+ * A client created from a {@link TrafficClassRouter} keeps bulk transfers
+ * (<code>sftp</code> and <code>scp</code>) on different sessions from
+ * interactive commands, so a large transfer does not delay small commands.
+ * <code>scp</code> transfers of files that are already compressed are kept on
+ * its {@link TrafficClass#INCOMPRESSIBLE incompressible} sessions.
+ * </p>
+ * 
+ * <pre>
+ * SshClient client = new SshClient( sessionFactory );
+ * try {
+ *     client.execute( &quot;mkdir -p /opt/app&quot; );
+ *     client.newScpFile( &quot;opt&quot;, &quot;app&quot;, &quot;app.jar&quot; ).copyFrom( jar );
+ *     client.sftp( new Sftp() {
+ *         public void run( ChannelSftp sftp ) throws IOException {
+ *             ...
+ *         }
+ *     } );
+ * }
+ * finally {
+ *     client.close();
+ * }
+ * </pre>
+ */
+public class SshClient implements Closeable {
+    private static Logger logger = LoggerFactory.getLogger( SshClient.class );
+
+    private final SessionProvider bulkSessionProvider;
+    private final CommandRunner commandRunner;
+    private final SessionProvider incompressibleSessionProvider;
+    private final Closeable resources;
+    private final SessionProvider sessionProvider;
+    private final SftpRunner sftpRunner;
+
+    /**
+     * Creates a client sharing a single managed session to the target of
+     * <code>sessionFactory</code>. The session is not connected until first
+     * used.
+     * 
+     * @param sessionFactory
+     *            The factory used to create the session
+     */
+    public SshClient( SessionFactory sessionFactory ) {
+        this( new SessionManager( sessionFactory ) );
+    }
+
+    /**
+     * Creates a client whose operations open their channels on sessions from
+     * <code>sessionProvider</code>, for example a
+     * {@link com.pastdev.jsch.SessionPool SessionPool}. The client takes
+     * ownership of the provider, closing it when the client is closed.
+     * 
+     * @param sessionProvider
+     *            The provider of sessions
+     */
+    public SshClient( SessionProvider sessionProvider ) {
+        this( sessionProvider, sessionProvider, sessionProvider, sessionProvider );
+    }
+
+    /**
+     * Creates a client whose commands run on the
+     * {@link TrafficClass#INTERACTIVE interactive} sessions of
+     * <code>router</code>, while <code>sftp</code> and <code>scp</code> use
+     * its {@link TrafficClass#BULK bulk} sessions, unless the file copied by
+     * <code>scp</code> is {@link AdaptiveCompression#isCompressed(String)
+     * already compressed}. The client takes ownership
+     * of the router, closing it when the client is closed.
+     * 
+     * @param router
+     *            The router
+     */
+    public SshClient( TrafficClassRouter router ) {
+        this( router, router.getSessionProvider( TrafficClass.INTERACTIVE ),
+                router.getSessionProvider( TrafficClass.BULK ),
+                router.getSessionProvider( TrafficClass.INCOMPRESSIBLE ) );
+    }
+
+    private SshClient( Closeable resources, SessionProvider sessionProvider, SessionProvider bulkSessionProvider, SessionProvider incompressibleSessionProvider ) {
+        this.resources = resources;
+        this.sessionProvider = sessionProvider;
+        this.bulkSessionProvider = bulkSessionProvider;
+        this.incompressibleSessionProvider = incompressibleSessionProvider;
+        this.commandRunner = new CommandRunner( sessionProvider );
+        this.sftpRunner = new SftpRunner( bulkSessionProvider );
+    }
+
+    /**
+     * Closes the underlying session provider, disconnecting all sessions.
+     */
+    @Override
+    public void close() throws IOException {
+        logger.debug( "closing client for {}", resources );
+        resources.close();
+    }
+
+    /**
+     * Executes <code>command</code> and returns the result.
+     * 
+     * @param command
+     *            The command to execute
+     * @return The resulting data
+     * @throws JSchException
+     *             If ssh execution fails
+     * @throws IOException
+     *             If unable to read the result data
+     * 
+     * @see CommandRunner#execute(String)
+     */
+    public ExecuteResult execute( String command ) throws JSchException, IOException {
+        return commandRunner.execute( command );
+    }
+
+    /**
+     * Executes <code>script</code> with <code>arguments</code> and returns the
+     * result.
+     * 
+     * @param script
+     *            The script to execute
+     * @param arguments
+     *            The arguments to pass to the script
+     * @return The resulting data
+     * @throws JSchException
+     *             If ssh execution fails
+     * @throws IOException
+     *             If unable to upload the script or read the result data
+     * 
+     * @see CommandRunner#executeScript(RemoteScript, String...)
+     */
+    public ExecuteResult executeScript( RemoteScript script, String... arguments ) throws JSchException, IOException {
+        return commandRunner.executeScript( script, arguments );
+    }
+
+    /**
+     * Returns the command runner used by this client. It must not be closed
+     * independently of the client.
+     * 
+     * @return The command runner
+     */
+    public CommandRunner getCommandRunner() {
+        return commandRunner;
+    }
+
+    /**
+     * Returns the session factory sessions are created from.
+     * 
+     * @return The session factory
+     */
+    public SessionFactory getSessionFactory() {
+        return sessionProvider.getSessionFactory();
+    }
+
+    /**
+     * Returns the session provider used for traffic of
+     * <code>trafficClass</code>. Unless the client was created from a
+     * {@link TrafficClassRouter}, all classes share the same provider.
+     * 
+     * @param trafficClass
+     *            The traffic class
+     * @return The session provider
+     */
+    public SessionProvider getSessionProvider( TrafficClass trafficClass ) {
+        switch ( trafficClass ) {
+            case BULK:
+                return bulkSessionProvider;
+            case INCOMPRESSIBLE:
+                return incompressibleSessionProvider;
+            default:
+                return sessionProvider;
+        }
+    }
+
+    /**
+     * Returns the sftp runner used by this client. It must not be closed
+     * independently of the client.
+     * 
+     * @return The sftp runner
+     */
+    public SftpRunner getSftpRunner() {
+        return sftpRunner;
+    }
+
+    /**
+     * Returns an {@link ScpFile} for <code>path</code> on a unix host.
+     * 
+     * @param path
+     *            The path parts of the remote file
+     * @return The remote file
+     */
+    public ScpFile newScpFile( String... path ) {
+        return new ScpFile( scpSessionProvider( path ), path );
+    }
+
+    /**
+     * Returns an {@link ScpFile} for <code>path</code> on a host running
+     * <code>os</code>.
+     * 
+     * @param os
+     *            The operating system of the host
+     * @param path
+     *            The path parts of the remote file
+     * @return The remote file
+     */
+    public ScpFile newScpFile( DestinationOs os, String... path ) {
+        return new ScpFile( scpSessionProvider( path ), os, path );
+    }
+
+    /**
+     * Executes <code>command</code> and returns a wrapper around its streams.
+     * 
+     * @param command
+     *            The command to execute
+     * @return An execution wrapper that allows you to process the streams
+     * @throws JSchException
+     *             If ssh execution fails
+     * @throws IOException
+     *             If unable to open the streams
+     * 
+     * @see CommandRunner#open(String)
+     */
+    public ChannelExecWrapper open( String command ) throws JSchException, IOException {
+        return commandRunner.open( command );
+    }
+
+    /**
+     * Starts a command multiplexer on the host. The multiplexer must be closed
+     * before the client.
+     * 
+     * @return The multiplexer
+     * @throws JSchException
+     *             If ssh execution fails
+     * @throws IOException
+     *             If unable to open the streams
+     * 
+     * @see CommandRunner#openMultiplexer()
+     */
+    public CommandMultiplexer openMultiplexer() throws JSchException, IOException {
+        return commandRunner.openMultiplexer();
+    }
+
+    private SessionProvider scpSessionProvider( String... path ) {
+        return path.length > 0 && AdaptiveCompression.isCompressed( path[path.length - 1] )
+                ? incompressibleSessionProvider
+                : bulkSessionProvider;
+    }
+
+    /**
+     * Executes the <code>sftp</code> callback on an open sftp channel.
+     * 
+     * @param sftp
+     *            A callback
+     * @throws JSchException
+     *             If ssh execution fails
+     * @throws IOException
+     *             If unable to read the result data
+     * 
+     * @see SftpRunner#execute(Sftp)
+     */
+    public void sftp( Sftp sftp ) throws JSchException, IOException {
+        sftpRunner.execute( sftp );
+    }
+
+    @Override
+    public String toString() {
+        return "CLIENT(" + resources + ")";
+    }
+}
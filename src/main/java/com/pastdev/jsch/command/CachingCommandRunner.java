@@ -0,0 +1,139 @@
+package com.pastdev.jsch.command;
+
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+
+import com.jcraft.jsch.JSchException;
+import com.pastdev.jsch.SessionFactory;
+import com.pastdev.jsch.SessionProvider;
+
+
+/**
+ * A {@link CommandRunner} that serves {@link #execute(String)} from a
+ * {@link CommandCache}. Use this for commands whose output is effectively
+ * static, such as <code>uname -a</code> or <code>nproc</code>, to avoid a
+ * channel round trip on every call. {@link #open(String)} is never cached.
+ * 
+ * <pre>
+ * CommandCache cache = new CommandCache( 100 );
+ * CommandRunner commandRunner = new CachingCommandRunner( sessionFactory,
+ *         cache, 10, TimeUnit.MINUTES );
+ * ExecuteResult result = commandRunner.execute( &quot;uname -a&quot; );
+ * </pre>
+ */
+public class CachingCommandRunner extends CommandRunner {
+    private final CommandCache cache;
+    private final long timeToLive;
+    private final TimeUnit unit;
+
+    /**
+     * Creates a new CachingCommandRunner whose results stay valid for
+     * <code>timeToLive</code>. The <code>cache</code> may be shared between
+     * runners, results are keyed by the target of the session factory.
+     * 
+     * @param sessionFactory
+     *            The factory used to create a session manager
+     * @param cache
+     *            The cache to store results in
+     * @param timeToLive
+     *            The default time to live for results
+     * @param unit
+     *            The unit of <code>timeToLive</code>
+     */
+    public CachingCommandRunner( SessionFactory sessionFactory, CommandCache cache, long timeToLive, TimeUnit unit ) {
+        super( sessionFactory );
+        this.cache = cache;
+        this.timeToLive = timeToLive;
+        this.unit = unit;
+    }
+
+    /**
+     * Creates a new CachingCommandRunner that opens its channels on sessions
+     * from the supplied <code>sessionProvider</code>.
+     * 
+     * @param sessionProvider
+     *            The provider of sessions
+     * @param cache
+     *            The cache to store results in
+     * @param timeToLive
+     *            The default time to live for results
+     * @param unit
+     *            The unit of <code>timeToLive</code>
+     * 
+     * @see CommandRunner#CommandRunner(SessionProvider)
+     */
+    public CachingCommandRunner( SessionProvider sessionProvider, CommandCache cache, long timeToLive, TimeUnit unit ) {
+        super( sessionProvider );
+        this.cache = cache;
+        this.timeToLive = timeToLive;
+        this.unit = unit;
+    }
+
+    /**
+     * Returns a new CachingCommandRunner with the same SessionFactory and
+     * cache, but will create a separate session.
+     * 
+     * @return A duplicate CachingCommandRunner with a different session.
+     */
+    @Override
+    public CommandRunner duplicate() {
+        CachingCommandRunner duplicate = ownsSessionProvider
+                ? new CachingCommandRunner( sessionProvider.getSessionFactory(), cache, timeToLive, unit )
+                : new CachingCommandRunner( sessionProvider, cache, timeToLive, unit );
+        duplicate.setCompressOutput( isCompressOutput() );
+        duplicate.setScriptDirectory( getScriptDirectory() );
+        return duplicate;
+    }
+
+    /**
+     * Returns the cached result of <code>command</code> if there is a live
+     * one, otherwise executes it and caches the result for the default time
+     * to live.
+     * 
+     * @see CommandRunner#execute(String)
+     */
+    @Override
+    public ExecuteResult execute( String command ) throws JSchException, IOException {
+        return execute( command, timeToLive, unit );
+    }
+
+    /**
+     * Returns the cached result of <code>command</code> if there is a live
+     * one, otherwise executes it and caches the result for
+     * <code>timeToLive</code>.
+     * 
+     * @param command
+     *            The command to execute
+     * @param timeToLive
+     *            The time to live for a new result
+     * @param unit
+     *            The unit of <code>timeToLive</code>
+     * @return The resulting data
+     * 
+     * @throws JSchException
+     *             If ssh execution fails
+     * @throws IOException
+     *             If unable to read the result data
+     */
+    public ExecuteResult execute( final String command, long timeToLive, TimeUnit unit ) throws JSchException, IOException {
+        return cache.get( sessionProvider.getSessionFactory(), command, timeToLive, unit,
+                new Callable<ExecuteResult>() {
+                    @Override
+                    public ExecuteResult call() throws Exception {
+                        return CachingCommandRunner.super.execute( command );
+                    }
+                } );
+    }
+
+    /**
+     * Returns the cache backing this runner.
+     * 
+     * @return The cache
+     */
+    public CommandCache getCache() {
+        return cache;
+    }
+}
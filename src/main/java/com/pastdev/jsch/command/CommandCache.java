@@ -0,0 +1,281 @@
+package com.pastdev.jsch.command;
+
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+import com.jcraft.jsch.JSchException;
+import com.pastdev.jsch.SessionFactory;
+import com.pastdev.jsch.command.CommandRunner.ExecuteResult;
+
+
+/**
+ * A size bounded, least recently used cache of command execution results. Each
+ * entry is keyed by the target of the session factory (as returned by its
+ * <code>toString()</code>) and the command string, and expires after its own
+ * time to live. Concurrent requests for the same entry share a single
+ * execution rather than each issuing the command.
+ * <p>
+ * Only executions that complete without throwing are cached, so a failed
+ * connection will be retried by the next caller.
+ * </p>
+ * 
+ * @see CachingCommandRunner
+ */
+public class CommandCache {
+    private static Logger logger = LoggerFactory.getLogger( CommandCache.class );
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final Map<String, Entry> entries;
+    private final int maxEntries;
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Creates a cache that holds at most {@link #DEFAULT_MAX_ENTRIES} results.
+     */
+    public CommandCache() {
+        this( DEFAULT_MAX_ENTRIES );
+    }
+
+    /**
+     * Creates a cache that holds at most <code>maxEntries</code> results,
+     * evicting the least recently used when full.
+     * 
+     * @param maxEntries
+     *            The maximum number of cached results
+     */
+    public CommandCache( int maxEntries ) {
+        if ( maxEntries < 1 ) {
+            throw new IllegalArgumentException( "maxEntries must be positive" );
+        }
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<String, Entry>( 16, 0.75f, true ) {
+            private static final long serialVersionUID = 6469617263046412781L;
+
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<String, CommandCache.Entry> eldest ) {
+                if ( size() > CommandCache.this.maxEntries ) {
+                    evictionCount.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Removes all entries from the cache. Executions already in flight will
+     * still complete for the callers waiting on them.
+     */
+    public void clear() {
+        synchronized ( entries ) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Returns the cached result for <code>command</code> on the target of
+     * <code>sessionFactory</code>, calling <code>execution</code> to obtain it
+     * if there is no live entry. If another thread is already executing the
+     * same command, this call will wait for, and share, that result.
+     * 
+     * @param sessionFactory
+     *            The session factory the command is executed through
+     * @param command
+     *            The command
+     * @param timeToLive
+     *            How long a new result stays valid
+     * @param unit
+     *            The unit of <code>timeToLive</code>
+     * @param execution
+     *            The actual execution of the command
+     * @return The result
+     * @throws JSchException
+     *             If ssh execution fails
+     * @throws IOException
+     *             If unable to read the result data
+     */
+    public ExecuteResult get( SessionFactory sessionFactory, String command, long timeToLive, TimeUnit unit, Callable<ExecuteResult> execution ) throws JSchException, IOException {
+        String key = key( sessionFactory, command );
+        long now = System.nanoTime();
+
+        Entry entry;
+        boolean owner = false;
+        synchronized ( entries ) {
+            entry = entries.get( key );
+            if ( entry == null || entry.isExpired( now ) ) {
+                entry = new Entry( execution, unit.toNanos( timeToLive ) );
+                entries.put( key, entry );
+                owner = true;
+            }
+        }
+
+        if ( owner ) {
+            missCount.incrementAndGet();
+            logger.debug( "cache miss for `{}` on {}", command, sessionFactory );
+            entry.task.run();
+        }
+        else {
+            hitCount.incrementAndGet();
+            logger.trace( "cache hit for `{}` on {}", command, sessionFactory );
+        }
+
+        try {
+            return entry.get();
+        }
+        catch ( ExecutionException e ) {
+            invalidate( key, entry );
+            Throwable cause = e.getCause();
+            if ( cause instanceof JSchException ) {
+                throw (JSchException) cause;
+            }
+            if ( cause instanceof IOException ) {
+                throw (IOException) cause;
+            }
+            if ( cause instanceof RuntimeException ) {
+                throw (RuntimeException) cause;
+            }
+            if ( cause instanceof Error ) {
+                throw (Error) cause;
+            }
+            throw new IOException( "command execution failed", cause );
+        }
+    }
+
+    /**
+     * Returns the number of results that were removed to keep the cache within
+     * its maximum size.
+     * 
+     * @return The eviction count
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * Returns the number of requests served by a cached, or in flight, result.
+     * 
+     * @return The hit count
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Returns the number of requests that resulted in a command execution.
+     * 
+     * @return The miss count
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Returns the ratio of hits to total requests, or 0 if there have been no
+     * requests.
+     * 
+     * @return The hit ratio
+     */
+    public double getHitRatio() {
+        long hits = hitCount.get();
+        long total = hits + missCount.get();
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    /**
+     * Removes the entry for <code>command</code> on the target of
+     * <code>sessionFactory</code> if there is one.
+     * 
+     * @param sessionFactory
+     *            The session factory the command is executed through
+     * @param command
+     *            The command
+     */
+    public void invalidate( SessionFactory sessionFactory, String command ) {
+        synchronized ( entries ) {
+            entries.remove( key( sessionFactory, command ) );
+        }
+    }
+
+    private void invalidate( String key, Entry entry ) {
+        synchronized ( entries ) {
+            if ( entries.get( key ) == entry ) {
+                entries.remove( key );
+            }
+        }
+    }
+
+    private static String key( SessionFactory sessionFactory, String command ) {
+        return sessionFactory.toString() + "\n" + command;
+    }
+
+    /**
+     * Returns the number of entries currently held, including expired entries
+     * that have not yet been replaced.
+     * 
+     * @return The number of entries
+     */
+    public int size() {
+        synchronized ( entries ) {
+            return entries.size();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CommandCache(size=" + size() + ", hits=" + hitCount.get()
+                + ", misses=" + missCount.get() + ", evictions="
+                + evictionCount.get() + ")";
+    }
+
+    private static class Entry {
+        private volatile long expiresAt;
+        private final FutureTask<ExecuteResult> task;
+        private final long timeToLive;
+
+        private Entry( Callable<ExecuteResult> execution, long timeToLive ) {
+            this.task = new FutureTask<ExecuteResult>( execution );
+            this.timeToLive = timeToLive;
+        }
+
+        private ExecuteResult get() throws ExecutionException {
+            boolean interrupted = false;
+            try {
+                while ( true ) {
+                    try {
+                        ExecuteResult result = task.get();
+                        if ( expiresAt == 0 ) {
+                            expiresAt = System.nanoTime() + timeToLive;
+                        }
+                        return result;
+                    }
+                    catch ( InterruptedException e ) {
+                        interrupted = true;
+                    }
+                }
+            }
+            finally {
+                if ( interrupted ) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        private boolean isExpired( long now ) {
+            return task.isDone() && expiresAt != 0 && now - expiresAt >= 0;
+        }
+    }
+}
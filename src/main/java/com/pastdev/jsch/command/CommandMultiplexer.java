@@ -0,0 +1,512 @@
+package com.pastdev.jsch.command;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+import com.jcraft.jsch.JSchException;
+import com.pastdev.jsch.IOUtils;
+import com.pastdev.jsch.command.CommandRunner.ChannelExecWrapper;
+import com.pastdev.jsch.command.CommandRunner.ExecuteResult;
+
+
+/**
+ * Multiplexes many command executions and small file reads and writes over a
+ * single <code>exec</code> channel. When opened, a small self contained
+ * <code>perl</code> helper is started on the remote system which reads framed
+ * requests from STDIN and writes framed responses, tagged with the id of the
+ * request, to STDOUT. Commands are run concurrently by the helper (up to
+ * <code>maxConcurrency</code> at a time) so any number of requests may be in
+ * flight without opening additional channels, which are both expensive to open
+ * and capped by the server's <code>MaxSessions</code>.
+ * <p>
+ * The remote system must have <code>perl</code> (core modules only) and
+ * <code>/bin/sh</code>. Command output is buffered by the helper, so this is
+ * intended for commands with modest output; use {@link CommandRunner#open(String)}
+ * to stream large output.
+ * </p>
+ * 
+ * <pre>
+ * CommandMultiplexer multiplexer = commandRunner.openMultiplexer();
+ * try {
+ *     List&lt;Future&lt;ExecuteResult&gt;&gt; results = new ArrayList&lt;Future&lt;ExecuteResult&gt;&gt;();
+ *     for ( String host : hosts ) {
+ *         results.add( multiplexer.submit( &quot;ping -c 1 &quot; + host ) );
+ *     }
+ *     ...
+ * }
+ * finally {
+ *     multiplexer.close();
+ * }
+ * </pre>
+ * 
+ * @see CommandRunner#openMultiplexer()
+ */
+public class CommandMultiplexer implements Closeable {
+    private static Logger logger = LoggerFactory.getLogger( CommandMultiplexer.class );
+    public static final int DEFAULT_MAX_CONCURRENCY = 32;
+    private static final byte OPERATION_EXECUTE = 'X';
+    private static final byte OPERATION_READ = 'R';
+    private static final byte OPERATION_WRITE = 'W';
+
+    private final ChannelExecWrapper channel;
+    private volatile boolean closed;
+    private final CommandRunner commandRunner;
+    private final DataInputStream inputStream;
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final DataOutputStream outputStream;
+    private final Map<Integer, Request<?>> pending = new ConcurrentHashMap<Integer, Request<?>>();
+    private final Thread reader;
+    private final ByteArrayOutputStream stdErr;
+
+    CommandMultiplexer( CommandRunner commandRunner, int maxConcurrency ) throws JSchException, IOException {
+        this( commandRunner, new ByteArrayOutputStream(), maxConcurrency );
+    }
+
+    private CommandMultiplexer( CommandRunner commandRunner, ByteArrayOutputStream stdErr, int maxConcurrency ) throws JSchException, IOException {
+        this( commandRunner, open( commandRunner, stdErr, maxConcurrency ), stdErr );
+    }
+
+    private CommandMultiplexer( CommandRunner commandRunner, ChannelExecWrapper channel, ByteArrayOutputStream stdErr ) throws IOException {
+        this( commandRunner, channel, stdErr, channel.getInputStream(), channel.getOutputStream() );
+    }
+
+    private static ChannelExecWrapper open( CommandRunner commandRunner, ByteArrayOutputStream stdErr, int maxConcurrency ) throws JSchException, IOException {
+        return commandRunner.open( helperCommand( maxConcurrency ), stdErr, false );
+    }
+
+    /**
+     * Creates a multiplexer speaking to a helper already started on the other
+     * end of <code>inputStream</code> and <code>outputStream</code>. It must
+     * be {@link #start() started} before use.
+     */
+    CommandMultiplexer( CommandRunner commandRunner, InputStream inputStream, OutputStream outputStream ) {
+        this( commandRunner, null, null, inputStream, outputStream );
+    }
+
+    private CommandMultiplexer( CommandRunner commandRunner, ChannelExecWrapper channel, ByteArrayOutputStream stdErr, InputStream inputStream, OutputStream outputStream ) {
+        this.commandRunner = commandRunner;
+        this.channel = channel;
+        this.stdErr = stdErr;
+        this.inputStream = new DataInputStream( inputStream );
+        this.outputStream = new DataOutputStream( outputStream );
+
+        this.reader = new Thread( new Runnable() {
+            @Override
+            public void run() {
+                readResponses();
+            }
+        }, "CommandMultiplexer-" + commandRunner.sessionProvider );
+        this.reader.setDaemon( true );
+    }
+
+    /**
+     * Stops accepting new requests, waits for all in flight requests to
+     * complete, then closes the underlying channel.
+     */
+    @Override
+    public void close() throws IOException {
+        if ( closed ) {
+            return;
+        }
+        closed = true;
+        synchronized ( outputStream ) {
+            IOUtils.closeAndLogException( outputStream );
+        }
+        try {
+            reader.join();
+        }
+        catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+        if ( channel != null ) {
+            int exitCode = channel.close();
+            if ( exitCode != 0 ) {
+                logger.warn( "multiplexer helper on {} exited with {}: {}",
+                        commandRunner.sessionProvider, exitCode, stdErr );
+            }
+        }
+    }
+
+    /**
+     * Executes <code>command</code> and waits for its result.
+     * 
+     * @param command
+     *            The command to execute
+     * @return The resulting data
+     * @throws IOException
+     *             If the multiplexer failed or was closed
+     * 
+     * @see CommandRunner#execute(String)
+     */
+    public ExecuteResult execute( String command ) throws IOException {
+        return get( submit( command ) );
+    }
+
+    private static <T> T get( Future<T> future ) throws IOException {
+        boolean interrupted = false;
+        try {
+            while ( true ) {
+                try {
+                    return future.get();
+                }
+                catch ( InterruptedException e ) {
+                    interrupted = true;
+                }
+                catch ( ExecutionException e ) {
+                    Throwable cause = e.getCause();
+                    if ( cause instanceof IOException ) {
+                        throw (IOException) cause;
+                    }
+                    throw new IOException( cause );
+                }
+            }
+        }
+        finally {
+            if ( interrupted ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    static String helperCommand( int maxConcurrency ) {
+        return "exec perl -e '"
+                + "use strict;use POSIX ();use File::Temp qw(tempdir);use IO::Select;"
+                + "my $max=" + maxConcurrency + ";my $dir=tempdir(CLEANUP=>1);"
+                + "pipe(my $dr,my $dw) or die qq{pipe: $!};binmode STDIN;binmode STDOUT;"
+                + "my ($in,$done,$eof,$kids)=(q{},q{},0,0);"
+                + "sub out{my $f=shift;my $o=0;while($o<length $f){my $n=syswrite(STDOUT,$f,length($f)-$o,$o);die qq{write: $!} unless defined $n;$o+=$n}}"
+                + "sub reply{my($id,$rc,$o,$e)=@_;out(pack(q{NN},$id,$rc).pack(q{N/a*},$o).pack(q{N/a*},$e))}"
+                + "sub slurp{open(my $h,q{<},shift) or return undef;binmode $h;local $/;my $d=<$h>;close $h;defined $d?$d:q{}}"
+                + "sub handle{my($id,$op,$p)=@_;"
+                + "if($op eq q{R}){my $d=slurp($p);defined $d?reply($id,0,$d,q{}):reply($id,1,q{},qq{$p: $!})}"
+                + "elsif($op eq q{W}){my($f,$d)=unpack(q{N/a* a*},$p);my $h;if(open($h,q{>},$f)&&binmode($h)&&(print $h $d)&&close($h)){reply($id,0,q{},q{})}else{reply($id,1,q{},qq{$f: $!})}}"
+                + "elsif($op eq q{X}){my $pid=fork;if(!defined $pid){reply($id,126,q{},qq{fork: $!});return}"
+                + "if($pid==0){close $dr;open(STDIN,q{<},q{/dev/null});open(STDOUT,q{>},qq{$dir/$id.o});open(STDERR,q{>},qq{$dir/$id.e});"
+                + "system(q{/bin/sh},q{-c},$p);my $s=$?;my $rc=$s==-1?127:($s&127)?128+($s&127):$s>>8;"
+                + "open(my $r,q{>},qq{$dir/$id.r});binmode $r;print $r pack(q{N},$rc).pack(q{N/a*},slurp(qq{$dir/$id.o})).pack(q{N/a*},slurp(qq{$dir/$id.e}));close $r;"
+                + "unlink(qq{$dir/$id.o},qq{$dir/$id.e});syswrite($dw,pack(q{N},$id));POSIX::_exit(0)}"
+                + "$kids++}"
+                + "else{reply($id,2,q{},qq{unknown operation $op})}}"
+                + "while(1){"
+                + "while($kids<$max&&length($in)>=9){my($id,$op,$len)=unpack(q{N a N},$in);last if length($in)<9+$len;my $p=substr($in,9,$len);substr($in,0,9+$len)=q{};handle($id,$op,$p)}"
+                + "last if $eof&&$kids==0;"
+                + "my $sel=IO::Select->new($dr);$sel->add(\\*STDIN) if !$eof&&$kids<$max;"
+                + "for my $h($sel->can_read){"
+                + "if($h==$dr){sysread($dr,$done,4096,length $done);"
+                + "while(length($done)>=4){my $id=unpack(q{N},substr($done,0,4,q{}));my $r=slurp(qq{$dir/$id.r});unlink(qq{$dir/$id.r});"
+                + "out(pack(q{N},$id).(defined $r?$r:pack(q{NNN/a*},125,0,qq{lost result})));$kids--}"
+                + "1 while waitpid(-1,POSIX::WNOHANG())>0}"
+                + "else{my $n=sysread(STDIN,$in,65536,length $in);$eof=1 if !$n}}}"
+                + "'";
+    }
+
+    /**
+     * Returns the number of requests that have been sent but not yet
+     * answered.
+     * 
+     * @return The number of in flight requests
+     */
+    public int getInFlightCount() {
+        return pending.size();
+    }
+
+    /**
+     * Returns true if this multiplexer is accepting requests.
+     * 
+     * @return True if open
+     */
+    public boolean isOpen() {
+        return !closed && reader.isAlive();
+    }
+
+    /**
+     * Reads the contents of the file at <code>path</code> on the remote
+     * system.
+     * 
+     * @param path
+     *            The path to the file
+     * @return The contents of the file
+     * @throws IOException
+     *             If the file could not be read, or the multiplexer failed
+     */
+    public byte[] readFile( String path ) throws IOException {
+        return get( submitReadFile( path ) );
+    }
+
+    private void readResponses() {
+        IOException failure = null;
+        try {
+            while ( true ) {
+                int id;
+                try {
+                    id = inputStream.readInt();
+                }
+                catch ( EOFException e ) {
+                    break;
+                }
+                int exitCode = inputStream.readInt();
+                byte[] stdOut = readBytes();
+                byte[] stdErr = readBytes();
+                Request<?> request = pending.remove( id );
+                if ( request == null ) {
+                    logger.warn( "response for unknown request {}", id );
+                    continue;
+                }
+                request.complete( exitCode, stdOut, stdErr );
+            }
+        }
+        catch ( IOException e ) {
+            failure = e;
+        }
+        finally {
+            closed = true;
+            if ( !pending.isEmpty() ) {
+                if ( failure == null ) {
+                    failure = new IOException( "multiplexer helper exited" );
+                }
+                logger.error( "multiplexer on {} failed: {}", commandRunner.sessionProvider, failure.getMessage() );
+                List<Request<?>> failed = new ArrayList<Request<?>>( pending.values() );
+                pending.clear();
+                for ( Request<?> request : failed ) {
+                    request.fail( failure );
+                }
+            }
+        }
+    }
+
+    private byte[] readBytes() throws IOException {
+        byte[] bytes = new byte[inputStream.readInt()];
+        inputStream.readFully( bytes );
+        return bytes;
+    }
+
+    private <T> Future<T> send( byte operation, byte[] payload, Request<T> request ) throws IOException {
+        int id = nextId.incrementAndGet();
+        pending.put( id, request );
+        try {
+            synchronized ( outputStream ) {
+                if ( closed ) {
+                    throw new IOException( "multiplexer is closed" );
+                }
+                outputStream.writeInt( id );
+                outputStream.writeByte( operation );
+                outputStream.writeInt( payload.length );
+                outputStream.write( payload );
+                outputStream.flush();
+            }
+        }
+        catch ( IOException e ) {
+            pending.remove( id );
+            throw e;
+        }
+        return request;
+    }
+
+    /**
+     * Starts reading the responses of the helper. Called once the multiplexer
+     * is constructed, so that the reader never sees it partly constructed.
+     * 
+     * @return This multiplexer
+     */
+    CommandMultiplexer start() {
+        reader.start();
+        return this;
+    }
+
+    /**
+     * Sends <code>command</code> for execution and returns a future for its
+     * result. The command is run by <code>/bin/sh</code> on the remote system
+     * with STDIN redirected from <code>/dev/null</code>.
+     * 
+     * @param command
+     *            The command to execute
+     * @return A future result
+     * @throws IOException
+     *             If the multiplexer failed or was closed
+     */
+    public Future<ExecuteResult> submit( String command ) throws IOException {
+        return send( OPERATION_EXECUTE, command.getBytes( CommandRunner.UTF8 ),
+                new Request<ExecuteResult>() {
+                    @Override
+                    protected void complete( int exitCode, byte[] stdOut, byte[] stdErr ) {
+                        set( commandRunner.new ExecuteResult( exitCode,
+                                new String( stdOut, CommandRunner.UTF8 ),
+                                new String( stdErr, CommandRunner.UTF8 ) ) );
+                    }
+                } );
+    }
+
+    /**
+     * Sends a request to read the file at <code>path</code> and returns a
+     * future for its contents.
+     * 
+     * @param path
+     *            The path to the file
+     * @return A future for the contents of the file
+     * @throws IOException
+     *             If the multiplexer failed or was closed
+     */
+    public Future<byte[]> submitReadFile( String path ) throws IOException {
+        return send( OPERATION_READ, path.getBytes( CommandRunner.UTF8 ),
+                new Request<byte[]>() {
+                    @Override
+                    protected void complete( int exitCode, byte[] stdOut, byte[] stdErr ) {
+                        if ( exitCode == 0 ) {
+                            set( stdOut );
+                        }
+                        else {
+                            fail( new IOException( new String( stdErr, CommandRunner.UTF8 ) ) );
+                        }
+                    }
+                } );
+    }
+
+    /**
+     * Sends a request to write <code>contents</code> to the file at
+     * <code>path</code>, replacing it if it exists, and returns a future that
+     * completes when the file is written.
+     * 
+     * @param path
+     *            The path to the file
+     * @param contents
+     *            The contents to write
+     * @return A future that completes when written
+     * @throws IOException
+     *             If the multiplexer failed or was closed
+     */
+    public Future<Void> submitWriteFile( String path, byte[] contents ) throws IOException {
+        byte[] pathBytes = path.getBytes( CommandRunner.UTF8 );
+        ByteArrayOutputStream payload = new ByteArrayOutputStream( 4 + pathBytes.length + contents.length );
+        DataOutputStream data = new DataOutputStream( payload );
+        data.writeInt( pathBytes.length );
+        data.write( pathBytes );
+        data.write( contents );
+        return send( OPERATION_WRITE, payload.toByteArray(),
+                new Request<Void>() {
+                    @Override
+                    protected void complete( int exitCode, byte[] stdOut, byte[] stdErr ) {
+                        if ( exitCode == 0 ) {
+                            set( null );
+                        }
+                        else {
+                            fail( new IOException( new String( stdErr, CommandRunner.UTF8 ) ) );
+                        }
+                    }
+                } );
+    }
+
+    @Override
+    public String toString() {
+        return "MULTIPLEXER(" + commandRunner.sessionProvider + ")";
+    }
+
+    /**
+     * Writes <code>contents</code> to the file at <code>path</code> on the
+     * remote system, replacing it if it exists.
+     * 
+     * @param path
+     *            The path to the file
+     * @param contents
+     *            The contents to write
+     * @throws IOException
+     *             If the file could not be written, or the multiplexer failed
+     */
+    public void writeFile( String path, byte[] contents ) throws IOException {
+        get( submitWriteFile( path, contents ) );
+    }
+
+    /**
+     * The future result of a request, completed by the reader thread.
+     * Cancelling it only stops waiting for the result, the helper still
+     * carries out the request.
+     */
+    private static abstract class Request<T> implements Future<T> {
+        private boolean cancelled;
+        private final CountDownLatch done = new CountDownLatch( 1 );
+        private Throwable failure;
+        private T result;
+
+        @Override
+        public boolean cancel( boolean mayInterruptIfRunning ) {
+            return finish( null, null, true );
+        }
+
+        protected abstract void complete( int exitCode, byte[] stdOut, byte[] stdErr );
+
+        protected void fail( Throwable cause ) {
+            finish( null, cause, false );
+        }
+
+        private synchronized boolean finish( T result, Throwable failure, boolean cancelled ) {
+            if ( isDone() ) {
+                return false;
+            }
+            this.result = result;
+            this.failure = failure;
+            this.cancelled = cancelled;
+            done.countDown();
+            return true;
+        }
+
+        @Override
+        public T get() throws InterruptedException, ExecutionException {
+            done.await();
+            return result();
+        }
+
+        @Override
+        public T get( long timeout, TimeUnit unit ) throws InterruptedException, ExecutionException, TimeoutException {
+            if ( !done.await( timeout, unit ) ) {
+                throw new TimeoutException();
+            }
+            return result();
+        }
+
+        @Override
+        public synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        private synchronized T result() throws ExecutionException {
+            if ( cancelled ) {
+                throw new CancellationException();
+            }
+            if ( failure != null ) {
+                throw new ExecutionException( failure );
+            }
+            return result;
+        }
+
+        protected void set( T result ) {
+            finish( result, null, false );
+        }
+    }
+}
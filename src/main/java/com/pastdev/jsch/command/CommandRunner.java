@@ -1,12 +1,19 @@
 package com.pastdev.jsch.command;
 
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.zip.GZIPInputStream;
 
 
 import org.slf4j.Logger;
@@ -16,9 +23,11 @@ import org.slf4j.LoggerFactory;
 import com.jcraft.jsch.ChannelExec;
 import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.Session;
+import com.pastdev.jsch.ChannelAdmissionController;
 import com.pastdev.jsch.IOUtils;
 import com.pastdev.jsch.SessionFactory;
 import com.pastdev.jsch.SessionManager;
+import com.pastdev.jsch.SessionProvider;
 
 
 /**
@@ -31,8 +40,27 @@ import com.pastdev.jsch.SessionManager;
 public class CommandRunner implements Closeable {
     private static Logger logger = LoggerFactory.getLogger( CommandRunner.class );
     protected static final Charset UTF8 = Charset.forName( "UTF-8" );
+    private static final String COMPRESSOR_CHECK = "command -v gzip >/dev/null 2>&1";
+    public static final String DEFAULT_SCRIPT_DIRECTORY = ".jsch-extension/scripts";
+    private static final int SCRIPT_MISSING_EXIT_CODE = 127;
+    private static final String SCRIPT_MISSING_MARKER = "jsch-extension: script missing";
 
+    /**
+     * The session manager of a runner created from a {@link SessionFactory},
+     * or of a runner created from a {@link SessionProvider} that is a
+     * {@link SessionManager}, null otherwise.
+     * 
+     * @deprecated Use {@link #sessionProvider}, which is set for every runner
+     */
+    @Deprecated
     protected final SessionManager sessionManager;
+    protected final SessionProvider sessionProvider;
+    private volatile boolean compressOutput;
+    private volatile Boolean compressorAvailable;
+    final boolean ownsSessionProvider;
+    private volatile String scriptDirectory = DEFAULT_SCRIPT_DIRECTORY;
+    private final Map<Session, Set<String>> uploadedScripts = Collections.synchronizedMap(
+            new WeakHashMap<Session, Set<String>>() );
 
     /**
      * Creates a new CommandRunner that will use a {@link SessionManager} that
@@ -41,27 +69,68 @@ public class CommandRunner implements Closeable {
      * @param sessionFactory The factory used to create a session manager
      */
     public CommandRunner( SessionFactory sessionFactory ) {
-        this.sessionManager =  new SessionManager( sessionFactory );
+        this.sessionManager = new SessionManager( sessionFactory );
+        this.sessionProvider = sessionManager;
+        this.ownsSessionProvider = true;
+    }
+
+    /**
+     * Creates a new CommandRunner that will open its channels on sessions
+     * from the supplied <code>sessionProvider</code>, such as a
+     * {@link com.pastdev.jsch.SessionPool SessionPool} shared with other
+     * runners. The provider is not closed when this runner is closed.
+     * 
+     * @param sessionProvider
+     *            The provider of sessions
+     */
+    public CommandRunner( SessionProvider sessionProvider ) {
+        this.sessionManager = sessionProvider instanceof SessionManager
+                ? (SessionManager) sessionProvider : null;
+        this.sessionProvider = sessionProvider;
+        this.ownsSessionProvider = false;
     }
 
     /**
-     * Closes the underlying {@link SessionManager}.
+     * Closes the underlying {@link SessionManager}, unless this runner was
+     * created from a shared {@link SessionProvider}.
      * 
      * @see SessionManager#close()
      */
     @Override
     public void close() throws IOException {
-        sessionManager.close();
+        if ( ownsSessionProvider ) {
+            sessionProvider.close();
+        }
     }
 
     /**
      * Returns a new CommandRunner with the same SessionFactory, but will
-     * create a separate session.
+     * create a separate session. If this runner was created from a shared
+     * {@link SessionProvider}, the duplicate shares it too.
      * 
      * @return A duplicate CommandRunner with a different session.
      */
     public CommandRunner duplicate() {
-        return new CommandRunner( sessionManager.getSessionFactory() );
+        CommandRunner duplicate = ownsSessionProvider
+                ? new CommandRunner( sessionProvider.getSessionFactory() )
+                : new CommandRunner( sessionProvider );
+        duplicate.setCompressOutput( compressOutput );
+        duplicate.setScriptDirectory( scriptDirectory );
+        return duplicate;
+    }
+
+    /**
+     * Returns <code>command</code> wrapped such that its STDOUT is gzip'ed on
+     * the remote system while its exit code is preserved. Requires a POSIX
+     * compatible login shell on the remote system.
+     * 
+     * @param command
+     *            The command to wrap
+     * @return The wrapped command
+     */
+    static String compressedCommand( String command ) {
+        return "exec 4>&1; rc=$( { { ( " + command + "\n) 3>&- 4>&-; echo $? >&3; } "
+                + "| gzip -c >&4; } 3>&1 ); exec 4>&-; exit $rc";
     }
 
     /**
@@ -82,18 +151,41 @@ public class CommandRunner implements Closeable {
      *             If unable to read the result data
      */
     public ExecuteResult execute( String command ) throws JSchException, IOException {
-        logger.debug( "executing {} on {}", command, sessionManager );
-        Session session = sessionManager.getSession();
+        logger.debug( "executing {} on {}", command, sessionProvider );
+        for ( int attempt = 1;; attempt++ ) {
+            Session session = sessionProvider.acquireSession();
+            boolean release = true;
+            try {
+                return execute( session, command );
+            }
+            catch ( JSchException e ) {
+                release = false;
+                rejected( session, e, attempt );
+            }
+            finally {
+                if ( release ) {
+                    sessionProvider.releaseSession( session );
+                }
+            }
+        }
+    }
 
+    private ExecuteResult execute( Session session, String command ) throws JSchException, IOException {
         ByteArrayOutputStream stdErr = new ByteArrayOutputStream();
         ByteArrayOutputStream stdOut = new ByteArrayOutputStream();
         int exitCode;
         ChannelExecWrapper channel = null;
         try {
-            channel = new ChannelExecWrapper( session, command, null, stdOut, stdErr );
+            if ( shouldCompress( session ) ) {
+                channel = new ChannelExecWrapper( session, command, null, null, stdErr, true );
+                IOUtils.copy( channel.getInputStream(), stdOut );
+            }
+            else {
+                channel = new ChannelExecWrapper( session, command, null, stdOut, stdErr );
+            }
         }
         finally {
-            exitCode = channel.close();
+            exitCode = channel == null ? -2 : channel.close();
         }
 
         return new ExecuteResult( exitCode,
@@ -101,6 +193,121 @@ public class CommandRunner implements Closeable {
                 new String( stdErr.toByteArray(), UTF8 ) );
     }
 
+    /**
+     * Executes <code>script</code> with <code>arguments</code> and returns the
+     * result. The first time a script is executed on a session it is uploaded
+     * to the {@link #setScriptDirectory(String) script directory}, named by
+     * the hash of its contents. After that, only the short command line
+     * invoking it by path is sent. If the remote copy has disappeared, it is
+     * uploaded again and the execution retried. Arguments are quoted for the
+     * remote shell.
+     * 
+     * @param script
+     *            The script to execute
+     * @param arguments
+     *            The arguments to pass to the script
+     * @return The resulting data
+     * 
+     * @throws JSchException
+     *             If ssh execution fails
+     * @throws IOException
+     *             If unable to upload the script or read the result data
+     * 
+     * @see #execute(String)
+     */
+    public ExecuteResult executeScript( RemoteScript script, String... arguments ) throws JSchException, IOException {
+        for ( int attempt = 1;; attempt++ ) {
+            Session session = sessionProvider.acquireSession();
+            boolean release = true;
+            try {
+                return executeScript( session, script, arguments );
+            }
+            catch ( JSchException e ) {
+                release = false;
+                rejected( session, e, attempt );
+            }
+            finally {
+                if ( release ) {
+                    sessionProvider.releaseSession( session );
+                }
+            }
+        }
+    }
+
+    private ExecuteResult executeScript( Session session, RemoteScript script, String... arguments ) throws JSchException, IOException {
+        String path = scriptDirectory + "/" + script.getHash();
+        StringBuilder command = new StringBuilder( "if [ -r " )
+                .append( quote( path ) ).append( " ]; then exec " )
+                .append( script.getInterpreter() ).append( " " ).append( quote( path ) );
+        for ( String argument : arguments ) {
+            command.append( " " ).append( quote( argument ) );
+        }
+        command.append( "; else echo '" ).append( SCRIPT_MISSING_MARKER )
+                .append( "' >&2; exit " ).append( SCRIPT_MISSING_EXIT_CODE ).append( "; fi" );
+        logger.debug( "executing script {} on {}", script, sessionProvider );
+
+        Set<String> uploaded;
+        synchronized ( uploadedScripts ) {
+            uploaded = uploadedScripts.get( session );
+            if ( uploaded == null ) {
+                uploaded = Collections.synchronizedSet( new HashSet<String>() );
+                uploadedScripts.put( session, uploaded );
+            }
+        }
+
+        if ( !uploaded.contains( script.getHash() ) ) {
+            uploadScript( session, script, path );
+            uploaded.add( script.getHash() );
+        }
+        ExecuteResult result = execute( session, command.toString() );
+        if ( result.getExitCode() == SCRIPT_MISSING_EXIT_CODE
+                && result.getStderr().startsWith( SCRIPT_MISSING_MARKER ) ) {
+            logger.debug( "script {} missing from {}, uploading again", script, sessionProvider );
+            uploaded.remove( script.getHash() );
+            uploadScript( session, script, path );
+            uploaded.add( script.getHash() );
+            result = execute( session, command.toString() );
+        }
+        return result;
+    }
+
+    /**
+     * Ends the acquisition of <code>session</code> after <code>e</code>, and
+     * returns if the channel was refused by the server and should be tried
+     * again, otherwise rethrows <code>e</code>.
+     */
+    private void rejected( Session session, JSchException e, int attempt ) throws JSchException {
+        if ( !ChannelAdmissionController.isRejection( e ) ) {
+            sessionProvider.releaseSession( session );
+            throw e;
+        }
+        sessionProvider.channelRejected( session );
+        if ( attempt >= ChannelAdmissionController.MAX_REJECTED_ATTEMPTS ) {
+            throw e;
+        }
+        logger.debug( "channel refused by {}, waiting for another", sessionProvider );
+    }
+
+    private static String quote( String argument ) {
+        return "'" + argument.replace( "'", "'\\''" ) + "'";
+    }
+
+    private void uploadScript( Session session, RemoteScript script, String path ) throws JSchException, IOException {
+        logger.debug( "uploading script {} to {}", script, sessionProvider );
+        String temp = quote( path + ".tmp" ) + ".$$";
+        String command = "umask 077 && mkdir -p " + quote( scriptDirectory )
+                + " && cat > " + temp + " && mv -f " + temp + " " + quote( path );
+        ByteArrayOutputStream stdErr = new ByteArrayOutputStream();
+        ChannelExecWrapper channel = new ChannelExecWrapper( session, command,
+                new ByteArrayInputStream( script.getContents() ), null, stdErr );
+        int exitCode = channel.close();
+        if ( exitCode != 0 ) {
+            throw new IOException( "failed to upload script " + script + " to "
+                    + sessionProvider + " (" + exitCode + "): "
+                    + new String( stdErr.toByteArray(), UTF8 ) );
+        }
+    }
+
     /**
      * Executes <code>command</code> and returns an execution wrapper that
      * provides safe access to and management of the underlying streams of data.
@@ -114,8 +321,152 @@ public class CommandRunner implements Closeable {
      *             If unable to read the result data
      */
     public ChannelExecWrapper open( String command ) throws JSchException, IOException {
-        logger.debug( "executing {} on {}", command, sessionManager );
-        return new ChannelExecWrapper( sessionManager.getSession(), command, null, null, null );
+        logger.debug( "executing {} on {}", command, sessionProvider );
+        return open( command, null, true );
+    }
+
+    /**
+     * Acquires a session and opens a wrapper on it that will release the
+     * session back to the provider when closed, queuing again if the server
+     * refuses the channel.
+     */
+    ChannelExecWrapper open( String command, OutputStream stdErr, boolean compressible ) throws JSchException, IOException {
+        for ( int attempt = 1;; attempt++ ) {
+            Session session = sessionProvider.acquireSession();
+            boolean release = true;
+            try {
+                ChannelExecWrapper channel = open( session, command, null, null, stdErr,
+                        compressible && shouldCompress( session ) );
+                release = false;
+                return channel;
+            }
+            catch ( JSchException e ) {
+                release = false;
+                rejected( session, e, attempt );
+            }
+            finally {
+                if ( release ) {
+                    sessionProvider.releaseSession( session );
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens a wrapper on an already acquired <code>session</code> that will
+     * release the session back to the provider when closed.
+     */
+    ChannelExecWrapper open( Session session, String command, InputStream stdIn, OutputStream stdOut, OutputStream stdErr, boolean compressed ) throws JSchException, IOException {
+        ChannelExecWrapper channel = new ChannelExecWrapper( session, command, stdIn, stdOut, stdErr, compressed );
+        channel.acquiredSession = session;
+        return channel;
+    }
+
+    /**
+     * Starts a helper on the remote system that allows many commands and small
+     * file operations to be multiplexed over a single <code>exec</code>
+     * channel. The returned multiplexer must be closed when no longer needed.
+     * 
+     * @return A multiplexer using the session of this runner
+     * @throws JSchException
+     *             If ssh execution fails
+     * @throws IOException
+     *             If unable to open the streams
+     * 
+     * @see CommandMultiplexer
+     */
+    public CommandMultiplexer openMultiplexer() throws JSchException, IOException {
+        return openMultiplexer( CommandMultiplexer.DEFAULT_MAX_CONCURRENCY );
+    }
+
+    /**
+     * Starts a helper on the remote system that allows many commands and small
+     * file operations to be multiplexed over a single <code>exec</code>
+     * channel, running at most <code>maxConcurrency</code> commands at a time.
+     * The returned multiplexer must be closed when no longer needed.
+     * 
+     * @param maxConcurrency
+     *            The maximum number of commands the helper runs at once
+     * @return A multiplexer using the session of this runner
+     * @throws JSchException
+     *             If ssh execution fails
+     * @throws IOException
+     *             If unable to open the streams
+     * 
+     * @see CommandMultiplexer
+     */
+    public CommandMultiplexer openMultiplexer( int maxConcurrency ) throws JSchException, IOException {
+        logger.debug( "opening multiplexer on {}", sessionProvider );
+        return new CommandMultiplexer( this, maxConcurrency ).start();
+    }
+
+    /**
+     * Returns true if STDOUT of executed commands will be compressed on the
+     * remote system.
+     * 
+     * @return True if output compression is enabled
+     * 
+     * @see #setCompressOutput(boolean)
+     */
+    public boolean isCompressOutput() {
+        return compressOutput;
+    }
+
+    /**
+     * Enables or disables compression of STDOUT for commands executed by this
+     * runner. When enabled, each command is wrapped so that its STDOUT is
+     * piped through <code>gzip</code> on the remote system, and inflated as
+     * it is read locally. The results returned by {@link #execute(String)} and
+     * the streams returned by {@link #open(String)} are unaffected. This is
+     * worth while for commands producing large amounts of text over slow
+     * links. The remote system must have a POSIX compatible login shell. If
+     * <code>gzip</code> is not found on the remote system, commands are
+     * executed uncompressed.
+     * 
+     * @param compressOutput
+     *            True to compress STDOUT
+     */
+    public void setCompressOutput( boolean compressOutput ) {
+        this.compressOutput = compressOutput;
+    }
+
+    /**
+     * Returns the directory on the remote system that scripts are uploaded to.
+     * 
+     * @return The remote script directory
+     */
+    public String getScriptDirectory() {
+        return scriptDirectory;
+    }
+
+    /**
+     * Sets the directory on the remote system that scripts are uploaded to.
+     * Relative paths are relative to the home directory of the remote user.
+     * Defaults to {@link #DEFAULT_SCRIPT_DIRECTORY}.
+     * 
+     * @param scriptDirectory
+     *            The remote script directory
+     * 
+     * @see #executeScript(RemoteScript, String...)
+     */
+    public void setScriptDirectory( String scriptDirectory ) {
+        this.scriptDirectory = scriptDirectory;
+    }
+
+    private boolean shouldCompress( Session session ) throws JSchException, IOException {
+        if ( !compressOutput ) {
+            return false;
+        }
+        Boolean available = compressorAvailable;
+        if ( available == null ) {
+            ChannelExecWrapper channel = new ChannelExecWrapper( session, COMPRESSOR_CHECK, null, null, null );
+            available = channel.close() == 0;
+            if ( !available ) {
+                logger.warn( "gzip not available on {}, output will not be compressed", sessionProvider );
+            }
+            compressorAvailable = available;
+        }
+        return available;
     }
 
     /**
@@ -178,6 +529,7 @@ public class CommandRunner implements Closeable {
      * command.
      */
     public class ChannelExecWrapper {
+        private Session acquiredSession;
         protected ChannelExec channel;
         protected String command;
         protected OutputStream passedInStdErr;
@@ -191,8 +543,43 @@ public class CommandRunner implements Closeable {
         }
 
         public ChannelExecWrapper( Session session, String command, InputStream stdIn, OutputStream stdOut, OutputStream stdErr ) throws JSchException, IOException {
+            this( session, command, stdIn, stdOut, stdErr, false );
+        }
+
+        /**
+         * Creates a wrapper, and if <code>compressed</code>, STDOUT of
+         * <code>command</code> will be gzip'ed on the remote system and
+         * inflated by the stream returned from {@link #getInputStream()}. A
+         * compressed wrapper does not support a passed in STDOUT stream.
+         * 
+         * @param session
+         *            The session to open the channel on
+         * @param command
+         *            The command to execute
+         * @param stdIn
+         *            A stream to read STDIN from, or null
+         * @param stdOut
+         *            A stream to write STDOUT to, or null
+         * @param stdErr
+         *            A stream to write STDERR to, or null
+         * @param compressed
+         *            True to compress STDOUT
+         * @throws JSchException
+         *             If ssh execution fails
+         * @throws IOException
+         *             If unable to open the streams
+         */
+        public ChannelExecWrapper( Session session, String command, InputStream stdIn, OutputStream stdOut, OutputStream stdErr, boolean compressed ) throws JSchException, IOException {
+            if ( compressed && stdOut != null ) {
+                throw new IllegalArgumentException( "compressed execution requires reading from getInputStream()" );
+            }
             this.command = command;
             this.channel = (ChannelExec) session.openChannel( "exec" );
+            if ( compressed ) {
+                // must be obtained before connect or early output is dropped
+                this.stdOut = new GunzipInputStream( channel.getInputStream() );
+                command = compressedCommand( command );
+            }
             if ( stdIn != null ) {
                 this.passedInStdIn = stdIn;
                 this.channel.setInputStream( stdIn );
@@ -243,6 +630,10 @@ public class CommandRunner implements Closeable {
                     if ( channel.isConnected() ) {
                         channel.disconnect();
                     }
+                    if ( acquiredSession != null ) {
+                        sessionProvider.releaseSession( acquiredSession );
+                        acquiredSession = null;
+                    }
                 }
             }
             logger.trace( "`{}` exit {}", command, exitCode );
@@ -297,4 +688,49 @@ public class CommandRunner implements Closeable {
             return stdIn;
         }
     }
+
+    /**
+     * Defers reading the gzip header until the first read so that opening a
+     * compressed channel does not block waiting for remote output.
+     */
+    private static class GunzipInputStream extends InputStream {
+        private InputStream compressed;
+        private GZIPInputStream inflated;
+
+        private GunzipInputStream( InputStream compressed ) {
+            this.compressed = compressed;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return inflated == null ? 0 : inflated.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if ( inflated != null ) {
+                inflated.close();
+            }
+            else {
+                compressed.close();
+            }
+        }
+
+        private InputStream inflated() throws IOException {
+            if ( inflated == null ) {
+                inflated = new GZIPInputStream( compressed, 16 * 1024 );
+            }
+            return inflated;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return inflated().read();
+        }
+
+        @Override
+        public int read( byte[] buffer, int offset, int length ) throws IOException {
+            return inflated().read( buffer, offset, length );
+        }
+    }
 }
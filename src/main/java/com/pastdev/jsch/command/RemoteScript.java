@@ -0,0 +1,97 @@
+package com.pastdev.jsch.command;
+
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+
+/**
+ * A script that is uploaded to the remote system once, under a name derived
+ * from the hash of its contents, and invoked by path thereafter. This saves
+ * sending the full text of large scripts with every execution.
+ * 
+ * @see CommandRunner#executeScript(RemoteScript, String...)
+ */
+public class RemoteScript {
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final byte[] contents;
+    private final String hash;
+    private final String interpreter;
+
+    /**
+     * Creates a script to be run by <code>sh</code>.
+     * 
+     * @param contents
+     *            The text of the script
+     */
+    public RemoteScript( String contents ) {
+        this( "sh", contents );
+    }
+
+    /**
+     * Creates a script to be run by <code>interpreter</code>, for example
+     * <code>bash</code> or <code>perl</code>.
+     * 
+     * @param interpreter
+     *            The command used to run the script
+     * @param contents
+     *            The text of the script
+     */
+    public RemoteScript( String interpreter, String contents ) {
+        this.interpreter = interpreter;
+        this.contents = contents.getBytes( UTF8 );
+        this.hash = sha256( this.contents );
+    }
+
+    /**
+     * Returns the UTF-8 encoded text of the script.
+     * 
+     * @return The script bytes
+     */
+    byte[] getContents() {
+        return contents;
+    }
+
+    /**
+     * Returns the hex encoded SHA-256 hash of the script, which is also the
+     * name of the remote file.
+     * 
+     * @return The hash
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * Returns the command used to run the script.
+     * 
+     * @return The interpreter
+     */
+    public String getInterpreter() {
+        return interpreter;
+    }
+
+    private static String sha256( byte[] bytes ) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance( "SHA-256" ).digest( bytes );
+        }
+        catch ( NoSuchAlgorithmException e ) {
+            throw new IllegalStateException( "SHA-256 is required of every jvm", e );
+        }
+        char[] hex = new char[digest.length * 2];
+        for ( int i = 0; i < digest.length; i++ ) {
+            hex[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX[digest[i] & 0xf];
+        }
+        return new String( hex );
+    }
+
+    @Override
+    public String toString() {
+        return interpreter + " " + hash;
+    }
+}
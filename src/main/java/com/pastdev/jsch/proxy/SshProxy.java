@@ -15,6 +15,7 @@ import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.Proxy;
 import com.jcraft.jsch.Session;
 import com.jcraft.jsch.SocketFactory;
+import com.pastdev.jsch.ConnectionGovernor;
 import com.pastdev.jsch.SessionFactory;
 
 
@@ -40,7 +41,7 @@ public class SshProxy implements Proxy {
 
     public void connect( SocketFactory socketFactory, String host, int port, int timeout ) throws Exception {
         logger.debug( "connecting session" );
-        session.connect();
+        ConnectionGovernor.getDefault().connect( session );
 
         channel = session.getStreamForwarder( host, port );
         inputStream = channel.getInputStream();
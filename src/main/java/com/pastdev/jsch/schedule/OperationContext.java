@@ -0,0 +1,88 @@
+package com.pastdev.jsch.schedule;
+
+
+import java.io.Closeable;
+import java.io.IOException;
+
+
+import com.pastdev.jsch.SessionFactory;
+import com.pastdev.jsch.client.SshClient;
+import com.pastdev.jsch.command.CommandRunner;
+import com.pastdev.jsch.scp.ScpFile;
+import com.pastdev.jsch.sftp.SftpRunner;
+
+
+/**
+ * Provides {@link RemoteOperation RemoteOperation's} access to their target
+ * host. One context is created per target for the duration of an
+ * {@link OperationScheduler#run(OperationGraph) run}, so that all operations on
+ * the same host share a single session, whether they execute commands, use
+ * <code>sftp</code> or <code>scp</code>.
+ */
+public class OperationContext implements Closeable {
+    private final SshClient client;
+
+    OperationContext( SessionFactory sessionFactory ) {
+        this.client = new SshClient( sessionFactory );
+    }
+
+    /**
+     * Closes the session shared by the operations on this host.
+     */
+    @Override
+    public void close() throws IOException {
+        client.close();
+    }
+
+    /**
+     * Returns the client shared by all operations on this host.
+     * 
+     * @return The client
+     */
+    public SshClient getClient() {
+        return client;
+    }
+
+    /**
+     * Returns the command runner shared by all operations on this host.
+     * 
+     * @return The command runner
+     */
+    public CommandRunner getCommandRunner() {
+        return client.getCommandRunner();
+    }
+
+    /**
+     * Returns the session factory for this host.
+     * 
+     * @return The session factory
+     */
+    public SessionFactory getSessionFactory() {
+        return client.getSessionFactory();
+    }
+
+    /**
+     * Returns the sftp runner shared by all operations on this host.
+     * 
+     * @return The sftp runner
+     */
+    public SftpRunner getSftpRunner() {
+        return client.getSftpRunner();
+    }
+
+    /**
+     * Returns an {@link ScpFile} for <code>path</code> on this host.
+     * 
+     * @param path
+     *            The path parts of the remote file
+     * @return The remote file
+     */
+    public ScpFile newScpFile( String... path ) {
+        return client.newScpFile( path );
+    }
+
+    @Override
+    public String toString() {
+        return client.getSessionFactory().toString();
+    }
+}
@@ -0,0 +1,138 @@
+package com.pastdev.jsch.schedule;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+import com.pastdev.jsch.SessionFactory;
+
+
+/**
+ * A dependency graph of {@link RemoteOperation RemoteOperation's}. Each
+ * operation has a unique id, a target host and the ids of the operations that
+ * must succeed before it may start. For example:
+ * 
+ * <pre>
+ * OperationGraph graph = new OperationGraph();
+ * for ( SessionFactory host : hosts ) {
+ *     String name = host.getHostname();
+ *     graph.add( name + ":upload", host, upload );
+ *     graph.add( name + ":verify", host, verify, name + ":upload" );
+ *     graph.add( name + ":restart", host, restart, name + ":verify" );
+ * }
+ * </pre>
+ */
+public class OperationGraph {
+    private final Map<String, Node> nodes = new LinkedHashMap<String, Node>();
+
+    /**
+     * Adds an operation to this graph. Dependencies may be added before or
+     * after the operations that depend on them, but must all be present by the
+     * time the graph is run.
+     * 
+     * @param id
+     *            A unique id for the operation
+     * @param target
+     *            The host the operation runs against
+     * @param operation
+     *            The operation
+     * @param dependsOn
+     *            The ids of the operations that must succeed first
+     * @return This graph
+     */
+    public OperationGraph add( String id, SessionFactory target, RemoteOperation operation, String... dependsOn ) {
+        if ( nodes.containsKey( id ) ) {
+            throw new IllegalArgumentException( "duplicate operation id " + id );
+        }
+        nodes.put( id, new Node( id, target, operation, Arrays.asList( dependsOn ) ) );
+        return this;
+    }
+
+    Node getNode( String id ) {
+        return nodes.get( id );
+    }
+
+    Collection<Node> getNodes() {
+        return Collections.unmodifiableCollection( nodes.values() );
+    }
+
+    /**
+     * Returns the number of operations in this graph.
+     * 
+     * @return The number of operations
+     */
+    public int size() {
+        return nodes.size();
+    }
+
+    /**
+     * Checks that every dependency exists and that there are no cycles, and
+     * computes the dependents and height of every node.
+     */
+    void validate() {
+        for ( Node node : nodes.values() ) {
+            node.dependents.clear();
+            node.height = -1;
+        }
+        for ( Node node : nodes.values() ) {
+            for ( String dependency : node.dependsOn ) {
+                Node dependencyNode = nodes.get( dependency );
+                if ( dependencyNode == null ) {
+                    throw new IllegalStateException( node.id + " depends on unknown operation " + dependency );
+                }
+                dependencyNode.dependents.add( node );
+            }
+        }
+
+        Map<Node, Boolean> visiting = new HashMap<Node, Boolean>();
+        for ( Node node : nodes.values() ) {
+            height( node, visiting );
+        }
+    }
+
+    private static int height( Node node, Map<Node, Boolean> visiting ) {
+        if ( node.height >= 0 ) {
+            return node.height;
+        }
+        if ( visiting.containsKey( node ) ) {
+            throw new IllegalStateException( "dependency cycle through " + node.id );
+        }
+        visiting.put( node, Boolean.TRUE );
+        int height = 0;
+        for ( Node dependent : node.dependents ) {
+            height = Math.max( height, height( dependent, visiting ) + 1 );
+        }
+        visiting.remove( node );
+        node.height = height;
+        return height;
+    }
+
+    static class Node {
+        final List<Node> dependents = new ArrayList<Node>();
+        final List<String> dependsOn;
+        /** The length of the longest chain of dependents, used to run the critical path first. */
+        int height;
+        final String id;
+        final RemoteOperation operation;
+        final SessionFactory target;
+
+        private Node( String id, SessionFactory target, RemoteOperation operation, List<String> dependsOn ) {
+            this.id = id;
+            this.target = target;
+            this.operation = operation;
+            this.dependsOn = dependsOn;
+        }
+
+        @Override
+        public String toString() {
+            return id + "@" + target;
+        }
+    }
+}
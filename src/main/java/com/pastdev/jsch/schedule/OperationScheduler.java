@@ -0,0 +1,385 @@
+package com.pastdev.jsch.schedule;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+import com.pastdev.jsch.IOUtils;
+import com.pastdev.jsch.SessionFactory;
+import com.pastdev.jsch.schedule.OperationGraph.Node;
+
+
+/**
+ * Runs an {@link OperationGraph} across many hosts. Operations whose
+ * dependencies have all succeeded are started as soon as there is capacity,
+ * bounded both globally and per host, so that work on different hosts
+ * overlaps as much as possible. When more operations are ready than there is
+ * capacity for, those with the longest chain of dependents are started first.
+ * All operations against the same host share an {@link OperationContext}, and
+ * therefore its sessions, for the duration of the run.
+ * 
+ * <pre>
+ * OperationScheduler scheduler = new OperationScheduler( 32, 2 );
+ * scheduler.setFailurePolicy( FailurePolicy.CONTINUE );
+ * Result result = scheduler.run( graph );
+ * if ( !result.isSuccess() ) {
+ *     ...
+ * }
+ * </pre>
+ */
+public class OperationScheduler {
+    private static Logger logger = LoggerFactory.getLogger( OperationScheduler.class );
+    public static final int DEFAULT_MAX_CONCURRENCY = 16;
+    public static final int DEFAULT_MAX_PER_HOST = 2;
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private FailurePolicy failurePolicy = FailurePolicy.FAIL_FAST;
+    private final int maxConcurrency;
+    private final int maxPerHost;
+    private ProgressListener progressListener;
+
+    /**
+     * Creates a scheduler running at most {@link #DEFAULT_MAX_CONCURRENCY}
+     * operations at once, and at most {@link #DEFAULT_MAX_PER_HOST} on any one
+     * host.
+     */
+    public OperationScheduler() {
+        this( DEFAULT_MAX_CONCURRENCY, DEFAULT_MAX_PER_HOST );
+    }
+
+    /**
+     * Creates a scheduler running at most <code>maxConcurrency</code>
+     * operations at once, and at most <code>maxPerHost</code> on any one host.
+     * 
+     * @param maxConcurrency
+     *            The global limit
+     * @param maxPerHost
+     *            The per host limit
+     */
+    public OperationScheduler( int maxConcurrency, int maxPerHost ) {
+        if ( maxConcurrency < 1 || maxPerHost < 1 ) {
+            throw new IllegalArgumentException( "limits must be positive" );
+        }
+        this.maxConcurrency = maxConcurrency;
+        this.maxPerHost = maxPerHost;
+    }
+
+    private static String hostKey( SessionFactory target ) {
+        return target.toString();
+    }
+
+    /**
+     * Runs all operations in <code>graph</code> and returns once every
+     * operation has completed or been skipped. With
+     * {@link FailurePolicy#FAIL_FAST FAIL_FAST}, no new operations are started
+     * after the first failure, though those already running are allowed to
+     * finish. With {@link FailurePolicy#CONTINUE CONTINUE}, only the
+     * operations depending, directly or indirectly, on a failed operation are
+     * skipped.
+     * 
+     * @param graph
+     *            The operations to run
+     * @return The outcome of every operation
+     * @throws InterruptedException
+     *             If interrupted while waiting on operations, in which case
+     *             running operations are interrupted as well
+     * @throws IllegalStateException
+     *             If the graph has a cycle or an unknown dependency
+     */
+    public Result run( OperationGraph graph ) throws InterruptedException {
+        graph.validate();
+
+        Result result = new Result();
+        Map<Node, Integer> remainingDependencies = new HashMap<Node, Integer>();
+        List<Node> ready = new ArrayList<Node>();
+        for ( Node node : graph.getNodes() ) {
+            result.statuses.put( node.id, Status.PENDING );
+            remainingDependencies.put( node, node.dependsOn.size() );
+            if ( node.dependsOn.isEmpty() ) {
+                ready.add( node );
+            }
+        }
+
+        Map<String, OperationContext> contexts = new HashMap<String, OperationContext>();
+        Map<String, Integer> runningByHost = new HashMap<String, Integer>();
+        BlockingQueue<Completion> completions = new LinkedBlockingQueue<Completion>();
+        ExecutorService executor = Executors.newFixedThreadPool( maxConcurrency, new ThreadFactory() {
+            @Override
+            public Thread newThread( Runnable runnable ) {
+                Thread thread = new Thread( runnable, "OperationScheduler-" + threadCount.incrementAndGet() );
+                thread.setDaemon( true );
+                return thread;
+            }
+        } );
+
+        try {
+            int running = 0;
+            boolean aborted = false;
+            while ( true ) {
+                if ( !aborted ) {
+                    Collections.sort( ready, CRITICAL_PATH_FIRST );
+                    for ( Iterator<Node> iterator = ready.iterator(); iterator.hasNext() && running < maxConcurrency; ) {
+                        Node node = iterator.next();
+                        String host = hostKey( node.target );
+                        Integer hostRunning = runningByHost.get( host );
+                        if ( hostRunning != null && hostRunning >= maxPerHost ) {
+                            continue;
+                        }
+                        iterator.remove();
+
+                        OperationContext context = contexts.get( host );
+                        if ( context == null ) {
+                            context = new OperationContext( node.target );
+                            contexts.put( host, context );
+                        }
+                        runningByHost.put( host, hostRunning == null ? 1 : hostRunning + 1 );
+                        running++;
+                        result.statuses.put( node.id, Status.RUNNING );
+                        logger.debug( "starting {}", node );
+                        if ( progressListener != null ) {
+                            progressListener.started( node.id, node.target );
+                        }
+                        executor.execute( new Execution( node, context, completions ) );
+                    }
+                }
+
+                if ( running == 0 ) {
+                    break;
+                }
+
+                Completion completion = completions.take();
+                Node node = completion.node;
+                running--;
+                String host = hostKey( node.target );
+                runningByHost.put( host, runningByHost.get( host ) - 1 );
+
+                if ( completion.failure == null ) {
+                    result.statuses.put( node.id, Status.SUCCEEDED );
+                    logger.debug( "{} succeeded in {}ms", node, completion.elapsedMillis );
+                    if ( progressListener != null ) {
+                        progressListener.succeeded( node.id, node.target, completion.elapsedMillis );
+                    }
+                    for ( Node dependent : node.dependents ) {
+                        int remaining = remainingDependencies.get( dependent ) - 1;
+                        remainingDependencies.put( dependent, remaining );
+                        if ( remaining == 0 ) {
+                            ready.add( dependent );
+                        }
+                    }
+                }
+                else {
+                    result.statuses.put( node.id, Status.FAILED );
+                    result.failures.put( node.id, completion.failure );
+                    logger.warn( "{} failed: {}", node, completion.failure.getMessage() );
+                    logger.debug( "{} failed:", node, completion.failure );
+                    if ( progressListener != null ) {
+                        progressListener.failed( node.id, node.target, completion.failure );
+                    }
+                    if ( failurePolicy == FailurePolicy.FAIL_FAST ) {
+                        aborted = true;
+                    }
+                }
+            }
+
+            for ( Node node : graph.getNodes() ) {
+                if ( result.statuses.get( node.id ) == Status.PENDING ) {
+                    result.statuses.put( node.id, Status.SKIPPED );
+                    logger.debug( "skipped {}", node );
+                    if ( progressListener != null ) {
+                        progressListener.skipped( node.id, node.target );
+                    }
+                }
+            }
+        }
+        finally {
+            executor.shutdownNow();
+            for ( OperationContext context : contexts.values() ) {
+                IOUtils.closeAndLogException( context );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Sets the policy applied when an operation fails. Defaults to
+     * {@link FailurePolicy#FAIL_FAST FAIL_FAST}.
+     * 
+     * @param failurePolicy
+     *            The failure policy
+     */
+    public void setFailurePolicy( FailurePolicy failurePolicy ) {
+        this.failurePolicy = failurePolicy;
+    }
+
+    /**
+     * Sets a listener to be notified as operations progress.
+     * 
+     * @param progressListener
+     *            The listener
+     */
+    public void setProgressListener( ProgressListener progressListener ) {
+        this.progressListener = progressListener;
+    }
+
+    private static final Comparator<Node> CRITICAL_PATH_FIRST = new Comparator<Node>() {
+        @Override
+        public int compare( Node first, Node second ) {
+            return second.height - first.height;
+        }
+    };
+
+    private static class Completion {
+        private final long elapsedMillis;
+        private final Throwable failure;
+        private final Node node;
+
+        private Completion( Node node, long elapsedMillis, Throwable failure ) {
+            this.node = node;
+            this.elapsedMillis = elapsedMillis;
+            this.failure = failure;
+        }
+    }
+
+    private static class Execution implements Runnable {
+        private final BlockingQueue<Completion> completions;
+        private final OperationContext context;
+        private final Node node;
+
+        private Execution( Node node, OperationContext context, BlockingQueue<Completion> completions ) {
+            this.node = node;
+            this.context = context;
+            this.completions = completions;
+        }
+
+        @Override
+        public void run() {
+            long start = System.currentTimeMillis();
+            Throwable failure = null;
+            try {
+                node.operation.run( context );
+            }
+            catch ( Throwable e ) {
+                failure = e;
+            }
+            completions.add( new Completion( node, System.currentTimeMillis() - start, failure ) );
+        }
+    }
+
+    /**
+     * What to do when an operation fails.
+     */
+    public enum FailurePolicy {
+        /**
+         * Start no new operations, let those already running finish.
+         */
+        FAIL_FAST,
+        /**
+         * Skip the operations that depend on the failed operation, but keep
+         * running everything else.
+         */
+        CONTINUE
+    }
+
+    /**
+     * Receives notification as operations progress. All notifications for a
+     * run are delivered from the thread that called
+     * {@link OperationScheduler#run(OperationGraph) run}, so implementations
+     * need not be thread safe, but should return quickly.
+     */
+    public static interface ProgressListener {
+        public void started( String id, SessionFactory target );
+
+        public void succeeded( String id, SessionFactory target, long elapsedMillis );
+
+        public void failed( String id, SessionFactory target, Throwable failure );
+
+        public void skipped( String id, SessionFactory target );
+    }
+
+    /**
+     * The outcome of a run.
+     */
+    public static class Result {
+        private final Map<String, Throwable> failures = new LinkedHashMap<String, Throwable>();
+        private final Map<String, Status> statuses = new LinkedHashMap<String, Status>();
+
+        private Result() {
+        }
+
+        /**
+         * Returns the exception thrown by the operation <code>id</code>, or
+         * null if it did not fail.
+         * 
+         * @param id
+         *            The operation id
+         * @return The failure or null
+         */
+        public Throwable getFailure( String id ) {
+            return failures.get( id );
+        }
+
+        /**
+         * Returns the failures of all failed operations by id, in the order
+         * they failed.
+         * 
+         * @return The failures
+         */
+        public Map<String, Throwable> getFailures() {
+            return Collections.unmodifiableMap( failures );
+        }
+
+        /**
+         * Returns the final status of the operation <code>id</code>.
+         * 
+         * @param id
+         *            The operation id
+         * @return The status
+         */
+        public Status getStatus( String id ) {
+            return statuses.get( id );
+        }
+
+        /**
+         * Returns true if every operation succeeded.
+         * 
+         * @return True if every operation succeeded
+         */
+        public boolean isSuccess() {
+            for ( Status status : statuses.values() ) {
+                if ( status != Status.SUCCEEDED ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return statuses.toString();
+        }
+    }
+
+    /**
+     * The status of an operation.
+     */
+    public enum Status {
+        PENDING, RUNNING, SUCCEEDED, FAILED, SKIPPED
+    }
+}
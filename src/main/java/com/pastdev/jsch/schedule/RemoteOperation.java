@@ -0,0 +1,20 @@
+package com.pastdev.jsch.schedule;
+
+
+/**
+ * A single step of a remote rollout, such as uploading a file, verifying a
+ * checksum or restarting a service. Operations are added to an
+ * {@link OperationGraph} and run by an {@link OperationScheduler}, which
+ * supplies an {@link OperationContext} for the target host.
+ */
+public interface RemoteOperation {
+    /**
+     * Runs this operation. Any exception thrown marks the operation as failed.
+     * 
+     * @param context
+     *            Access to the target host, shared by all operations on it
+     * @throws Exception
+     *             If the operation failed
+     */
+    public void run( OperationContext context ) throws Exception;
+}
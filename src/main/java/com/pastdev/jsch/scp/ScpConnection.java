@@ -17,7 +17,10 @@ import com.jcraft.jsch.Channel;
 import com.jcraft.jsch.ChannelExec;
 import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.Session;
+import com.pastdev.jsch.ChannelAdmissionController;
 import com.pastdev.jsch.SessionFactory;
+import com.pastdev.jsch.SessionManager;
+import com.pastdev.jsch.SessionProvider;
 
 
 /**
@@ -36,33 +39,89 @@ public class ScpConnection implements Closeable {
     private Stack<CurrentEntry> entryStack;
     private InputStream inputStream;
     private OutputStream outputStream;
+    private final boolean ownsSessionProvider;
     private Session session;
+    private final SessionProvider sessionProvider;
 
     public ScpConnection( SessionFactory sessionFactory, String path, ScpMode scpMode, CopyMode copyMode ) throws JSchException, IOException {
-        this.session = sessionFactory.newSession();
+        this( new SessionManager( sessionFactory ), true, path, scpMode, copyMode );
+    }
 
-        logger.debug( "connecting session" );
-        session.connect();
+    /**
+     * Creates a connection whose channel is opened on a session from
+     * <code>sessionProvider</code>. The session is released back to the
+     * provider when this connection is closed.
+     * 
+     * @param sessionProvider
+     *            The provider of sessions
+     * @param path
+     *            The remote path
+     * @param scpMode
+     *            The direction of the copy
+     * @param copyMode
+     *            Whether or not the copy is recursive
+     * @throws JSchException
+     *             If ssh execution fails
+     * @throws IOException
+     *             If unable to open the streams
+     */
+    public ScpConnection( SessionProvider sessionProvider, String path, ScpMode scpMode, CopyMode copyMode ) throws JSchException, IOException {
+        this( sessionProvider, false, path, scpMode, copyMode );
+    }
 
-        String command = getCommand( path, scpMode, copyMode );
-        channel = session.openChannel( "exec" );
-        logger.debug( "setting exec command to '{}'", command );
-        ((ChannelExec) channel).setCommand( command );
+    private ScpConnection( SessionProvider sessionProvider, boolean ownsSessionProvider, String path, ScpMode scpMode, CopyMode copyMode ) throws JSchException, IOException {
+        this.sessionProvider = sessionProvider;
+        this.ownsSessionProvider = ownsSessionProvider;
+        this.entryStack = new Stack<CurrentEntry>();
 
-        logger.debug( "connecting channel" );
-        channel.connect();
+        boolean opened = false;
+        try {
+            connect( getCommand( path, scpMode, copyMode ) );
 
-        outputStream = channel.getOutputStream();
-        inputStream = channel.getInputStream();
+            outputStream = channel.getOutputStream();
+            inputStream = channel.getInputStream();
 
-        if ( scpMode == ScpMode.FROM ) {
-            writeAck();
+            if ( scpMode == ScpMode.FROM ) {
+                writeAck();
+            }
+            else if ( scpMode == ScpMode.TO ) {
+                checkAck();
+            }
+            opened = true;
         }
-        else if ( scpMode == ScpMode.TO ) {
-            checkAck();
+        finally {
+            if ( !opened ) {
+                release();
+            }
         }
+    }
 
-        this.entryStack = new Stack<CurrentEntry>();
+    private void connect( String command ) throws JSchException {
+        for ( int attempt = 1;; attempt++ ) {
+            logger.debug( "connecting session" );
+            session = sessionProvider.acquireSession();
+            channel = session.openChannel( "exec" );
+            logger.debug( "setting exec command to '{}'", command );
+            ((ChannelExec) channel).setCommand( command );
+
+            logger.debug( "connecting channel" );
+            try {
+                channel.connect();
+                return;
+            }
+            catch ( JSchException e ) {
+                if ( !ChannelAdmissionController.isRejection( e ) ) {
+                    throw e;
+                }
+                Session rejected = session;
+                session = null;
+                sessionProvider.channelRejected( rejected );
+                if ( attempt >= ChannelAdmissionController.MAX_REJECTED_ATTEMPTS ) {
+                    throw e;
+                }
+                logger.debug( "channel refused by {}, waiting for another", sessionProvider );
+            }
+        }
     }
 
     private static String getCommand( String path, ScpMode scpMode, CopyMode copyMode ) {
@@ -144,16 +203,24 @@ public class ScpConnection implements Closeable {
             logger.debug( "failed to close inputStream:", e );
         }
 
+        release();
+
+        if ( toThrow != null ) {
+            throw toThrow;
+        }
+    }
+
+    private void release() throws IOException {
         if ( channel != null && channel.isConnected() ) {
             channel.disconnect();
         }
-        if ( session != null && session.isConnected() ) {
-            logger.debug( "disconnecting session" );
-            session.disconnect();
+        if ( session != null ) {
+            sessionProvider.releaseSession( session );
+            session = null;
         }
-
-        if ( toThrow != null ) {
-            throw toThrow;
+        if ( ownsSessionProvider ) {
+            logger.debug( "disconnecting session" );
+            sessionProvider.close();
         }
     }
 
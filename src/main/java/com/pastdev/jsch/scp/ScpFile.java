@@ -10,12 +10,14 @@ import java.io.IOException;
 import com.jcraft.jsch.JSchException;
 import com.pastdev.jsch.IOUtils;
 import com.pastdev.jsch.SessionFactory;
+import com.pastdev.jsch.SessionProvider;
 
 
 public class ScpFile {
     private DestinationOs os;
     private String[] path;
     private SessionFactory sessionFactory;
+    private SessionProvider sessionProvider;
 
     public ScpFile( SessionFactory sessionFactory, String... path ) {
         this( sessionFactory, DestinationOs.UNIX, path );
@@ -27,6 +29,16 @@ public class ScpFile {
         this.path = path;
     }
 
+    public ScpFile( SessionProvider sessionProvider, String... path ) {
+        this( sessionProvider, DestinationOs.UNIX, path );
+    }
+
+    public ScpFile( SessionProvider sessionProvider, DestinationOs os, String... path ) {
+        this.sessionProvider = sessionProvider;
+        this.os = os;
+        this.path = path;
+    }
+
     public void copyFrom( File file ) throws IOException, JSchException {
         copyFrom( file, null );
     }
@@ -126,7 +138,9 @@ public class ScpFile {
     }
 
     public ScpFileInputStream getInputStream() throws JSchException, IOException {
-        return new ScpFileInputStream( sessionFactory, getPath() );
+        return sessionProvider == null
+                ? new ScpFileInputStream( sessionFactory, getPath() )
+                : new ScpFileInputStream( sessionProvider, getPath() );
     }
 
     public ScpFileOutputStream getOutputStream( long size ) throws JSchException, IOException {
@@ -138,7 +152,9 @@ public class ScpFile {
     }
 
     private ScpFileOutputStream getOutputStream( ScpEntry scpEntry ) throws JSchException, IOException {
-        return new ScpFileOutputStream( sessionFactory, getDirectory(), scpEntry );
+        return sessionProvider == null
+                ? new ScpFileOutputStream( sessionFactory, getDirectory(), scpEntry )
+                : new ScpFileOutputStream( sessionProvider, getDirectory(), scpEntry );
     }
 
     String getDirectory() {
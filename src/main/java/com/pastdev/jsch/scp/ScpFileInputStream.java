@@ -11,6 +11,7 @@ import org.slf4j.LoggerFactory;
 
 import com.jcraft.jsch.JSchException;
 import com.pastdev.jsch.SessionFactory;
+import com.pastdev.jsch.SessionProvider;
 
 
 public class ScpFileInputStream extends InputStream {
@@ -25,6 +26,12 @@ public class ScpFileInputStream extends InputStream {
         this.scpEntry = this.inputStream.getNextEntry();
     }
 
+    ScpFileInputStream( SessionProvider sessionProvider, String path ) throws JSchException, IOException {
+        logger.debug( "Opening ScpInputStream to {} {}", sessionProvider, path );
+        this.inputStream = new ScpInputStream( sessionProvider, path, CopyMode.FILE_ONLY );
+        this.scpEntry = this.inputStream.getNextEntry();
+    }
+
     public String getMode() {
         return scpEntry.getMode();
     }
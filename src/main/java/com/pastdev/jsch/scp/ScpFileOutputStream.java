@@ -7,6 +7,7 @@ import java.io.OutputStream;
 
 import com.jcraft.jsch.JSchException;
 import com.pastdev.jsch.SessionFactory;
+import com.pastdev.jsch.SessionProvider;
 
 
 public class ScpFileOutputStream extends OutputStream {
@@ -17,6 +18,11 @@ public class ScpFileOutputStream extends OutputStream {
         this.outputStream.putNextEntry( scpEntry );
     }
 
+    ScpFileOutputStream( SessionProvider sessionProvider, String directory, ScpEntry scpEntry ) throws JSchException, IOException {
+        this.outputStream = new ScpOutputStream( sessionProvider, directory, CopyMode.FILE_ONLY );
+        this.outputStream.putNextEntry( scpEntry );
+    }
+
     @Override
     public void close() throws IOException {
         outputStream.closeEntry();
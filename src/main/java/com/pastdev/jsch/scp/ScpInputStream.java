@@ -11,6 +11,7 @@ import org.slf4j.LoggerFactory;
 
 import com.jcraft.jsch.JSchException;
 import com.pastdev.jsch.SessionFactory;
+import com.pastdev.jsch.SessionProvider;
 
 
 public class ScpInputStream extends InputStream {
@@ -24,6 +25,11 @@ public class ScpInputStream extends InputStream {
         this.connection = new ScpConnection( sessionFactory, path, ScpMode.FROM, copyMode );
     }
 
+    public ScpInputStream( SessionProvider sessionProvider, String path, CopyMode copyMode ) throws JSchException, IOException {
+        logger.debug( "Opening ScpInputStream" );
+        this.connection = new ScpConnection( sessionProvider, path, ScpMode.FROM, copyMode );
+    }
+
     @Override
     public void close() throws IOException {
         logger.debug( "Closing ScpInputStream" );
@@ -11,6 +11,7 @@ import org.slf4j.LoggerFactory;
 
 import com.jcraft.jsch.JSchException;
 import com.pastdev.jsch.SessionFactory;
+import com.pastdev.jsch.SessionProvider;
 
 
 /**
@@ -32,6 +33,11 @@ public class ScpOutputStream extends OutputStream {
         this.connection = new ScpConnection( sessionFactory, path, ScpMode.TO, copyMode );
     }
 
+    public ScpOutputStream( SessionProvider sessionProvider, String path, CopyMode copyMode ) throws JSchException, IOException {
+        logger.debug( "Opening ScpOutputStream to {} {}", sessionProvider, path );
+        this.connection = new ScpConnection( sessionProvider, path, ScpMode.TO, copyMode );
+    }
+
     @Override
     public void close() throws IOException {
         logger.debug( "Closing ScpOutputStream" );
@@ -11,8 +11,11 @@ import org.slf4j.LoggerFactory;
 
 import com.jcraft.jsch.ChannelSftp;
 import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.pastdev.jsch.ChannelAdmissionController;
 import com.pastdev.jsch.SessionFactory;
 import com.pastdev.jsch.SessionManager;
+import com.pastdev.jsch.SessionProvider;
 
 
 /**
@@ -26,7 +29,8 @@ public class SftpRunner implements Closeable {
     private static final Logger logger = LoggerFactory.getLogger( SftpRunner.class );
     private static final String CHANNEL_SFTP = "sftp";
 
-    private final SessionManager sessionManager;
+    private final boolean ownsSessionProvider;
+    private final SessionProvider sessionProvider;
 
     /**
      * Creates a new SftpRunner that will use a {@link SessionManager} that
@@ -36,7 +40,21 @@ public class SftpRunner implements Closeable {
      *            The factory used to create a session manager
      */
     public SftpRunner( SessionFactory sessionFactory ) {
-        this.sessionManager = new SessionManager( sessionFactory );
+        this.sessionProvider = new SessionManager( sessionFactory );
+        this.ownsSessionProvider = true;
+    }
+
+    /**
+     * Creates a new SftpRunner that will open its channels on sessions from
+     * the supplied <code>sessionProvider</code>. The provider is not closed
+     * when this runner is closed.
+     * 
+     * @param sessionProvider
+     *            The provider of sessions
+     */
+    public SftpRunner( SessionProvider sessionProvider ) {
+        this.sessionProvider = sessionProvider;
+        this.ownsSessionProvider = false;
     }
 
     /**
@@ -51,29 +69,53 @@ public class SftpRunner implements Closeable {
      *             If unable to read the result data
      */
     public void execute( Sftp sftp ) throws JSchException, IOException {
-        logger.debug( "executing sftp command on {}", sessionManager );
-        ChannelSftp channelSftp = null;
-        try {
-            channelSftp = (ChannelSftp) sessionManager.getSession()
-                    .openChannel( CHANNEL_SFTP );
-            channelSftp.connect();
-            sftp.run( channelSftp );
-        }
-        finally {
-            if ( channelSftp != null ) {
-                channelSftp.disconnect();
+        logger.debug( "executing sftp command on {}", sessionProvider );
+        for ( int attempt = 1;; attempt++ ) {
+            Session session = sessionProvider.acquireSession();
+            ChannelSftp channelSftp = null;
+            boolean release = true;
+            try {
+                channelSftp = (ChannelSftp) session.openChannel( CHANNEL_SFTP );
+                try {
+                    channelSftp.connect();
+                }
+                catch ( JSchException e ) {
+                    if ( !ChannelAdmissionController.isRejection( e ) ) {
+                        throw e;
+                    }
+                    release = false;
+                    sessionProvider.channelRejected( session );
+                    if ( attempt >= ChannelAdmissionController.MAX_REJECTED_ATTEMPTS ) {
+                        throw e;
+                    }
+                    logger.debug( "channel refused by {}, waiting for another", sessionProvider );
+                    continue;
+                }
+                sftp.run( channelSftp );
+                return;
+            }
+            finally {
+                if ( channelSftp != null ) {
+                    channelSftp.disconnect();
+                }
+                if ( release ) {
+                    sessionProvider.releaseSession( session );
+                }
             }
         }
     }
 
     /**
-     * Closes the underlying {@link SessionManager}.
+     * Closes the underlying {@link SessionManager}, unless this runner was
+     * created from a shared {@link SessionProvider}.
      * 
      * @see SessionManager#close()
      */
     @Override
     public void close() throws IOException {
-        sessionManager.close();
+        if ( ownsSessionProvider ) {
+            sessionProvider.close();
+        }
     }
 
     /**
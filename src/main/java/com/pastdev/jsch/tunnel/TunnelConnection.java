@@ -15,6 +15,7 @@ import org.slf4j.LoggerFactory;
 
 import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.Session;
+import com.pastdev.jsch.ConnectionGovernor;
 import com.pastdev.jsch.IOUtils;
 import com.pastdev.jsch.SessionFactory;
 
@@ -146,7 +147,7 @@ public class TunnelConnection implements Closeable {
         session = sessionFactory.newSession();
 
         logger.debug( "connecting session" );
-        session.connect();
+        ConnectionGovernor.getDefault().connect( session );
 
         for ( Tunnel tunnel : tunnels ) {
             int assignedPort = 0;
@@ -0,0 +1,162 @@
+package com.pastdev.jsch;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+
+public class AdaptiveCompressionTest {
+    private static Logger logger = LoggerFactory.getLogger( AdaptiveCompressionTest.class );
+
+    private static DefaultSessionFactory sessionFactory( AdaptiveCompression adaptiveCompression, String hostname ) {
+        DefaultSessionFactory sessionFactory = new DefaultSessionFactory( "user", hostname, 22 );
+        sessionFactory.setAdaptiveCompression( adaptiveCompression );
+        return sessionFactory;
+    }
+
+    @Test
+    public void testChoosesByLink() throws JSchException {
+        AdaptiveCompression adaptive = new AdaptiveCompression();
+        adaptive.setProbeInterval( 0 );
+
+        DefaultSessionFactory lan = sessionFactory( adaptive, "lan" );
+        assertEquals( AdaptiveCompression.UNCOMPRESSED, lan.newSession().getConfig( "compression.s2c" ) );
+        AdaptiveCompression.Link link = adaptive.getLink( "lan", 22 );
+        assertEquals( -1, link.getRoundTripMillis() );
+        link.roundTrip( TimeUnit.MICROSECONDS.toNanos( 200 ) );
+        assertEquals( AdaptiveCompression.UNCOMPRESSED, lan.newSession().getConfig( "compression.c2s" ) );
+
+        DefaultSessionFactory wan = sessionFactory( adaptive, "wan" );
+        wan.newSession();
+        link = adaptive.getLink( "wan", 22 );
+        link.roundTrip( TimeUnit.MILLISECONDS.toNanos( 80 ) );
+        Session session = wan.newSession();
+        assertEquals( AdaptiveCompression.COMPRESSED, session.getConfig( "compression.c2s" ) );
+        assertEquals( AdaptiveCompression.COMPRESSED, session.getConfig( "compression.s2c" ) );
+        assertTrue( link.isCompressing() );
+
+        // a measured bandwidth overrides the round trip
+        link.bandwidth( 1e9 );
+        assertEquals( AdaptiveCompression.UNCOMPRESSED, wan.newSession().getConfig( "compression.s2c" ) );
+        assertFalse( link.isCompressing() );
+        assertEquals( 1, link.getCompressedCount() );
+        assertEquals( 2, link.getUncompressedCount() );
+    }
+
+    @Test
+    public void testConfigured() throws JSchException {
+        AdaptiveCompression adaptive = new AdaptiveCompression();
+        DefaultSessionFactory sessionFactory = sessionFactory( adaptive, "configured" );
+        sessionFactory.newSession();
+        adaptive.getLink( "configured", 22 ).roundTrip( TimeUnit.MILLISECONDS.toNanos( 80 ) );
+
+        sessionFactory.setConfig( "compression.s2c", "zlib" );
+        Session session = sessionFactory.newSession();
+        assertEquals( "zlib", session.getConfig( "compression.s2c" ) );
+        assertEquals( "none", session.getConfig( "compression.c2s" ) );
+
+        sessionFactory.setConfig( "compression.c2s", "zlib" );
+        assertEquals( AdaptiveCompression.UNCOMPRESSED, AdaptiveCompression.uncompressed( sessionFactory )
+                .newSession().getConfig( "compression.c2s" ) );
+        assertEquals( "zlib", sessionFactory.newSession().getConfig( "compression.c2s" ) );
+    }
+
+    @Test
+    public void testIncompressibleTrafficClass() throws JSchException {
+        AdaptiveCompression adaptive = new AdaptiveCompression();
+        adaptive.setProbeInterval( 0 );
+        DefaultSessionFactory sessionFactory = sessionFactory( adaptive, "router" );
+        sessionFactory.newSession();
+        adaptive.getLink( "router", 22 ).roundTrip( TimeUnit.MILLISECONDS.toNanos( 80 ) );
+
+        TrafficClassRouter router = new TrafficClassRouter( sessionFactory );
+        assertEquals( AdaptiveCompression.COMPRESSED, router.getSessionPool( TrafficClass.BULK )
+                .getSessionFactory().newSession().getConfig( "compression.s2c" ) );
+        assertEquals( AdaptiveCompression.UNCOMPRESSED, router.getSessionPool( TrafficClass.INCOMPRESSIBLE )
+                .getSessionFactory().newSession().getConfig( "compression.s2c" ) );
+    }
+
+    @Test
+    public void testIsCompressed() {
+        assertTrue( AdaptiveCompression.isCompressed( "backup.tar.gz" ) );
+        assertTrue( AdaptiveCompression.isCompressed( "/opt/app/lib/app.JAR" ) );
+        assertTrue( AdaptiveCompression.isCompressed( "photo.jpg" ) );
+        assertFalse( AdaptiveCompression.isCompressed( "backup.tar" ) );
+        assertFalse( AdaptiveCompression.isCompressed( "app.log" ) );
+        assertFalse( AdaptiveCompression.isCompressed( "dir.zip/README" ) );
+        assertFalse( AdaptiveCompression.isCompressed( "gz" ) );
+    }
+
+    /**
+     * Measures the link to the test server with a bulk transfer. The
+     * resulting choice is only logged, as it depends on the host.
+     */
+    @Test
+    public void testMeasured() throws Exception {
+        InputStream inputStream = ClassLoader.getSystemResourceAsStream( "configuration.properties" );
+        Assume.assumeNotNull( inputStream );
+        Properties properties = new Properties();
+        try {
+            properties.load( inputStream );
+        }
+        finally {
+            inputStream.close();
+        }
+
+        AdaptiveCompression adaptive = new AdaptiveCompression();
+        adaptive.setMinSampleBytes( 64 * 1024 );
+        DefaultSessionFactory sessionFactory = new DefaultSessionFactory(
+                properties.getProperty( "scp.out.test.username" ), "localhost",
+                Integer.parseInt( properties.getProperty( "scp.out.test.port" ) ) );
+        try {
+            sessionFactory.setKnownHosts( properties.getProperty( "ssh.knownHosts" ) );
+            sessionFactory.setIdentityFromPrivateKey( properties.getProperty( "ssh.privateKey" ) );
+        }
+        catch ( JSchException e ) {
+            Assume.assumeNoException( e );
+        }
+        sessionFactory.setAdaptiveCompression( adaptive );
+
+        Session session = sessionFactory.newSession();
+        session.connect();
+        try {
+            ChannelExec channel = (ChannelExec) session.openChannel( "exec" );
+            channel.setCommand( "seq 1 1000000" );
+            InputStream stdout = channel.getInputStream();
+            channel.connect();
+            try {
+                assertTrue( IOUtils.copyToString( stdout ).endsWith( "1000000\n" ) );
+            }
+            finally {
+                channel.disconnect();
+            }
+        }
+        finally {
+            session.disconnect();
+        }
+
+        AdaptiveCompression.Link link = adaptive.getLink( "localhost", session.getPort() );
+        assertTrue( link.getRoundTripMillis() >= 0 );
+        assertTrue( link.getBytesPerSecond() > 0 );
+        logger.info( "measured {}, ratio {}, next session {}", link, adaptive.getCompressionRatio(),
+                sessionFactory.newSession().getConfig( "compression.s2c" ) );
+    }
+}
@@ -0,0 +1,64 @@
+package com.pastdev.jsch;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+
+import org.junit.Test;
+
+
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+
+public class AlgorithmProbeTest {
+    @Test
+    public void testApply() throws JSchException {
+        AlgorithmProbe probe = AlgorithmProbe.getDefault();
+        assertSame( probe, AlgorithmProbe.getDefault() );
+        assertTrue( probe.getReport().contains( AlgorithmProbe.CHECK_KEXES ) );
+
+        Session session = new JSch().getSession( "user", "localhost" );
+        probe.apply( session, null );
+        assertEquals( "", session.getConfig( AlgorithmProbe.CHECK_CIPHERS ) );
+        assertEquals( "", session.getConfig( AlgorithmProbe.CHECK_KEXES ) );
+        assertEquals( "", session.getConfig( AlgorithmProbe.CHECK_SIGNATURES ) );
+        assertEquals( AlgorithmProbe.filter( JSch.getConfig( "kex" ), probe.getUnavailableKexes() ),
+                session.getConfig( "kex" ) );
+    }
+
+    @Test
+    public void testExplicitConfigLeftToJsch() throws JSchException {
+        Map<String, String> config = new HashMap<String, String>();
+        config.put( AlgorithmProbe.CHECK_CIPHERS, "aes128-ctr" );
+        config.put( "ecdh-sha2-nistp256", "com.example.Kex" );
+
+        Session session = new JSch().getSession( "user", "localhost" );
+        for ( String key : config.keySet() ) {
+            session.setConfig( key, config.get( key ) );
+        }
+        AlgorithmProbe.getDefault().apply( session, config );
+
+        assertEquals( "aes128-ctr", session.getConfig( AlgorithmProbe.CHECK_CIPHERS ) );
+        assertEquals( JSch.getConfig( AlgorithmProbe.CHECK_KEXES ),
+                session.getConfig( AlgorithmProbe.CHECK_KEXES ) );
+        assertEquals( "", session.getConfig( AlgorithmProbe.CHECK_SIGNATURES ) );
+    }
+
+    @Test
+    public void testFilter() {
+        assertEquals( "a,c", AlgorithmProbe.filter( "a,b,c", Arrays.asList( "b" ) ) );
+        assertEquals( "a,b", AlgorithmProbe.filter( "a,b", Collections.<String> emptyList() ) );
+        assertNull( AlgorithmProbe.filter( "b", Arrays.asList( "b" ) ) );
+    }
+}
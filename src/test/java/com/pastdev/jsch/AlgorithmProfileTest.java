@@ -0,0 +1,184 @@
+package com.pastdev.jsch;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Properties;
+
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+
+public class AlgorithmProfileTest {
+    private static Logger logger = LoggerFactory.getLogger( AlgorithmProfileTest.class );
+    private static final int HANDSHAKES = 5;
+    private static final String BULK_COMMAND = "seq 1 1000000";
+
+    private static DefaultSessionFactory sessionFactory() throws IOException {
+        InputStream inputStream = ClassLoader.getSystemResourceAsStream( "configuration.properties" );
+        Assume.assumeNotNull( inputStream );
+        Properties properties = new Properties();
+        try {
+            properties.load( inputStream );
+        }
+        finally {
+            inputStream.close();
+        }
+
+        DefaultSessionFactory defaultSessionFactory = new DefaultSessionFactory(
+                properties.getProperty( "scp.out.test.username" ), "localhost",
+                Integer.parseInt( properties.getProperty( "scp.out.test.port" ) ) );
+        try {
+            defaultSessionFactory.setKnownHosts( properties.getProperty( "ssh.knownHosts" ) );
+            defaultSessionFactory.setIdentityFromPrivateKey( properties.getProperty( "ssh.privateKey" ) );
+        }
+        catch ( JSchException e ) {
+            Assume.assumeNoException( e );
+        }
+        return defaultSessionFactory;
+    }
+
+    private static long bulk( Session session ) throws JSchException, IOException {
+        ChannelExec channel = (ChannelExec) session.openChannel( "exec" );
+        try {
+            channel.setCommand( BULK_COMMAND );
+            InputStream stdout = channel.getInputStream();
+            channel.connect();
+            byte[] buffer = new byte[32768];
+            long total = 0;
+            int read;
+            while ( (read = stdout.read( buffer )) >= 0 ) {
+                total += read;
+            }
+            return total;
+        }
+        finally {
+            channel.disconnect();
+        }
+    }
+
+    /**
+     * Reports the handshake time and bulk throughput of each profile against
+     * the test server. Timings are only logged, as they depend on the host,
+     * and only measured when run with <code>-Dbenchmark=true</code>.
+     */
+    @Test
+    public void testBenchmark() throws Exception {
+        Assume.assumeTrue( Boolean.getBoolean( "benchmark" ) );
+        SessionFactory base = sessionFactory();
+        // warm up class loading, the algorithm probe and the JIT
+        benchmark( "warmup", base );
+
+        benchmark( "jsch defaults", base );
+        for ( AlgorithmProfile profile : AlgorithmProfile.values() ) {
+            benchmark( profile.name(), base.newSessionFactoryBuilder()
+                    .setAlgorithmProfile( profile )
+                    .build() );
+        }
+    }
+
+    private static void benchmark( String name, SessionFactory sessionFactory ) throws JSchException, IOException {
+        long handshakeNanos = 0;
+        Session session = null;
+        for ( int i = 0; i < HANDSHAKES; i++ ) {
+            session = sessionFactory.newSession();
+            long start = System.nanoTime();
+            session.connect();
+            handshakeNanos += System.nanoTime() - start;
+            if ( i < HANDSHAKES - 1 ) {
+                session.disconnect();
+            }
+        }
+
+        try {
+            long start = System.nanoTime();
+            long bytes = bulk( session );
+            long bulkNanos = System.nanoTime() - start;
+            assertTrue( bytes > 0 );
+            logger.info( String.format( "%-22s handshake %7.1fms, bulk %7.1fMB/s (%s)",
+                    name, handshakeNanos / 1e6 / HANDSHAKES,
+                    bytes / 1e6 / (bulkNanos / 1e9), BULK_COMMAND ) );
+        }
+        finally {
+            session.disconnect();
+        }
+    }
+
+    @Test
+    public void testConnect() throws Exception {
+        SessionFactory base = sessionFactory();
+        for ( AlgorithmProfile profile : AlgorithmProfile.values() ) {
+            Session session = base.newSessionFactoryBuilder()
+                    .setAlgorithmProfile( profile )
+                    .build()
+                    .newSession();
+            session.connect();
+            try {
+                ChannelExec channel = (ChannelExec) session.openChannel( "exec" );
+                channel.setCommand( "echo " + profile );
+                InputStream stdout = channel.getInputStream();
+                channel.connect();
+                try {
+                    assertEquals( profile + "\n", IOUtils.copyToString( stdout ) );
+                }
+                finally {
+                    channel.disconnect();
+                }
+            }
+            finally {
+                session.disconnect();
+            }
+        }
+    }
+
+    @Test
+    public void testMeasuredOrderIsOptIn() {
+        assertEquals( "hmac-sha1,hmac-sha2-256,hmac-md5",
+                AlgorithmProfile.MAX_THROUGHPUT.getConfig().get( "mac.c2s" ) );
+        assertSame( AlgorithmProfile.MAX_THROUGHPUT.getConfig(), AlgorithmProfile.MAX_THROUGHPUT.getConfig() );
+
+        CipherBenchmark benchmark = new CipherBenchmark( 1 );
+        Map<String, String> measured = AlgorithmProfile.MAX_THROUGHPUT.getConfig( benchmark );
+        assertEquals( benchmark.order( "hmac-sha1,hmac-sha2-256,hmac-md5" ), measured.get( "mac.s2c" ) );
+        assertEquals( benchmark.order( "aes128-ctr,aes192-ctr,aes256-ctr,aes128-cbc,aes256-cbc" ),
+                measured.get( "cipher.c2s" ) );
+        assertEquals( "none", measured.get( "compression.c2s" ) );
+    }
+
+    @Test
+    public void testBuilderPropagation() throws JSchException {
+        DefaultSessionFactory parent = new DefaultSessionFactory( "user", "localhost", 22 );
+        parent.setAlgorithmProfile( AlgorithmProfile.MAX_THROUGHPUT );
+
+        SessionFactory inherited = parent.newSessionFactoryBuilder()
+                .setHostname( "other" )
+                .build();
+        assertEquals( AlgorithmProfile.MAX_THROUGHPUT.getConfig().get( "mac.c2s" ),
+                inherited.newSession().getConfig( "mac.c2s" ) );
+
+        SessionFactory overridden = parent.newSessionFactoryBuilder()
+                .setAlgorithmProfile( AlgorithmProfile.LOW_BANDWIDTH_LINK )
+                .build();
+        Session session = overridden.newSession();
+        assertEquals( AlgorithmProfile.LOW_BANDWIDTH_LINK.getConfig().get( "compression.s2c" ),
+                session.getConfig( "compression.s2c" ) );
+        assertEquals( "hmac-sha1-96,hmac-md5-96,hmac-sha1,hmac-sha2-256",
+                session.getConfig( "mac.c2s" ) );
+
+        assertEquals( "none", parent.newSession().getConfig( "compression.s2c" ) );
+    }
+}
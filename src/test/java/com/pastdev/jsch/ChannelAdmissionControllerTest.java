@@ -0,0 +1,150 @@
+package com.pastdev.jsch;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+
+import org.junit.Test;
+
+
+import com.jcraft.jsch.JSchException;
+
+
+public class ChannelAdmissionControllerTest {
+    @Test
+    public void testTimeout() throws JSchException {
+        ChannelAdmissionController admission = new ChannelAdmissionController( 1 );
+        admission.acquire( 1, TimeUnit.SECONDS );
+
+        long start = System.nanoTime();
+        try {
+            admission.acquire( 100, TimeUnit.MILLISECONDS );
+            fail( "admitted beyond the limit" );
+        }
+        catch ( JSchException e ) {
+            assertTrue( System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos( 100 ) );
+        }
+        assertEquals( 1, admission.getTimeoutCount() );
+        assertEquals( 0, admission.getQueueLength() );
+        assertEquals( 1, admission.getInUse() );
+
+        admission.release();
+        admission.acquire( 100, TimeUnit.MILLISECONDS );
+        assertEquals( 1, admission.getInUse() );
+    }
+
+    @Test
+    public void testFifo() throws Exception {
+        final ChannelAdmissionController admission = new ChannelAdmissionController( 1 );
+        admission.acquire( 1, TimeUnit.SECONDS );
+
+        final List<Integer> order = Collections.synchronizedList( new ArrayList<Integer>() );
+        final CountDownLatch done = new CountDownLatch( 3 );
+        for ( int i = 0; i < 3; i++ ) {
+            final int index = i;
+            Thread thread = new Thread( new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        admission.acquire( 10, TimeUnit.SECONDS );
+                        order.add( index );
+                        admission.release();
+                    }
+                    catch ( JSchException e ) {
+                        order.add( -1 );
+                    }
+                    finally {
+                        done.countDown();
+                    }
+                }
+            } );
+            thread.start();
+            // wait for it to queue so arrival order is known
+            long deadline = System.currentTimeMillis() + 5000;
+            while ( admission.getQueueLength() < i + 1 && System.currentTimeMillis() < deadline ) {
+                Thread.sleep( 5 );
+            }
+        }
+        assertEquals( 3, admission.getQueueLength() );
+
+        admission.release();
+        assertTrue( done.await( 10, TimeUnit.SECONDS ) );
+        assertEquals( 0, admission.getInUse() );
+        assertEquals( 0, admission.getQueueLength() );
+        assertEquals( 3, order.size() );
+        assertEquals( Integer.valueOf( 0 ), order.get( 0 ) );
+        assertEquals( Integer.valueOf( 1 ), order.get( 1 ) );
+        assertEquals( Integer.valueOf( 2 ), order.get( 2 ) );
+    }
+
+    @Test
+    public void testLearnsLimit() throws JSchException {
+        ChannelAdmissionController admission = new ChannelAdmissionController();
+        assertEquals( ChannelAdmissionController.UNLIMITED, admission.getMaxChannels() );
+
+        for ( int i = 0; i < 4; i++ ) {
+            admission.acquire( 1, TimeUnit.SECONDS );
+        }
+        admission.rejected();
+        assertEquals( 3, admission.getMaxChannels() );
+        assertEquals( 3, admission.getInUse() );
+        assertEquals( 1, admission.getRejectedCount() );
+
+        try {
+            admission.acquire( 10, TimeUnit.MILLISECONDS );
+            fail( "admitted beyond the learned limit" );
+        }
+        catch ( JSchException e ) {
+        }
+
+        admission.release();
+        admission.acquire( 10, TimeUnit.MILLISECONDS );
+    }
+
+    @Test
+    public void testLearnedLimitRecovers() throws Exception {
+        ChannelAdmissionController admission = new ChannelAdmissionController( 8 );
+        admission.setRecovery( 2, 1, TimeUnit.MINUTES );
+        admission.acquire( 1, TimeUnit.SECONDS );
+        admission.acquire( 1, TimeUnit.SECONDS );
+        admission.rejected();
+        assertEquals( 1, admission.getMaxChannels() );
+
+        admission.release();
+        admission.acquire( 1, TimeUnit.SECONDS );
+        admission.release();
+        assertEquals( "raised after 2 channels without a refusal", 2, admission.getMaxChannels() );
+
+        admission.setRecovery( 100, 50, TimeUnit.MILLISECONDS );
+        Thread.sleep( 100 );
+        admission.acquire( 1, TimeUnit.SECONDS );
+        assertEquals( "raised after a quiet period", 3, admission.getMaxChannels() );
+        admission.release();
+
+        admission.reset();
+        assertEquals( 8, admission.getMaxChannels() );
+        for ( int i = 0; i < 20; i++ ) {
+            admission.acquire( 1, TimeUnit.SECONDS );
+            admission.release();
+        }
+        assertEquals( "never raised beyond the limit set", 8, admission.getMaxChannels() );
+    }
+
+    @Test
+    public void testRejection() {
+        assertTrue( ChannelAdmissionController.isRejection(
+                new JSchException( ChannelAdmissionController.CHANNEL_NOT_OPENED ) ) );
+        assertFalse( ChannelAdmissionController.isRejection(
+                new JSchException( "session is down" ) ) );
+    }
+}
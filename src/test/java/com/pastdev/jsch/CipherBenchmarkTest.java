@@ -0,0 +1,54 @@
+package com.pastdev.jsch;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+import java.util.Arrays;
+import java.util.List;
+
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+import com.pastdev.jsch.CipherBenchmark.Result;
+
+
+public class CipherBenchmarkTest {
+    private static Logger logger = LoggerFactory.getLogger( CipherBenchmarkTest.class );
+
+    private static List<String> names( List<Result> results ) {
+        String[] names = new String[results.size()];
+        for ( int i = 0; i < names.length; i++ ) {
+            names[i] = results.get( i ).getName();
+        }
+        return Arrays.asList( names );
+    }
+
+    @Test
+    public void testBenchmark() {
+        CipherBenchmark benchmark = new CipherBenchmark( 5 );
+        logger.info( "{}", benchmark.getReport() );
+
+        List<Result> ciphers = benchmark.getCiphers();
+        assertTrue( names( ciphers ).contains( "aes128-ctr" ) );
+        for ( int i = 1; i < ciphers.size(); i++ ) {
+            assertTrue( ciphers.get( i - 1 ).getBytesPerSecond() >= ciphers.get( i ).getBytesPerSecond() );
+        }
+        assertTrue( names( benchmark.getMacs() ).contains( "hmac-sha1" ) );
+    }
+
+    @Test
+    public void testOrder() {
+        CipherBenchmark benchmark = new CipherBenchmark( 5 );
+        List<String> ciphers = names( benchmark.getCiphers() );
+        String fastest = ciphers.get( 0 );
+        String second = ciphers.get( 1 );
+
+        assertEquals( fastest + "," + second + ",unknown",
+                benchmark.order( "unknown," + second + "," + fastest ) );
+    }
+}
@@ -0,0 +1,255 @@
+package com.pastdev.jsch;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SocketFactory;
+import com.pastdev.jsch.ConnectionGovernor.CircuitState;
+import com.pastdev.jsch.ConnectionGovernor.HostStatus;
+
+
+public class ConnectionGovernorTest {
+    private ConnectionGovernor governor;
+    private JSch jsch = new JSch();
+    private int port;
+
+    @Before
+    public void before() throws IOException {
+        ServerSocket serverSocket = new ServerSocket( 0 );
+        port = serverSocket.getLocalPort();
+        serverSocket.close();
+
+        governor = new ConnectionGovernor();
+        governor.setBackoff( 0, 0, TimeUnit.MILLISECONDS );
+        governor.setGlobalRate( 0 );
+        governor.setPerHostRate( 0 );
+    }
+
+    private String connect() {
+        try {
+            governor.connect( jsch.getSession( "joe", "127.0.0.1", port ) );
+            fail( "connected to a closed port" );
+            return null;
+        }
+        catch ( JSchException e ) {
+            return e.getMessage();
+        }
+    }
+
+    @Test
+    public void testCircuitBreaker() throws InterruptedException {
+        governor.setCircuitBreaker( 2, 200, TimeUnit.MILLISECONDS );
+
+        connect();
+        connect();
+        HostStatus status = governor.getHostStatus( "127.0.0.1", port );
+        assertEquals( CircuitState.OPEN, status.getCircuitState() );
+        assertEquals( 2, status.getFailureCount() );
+
+        assertTrue( connect().startsWith( "circuit open" ) );
+        assertEquals( 1, governor.getRejectedCount() );
+        assertEquals( 2, governor.getAttemptCount() );
+
+        Thread.sleep( 300 );
+        assertEquals( CircuitState.HALF_OPEN, governor.getHostStatus( "127.0.0.1", port ).getCircuitState() );
+        assertTrue( !connect().startsWith( "circuit open" ) );
+        assertEquals( "a failed trial opens the circuit again",
+                CircuitState.OPEN, governor.getHostStatus( "127.0.0.1", port ).getCircuitState() );
+        assertEquals( 3, governor.getAttemptCount() );
+    }
+
+    @Test
+    public void testConnectTimeoutReachesSocketFactory() throws JSchException {
+        final List<Integer> timeouts = new ArrayList<Integer>();
+        Session session = jsch.getSession( "joe", "127.0.0.1", port );
+        session.setSocketFactory( recordingSocketFactory( timeouts ) );
+
+        try {
+            governor.connect( session, 1234 );
+            fail( "expected JSchException" );
+        }
+        catch ( JSchException e ) {
+            // expected
+        }
+        assertEquals( Arrays.asList( 1234 ), timeouts );
+        assertEquals( "only set while connecting", -1, ConnectionGovernor.getConnectTimeout() );
+    }
+
+    @Test
+    public void testSessionTimeoutIsTheDefault() throws JSchException {
+        final List<Integer> timeouts = new ArrayList<Integer>();
+        Session session = jsch.getSession( "joe", "127.0.0.1", port );
+        session.setTimeout( 4321 );
+        session.setSocketFactory( recordingSocketFactory( timeouts ) );
+
+        try {
+            governor.connect( session );
+            fail( "expected JSchException" );
+        }
+        catch ( JSchException e ) {
+            // expected
+        }
+        assertEquals( "session.connect() uses the session timeout", Arrays.asList( 4321 ), timeouts );
+    }
+
+    private static SocketFactory recordingSocketFactory( final List<Integer> timeouts ) {
+        return new SocketFactory() {
+            @Override
+            public Socket createSocket( String host, int port ) throws IOException {
+                timeouts.add( ConnectionGovernor.getConnectTimeout() );
+                throw new IOException( "not connecting" );
+            }
+
+            @Override
+            public InputStream getInputStream( Socket socket ) throws IOException {
+                return socket.getInputStream();
+            }
+
+            @Override
+            public OutputStream getOutputStream( Socket socket ) throws IOException {
+                return socket.getOutputStream();
+            }
+        };
+    }
+
+    @Test
+    public void testOnlyTransportFailuresAreHostDown() {
+        assertTrue( ConnectionGovernor.isHostDown( new JSchException( "java.net.ConnectException: Connection refused",
+                new ConnectException( "Connection refused" ) ) ) );
+        assertTrue( ConnectionGovernor.isHostDown( new JSchException( "timeout: socket is not established" ) ) );
+        assertTrue( ConnectionGovernor.isHostDown( new JSchException( "connection is closed by foreign host" ) ) );
+        assertTrue( ConnectionGovernor.isHostDown( new JSchException(
+                "Session.connect: java.net.SocketTimeoutException: Read timed out" ) ) );
+
+        assertFalse( ConnectionGovernor.isHostDown( new JSchException( "Algorithm negotiation fail" ) ) );
+        assertFalse( ConnectionGovernor.isHostDown( new JSchException( "Auth fail" ) ) );
+        assertFalse( ConnectionGovernor.isHostDown( new JSchException( "USERAUTH fail" ) ) );
+        assertFalse( ConnectionGovernor.isHostDown( new JSchException( "UnknownHostKey: alpha" ) ) );
+        assertFalse( ConnectionGovernor.isHostDown( new JSchException(
+                "Session.connect: java.lang.IllegalStateException: broken" ) ) );
+        assertFalse( ConnectionGovernor.isHostDown( new JSchException( (String) null ) ) );
+    }
+
+    @Test
+    public void testIdleHealthyHostsAreForgotten() throws Exception {
+        governor.setCircuitBreaker( 100, 1, TimeUnit.MINUTES );
+        governor.setHostIdleTimeout( 100, TimeUnit.MILLISECONDS );
+        InputStream inputStream = ClassLoader.getSystemResourceAsStream( "configuration.properties" );
+        Assume.assumeNotNull( inputStream );
+        Properties properties = new Properties();
+        try {
+            properties.load( inputStream );
+        }
+        finally {
+            inputStream.close();
+        }
+        int sshPort = Integer.parseInt( properties.getProperty( "scp.out.test.port" ) );
+        JSch connected = new JSch();
+        connected.setKnownHosts( properties.getProperty( "ssh.knownHosts" ) );
+        connected.addIdentity( properties.getProperty( "ssh.privateKey" ) );
+
+        Session session = connected.getSession( properties.getProperty( "scp.out.test.username" ), "localhost", sshPort );
+        governor.connect( session );
+        session.disconnect();
+        connect();
+        assertEquals( CircuitState.CLOSED, governor.getHostStatus( "localhost", sshPort ).getCircuitState() );
+
+        Thread.sleep( 200 );
+        connect();
+        assertNull( "an idle healthy host is forgotten", governor.getHostStatus( "localhost", sshPort ) );
+        assertEquals( "a failing host is kept", 2,
+                governor.getHostStatus( "127.0.0.1", port ).getConsecutiveFailures() );
+    }
+
+    @Test
+    public void testRateLimit() {
+        governor.setCircuitBreaker( 100, 1, TimeUnit.MINUTES );
+        governor.setGlobalRate( 10 );
+
+        long start = System.nanoTime();
+        for ( int i = 0; i < 12; i++ ) {
+            connect();
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+        assertTrue( "burst of 10 then 2 throttled, took " + elapsed + "ms", elapsed >= 150 );
+        assertEquals( 12, governor.getAttemptCount() );
+    }
+
+    @Test
+    public void testBackoff() {
+        governor.setCircuitBreaker( 100, 1, TimeUnit.MINUTES );
+        governor.setBackoff( 200, 200, TimeUnit.MILLISECONDS );
+
+        long start = System.nanoTime();
+        for ( int i = 0; i < 6; i++ ) {
+            connect();
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+        assertTrue( "5 jittered backoffs of up to 200ms, took " + elapsed + "ms", elapsed > 50 && elapsed < 2000 );
+        assertEquals( 6, governor.getHostStatus( "127.0.0.1", port ).getConsecutiveFailures() );
+    }
+
+    @Test
+    public void testBackoffIsDrawnPerCaller() throws Exception {
+        governor.setCircuitBreaker( 100, 1, TimeUnit.MINUTES );
+        governor.setBackoff( 500, 500, TimeUnit.MILLISECONDS );
+        connect();
+
+        int callers = 6;
+        ExecutorService executor = Executors.newFixedThreadPool( callers );
+        try {
+            final long start = System.nanoTime();
+            List<Future<Long>> waits = new ArrayList<Future<Long>>();
+            for ( int i = 0; i < callers; i++ ) {
+                waits.add( executor.submit( new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        connect();
+                        return TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+                    }
+                } ) );
+            }
+            long min = Long.MAX_VALUE;
+            long max = 0;
+            for ( Future<Long> wait : waits ) {
+                min = Math.min( min, wait.get() );
+                max = Math.max( max, wait.get() );
+            }
+            assertTrue( "callers spread over the backoff window, from " + min + "ms to " + max + "ms",
+                    max - min > 50 );
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.pastdev.jsch;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+
+public class Curve25519KeyExchangeTest {
+    private static Logger logger = LoggerFactory.getLogger( Curve25519KeyExchangeTest.class );
+    private static final int HANDSHAKES = 20;
+    private static final String[] KEXES = {
+            "curve25519-sha256",
+            "ecdh-sha2-nistp256",
+            "ecdh-sha2-nistp384",
+            "diffie-hellman-group14-sha1",
+            "diffie-hellman-group-exchange-sha256" };
+
+    private static DefaultSessionFactory sessionFactory() throws IOException {
+        InputStream inputStream = ClassLoader.getSystemResourceAsStream( "configuration.properties" );
+        Assume.assumeNotNull( inputStream );
+        Properties properties = new Properties();
+        try {
+            properties.load( inputStream );
+        }
+        finally {
+            inputStream.close();
+        }
+
+        DefaultSessionFactory defaultSessionFactory = new DefaultSessionFactory(
+                properties.getProperty( "scp.out.test.username" ), "localhost",
+                Integer.parseInt( properties.getProperty( "scp.out.test.port" ) ) );
+        try {
+            defaultSessionFactory.setKnownHosts( properties.getProperty( "ssh.knownHosts" ) );
+            defaultSessionFactory.setIdentityFromPrivateKey( properties.getProperty( "ssh.privateKey" ) );
+        }
+        catch ( JSchException e ) {
+            Assume.assumeNoException( e );
+        }
+        return defaultSessionFactory;
+    }
+
+    private static SessionFactory withKex( SessionFactory sessionFactory, String kex ) {
+        return sessionFactory.newSessionFactoryBuilder()
+                .setConfig( "kex", kex )
+                .build();
+    }
+
+    @Test
+    public void testApply() throws JSchException {
+        Assume.assumeTrue( Curve25519KeyExchange.isAvailable() );
+
+        Session session = new JSch().getSession( "user", "localhost" );
+        Curve25519KeyExchange.apply( session, null );
+        assertEquals( Curve25519KeyExchange.class.getName(), session.getConfig( "curve25519-sha256" ) );
+        assertEquals( "curve25519-sha256,curve25519-sha256@libssh.org," + JSch.getConfig( "kex" ),
+                session.getConfig( "kex" ) );
+
+        Map<String, String> config = new HashMap<String, String>();
+        config.put( "kex", "ecdh-sha2-nistp256,curve25519-sha256" );
+        session = new JSch().getSession( "user", "localhost" );
+        session.setConfig( "kex", config.get( "kex" ) );
+        Curve25519KeyExchange.apply( session, config );
+        assertEquals( "ecdh-sha2-nistp256,curve25519-sha256", session.getConfig( "kex" ) );
+
+        config.put( "curve25519-sha256", "com.example.Kex" );
+        session = new JSch().getSession( "user", "localhost" );
+        Curve25519KeyExchange.apply( session, config );
+        assertNull( session.getConfig( "curve25519-sha256" ) );
+        assertEquals( JSch.getConfig( "kex" ), session.getConfig( "kex" ) );
+    }
+
+    @Test
+    public void testAvailabilityCheck() throws Exception {
+        Assume.assumeTrue( Curve25519KeyExchange.isAvailable() );
+        // the way JSch, and the AlgorithmProbe, check a key exchange
+        new Curve25519KeyExchange().init( new JSch().getSession( "user", "localhost" ), null, null, null, null );
+    }
+
+    /**
+     * Reports the average handshake time, and CPU time of the connecting
+     * thread, of each key exchange against the test server. Timings are only
+     * logged, as they depend on the host. Skipped unless
+     * <code>-Dbenchmark=true</code> is set.
+     */
+    @Test
+    public void testBenchmark() throws Exception {
+        Assume.assumeTrue( Boolean.getBoolean( "benchmark" ) );
+        Assume.assumeTrue( Curve25519KeyExchange.isAvailable() );
+        SessionFactory sessionFactory = sessionFactory();
+        // warm up class loading, the algorithm probe and the JIT
+        for ( String kex : KEXES ) {
+            handshakes( withKex( sessionFactory, kex ), 3 );
+        }
+        for ( String kex : KEXES ) {
+            long[] nanos = handshakes( withKex( sessionFactory, kex ), HANDSHAKES );
+            logger.info( String.format( "%-38s handshake %6.2fms, cpu %6.2fms",
+                    kex, nanos[0] / 1e6 / HANDSHAKES, nanos[1] / 1e6 / HANDSHAKES ) );
+        }
+    }
+
+    @Test
+    public void testConnect() throws Exception {
+        Assume.assumeTrue( Curve25519KeyExchange.isAvailable() );
+        SessionFactory sessionFactory = sessionFactory();
+        for ( String kex : Curve25519KeyExchange.METHODS ) {
+            Session session = withKex( sessionFactory, kex ).newSession();
+            session.connect();
+            try {
+                ChannelExec channel = (ChannelExec) session.openChannel( "exec" );
+                channel.setCommand( "echo " + kex );
+                InputStream stdout = channel.getInputStream();
+                channel.connect();
+                try {
+                    assertEquals( kex + "\n", IOUtils.copyToString( stdout ) );
+                }
+                finally {
+                    channel.disconnect();
+                }
+            }
+            finally {
+                session.disconnect();
+            }
+        }
+    }
+
+    private static long[] handshakes( SessionFactory sessionFactory, int count ) throws JSchException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long[] nanos = new long[2];
+        for ( int i = 0; i < count; i++ ) {
+            Session session = sessionFactory.newSession();
+            long start = System.nanoTime();
+            long cpuStart = threads.getCurrentThreadCpuTime();
+            session.connect();
+            nanos[0] += System.nanoTime() - start;
+            nanos[1] += threads.getCurrentThreadCpuTime() - cpuStart;
+            assertTrue( session.isConnected() );
+            session.disconnect();
+        }
+        return nanos;
+    }
+}
@@ -0,0 +1,111 @@
+package com.pastdev.jsch;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+
+import org.junit.Before;
+import org.junit.Test;
+
+
+import com.jcraft.jsch.Identity;
+import com.jcraft.jsch.IdentityRepository;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.KeyPair;
+
+
+public class IdentityOrderTest {
+    private JSch jsch;
+
+    @Before
+    public void before() throws JSchException {
+        jsch = new JSch();
+        for ( int i = 0; i < 3; i++ ) {
+            KeyPair keyPair = KeyPair.genKeyPair( jsch, KeyPair.RSA, 1024 );
+            ByteArrayOutputStream privateKey = new ByteArrayOutputStream();
+            keyPair.writePrivateKey( privateKey );
+            ByteArrayOutputStream publicKey = new ByteArrayOutputStream();
+            keyPair.writePublicKey( publicKey, "key" + i );
+            keyPair.dispose();
+            jsch.addIdentity( "key" + i, privateKey.toByteArray(), publicKey.toByteArray(), null );
+        }
+    }
+
+    private static Identity identity( IdentityRepository repository, int index ) {
+        return (Identity) repository.getIdentities().elementAt( index );
+    }
+
+    private static String names( IdentityRepository repository ) {
+        StringBuilder names = new StringBuilder();
+        for ( Object identity : repository.getIdentities() ) {
+            names.append( ((Identity) identity).getName() ).append( " " );
+        }
+        return names.toString().trim();
+    }
+
+    @Test
+    public void testDisabled() {
+        IdentityOrder order = new IdentityOrder();
+        order.setEnabled( false );
+        assertSame( jsch.getIdentityRepository(),
+                order.wrap( jsch.getIdentityRepository(), "user", "host", 22 ) );
+    }
+
+    @Test
+    public void testPersisted() throws IOException {
+        File file = File.createTempFile( "identity", ".order" );
+        file.delete();
+        try {
+            IdentityOrder order = new IdentityOrder( file );
+            IdentityRepository repository = order.wrap( jsch.getIdentityRepository(), "user", "host", 22 );
+            identity( repository, 1 ).getSignature( new byte[] { 1, 2, 3 } );
+
+            IdentityOrder loaded = new IdentityOrder( file );
+            assertEquals( order.getPreferred( "user", "host", 22 ),
+                    loaded.getPreferred( "user", "host", 22 ) );
+            assertEquals( "key1 key0 key2",
+                    names( loaded.wrap( jsch.getIdentityRepository(), "user", "host", 22 ) ) );
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testRemembersSigningIdentity() {
+        IdentityOrder order = new IdentityOrder();
+        IdentityRepository repository = order.wrap( jsch.getIdentityRepository(), "user", "host", 22 );
+        assertEquals( "key0 key1 key2", names( repository ) );
+        assertNull( order.getPreferred( "user", "host", 22 ) );
+
+        byte[] data = new byte[] { 1, 2, 3 };
+        Identity third = identity( repository, 2 );
+        assertArrayEquals( ((Identity) jsch.getIdentityRepository().getIdentities().elementAt( 2 ))
+                .getSignature( data ), third.getSignature( data ) );
+        assertNotNull( order.getPreferred( "user", "host", 22 ) );
+        assertEquals( 1, order.getRecordedCount() );
+
+        assertEquals( "key2 key0 key1", names( repository ) );
+        assertEquals( "key2 key0 key1",
+                names( order.wrap( jsch.getIdentityRepository(), "user", "host", 22 ) ) );
+        assertEquals( "key0 key1 key2",
+                names( order.wrap( jsch.getIdentityRepository(), "user", "host", 2222 ) ) );
+
+        // signing again with the remembered identity records nothing new
+        identity( repository, 0 ).getSignature( data );
+        assertEquals( 1, order.getRecordedCount() );
+
+        order.forget( "user", "host", 22 );
+        assertEquals( "key0 key1 key2", names( repository ) );
+    }
+}
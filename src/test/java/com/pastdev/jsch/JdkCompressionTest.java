@@ -0,0 +1,152 @@
+package com.pastdev.jsch;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Random;
+
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+import com.jcraft.jsch.Compression;
+
+
+public class JdkCompressionTest {
+    private static Logger logger = LoggerFactory.getLogger( JdkCompressionTest.class );
+    private static final int HEADER = 5;
+
+    private static byte[][] packets( int count, int size ) {
+        Random random = new Random( 42 );
+        byte[][] packets = new byte[count][];
+        StringBuilder text = new StringBuilder();
+        for ( int i = 0; i < count; i++ ) {
+            text.setLength( 0 );
+            while ( text.length() < size ) {
+                text.append( "drwxr-xr-x 2 user group " ).append( random.nextInt( 100000 ) )
+                        .append( " Oct 19 08:" ).append( random.nextInt( 60 ) )
+                        .append( " file" ).append( random.nextInt( 1000 ) ).append( ".txt\n" );
+            }
+            packets[i] = Arrays.copyOf( text.toString().getBytes(), size );
+        }
+        return packets;
+    }
+
+    private static Compression compression( Class<? extends Compression> type, int mode ) throws Exception {
+        Compression compression = type.getDeclaredConstructor().newInstance();
+        compression.init( mode, 6 );
+        return compression;
+    }
+
+    private static byte[] compress( Compression deflater, byte[] payload ) {
+        byte[] buffer = new byte[HEADER + payload.length + 64];
+        Arrays.fill( buffer, 0, HEADER, (byte) 7 );
+        System.arraycopy( payload, 0, buffer, HEADER, payload.length );
+        int[] length = { HEADER + payload.length };
+        buffer = deflater.compress( buffer, HEADER, length );
+        for ( int i = 0; i < HEADER; i++ ) {
+            assertEquals( 7, buffer[i] );
+        }
+        return Arrays.copyOfRange( buffer, HEADER, length[0] );
+    }
+
+    private static byte[] uncompress( Compression inflater, byte[] compressed ) {
+        byte[] buffer = new byte[HEADER + compressed.length];
+        System.arraycopy( compressed, 0, buffer, HEADER, compressed.length );
+        int[] length = { compressed.length };
+        buffer = inflater.uncompress( buffer, HEADER, length );
+        return Arrays.copyOfRange( buffer, HEADER, HEADER + length[0] );
+    }
+
+    private static void roundTrip( Class<? extends Compression> deflaterType, Class<? extends Compression> inflaterType ) throws Exception {
+        Compression deflater = compression( deflaterType, Compression.DEFLATER );
+        Compression inflater = compression( inflaterType, Compression.INFLATER );
+        for ( byte[] packet : packets( 50, 32768 ) ) {
+            byte[] compressed = compress( deflater, packet );
+            assertTrue( compressed.length < packet.length );
+            assertArrayEquals( packet, uncompress( inflater, compressed ) );
+        }
+        byte[] small = "exit-status".getBytes();
+        assertArrayEquals( small, uncompress( inflater, compress( deflater, small ) ) );
+    }
+
+    @Test
+    public void testInteroperatesWithJzlib() throws Exception {
+        roundTrip( JdkCompression.class, com.jcraft.jsch.jcraft.Compression.class );
+        roundTrip( com.jcraft.jsch.jcraft.Compression.class, JdkCompression.class );
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        roundTrip( JdkCompression.class, JdkCompression.class );
+    }
+
+    @Test
+    public void testReinit() throws Exception {
+        JdkCompression deflater = (JdkCompression) compression( JdkCompression.class, Compression.DEFLATER );
+        JdkCompression inflater = (JdkCompression) compression( JdkCompression.class, Compression.INFLATER );
+        byte[] packet = packets( 1, 32768 )[0];
+        assertArrayEquals( packet, uncompress( inflater, compress( deflater, packet ) ) );
+
+        deflater.init( Compression.DEFLATER, 1 );
+        inflater.init( Compression.INFLATER, 0 );
+        assertArrayEquals( packet, uncompress( inflater, compress( deflater, packet ) ) );
+
+        deflater.end();
+        inflater.end();
+        deflater.end();
+    }
+
+    /**
+     * Logs the CPU time per MB of payload of JSch's JZlib based compression
+     * and the JDK based one, when run with <code>-Dbenchmark=true</code>.
+     */
+    @Test
+    public void testBenchmark() throws Exception {
+        Assume.assumeTrue( Boolean.getBoolean( "benchmark" ) );
+        byte[][] packets = packets( 256, 32768 );
+        for ( int round = 0; round < 3; round++ ) {
+            benchmark( round == 2, com.jcraft.jsch.jcraft.Compression.class, packets );
+            benchmark( round == 2, JdkCompression.class, packets );
+        }
+    }
+
+    private static void benchmark( boolean report, Class<? extends Compression> type, byte[][] packets ) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Compression deflater = compression( type, Compression.DEFLATER );
+        Compression inflater = compression( type, Compression.INFLATER );
+        byte[][] compressed = new byte[packets.length][];
+        long payload = 0;
+        long wire = 0;
+
+        long start = threads.getCurrentThreadCpuTime();
+        for ( int i = 0; i < packets.length; i++ ) {
+            compressed[i] = compress( deflater, packets[i] );
+            payload += packets[i].length;
+            wire += compressed[i].length;
+        }
+        long deflateNanos = threads.getCurrentThreadCpuTime() - start;
+
+        start = threads.getCurrentThreadCpuTime();
+        for ( byte[] packet : compressed ) {
+            uncompress( inflater, packet );
+        }
+        long inflateNanos = threads.getCurrentThreadCpuTime() - start;
+
+        if ( report ) {
+            double megabytes = payload / 1e6;
+            logger.info( String.format( "%-38s compress %6.2f cpu ms/MB, uncompress %6.2f cpu ms/MB, ratio %.2f",
+                    type.getName(), deflateNanos / 1e6 / megabytes, inflateNanos / 1e6 / megabytes,
+                    (double) wire / payload ) );
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package com.pastdev.jsch;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+
+public class KeyExchangePoolTest {
+    private static Logger logger = LoggerFactory.getLogger( KeyExchangePoolTest.class );
+    private static final int BURST = 16;
+    private static final String[] KEXES = {
+            "curve25519-sha256",
+            "ecdh-sha2-nistp256",
+            "ecdh-sha2-nistp384",
+            "ecdh-sha2-nistp521",
+            "diffie-hellman-group14-sha1",
+            "diffie-hellman-group-exchange-sha256" };
+
+    private KeyExchangePool original;
+    private KeyExchangePool pool;
+
+    private static DefaultSessionFactory sessionFactory() throws IOException {
+        InputStream inputStream = ClassLoader.getSystemResourceAsStream( "configuration.properties" );
+        Assume.assumeNotNull( inputStream );
+        Properties properties = new Properties();
+        try {
+            properties.load( inputStream );
+        }
+        finally {
+            inputStream.close();
+        }
+
+        DefaultSessionFactory defaultSessionFactory = new DefaultSessionFactory(
+                properties.getProperty( "scp.out.test.username" ), "localhost",
+                Integer.parseInt( properties.getProperty( "scp.out.test.port" ) ) );
+        try {
+            defaultSessionFactory.setKnownHosts( properties.getProperty( "ssh.knownHosts" ) );
+            defaultSessionFactory.setIdentityFromPrivateKey( properties.getProperty( "ssh.privateKey" ) );
+        }
+        catch ( JSchException e ) {
+            Assume.assumeNoException( e );
+        }
+        return defaultSessionFactory;
+    }
+
+    private static SessionFactory withKex( SessionFactory sessionFactory, String kex ) {
+        return sessionFactory.newSessionFactoryBuilder()
+                .setConfig( "kex", kex )
+                .build();
+    }
+
+    @Before
+    public void before() {
+        original = KeyExchangePool.getDefault();
+        pool = new KeyExchangePool( 4 );
+        KeyExchangePool.setDefault( pool );
+    }
+
+    @After
+    public void after() {
+        KeyExchangePool.setDefault( original );
+    }
+
+    @Test
+    public void testApply() throws JSchException {
+        Session session = new JSch().getSession( "user", "localhost" );
+        Curve25519KeyExchange.apply( session, null );
+        pool.apply( session, null );
+        assertEquals( KeyExchangePool.Dh.class.getName(), session.getConfig( "dh" ) );
+        assertEquals( KeyExchangePool.Ecdh.class.getName(), session.getConfig( "ecdh-sha2-nistp" ) );
+        if ( Curve25519KeyExchange.isAvailable() ) {
+            assertEquals( KeyExchangePool.Curve25519.class.getName(), session.getConfig( "curve25519-sha256" ) );
+        }
+
+        Map<String, String> config = new HashMap<String, String>();
+        config.put( "dh", "com.example.DH" );
+        config.put( "curve25519-sha256", "com.example.Kex" );
+        session = new JSch().getSession( "user", "localhost" );
+        for ( String key : config.keySet() ) {
+            session.setConfig( key, config.get( key ) );
+        }
+        Curve25519KeyExchange.apply( session, config );
+        pool.apply( session, config );
+        assertEquals( "com.example.DH", session.getConfig( "dh" ) );
+        assertEquals( "com.example.Kex", session.getConfig( "curve25519-sha256" ) );
+        assertEquals( KeyExchangePool.Ecdh.class.getName(), session.getConfig( "ecdh-sha2-nistp" ) );
+    }
+
+    @Test
+    public void testEcdh() throws Exception {
+        KeyExchangePool.Ecdh alice = new KeyExchangePool.Ecdh();
+        KeyExchangePool.Ecdh bob = new KeyExchangePool.Ecdh();
+        for ( int size : new int[] { 256, 384, 521 } ) {
+            alice.init( size );
+            bob.init( size );
+            byte[] q = alice.getQ();
+            int length = (size + 7) / 8;
+            assertEquals( 1 + 2 * length, q.length );
+            byte[] r = Arrays.copyOfRange( q, 1, 1 + length );
+            byte[] s = Arrays.copyOfRange( q, 1 + length, q.length );
+            assertTrue( bob.validate( r, s ) );
+            assertFalse( bob.validate( r, new BigInteger( 1, s ).add( BigInteger.ONE ).toByteArray() ) );
+
+            byte[] p = bob.getQ();
+            assertTrue( Arrays.equals(
+                    alice.getSecret( Arrays.copyOfRange( p, 1, 1 + length ), Arrays.copyOfRange( p, 1 + length, p.length ) ),
+                    bob.getSecret( r, s ) ) );
+        }
+    }
+
+    @Test
+    public void testRefill() throws Exception {
+        Session session = new JSch().getSession( "user", "localhost" );
+        session.setConfig( "kex", "ecdh-sha2-nistp256" );
+        pool.apply( session, null );
+        long deadline = System.currentTimeMillis() + 10000;
+        while ( pool.getAvailableCount() < 4 && System.currentTimeMillis() < deadline ) {
+            Thread.sleep( 10 );
+        }
+        assertEquals( 4, pool.getAvailableCount() );
+
+        new KeyExchangePool.Ecdh().init( 256 );
+        assertEquals( 1, pool.getHitCount() );
+        assertEquals( 0, pool.getMissCount() );
+
+        pool.clear();
+        assertEquals( 0, pool.getAvailableCount() );
+    }
+
+    @Test
+    public void testUsedOnce() throws Exception {
+        String curve = "secp256r1";
+        Set<BigInteger> publicKeys = new HashSet<BigInteger>();
+        int takes = 50;
+        for ( int i = 0; i < takes; i++ ) {
+            KeyPair keyPair = pool.take( curve, "EC", new ECGenParameterSpec( curve ) );
+            assertNotNull( keyPair );
+            assertTrue( publicKeys.add( new BigInteger( 1, keyPair.getPublic().getEncoded() ) ) );
+        }
+        assertEquals( takes, pool.getHitCount() + pool.getMissCount() );
+        logger.info( "{} after {} takes", pool, takes );
+    }
+
+    /**
+     * Reports the average connect time of a burst of concurrent connects,
+     * with and without the pool. Timings are only logged, as they depend on
+     * the host, and the benchmark only runs with <code>-Dbenchmark=true</code>.
+     */
+    @Test
+    public void testBurstBenchmark() throws Exception {
+        Assume.assumeTrue( Boolean.getBoolean( "benchmark" ) );
+        DefaultSessionFactory sessionFactory = sessionFactory();
+        for ( String kex : new String[] { KEXES[0], KEXES[1], KEXES[4] } ) {
+            if ( kex.startsWith( "curve25519" ) && !Curve25519KeyExchange.isAvailable() ) {
+                continue;
+            }
+            sessionFactory.setPrecomputeKeyExchange( false );
+            SessionFactory unpooled = withKex( sessionFactory, kex );
+            sessionFactory.setPrecomputeKeyExchange( true );
+            SessionFactory pooled = withKex( sessionFactory, kex );
+            pool.setSize( BURST );
+
+            // warm up, and stock the pool
+            burst( unpooled, 4 );
+            burst( pooled, 4 );
+            Thread.sleep( 1000 );
+
+            long unpooledNanos = burst( unpooled, BURST );
+            long pooledNanos = burst( pooled, BURST );
+            logger.info( String.format( "%-38s burst of %d, connect %6.2fms unpooled, %6.2fms pooled, %s",
+                    kex, BURST, unpooledNanos / 1e6 / BURST, pooledNanos / 1e6 / BURST, pool ) );
+        }
+    }
+
+    @Test
+    public void testConnect() throws Exception {
+        DefaultSessionFactory sessionFactory = sessionFactory();
+        sessionFactory.setPrecomputeKeyExchange( true );
+        for ( String kex : KEXES ) {
+            if ( kex.startsWith( "curve25519" ) && !Curve25519KeyExchange.isAvailable() ) {
+                continue;
+            }
+            // the second connect takes a key pair stocked after the first
+            for ( int i = 0; i < 2; i++ ) {
+                Session session = withKex( sessionFactory, kex ).newSession();
+                session.connect();
+                try {
+                    ChannelExec channel = (ChannelExec) session.openChannel( "exec" );
+                    channel.setCommand( "echo " + kex );
+                    InputStream stdout = channel.getInputStream();
+                    channel.connect();
+                    try {
+                        assertEquals( kex + "\n", IOUtils.copyToString( stdout ) );
+                    }
+                    finally {
+                        channel.disconnect();
+                    }
+                }
+                finally {
+                    session.disconnect();
+                }
+                Thread.sleep( 200 );
+            }
+        }
+        assertTrue( pool.getHitCount() > 0 );
+        logger.info( "{} after connecting", pool );
+    }
+
+    private static long burst( final SessionFactory sessionFactory, int count ) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool( count );
+        try {
+            List<Future<Long>> futures = new ArrayList<Future<Long>>();
+            for ( int i = 0; i < count; i++ ) {
+                futures.add( executor.submit( new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        Session session = sessionFactory.newSession();
+                        long start = System.nanoTime();
+                        session.connect();
+                        long nanos = System.nanoTime() - start;
+                        assertTrue( session.isConnected() );
+                        session.disconnect();
+                        return nanos;
+                    }
+                } ) );
+            }
+            long nanos = 0;
+            for ( Future<Long> future : futures ) {
+                nanos += future.get();
+            }
+            return nanos;
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.pastdev.jsch;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+import com.jcraft.jsch.HostKey;
+import com.jcraft.jsch.HostKeyRepository;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.KeyPair;
+
+
+public class KnownHostsRepositoryTest {
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    private File file;
+    private byte[] key1;
+    private byte[] key2;
+
+    @Before
+    public void before() throws IOException, JSchException {
+        file = File.createTempFile( "known_hosts", "" );
+        key1 = newKey();
+        key2 = newKey();
+    }
+
+    @After
+    public void after() {
+        file.delete();
+    }
+
+    private void append( String line ) throws IOException {
+        long lastModified = file.lastModified();
+        OutputStream out = new FileOutputStream( file, true );
+        try {
+            out.write( (line + "\n").getBytes( UTF8 ) );
+        }
+        finally {
+            out.close();
+        }
+        // make sure the change is visible even on coarse file time resolution
+        file.setLastModified( lastModified + 2000 );
+    }
+
+    private static String base64( byte[] bytes ) {
+        try {
+            return new HostKey( "", HostKey.SSHRSA, bytes ).getKey();
+        }
+        catch ( JSchException e ) {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    private static byte[] newKey() throws JSchException {
+        KeyPair keyPair = KeyPair.genKeyPair( new JSch(), KeyPair.RSA, 1024 );
+        byte[] blob = keyPair.getPublicKeyBlob();
+        keyPair.dispose();
+        return blob;
+    }
+
+    private static String hashed( String host ) {
+        byte[] salt = new byte[20];
+        new SecureRandom().nextBytes( salt );
+        return hashed( salt, host );
+    }
+
+    private static String hashed( byte[] salt, String host ) {
+        return "|1|" + base64( salt ) + "|" + base64( KnownHostsRepository.hmacSha1( salt, host ) );
+    }
+
+    @Test
+    public void testCheck() throws IOException {
+        append( "# comment" );
+        append( "alpha,10.0.0.1 ssh-rsa " + base64( key1 ) + " a comment" );
+        append( hashed( "beta" ) + " ssh-rsa " + base64( key1 ) );
+        append( "[gamma]:2222 ssh-rsa " + base64( key2 ) );
+        append( "not a valid line" );
+
+        KnownHostsRepository repository = KnownHostsRepository.forFile( file.getPath() );
+        assertEquals( 3, repository.size() );
+        assertEquals( HostKeyRepository.OK, repository.check( "alpha", key1 ) );
+        assertEquals( HostKeyRepository.OK, repository.check( "ALPHA", key1 ) );
+        assertEquals( HostKeyRepository.OK, repository.check( "10.0.0.1", key1 ) );
+        assertEquals( HostKeyRepository.CHANGED, repository.check( "alpha", key2 ) );
+        assertEquals( HostKeyRepository.OK, repository.check( "beta", key1 ) );
+        assertEquals( HostKeyRepository.OK, repository.check( "[beta]:2222", key1 ) );
+        assertEquals( HostKeyRepository.OK, repository.check( "[gamma]:2222", key2 ) );
+        assertEquals( HostKeyRepository.NOT_INCLUDED, repository.check( "gamma", key2 ) );
+        assertEquals( HostKeyRepository.NOT_INCLUDED, repository.check( "delta", key1 ) );
+
+        HostKey[] hostKeys = repository.getHostKey( "alpha", "ssh-rsa" );
+        assertEquals( 1, hostKeys.length );
+        assertEquals( "a comment", hostKeys[0].getComment() );
+        assertEquals( base64( key1 ), hostKeys[0].getKey() );
+    }
+
+    @Test
+    public void testAddAndRemove() throws IOException, JSchException {
+        append( "alpha,alias ssh-rsa " + base64( key1 ) );
+        KnownHostsRepository repository = KnownHostsRepository.forFile( file.getPath() );
+        assertEquals( HostKeyRepository.NOT_INCLUDED, repository.check( "beta", key2 ) );
+
+        repository.add( new HostKey( "beta", key2 ), null );
+        assertEquals( HostKeyRepository.OK, repository.check( "beta", key2 ) );
+        assertEquals( 2, IOUtils.readFile( file, UTF8 ).split( "\n" ).length );
+
+        repository.remove( "alias", "ssh-rsa" );
+        assertEquals( HostKeyRepository.OK, repository.check( "alpha", key1 ) );
+        assertEquals( HostKeyRepository.NOT_INCLUDED, repository.check( "alias", key1 ) );
+        repository.remove( "beta", null );
+        assertEquals( HostKeyRepository.NOT_INCLUDED, repository.check( "beta", key2 ) );
+        assertEquals( "alpha ssh-rsa " + base64( key1 ) + "\n", IOUtils.readFile( file, UTF8 ) );
+    }
+
+    @Test
+    public void testIndexedLookups() throws IOException {
+        byte[] salt = new byte[20];
+        new SecureRandom().nextBytes( salt );
+        for ( int i = 0; i < 100; i++ ) {
+            append( "host" + i + ".example.com,10.0.1." + i + " ssh-rsa " + base64( key1 ) );
+            append( hashed( salt, "hashed" + i ) + " ssh-rsa " + base64( key1 ) );
+        }
+        append( hashed( salt, "hashed7" ) + " ssh-rsa " + base64( key2 ) );
+
+        KnownHostsRepository repository = KnownHostsRepository.forFile( file.getPath() );
+        assertEquals( 201, repository.size() );
+        assertEquals( HostKeyRepository.OK, repository.check( "HOST42.example.com", key1 ) );
+        assertEquals( HostKeyRepository.OK, repository.check( "10.0.1.99", key1 ) );
+        assertEquals( HostKeyRepository.NOT_INCLUDED, repository.check( "host100.example.com", key1 ) );
+        assertEquals( HostKeyRepository.OK, repository.check( "hashed42", key1 ) );
+        assertEquals( HostKeyRepository.CHANGED, repository.check( "hashed42", key2 ) );
+        assertEquals( HostKeyRepository.OK, repository.check( "hashed7", key2 ) );
+        assertEquals( 2, repository.getHostKey( "hashed7", null ).length );
+        assertEquals( 1, repository.getHostKey( "host7.example.com", "ssh-rsa" ).length );
+        assertEquals( 0, repository.getHostKey( "host7.example.com", "ssh-dss" ).length );
+    }
+
+    @Test
+    public void testReload() throws IOException {
+        append( "alpha ssh-rsa " + base64( key1 ) );
+        KnownHostsRepository repository = KnownHostsRepository.forFile( file.getPath() );
+        assertSame( repository, KnownHostsRepository.forFile( file.getAbsolutePath() ) );
+        assertEquals( HostKeyRepository.OK, repository.check( "alpha", key1 ) );
+        assertEquals( HostKeyRepository.OK, repository.check( "alpha", key1 ) );
+        assertEquals( 1, repository.getFullLoadCount() );
+        assertEquals( 0, repository.getIncrementalLoadCount() );
+
+        append( "beta ssh-rsa " + base64( key2 ) );
+        assertEquals( HostKeyRepository.OK, repository.check( "beta", key2 ) );
+        assertEquals( HostKeyRepository.OK, repository.check( "alpha", key1 ) );
+        assertEquals( 1, repository.getFullLoadCount() );
+        assertEquals( 1, repository.getIncrementalLoadCount() );
+
+        long lastModified = file.lastModified();
+        IOUtils.writeFile( file, "alpha ssh-rsa " + base64( key2 ) + "\n"
+                + "beta ssh-rsa " + base64( key2 ) + "\n"
+                + "gamma ssh-rsa " + base64( key2 ) + "\n", UTF8 );
+        file.setLastModified( lastModified + 2000 );
+        assertEquals( HostKeyRepository.CHANGED, repository.check( "alpha", key1 ) );
+        assertEquals( 3, repository.size() );
+        assertEquals( 2, repository.getFullLoadCount() );
+    }
+
+    @Test
+    public void testHashKnownHosts() throws IOException, JSchException {
+        append( "alpha ssh-rsa " + base64( key1 ) );
+        KnownHostsRepository repository = KnownHostsRepository.forFile( file.getPath() );
+        repository.hashing().add( new HostKey( "[beta]:2222", key2 ), null );
+
+        String[] lines = IOUtils.readFile( file, UTF8 ).split( "\n" );
+        assertEquals( 2, lines.length );
+        assertTrue( lines[1].startsWith( "|1|" ) );
+        assertFalse( lines[1].contains( "beta" ) );
+        assertEquals( HostKeyRepository.OK, repository.check( "[beta]:2222", key2 ) );
+
+        // read back as JSch's own KnownHosts does
+        JSch jsch = new JSch();
+        jsch.setKnownHosts( file.getPath() );
+        assertEquals( HostKeyRepository.OK, jsch.getHostKeyRepository().check( "[beta]:2222", key2 ) );
+
+        // hashing is decided by the caller, not by the file
+        repository.add( new HostKey( "gamma", key1 ), null );
+        assertTrue( IOUtils.readFile( file, UTF8 ).split( "\n" )[2].startsWith( "gamma " ) );
+        assertEquals( HostKeyRepository.OK, repository.hashing().check( "gamma", key1 ) );
+    }
+
+    @Test
+    public void testHashingIsPerSession() throws IOException, JSchException {
+        DefaultSessionFactory hashing = new DefaultSessionFactory( "joe", "alpha", 22 );
+        hashing.setKnownHosts( file.getPath() );
+        hashing.setConfig( "HashKnownHosts", "yes" );
+        DefaultSessionFactory plain = new DefaultSessionFactory( "joe", "alpha", 22 );
+        plain.setKnownHosts( file.getPath() );
+
+        KnownHostsRepository repository = KnownHostsRepository.forFile( file.getPath() );
+        assertSame( repository.hashing(), hashing.newSession().getHostKeyRepository() );
+        assertSame( repository, plain.newSession().getHostKeyRepository() );
+    }
+
+    @Test
+    public void testHashedLookupsSurviveAppends() throws IOException {
+        append( hashed( "alpha" ) + " ssh-rsa " + base64( key1 ) );
+        KnownHostsRepository repository = KnownHostsRepository.forFile( file.getPath() );
+        assertEquals( HostKeyRepository.OK, repository.check( "alpha", key1 ) );
+        assertEquals( HostKeyRepository.NOT_INCLUDED, repository.check( "beta", key2 ) );
+
+        append( hashed( "beta" ) + " ssh-rsa " + base64( key2 ) );
+        append( hashed( "alpha" ) + " ssh-dss " + base64( key2 ) );
+        assertEquals( HostKeyRepository.OK, repository.check( "beta", key2 ) );
+        assertEquals( HostKeyRepository.OK, repository.check( "alpha", key1 ) );
+        assertEquals( 2, repository.getHostKey( "alpha", null ).length );
+        assertEquals( 1, repository.getIncrementalLoadCount() );
+    }
+}
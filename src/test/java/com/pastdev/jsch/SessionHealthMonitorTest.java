@@ -0,0 +1,109 @@
+package com.pastdev.jsch;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+
+public class SessionHealthMonitorTest {
+    private static SessionFactory sessionFactory;
+
+    @BeforeClass
+    public static void initializeClass() throws IOException {
+        InputStream inputStream = ClassLoader.getSystemResourceAsStream( "configuration.properties" );
+        Assume.assumeNotNull( inputStream );
+        Properties properties = new Properties();
+        try {
+            properties.load( inputStream );
+        }
+        finally {
+            inputStream.close();
+        }
+
+        DefaultSessionFactory defaultSessionFactory = new DefaultSessionFactory(
+                properties.getProperty( "scp.out.test.username" ), "localhost",
+                Integer.parseInt( properties.getProperty( "scp.out.test.port" ) ) );
+        try {
+            defaultSessionFactory.setKnownHosts( properties.getProperty( "ssh.knownHosts" ) );
+            defaultSessionFactory.setIdentityFromPrivateKey( properties.getProperty( "ssh.privateKey" ) );
+        }
+        catch ( JSchException e ) {
+            Assume.assumeNoException( e );
+        }
+        sessionFactory = defaultSessionFactory;
+    }
+
+    @Test
+    public void testBusySessionIsNotProbed() throws Exception {
+        SessionManager sessionManager = new SessionManager( sessionFactory );
+        SessionHealthMonitor monitor = new SessionHealthMonitor( 200, TimeUnit.MILLISECONDS );
+        try {
+            monitor.register( sessionManager );
+            sessionManager.setMaxChannels( 1 );
+            Session session = sessionManager.acquireSession();
+            try {
+                Thread.sleep( 1000 );
+                SessionHealthMonitor.Health health = monitor.getHealth( sessionManager );
+                assertEquals( "busy sessions are not probed", 0, health.getProbeCount() );
+                assertEquals( 0, health.getReconnectCount() );
+                assertSame( session, sessionManager.peekSession() );
+                assertTrue( session.isConnected() );
+                assertEquals( 1, sessionManager.getChannelAdmissionController().getMaxChannels() );
+            }
+            finally {
+                sessionManager.releaseSession( session );
+            }
+        }
+        finally {
+            monitor.close();
+            sessionManager.close();
+        }
+    }
+
+    @Test
+    public void testProbeAndReconnect() throws Exception {
+        SessionManager sessionManager = new SessionManager( sessionFactory );
+        SessionHealthMonitor monitor = new SessionHealthMonitor( 200, TimeUnit.MILLISECONDS );
+        try {
+            monitor.register( sessionManager );
+            Thread.sleep( 500 );
+            assertEquals( "unconnected sessions are not probed",
+                    0, monitor.getHealth( sessionManager ).getProbeCount() );
+
+            Session first = sessionManager.getSession();
+            Thread.sleep( 1000 );
+            SessionHealthMonitor.Health health = monitor.getHealth( sessionManager );
+            assertTrue( health.getProbeCount() > 0 );
+            assertEquals( 0, health.getFailureCount() );
+            assertTrue( health.getLastRoundTripMillis() >= 0 );
+
+            first.disconnect();
+            Thread.sleep( 1000 );
+            assertTrue( health.getReconnectCount() > 0 );
+            Session second = sessionManager.peekSession();
+            assertNotSame( first, second );
+            assertTrue( second.isConnected() );
+        }
+        finally {
+            monitor.close();
+            sessionManager.close();
+        }
+    }
+}
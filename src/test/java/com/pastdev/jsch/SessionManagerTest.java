@@ -0,0 +1,161 @@
+package com.pastdev.jsch;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+import org.junit.Assume;
+import org.junit.Test;
+
+
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+
+public class SessionManagerTest {
+    private static DefaultSessionFactory sessionFactory() throws IOException {
+        InputStream inputStream = ClassLoader.getSystemResourceAsStream( "configuration.properties" );
+        Assume.assumeNotNull( inputStream );
+        Properties properties = new Properties();
+        try {
+            properties.load( inputStream );
+        }
+        finally {
+            inputStream.close();
+        }
+
+        DefaultSessionFactory defaultSessionFactory = new DefaultSessionFactory(
+                properties.getProperty( "scp.out.test.username" ), "localhost",
+                Integer.parseInt( properties.getProperty( "scp.out.test.port" ) ) );
+        try {
+            defaultSessionFactory.setKnownHosts( properties.getProperty( "ssh.knownHosts" ) );
+            defaultSessionFactory.setIdentityFromPrivateKey( properties.getProperty( "ssh.privateKey" ) );
+        }
+        catch ( JSchException e ) {
+            Assume.assumeNoException( e );
+        }
+        return defaultSessionFactory;
+    }
+
+    @Test
+    public void testCloseWhileConnecting() throws Exception {
+        final SessionFactory connected = sessionFactory();
+        final CountDownLatch connecting = new CountDownLatch( 1 );
+        final CountDownLatch closed = new CountDownLatch( 1 );
+        final AtomicReference<Session> created = new AtomicReference<Session>();
+        final SessionManager sessionManager = new SessionManager( new UnreachableSessionFactory() {
+            @Override
+            public Session newSession() throws JSchException {
+                connecting.countDown();
+                try {
+                    closed.await( 10, TimeUnit.SECONDS );
+                }
+                catch ( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                }
+                Session session = connected.newSession();
+                created.set( session );
+                return session;
+            }
+        } );
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Session> result = executor.submit( new Callable<Session>() {
+                @Override
+                public Session call() throws Exception {
+                    return sessionManager.getSession();
+                }
+            } );
+            connecting.await( 10, TimeUnit.SECONDS );
+            sessionManager.close();
+            closed.countDown();
+            try {
+                result.get();
+                fail( "expected JSchException" );
+            }
+            catch ( ExecutionException e ) {
+                assertSame( JSchException.class, e.getCause().getClass() );
+            }
+            assertFalse( created.get().isConnected() );
+            assertNull( sessionManager.peekSession() );
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSingleFlightReconnect() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        final JSchException failure = new JSchException( "host is down" );
+        final SessionManager sessionManager = new SessionManager( new UnreachableSessionFactory() {
+            @Override
+            public Session newSession() throws JSchException {
+                attempts.incrementAndGet();
+                try {
+                    Thread.sleep( 500 );
+                }
+                catch ( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                }
+                throw failure;
+            }
+        } );
+
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool( threads );
+        try {
+            List<Future<Throwable>> results = new ArrayList<Future<Throwable>>();
+            for ( int i = 0; i < threads; i++ ) {
+                results.add( executor.submit( new Callable<Throwable>() {
+                    @Override
+                    public Throwable call() throws Exception {
+                        try {
+                            sessionManager.getSession();
+                            return null;
+                        }
+                        catch ( JSchException e ) {
+                            return e;
+                        }
+                    }
+                } ) );
+            }
+            for ( Future<Throwable> result : results ) {
+                assertSame( failure, result.get() );
+            }
+            assertEquals( 1, attempts.get() );
+
+            try {
+                sessionManager.getSession();
+            }
+            catch ( JSchException e ) {
+                assertSame( failure, e );
+            }
+            assertEquals( 2, attempts.get() );
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+}
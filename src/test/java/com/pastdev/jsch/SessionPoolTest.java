@@ -0,0 +1,164 @@
+package com.pastdev.jsch;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+import org.junit.Assume;
+import org.junit.Test;
+
+
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+
+public class SessionPoolTest {
+    private static DefaultSessionFactory sessionFactory() throws IOException {
+        InputStream inputStream = ClassLoader.getSystemResourceAsStream( "configuration.properties" );
+        Assume.assumeNotNull( inputStream );
+        Properties properties = new Properties();
+        try {
+            properties.load( inputStream );
+        }
+        finally {
+            inputStream.close();
+        }
+
+        DefaultSessionFactory defaultSessionFactory = new DefaultSessionFactory(
+                properties.getProperty( "scp.out.test.username" ), "localhost",
+                Integer.parseInt( properties.getProperty( "scp.out.test.port" ) ) );
+        try {
+            defaultSessionFactory.setKnownHosts( properties.getProperty( "ssh.knownHosts" ) );
+            defaultSessionFactory.setIdentityFromPrivateKey( properties.getProperty( "ssh.privateKey" ) );
+        }
+        catch ( JSchException e ) {
+            Assume.assumeNoException( e );
+        }
+        return defaultSessionFactory;
+    }
+
+    @Test
+    public void testLearnedLimitIsPerSessionAndRecovers() throws Exception {
+        SessionPool pool = new SessionPool( sessionFactory(), 0, 2, 4 );
+        try {
+            Session session = pool.acquireSession();
+            Session other = pool.acquireSession();
+            assertNotSame( session, other );
+            assertSame( session, pool.acquireSession() );
+            pool.channelRejected( session );
+            assertEquals( 1, pool.getMaxChannels( session ) );
+            assertEquals( "other sessions keep the configured limit", 4, pool.getMaxChannels( other ) );
+            assertEquals( 4, pool.getMaxChannelsPerSession() );
+            assertSame( "the refusing session is full", other, pool.acquireSession() );
+            pool.releaseSession( other );
+
+            pool.releaseSession( session );
+            for ( int i = 1; i < ChannelAdmissionController.DEFAULT_RECOVERY_SUCCESSES; i++ ) {
+                assertSame( session, pool.acquireSession() );
+                pool.releaseSession( session );
+            }
+            assertEquals( "the limit recovers", 2, pool.getMaxChannels( session ) );
+        }
+        finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testFailedConnectFreesSlot() throws IOException {
+        final AtomicInteger attempts = new AtomicInteger();
+        final JSchException failure = new JSchException( "host is down" );
+        SessionPool pool = new SessionPool( new UnreachableSessionFactory() {
+            @Override
+            public Session newSession() throws JSchException {
+                attempts.incrementAndGet();
+                throw failure;
+            }
+        }, 0, 1, 1 );
+
+        try {
+            for ( int i = 1; i <= 2; i++ ) {
+                try {
+                    pool.acquireSession();
+                    fail( "acquired a session from an unreachable host" );
+                }
+                catch ( JSchException e ) {
+                    assertSame( failure, e );
+                }
+                assertEquals( i, attempts.get() );
+                assertEquals( 0, pool.getSessionCount() );
+            }
+        }
+        finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testClosedPool() throws IOException {
+        final AtomicInteger attempts = new AtomicInteger();
+        SessionPool pool = new SessionPool( new UnreachableSessionFactory() {
+            @Override
+            public Session newSession() throws JSchException {
+                attempts.incrementAndGet();
+                throw new JSchException( "host is down" );
+            }
+        } );
+        pool.close();
+
+        try {
+            pool.acquireSession();
+            fail( "acquired a session from a closed pool" );
+        }
+        catch ( JSchException e ) {
+            assertEquals( "session pool is closed", e.getMessage() );
+        }
+        assertEquals( 0, attempts.get() );
+    }
+
+    @Test
+    public void testWarmUpFailure() throws IOException, JSchException {
+        final JSchException failure = new JSchException( "host is down" );
+        SessionPool pool = new SessionPool( new UnreachableSessionFactory() {
+            @Override
+            public Session newSession() throws JSchException {
+                throw failure;
+            }
+        } );
+        try {
+            pool.warmUp();
+
+            pool.setSpareSessions( 1 );
+            try {
+                pool.warmUp();
+                fail( "warmed up an unreachable host" );
+            }
+            catch ( JSchException e ) {
+                assertSame( failure, e );
+            }
+            assertEquals( 0, pool.getSessionCount() );
+        }
+        finally {
+            pool.close();
+        }
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testInvalidLimits() {
+        new SessionPool( new UnreachableSessionFactory() {
+            @Override
+            public Session newSession() throws JSchException {
+                throw new JSchException( "host is down" );
+            }
+        }, 2, 1, 10 );
+    }
+}
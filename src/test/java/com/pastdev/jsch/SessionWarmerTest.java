@@ -0,0 +1,80 @@
+package com.pastdev.jsch;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+
+public class SessionWarmerTest {
+    private static SessionFactory sessionFactory;
+
+    @BeforeClass
+    public static void initializeClass() throws IOException {
+        InputStream inputStream = ClassLoader.getSystemResourceAsStream( "configuration.properties" );
+        Assume.assumeNotNull( inputStream );
+        Properties properties = new Properties();
+        try {
+            properties.load( inputStream );
+        }
+        finally {
+            inputStream.close();
+        }
+
+        DefaultSessionFactory defaultSessionFactory = new DefaultSessionFactory(
+                properties.getProperty( "scp.out.test.username" ), "localhost",
+                Integer.parseInt( properties.getProperty( "scp.out.test.port" ) ) );
+        try {
+            defaultSessionFactory.setKnownHosts( properties.getProperty( "ssh.knownHosts" ) );
+            defaultSessionFactory.setIdentityFromPrivateKey( properties.getProperty( "ssh.privateKey" ) );
+        }
+        catch ( JSchException e ) {
+            Assume.assumeNoException( e );
+        }
+        sessionFactory = defaultSessionFactory;
+    }
+
+    private static void awaitIdle( SessionPool pool, int idle ) throws InterruptedException {
+        for ( int i = 0; i < 100 && pool.getIdleSessionCount() < idle; i++ ) {
+            Thread.sleep( 50 );
+        }
+        assertEquals( idle, pool.getIdleSessionCount() );
+    }
+
+    @Test
+    public void testSpareSessions() throws Exception {
+        SessionWarmer warmer = new SessionWarmer( 1, TimeUnit.MINUTES );
+        try {
+            SessionPool pool = warmer.addTarget( sessionFactory, 2 );
+            awaitIdle( pool, 2 );
+
+            Session session = pool.acquireSession();
+            assertTrue( session.isConnected() );
+            awaitIdle( pool, 2 );
+            assertEquals( 3, pool.getSessionCount() );
+
+            pool.releaseSession( session );
+            pool.setIdleTimeout( 0, TimeUnit.MILLISECONDS );
+            pool.evictIdleSessions();
+            assertEquals( "spares are kept", 2, pool.getSessionCount() );
+        }
+        finally {
+            warmer.close();
+        }
+        assertEquals( 0, warmer.getPools().size() );
+    }
+}
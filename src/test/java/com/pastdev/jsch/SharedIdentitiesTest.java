@@ -0,0 +1,138 @@
+package com.pastdev.jsch;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+import com.jcraft.jsch.Identity;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.KeyPair;
+
+
+public class SharedIdentitiesTest {
+    private File privateKey;
+
+    @Before
+    public void before() throws IOException, JSchException {
+        privateKey = File.createTempFile( "shared", ".key" );
+        writeKey( null );
+    }
+
+    @After
+    public void after() {
+        privateKey.delete();
+    }
+
+    private static Identity identity( JSch jsch ) throws JSchException {
+        assertEquals( 1, jsch.getIdentityRepository().getIdentities().size() );
+        return (Identity) jsch.getIdentityRepository().getIdentities().firstElement();
+    }
+
+    private void writeKey( String passphrase ) throws IOException, JSchException {
+        KeyPair keyPair = KeyPair.genKeyPair( new JSch(), KeyPair.RSA, 1024 );
+        if ( passphrase == null ) {
+            keyPair.writePrivateKey( privateKey.getAbsolutePath() );
+        }
+        else {
+            keyPair.writePrivateKey( privateKey.getAbsolutePath(), passphrase.getBytes( "UTF-8" ) );
+        }
+        keyPair.dispose();
+    }
+
+    @Test
+    public void testEncryptedKeyNotShared() throws IOException, JSchException {
+        writeKey( "secret" );
+        JSch first = new JSch();
+        SharedIdentities.addPrivateKey( first, privateKey.getPath() );
+        JSch second = new JSch();
+        SharedIdentities.addPrivateKey( second, privateKey.getPath() );
+
+        assertTrue( identity( first ).isEncrypted() );
+        assertNotSame( identity( first ), identity( second ) );
+    }
+
+    @Test
+    public void testDecryptedKeyShared() throws IOException, JSchException {
+        writeKey( "secret" );
+        byte[] passphrase = "secret".getBytes( "UTF-8" );
+        JSch first = new JSch();
+        SharedIdentities.addPrivateKey( first, privateKey.getPath(), passphrase );
+        JSch second = new JSch();
+        SharedIdentities.addPrivateKey( second, privateKey.getPath(), passphrase );
+
+        assertFalse( identity( first ).isEncrypted() );
+        assertSame( identity( first ), identity( second ) );
+    }
+
+    @Test
+    public void testKeptWhenTouched() throws IOException, JSchException {
+        JSch first = new JSch();
+        SharedIdentities.addPrivateKey( first, privateKey.getPath() );
+
+        privateKey.setLastModified( privateKey.lastModified() + 2000 );
+        JSch second = new JSch();
+        SharedIdentities.addPrivateKey( second, privateKey.getPath() );
+
+        assertSame( identity( first ), identity( second ) );
+    }
+
+    @Test
+    public void testWrongPassphraseNotShared() throws IOException, JSchException {
+        writeKey( "secret" );
+        JSch right = new JSch();
+        SharedIdentities.addPrivateKey( right, privateKey.getPath(), "secret".getBytes( "UTF-8" ) );
+        JSch wrong = new JSch();
+        SharedIdentities.addPrivateKey( wrong, privateKey.getPath(), "guess".getBytes( "UTF-8" ) );
+
+        assertTrue( identity( wrong ).isEncrypted() );
+        assertNotSame( identity( right ), identity( wrong ) );
+    }
+
+    @Test
+    public void testReparsedWhenModified() throws IOException, JSchException {
+        JSch first = new JSch();
+        SharedIdentities.addPrivateKey( first, privateKey.getPath() );
+        byte[] before = identity( first ).getPublicKeyBlob();
+
+        writeKey( null );
+        // make sure the change is visible even on coarse file time resolution
+        privateKey.setLastModified( privateKey.lastModified() + 2000 );
+        JSch second = new JSch();
+        SharedIdentities.addPrivateKey( second, privateKey.getPath() );
+
+        assertNotSame( identity( first ), identity( second ) );
+        assertTrue( before.length > 0 );
+        assertFalse( Arrays.equals( before, identity( second ).getPublicKeyBlob() ) );
+    }
+
+    @Test
+    public void testSharedAcrossInstances() throws JSchException {
+        JSch first = new JSch();
+        SharedIdentities.addPrivateKey( first, privateKey.getPath() );
+        JSch second = new JSch();
+        SharedIdentities.addPrivateKey( second, privateKey.getPath() );
+
+        Identity identity = identity( first );
+        assertSame( identity, identity( second ) );
+
+        byte[] signature = identity.getSignature( new byte[] { 1, 2, 3 } );
+        first.removeAllIdentity();
+        assertArrayEquals( signature, identity( second ).getSignature( new byte[] { 1, 2, 3 } ) );
+    }
+}
@@ -0,0 +1,42 @@
+package com.pastdev.jsch;
+
+
+import com.jcraft.jsch.Proxy;
+import com.jcraft.jsch.UserInfo;
+
+
+/**
+ * A session factory for tests whose {@link #newSession()} is supplied by the
+ * test, typically to fail or block without touching the network.
+ */
+abstract class UnreachableSessionFactory implements SessionFactory {
+    @Override
+    public String getHostname() {
+        return "unreachable";
+    }
+
+    @Override
+    public int getPort() {
+        return SSH_PORT;
+    }
+
+    @Override
+    public Proxy getProxy() {
+        return null;
+    }
+
+    @Override
+    public String getUsername() {
+        return "joe";
+    }
+
+    @Override
+    public UserInfo getUserInfo() {
+        return null;
+    }
+
+    @Override
+    public SessionFactoryBuilder newSessionFactoryBuilder() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,123 @@
+package com.pastdev.jsch.client;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.fail;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpException;
+import com.pastdev.jsch.IOUtils;
+import com.pastdev.jsch.SessionPool;
+import com.pastdev.jsch.TrafficClass;
+import com.pastdev.jsch.TrafficClassRouter;
+import com.pastdev.jsch.scp.ScpFile;
+import com.pastdev.jsch.scp.ScpTestBase;
+import com.pastdev.jsch.sftp.SftpRunner.Sftp;
+
+
+public class SshClientTest extends ScpTestBase {
+    private static Logger logger = LoggerFactory.getLogger( SshClientTest.class );
+
+    @Test
+    public void testMixedWorkloadSharesSession() {
+        String filename = UUID.randomUUID().toString();
+        File file = new File( filesystemPath, filename );
+        SessionPool pool = new SessionPool( sessionFactory, 0, 1, 10 );
+        SshClient client = new SshClient( pool );
+        try {
+            IOUtils.writeFile( file, "hello", UTF8 );
+            ScpFile scpFile = client.newScpFile( scpPath, filename );
+
+            assertEquals( "hello", client.execute( "cat " + scpPath + "/" + filename ).getStdout() );
+
+            File local = File.createTempFile( "sshclient", ".txt" );
+            try {
+                scpFile.copyTo( local );
+                assertEquals( "hello", IOUtils.readFile( local, UTF8 ) );
+            }
+            finally {
+                local.delete();
+            }
+
+            final long[] size = new long[1];
+            final String path = scpPath + "/" + filename;
+            client.sftp( new Sftp() {
+                @Override
+                public void run( ChannelSftp sftp ) throws JSchException, IOException {
+                    try {
+                        size[0] = sftp.lstat( path ).getSize();
+                    }
+                    catch ( SftpException e ) {
+                        throw new IOException( e );
+                    }
+                }
+            } );
+            assertEquals( 5, size[0] );
+
+            assertEquals( 1, pool.getSessionCount() );
+            assertEquals( 0, pool.getOpenChannelCount() );
+        }
+        catch ( Exception e ) {
+            logger.error( "failed for client {}: {}", client, e );
+            logger.debug( "failed:", e );
+            fail( e.getMessage() );
+        }
+        finally {
+            IOUtils.closeAndLogException( client );
+            file.delete();
+        }
+        assertEquals( 0, pool.getSessionCount() );
+    }
+
+    @Test
+    public void testTrafficClassesUseSeparateSessions() {
+        final TrafficClassRouter router = new TrafficClassRouter( sessionFactory );
+        final SshClient client = new SshClient( router );
+        try {
+            final String[] stdout = new String[1];
+            client.sftp( new Sftp() {
+                @Override
+                public void run( ChannelSftp sftp ) throws JSchException, IOException {
+                    assertEquals( 1, router.getSessionPool( TrafficClass.BULK ).getOpenChannelCount() );
+                    stdout[0] = client.execute( "echo interactive" ).getStdout();
+                }
+            } );
+            assertEquals( "interactive\n", stdout[0] );
+            assertEquals( 1, router.getSessionPool( TrafficClass.INTERACTIVE ).getSessionCount() );
+            assertEquals( 1, router.getSessionPool( TrafficClass.BULK ).getSessionCount() );
+
+            Session interactive = client.getSessionProvider( TrafficClass.INTERACTIVE ).acquireSession();
+            Session bulk = client.getSessionProvider( TrafficClass.BULK ).acquireSession();
+            try {
+                assertNotSame( interactive, bulk );
+            }
+            finally {
+                client.getSessionProvider( TrafficClass.INTERACTIVE ).releaseSession( interactive );
+                client.getSessionProvider( TrafficClass.BULK ).releaseSession( bulk );
+            }
+        }
+        catch ( Exception e ) {
+            logger.error( "failed for client {}: {}", client, e );
+            logger.debug( "failed:", e );
+            fail( e.getMessage() );
+        }
+        finally {
+            IOUtils.closeAndLogException( client );
+        }
+        assertEquals( 0, router.getSessionPool( TrafficClass.BULK ).getSessionCount() );
+    }
+}
@@ -0,0 +1,156 @@
+package com.pastdev.jsch.command;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+import org.junit.Test;
+
+
+import com.jcraft.jsch.JSchException;
+import com.pastdev.jsch.DefaultSessionFactory;
+import com.pastdev.jsch.SessionFactory;
+import com.pastdev.jsch.command.CommandRunner.ExecuteResult;
+
+
+public class CommandCacheTest {
+    private SessionFactory sessionFactory = new DefaultSessionFactory( "joe", "crabshack", 22 );
+    private CommandRunner commandRunner = new CommandRunner( sessionFactory );
+
+    private Callable<ExecuteResult> counting( final AtomicInteger count, final String stdout ) {
+        return new Callable<ExecuteResult>() {
+            @Override
+            public ExecuteResult call() throws Exception {
+                count.incrementAndGet();
+                return commandRunner.new ExecuteResult( 0, stdout, "" );
+            }
+        };
+    }
+
+    @Test
+    public void testHitAndMiss() throws JSchException, IOException {
+        CommandCache cache = new CommandCache();
+        AtomicInteger count = new AtomicInteger();
+
+        ExecuteResult first = cache.get( sessionFactory, "uname -a", 1, TimeUnit.MINUTES, counting( count, "Linux" ) );
+        ExecuteResult second = cache.get( sessionFactory, "uname -a", 1, TimeUnit.MINUTES, counting( count, "Linux" ) );
+        assertSame( first, second );
+        assertEquals( 1, count.get() );
+        assertEquals( 1, cache.getHitCount() );
+        assertEquals( 1, cache.getMissCount() );
+
+        SessionFactory other = sessionFactory.newSessionFactoryBuilder()
+                .setHostname( "redlobster" )
+                .build();
+        cache.get( other, "uname -a", 1, TimeUnit.MINUTES, counting( count, "Linux" ) );
+        assertEquals( 2, count.get() );
+        assertEquals( 2, cache.getMissCount() );
+    }
+
+    @Test
+    public void testExpiry() throws JSchException, IOException, InterruptedException {
+        CommandCache cache = new CommandCache();
+        AtomicInteger count = new AtomicInteger();
+
+        cache.get( sessionFactory, "nproc", 50, TimeUnit.MILLISECONDS, counting( count, "4" ) );
+        Thread.sleep( 100 );
+        cache.get( sessionFactory, "nproc", 50, TimeUnit.MILLISECONDS, counting( count, "4" ) );
+        assertEquals( 2, count.get() );
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() throws JSchException, IOException {
+        CommandCache cache = new CommandCache( 2 );
+        AtomicInteger count = new AtomicInteger();
+
+        cache.get( sessionFactory, "a", 1, TimeUnit.MINUTES, counting( count, "a" ) );
+        cache.get( sessionFactory, "b", 1, TimeUnit.MINUTES, counting( count, "b" ) );
+        cache.get( sessionFactory, "a", 1, TimeUnit.MINUTES, counting( count, "a" ) );
+        cache.get( sessionFactory, "c", 1, TimeUnit.MINUTES, counting( count, "c" ) );
+        assertEquals( 2, cache.size() );
+        assertEquals( 1, cache.getEvictionCount() );
+
+        cache.get( sessionFactory, "a", 1, TimeUnit.MINUTES, counting( count, "a" ) );
+        assertEquals( 3, count.get() );
+        cache.get( sessionFactory, "b", 1, TimeUnit.MINUTES, counting( count, "b" ) );
+        assertEquals( 4, count.get() );
+    }
+
+    @Test
+    public void testFailuresAreNotCached() throws JSchException {
+        CommandCache cache = new CommandCache();
+        try {
+            cache.get( sessionFactory, "cat /etc/os-release", 1, TimeUnit.MINUTES,
+                    new Callable<ExecuteResult>() {
+                        @Override
+                        public ExecuteResult call() throws Exception {
+                            throw new IOException( "connection dropped" );
+                        }
+                    } );
+            fail( "expected IOException" );
+        }
+        catch ( IOException e ) {
+            assertEquals( "connection dropped", e.getMessage() );
+        }
+        assertEquals( 0, cache.size() );
+    }
+
+    @Test
+    public void testSingleFlight() throws Exception {
+        final CommandCache cache = new CommandCache();
+        final AtomicInteger count = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch( 1 );
+        final CountDownLatch release = new CountDownLatch( 1 );
+        final Callable<ExecuteResult> slow = new Callable<ExecuteResult>() {
+            @Override
+            public ExecuteResult call() throws Exception {
+                count.incrementAndGet();
+                started.countDown();
+                release.await();
+                return commandRunner.new ExecuteResult( 0, "slow", "" );
+            }
+        };
+
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool( threads );
+        try {
+            Callable<ExecuteResult> get = new Callable<ExecuteResult>() {
+                @Override
+                public ExecuteResult call() throws Exception {
+                    return cache.get( sessionFactory, "slow", 1, TimeUnit.MINUTES, slow );
+                }
+            };
+            List<Future<ExecuteResult>> futures = new ArrayList<Future<ExecuteResult>>();
+            futures.add( executor.submit( get ) );
+            started.await();
+            for ( int i = 1; i < threads; i++ ) {
+                futures.add( executor.submit( get ) );
+            }
+            Thread.sleep( 100 );
+            release.countDown();
+
+            for ( Future<ExecuteResult> future : futures ) {
+                assertEquals( "slow", future.get().getStdout() );
+            }
+            assertEquals( 1, count.get() );
+            assertEquals( threads - 1, cache.getHitCount() );
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.pastdev.jsch.command;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+import com.pastdev.jsch.DefaultSessionFactory;
+import com.pastdev.jsch.command.CommandRunner.ExecuteResult;
+
+
+/**
+ * Runs the multiplexer helper as a local process, so requires
+ * <code>perl</code> and <code>/bin/sh</code> on the test system.
+ */
+public class CommandMultiplexerTest {
+    private static Logger logger = LoggerFactory.getLogger( CommandMultiplexerTest.class );
+
+    private CommandMultiplexer multiplexer;
+    private Process process;
+
+    @Before
+    public void startHelper() throws InterruptedException {
+        try {
+            Assume.assumeTrue( new ProcessBuilder( "perl", "-e", "1" ).start().waitFor() == 0 );
+            process = new ProcessBuilder( "/bin/sh", "-c", CommandMultiplexer.helperCommand( 4 ) )
+                    .start();
+        }
+        catch ( IOException e ) {
+            logger.warn( "unable to start helper (tests will be skipped): {}", e.getMessage() );
+            Assume.assumeNoException( e );
+        }
+        multiplexer = new CommandMultiplexer(
+                new CommandRunner( new DefaultSessionFactory( "joe", "crabshack", 22 ) ),
+                process.getInputStream(), process.getOutputStream() ).start();
+    }
+
+    @After
+    public void stopHelper() throws IOException, InterruptedException {
+        multiplexer.close();
+        process.waitFor();
+    }
+
+    @Test
+    public void testManyInFlight() throws Exception {
+        List<Future<ExecuteResult>> results = new ArrayList<Future<ExecuteResult>>();
+        for ( int i = 0; i < 50; i++ ) {
+            results.add( multiplexer.submit( "echo out " + i + "; echo err " + i + " >&2; exit " + (i % 3) ) );
+        }
+        for ( int i = 0; i < 50; i++ ) {
+            ExecuteResult result = results.get( i ).get();
+            assertEquals( i % 3, result.getExitCode() );
+            assertEquals( "out " + i + "\n", result.getStdout() );
+            assertEquals( "err " + i + "\n", result.getStderr() );
+        }
+        assertEquals( 0, multiplexer.getInFlightCount() );
+    }
+
+    @Test
+    public void testReadAndWriteFile() throws Exception {
+        File file = File.createTempFile( "multiplexer", ".bin" );
+        try {
+            byte[] contents = new byte[] { 0, 1, 2, 'a', '\n', (byte) 0xff };
+            multiplexer.writeFile( file.getAbsolutePath(), contents );
+            assertArrayEquals( contents, multiplexer.readFile( file.getAbsolutePath() ) );
+
+            try {
+                multiplexer.readFile( file.getAbsolutePath() + ".missing" );
+                fail( "expected missing file to fail" );
+            }
+            catch ( IOException e ) {
+                logger.debug( "expected failure: {}", e.getMessage() );
+            }
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        Future<ExecuteResult> slow = multiplexer.submit( "sleep 1" );
+        assertTrue( slow.cancel( false ) );
+        assertTrue( slow.isCancelled() );
+        assertTrue( slow.isDone() );
+        try {
+            slow.get();
+            fail( "expected CancellationException" );
+        }
+        catch ( CancellationException e ) {
+            // expected
+        }
+        assertFalse( slow.cancel( false ) );
+
+        Future<ExecuteResult> fast = multiplexer.submit( "echo fast" );
+        assertEquals( "fast\n", fast.get( 10, TimeUnit.SECONDS ).getStdout() );
+        assertFalse( fast.isCancelled() );
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        Future<ExecuteResult> slow = multiplexer.submit( "sleep 1; echo done" );
+        multiplexer.close();
+        assertEquals( "done\n", slow.get().getStdout() );
+        assertFalse( multiplexer.isOpen() );
+        try {
+            multiplexer.submit( "echo too late" );
+            fail( "expected closed multiplexer to reject requests" );
+        }
+        catch ( IOException e ) {
+            logger.debug( "expected failure: {}", e.getMessage() );
+        }
+    }
+}
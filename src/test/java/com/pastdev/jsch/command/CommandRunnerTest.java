@@ -8,7 +8,14 @@ import static org.junit.Assert.fail;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 
 import org.junit.Assume;
@@ -22,6 +29,8 @@ import com.jcraft.jsch.JSchException;
 import com.pastdev.jsch.DefaultSessionFactory;
 import com.pastdev.jsch.IOUtils;
 import com.pastdev.jsch.SessionFactory;
+import com.pastdev.jsch.SessionPool;
+import com.pastdev.jsch.command.CommandRunner.ChannelExecWrapper;
 import com.pastdev.jsch.command.CommandRunner.ExecuteResult;
 import com.pastdev.jsch.proxy.SshProxyTest;
 
@@ -116,6 +125,67 @@ public class CommandRunnerTest {
         }
     }
 
+    @Test
+    public void testCompressedOutput() {
+        CommandRunner commandRunner = null;
+        try {
+            commandRunner = new CommandRunner( sessionFactory );
+            commandRunner.setCompressOutput( true );
+
+            logger.debug( "run a compressed command" );
+            ExecuteResult result = commandRunner.execute( "for i in 1 2 3; do echo " + expected + "; done; echo oops >&2; exit 3" );
+            assertEquals( 3, result.getExitCode() );
+            assertEquals( expected + "\n" + expected + "\n" + expected + "\n", result.getStdout() );
+            assertEquals( "oops\n", result.getStderr() );
+
+            logger.debug( "and read a compressed stream" );
+            ChannelExecWrapper channel = commandRunner.open( "echo " + expected );
+            String stdout = IOUtils.copyToString( channel.getInputStream(), UTF8 );
+            assertEquals( 0, channel.close() );
+            assertEquals( expected + "\n", stdout );
+        }
+        catch ( Exception e ) {
+            logger.error( "failed for command runner {}: {}", commandRunner, e );
+            logger.debug( "failed:", e );
+            fail( e.getMessage() );
+        }
+        finally {
+            IOUtils.closeAndLogException( commandRunner );
+        }
+    }
+
+    @Test
+    public void testScript() {
+        CommandRunner commandRunner = null;
+        try {
+            commandRunner = new CommandRunner( sessionFactory );
+            commandRunner.setScriptDirectory( "/tmp/jsch-extension-test-" + System.currentTimeMillis() );
+            RemoteScript script = new RemoteScript( "echo \"$1\"\necho \"$2\" >&2\nexit 4\n" );
+
+            logger.debug( "run a script" );
+            ExecuteResult result = commandRunner.executeScript( script, expected, "it's quoted" );
+            assertEquals( 4, result.getExitCode() );
+            assertEquals( expected + "\n", result.getStdout() );
+            assertEquals( "it's quoted\n", result.getStderr() );
+
+            logger.debug( "remove the remote copy and run it again" );
+            commandRunner.execute( "rm -rf " + commandRunner.getScriptDirectory() );
+            result = commandRunner.executeScript( script, "again" );
+            assertEquals( 4, result.getExitCode() );
+            assertEquals( "again\n", result.getStdout() );
+
+            commandRunner.execute( "rm -rf " + commandRunner.getScriptDirectory() );
+        }
+        catch ( Exception e ) {
+            logger.error( "failed for command runner {}: {}", commandRunner, e );
+            logger.debug( "failed:", e );
+            fail( e.getMessage() );
+        }
+        finally {
+            IOUtils.closeAndLogException( commandRunner );
+        }
+    }
+
     @Test
     public void testSlowCommand() {
         CommandRunner commandRunner = null;
@@ -143,6 +213,47 @@ public class CommandRunnerTest {
         }
     }
 
+    @Test
+    public void testSessionPool() {
+        final SessionPool pool = new SessionPool( sessionFactory, 0, 2, 2 );
+        ExecutorService executor = Executors.newFixedThreadPool( 6 );
+        try {
+            final CommandRunner commandRunner = new CommandRunner( pool );
+            List<Future<ExecuteResult>> results = new ArrayList<Future<ExecuteResult>>();
+            for ( int i = 0; i < 6; i++ ) {
+                results.add( executor.submit( new Callable<ExecuteResult>() {
+                    @Override
+                    public ExecuteResult call() throws Exception {
+                        return commandRunner.execute( "sleep 1;echo " + expected );
+                    }
+                } ) );
+            }
+            for ( Future<ExecuteResult> result : results ) {
+                assertEquals( expected + "\n", result.get().getStdout() );
+            }
+            assertEquals( 2, pool.getSessionCount() );
+            assertEquals( 0, pool.getOpenChannelCount() );
+
+            // closing a runner does not close a shared pool
+            commandRunner.close();
+            assertEquals( expected + "\n", new CommandRunner( pool )
+                    .execute( "echo " + expected ).getStdout() );
+
+            pool.setIdleTimeout( 0, TimeUnit.MILLISECONDS );
+            pool.evictIdleSessions();
+            assertEquals( 0, pool.getSessionCount() );
+        }
+        catch ( Exception e ) {
+            logger.error( "failed for session pool {}: {}", pool, e );
+            logger.debug( "failed:", e );
+            fail( e.getMessage() );
+        }
+        finally {
+            executor.shutdownNow();
+            IOUtils.closeAndLogException( pool );
+        }
+    }
+
     @Test
     public void testDetectOs() {
         CommandRunner commandRunner = null;
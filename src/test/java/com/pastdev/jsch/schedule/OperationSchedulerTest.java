@@ -0,0 +1,133 @@
+package com.pastdev.jsch.schedule;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+import org.junit.Test;
+
+
+import com.pastdev.jsch.DefaultSessionFactory;
+import com.pastdev.jsch.SessionFactory;
+import com.pastdev.jsch.schedule.OperationScheduler.FailurePolicy;
+import com.pastdev.jsch.schedule.OperationScheduler.Result;
+import com.pastdev.jsch.schedule.OperationScheduler.Status;
+
+
+public class OperationSchedulerTest {
+    private SessionFactory crabshack = new DefaultSessionFactory( "joe", "crabshack", 22 );
+    private SessionFactory redlobster = crabshack.newSessionFactoryBuilder()
+            .setHostname( "redlobster" )
+            .build();
+
+    private final List<String> order = Collections.synchronizedList( new ArrayList<String>() );
+    private final ConcurrentHashMap<String, AtomicInteger> runningByHost = new ConcurrentHashMap<String, AtomicInteger>();
+    private final AtomicInteger maxRunningOnHost = new AtomicInteger();
+
+    private RemoteOperation step( final String name, final boolean succeed ) {
+        return new RemoteOperation() {
+            @Override
+            public void run( OperationContext context ) throws Exception {
+                runningByHost.putIfAbsent( context.toString(), new AtomicInteger() );
+                AtomicInteger running = runningByHost.get( context.toString() );
+                int now = running.incrementAndGet();
+                synchronized ( maxRunningOnHost ) {
+                    maxRunningOnHost.set( Math.max( maxRunningOnHost.get(), now ) );
+                }
+                try {
+                    Thread.sleep( 20 );
+                    order.add( name );
+                    if ( !succeed ) {
+                        throw new IllegalStateException( name + " failed" );
+                    }
+                }
+                finally {
+                    running.decrementAndGet();
+                }
+            }
+        };
+    }
+
+    @Test
+    public void testDependenciesAndHostLimit() throws InterruptedException {
+        OperationGraph graph = new OperationGraph();
+        for ( SessionFactory host : new SessionFactory[] { crabshack, redlobster } ) {
+            String name = host.getHostname();
+            graph.add( name + ":upload1", host, step( name + ":upload1", true ) );
+            graph.add( name + ":upload2", host, step( name + ":upload2", true ) );
+            graph.add( name + ":upload3", host, step( name + ":upload3", true ) );
+            graph.add( name + ":verify", host, step( name + ":verify", true ),
+                    name + ":upload1", name + ":upload2", name + ":upload3" );
+            graph.add( name + ":restart", host, step( name + ":restart", true ), name + ":verify" );
+        }
+
+        Result result = new OperationScheduler( 8, 2 ).run( graph );
+        assertTrue( result.isSuccess() );
+        assertEquals( 10, order.size() );
+        assertTrue( maxRunningOnHost.get() <= 2 );
+        for ( String name : new String[] { "crabshack", "redlobster" } ) {
+            assertTrue( order.indexOf( name + ":upload1" ) < order.indexOf( name + ":verify" ) );
+            assertTrue( order.indexOf( name + ":upload3" ) < order.indexOf( name + ":verify" ) );
+            assertTrue( order.indexOf( name + ":verify" ) < order.indexOf( name + ":restart" ) );
+        }
+    }
+
+    @Test
+    public void testContinueSkipsDependents() throws InterruptedException {
+        OperationGraph graph = new OperationGraph()
+                .add( "a:upload", crabshack, step( "a:upload", false ) )
+                .add( "a:restart", crabshack, step( "a:restart", true ), "a:upload" )
+                .add( "b:upload", redlobster, step( "b:upload", true ) )
+                .add( "b:restart", redlobster, step( "b:restart", true ), "b:upload" );
+
+        OperationScheduler scheduler = new OperationScheduler();
+        scheduler.setFailurePolicy( FailurePolicy.CONTINUE );
+        Result result = scheduler.run( graph );
+        assertFalse( result.isSuccess() );
+        assertEquals( Status.FAILED, result.getStatus( "a:upload" ) );
+        assertEquals( Status.SKIPPED, result.getStatus( "a:restart" ) );
+        assertEquals( Status.SUCCEEDED, result.getStatus( "b:upload" ) );
+        assertEquals( Status.SUCCEEDED, result.getStatus( "b:restart" ) );
+        assertEquals( "a:upload failed", result.getFailure( "a:upload" ).getMessage() );
+    }
+
+    @Test
+    public void testFailFast() throws InterruptedException {
+        OperationGraph graph = new OperationGraph()
+                .add( "first", crabshack, step( "first", false ) )
+                .add( "second", crabshack, step( "second", true ), "first" )
+                .add( "other", redlobster, step( "other", true ), "first" );
+
+        Result result = new OperationScheduler().run( graph );
+        assertEquals( Status.FAILED, result.getStatus( "first" ) );
+        assertEquals( Status.SKIPPED, result.getStatus( "second" ) );
+        assertEquals( Status.SKIPPED, result.getStatus( "other" ) );
+        assertEquals( 1, order.size() );
+    }
+
+    @Test
+    public void testCycle() throws InterruptedException {
+        OperationGraph graph = new OperationGraph()
+                .add( "a", crabshack, step( "a", true ), "c" )
+                .add( "b", crabshack, step( "b", true ), "a" )
+                .add( "c", crabshack, step( "c", true ), "b" );
+        try {
+            new OperationScheduler().run( graph );
+            fail( "expected cycle to be detected" );
+        }
+        catch ( IllegalStateException e ) {
+            assertTrue( e.getMessage().startsWith( "dependency cycle" ) );
+        }
+        assertTrue( order.isEmpty() );
+    }
+}